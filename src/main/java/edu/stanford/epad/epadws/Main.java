@@ -144,10 +144,12 @@ import edu.stanford.epad.common.plugins.PluginServletHandler;
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADFileUtils;
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.aim.AIMReplicator;
 import edu.stanford.epad.epadws.aim.AIMUtil;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeOperations;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadStatisticsCollector;
 import edu.stanford.epad.epadws.handlers.admin.ConvertAIM4Handler;
 import edu.stanford.epad.epadws.handlers.admin.CopyAimsToExistHandler;
 import edu.stanford.epad.epadws.handlers.admin.ImageCheckHandler;
@@ -172,12 +174,14 @@ import edu.stanford.epad.epadws.models.Plugin;
 import edu.stanford.epad.epadws.models.User;
 import edu.stanford.epad.epadws.plugins.PluginConfig;
 import edu.stanford.epad.epadws.plugins.PluginHandlerMap;
+import edu.stanford.epad.epadws.plugins.PluginJobEngine;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownHookThread;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 import edu.stanford.epad.epadws.processing.pipeline.watcher.QueueAndWatcherManager;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.PluginOperations;
 import edu.stanford.epad.epadws.service.RemotePACService;
+import edu.stanford.epad.epadws.service.TCIAImportEngine;
 
 /**
  * Note: When the ePAD webservices and ePAD client is split into two separate webapps, this class becomes obsolete and is not used
@@ -247,6 +251,10 @@ public class Main
 			shutdownSignal.shutdownNow();
 			stopServer(server);
 			if (!separateWebServicesApp) {
+				EpadStatisticsCollector.getInstance().shutdown();
+				PluginJobEngine.getInstance().shutdown();
+				TCIAImportEngine.getInstance().shutdown();
+				AIMReplicator.getInstance().shutdown();
 				EpadDatabase.getInstance().shutdown();
 				QueueAndWatcherManager.getInstance().shutdown();
 			}
@@ -461,6 +469,10 @@ public class Main
 			EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 			//log.info("Checking annotations table");
 			databaseOperations.checkAndRefreshAnnotationsTable();
+			EpadStatisticsCollector.getInstance().start();
+			PluginJobEngine.getInstance().start();
+			TCIAImportEngine.getInstance().start();
+			AIMReplicator.getInstance().start();
 			log.info("Done with database/queues init");
 			List<User> users = DefaultEpadProjectOperations.getInstance().getAllUsers();
 			if (EPADConfig.UseEPADUsersProjects && users.size() <= 1) {
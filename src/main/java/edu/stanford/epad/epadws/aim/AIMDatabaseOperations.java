@@ -127,6 +127,7 @@ import edu.stanford.epad.dtos.internal.XNATSubjectList;
 import edu.stanford.epad.dtos.internal.XNATUserList;
 import edu.stanford.epad.epadws.models.Subject;
 import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.epad.epadws.queries.SubjectSummaryIndex;
 import edu.stanford.epad.epadws.queries.XNATQueries;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
@@ -468,11 +469,14 @@ public class AIMDatabaseOperations {
     }
 
     public int delete(String annotationUID) throws SQLException {
+    	EPADAIM aim = this.getAIM(annotationUID);
     	try {
     	    this.statement = mySqlConnection.createStatement();
     	    String delSql = "DELETE FROM annotations WHERE(AnnotationUID = '" + annotationUID + "')";
     		int count = this.statement.executeUpdate(delSql);
     		log.info(delSql + " result:" + count);
+    		if (aim != null && count > 0)
+    			SubjectSummaryIndex.getInstance().aimChanged(aim.projectID, aim.subjectID);
     		return count;
     	} finally {
     		statement.close();
@@ -489,6 +493,8 @@ public class AIMDatabaseOperations {
 	    	    String sql = "UPDATE " + ANNOTATIONS_TABLE + " set ProjectUID = '" + newProjectID + "', UserLoginName = '" + username + "'  where AnnotationUID = '" + annotationID + "'";
 	            log.info("AIMs update:" + sql);
 	            this.statement.executeUpdate(sql);   				
+	            SubjectSummaryIndex.getInstance().aimChanged(aim.projectID, aim.subjectID);
+	            SubjectSummaryIndex.getInstance().aimChanged(newProjectID, aim.subjectID);
 				return new EPADAIM(aim.aimID, username, newProjectID, aim.subjectID, aim.subjectID, aim.seriesUID, aim.imageUID, aim.instanceOrFrameNumber, aim.dsoSeriesUID);
         	} finally {
         		if (statement != null)
@@ -608,11 +614,13 @@ public class AIMDatabaseOperations {
   		ResultSet rs = null;
 		try {
     	    this.statement = mySqlConnection.createStatement();
-      	    String sql = "SELECT SHAREDPROJECTS FROM " + ANNOTATIONS_TABLE + " where AnnotationUID = '" + annotationID + "'";
+      	    String sql = "SELECT SHAREDPROJECTS, PatientID FROM " + ANNOTATIONS_TABLE + " where AnnotationUID = '" + annotationID + "'";
         	rs = this.statement.executeQuery(sql);
 			String sharedProjects = null;
+			String patientID = null;
 			if (rs.next()) {
 				sharedProjects = rs.getString(1);
+				patientID = rs.getString(2);
 				if (sharedProjects == null || sharedProjects.length() == 0) sharedProjects = ",";
 				if (sharedProjects.indexOf("," + projectID + ",") != -1)
 					return;	
@@ -624,6 +632,7 @@ public class AIMDatabaseOperations {
 			sharedProjects = sharedProjects + projectID + ",";
       	    sql = "UPDATE " + ANNOTATIONS_TABLE + " set SHAREDPROJECTS = '" + sharedProjects + "' where AnnotationUID = '" + annotationID + "'";
             this.statement.executeUpdate(sql);
+            SubjectSummaryIndex.getInstance().aimChanged(projectID, patientID);
 		} finally {
     		if (statement != null)
     			statement.close();
@@ -636,11 +645,13 @@ public class AIMDatabaseOperations {
 	  		ResultSet rs = null;
 			try {
 	    	    this.statement = mySqlConnection.createStatement();
-	      	    String sql = "SELECT SHAREDPROJECTS FROM " + ANNOTATIONS_TABLE + " where AnnotationUID = '" + annotationID + "'";
+	      	    String sql = "SELECT SHAREDPROJECTS, PatientID FROM " + ANNOTATIONS_TABLE + " where AnnotationUID = '" + annotationID + "'";
 	        	rs = this.statement.executeQuery(sql);
 				String sharedProjects = null;
+				String patientID = null;
 				if (rs.next()) {
 					sharedProjects = rs.getString(1);
+					patientID = rs.getString(2);
 					if (sharedProjects == null || sharedProjects.length() == 0) sharedProjects = ",";
 					if (sharedProjects.indexOf("," + projectID + ",") == -1)
 						return;	
@@ -652,6 +663,7 @@ public class AIMDatabaseOperations {
 				sharedProjects = sharedProjects.replace("," + projectID + ",", ",");
 	      	    sql = "UPDATE " + ANNOTATIONS_TABLE + " set SHAREDPROJECTS = '" + sharedProjects + "' where AnnotationUID = '" + annotationID + "'";
 	            this.statement.executeUpdate(sql);
+	            SubjectSummaryIndex.getInstance().aimChanged(projectID, patientID);
 			} finally {
 	    		if (statement != null)
 	    			statement.close();
@@ -784,6 +796,7 @@ public class AIMDatabaseOperations {
             log.info("AIMs insert:" + sql);
     	    this.statement = mySqlConnection.createStatement();
  	        this.statement.executeUpdate(sql);
+ 	        SubjectSummaryIndex.getInstance().aimChanged(projectID, patientID);
 			return new EPADAIM(annotationUID, userName, projectID, patientID, studyUID, seriesUID, imageUID, frameID, dsoSeriesUID);
     	} finally {
     		if (statement != null)
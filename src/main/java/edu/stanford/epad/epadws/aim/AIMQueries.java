@@ -433,9 +433,12 @@ public class AIMQueries
 					return resultAims;
 				}
 				try {
-					edu.stanford.hakan.aim4api.base.ImageAnnotationCollection iac = edu.stanford.hakan.aim4api.usage.AnnotationGetter
-							.getImageAnnotationCollectionByUniqueIdentifier(eXistServerUrl, aim4Namespace, collection4Name,
-									eXistUsername, eXistPassword, annotationUID);
+					// Just saved and not in eXist yet
+					edu.stanford.hakan.aim4api.base.ImageAnnotationCollection iac = AIMReplicator.getInstance().getUnreplicated(annotationUID, projectID);
+					if (iac == null)
+						iac = edu.stanford.hakan.aim4api.usage.AnnotationGetter
+								.getImageAnnotationCollectionByUniqueIdentifier(eXistServerUrl, aim4Namespace, collection4Name,
+										eXistUsername, eXistPassword, annotationUID);
 					if (iac != null)
 						aim = new ImageAnnotation(iac);
 
@@ -576,9 +579,12 @@ public class AIMQueries
 				}
 			} else {
 				try {
-						aim = edu.stanford.hakan.aim4api.usage.AnnotationGetter
-								.getImageAnnotationCollectionByUniqueIdentifier(eXistServerUrl, aim4Namespace, collection4Name,
-										eXistUsername, eXistPassword, annotationUID);
+						// Just saved and not in eXist yet
+						aim = AIMReplicator.getInstance().getUnreplicated(annotationUID, projectID);
+						if (aim == null)
+							aim = edu.stanford.hakan.aim4api.usage.AnnotationGetter
+									.getImageAnnotationCollectionByUniqueIdentifier(eXistServerUrl, aim4Namespace, collection4Name,
+											eXistUsername, eXistPassword, annotationUID);
 
 				} catch (edu.stanford.hakan.aim4api.base.AimException e) {
 					log.warning("Exception in AnnotationGetter.getImageAnnotationFromServerByUniqueIdentifier " + annotationUID,
@@ -0,0 +1,490 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.aim;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.io.FileUtils;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.common.util.MongoDBOperations;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.models.AIMReplication;
+import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.hakan.aim4api.audittrail.AuditTrailManager;
+import edu.stanford.hakan.aim4api.base.ImageAnnotationCollection;
+import edu.stanford.hakan.aim4api.usage.AnnotationGetter;
+
+/**
+ * Copies saved AIMs to eXist and MongoDB, retrying the ones that could not be copied when they were saved.
+ * <p>
+ * AIMUtil writes the validated AIM file to the annotation directory and an <code>epaddb.aim_replication</code> row
+ * and returns; this replicator sends the file out, AIMReplicationBatchSize rows at a time. Until eXist has it, lookups
+ * by annotation UID read the file through getUnreplicated. A store that fails is tried again
+ * after AIMReplicationRetryDelay ms, doubling each time, until AIMReplicationAttempts is reached and the row is left as
+ * Failed. Failed rows are queued again by start(). A row waiting for a store is kept across restarts. Saving an AIM
+ * again while its row is waiting bumps the version, so only the latest file goes out.
+ */
+public class AIMReplicator
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final String STATUS_QUEUED = "Queued";
+	public static final String STATUS_FAILED = "Failed";
+
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+	private static final long MAX_RETRY_DELAY = 3600000;
+	private static final int LOCK_STRIPES = 64;
+
+	private static final AIMReplicator ourInstance = new AIMReplicator();
+
+	private final int batchSize;
+	private final long interval;
+	private final int attempts;
+	private final long retryDelay;
+	private final ScheduledExecutorService replicator;
+	// One is held while an AIM is sent out, so a delete does not race the copy it is deleting
+	private final Object[] replicationLocks = new Object[LOCK_STRIPES];
+	// Held while a row is read and written back, so a save is never overwritten by an older replication
+	private final Object rowLock = new Object();
+	private final AtomicLong replicated = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalLag = new AtomicLong();
+	private final AtomicLong maxLag = new AtomicLong();
+	private volatile long lastLag = 0;
+
+	public static AIMReplicator getInstance()
+	{
+		return ourInstance;
+	}
+
+	private AIMReplicator()
+	{
+		batchSize = ConfigParams.getPositiveIntParam("AIMReplicationBatchSize", 50);
+		interval = ConfigParams.getPositiveIntParam("AIMReplicationInterval", 2000);
+		attempts = ConfigParams.getPositiveIntParam("AIMReplicationAttempts", 10);
+		retryDelay = ConfigParams.getPositiveIntParam("AIMReplicationRetryDelay", 10000);
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			replicationLocks[i] = new Object();
+		replicator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "AIMReplicator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start sending out the rows, including any left waiting by the last shutdown and the ones that had failed.
+	 */
+	public void start()
+	{
+		int requeued = requeueFailed();
+		if (requeued > 0)
+			log.info("Queued " + requeued + " failed AIM replications again");
+		replicator.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				replicatePending();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown()
+	{
+		replicator.shutdownNow();
+	}
+
+	/**
+	 * Queue an AIM whose file has just been written to the annotation directory.
+	 */
+	public void aimSaved(String aimID, String projectID) throws Exception
+	{
+		synchronized (rowLock) {
+			AIMReplication replication = getReplication(aimID);
+			if (replication == null) {
+				replication = new AIMReplication();
+				replication.setAimID(aimID);
+			}
+			if (replication.getSavedTime() == null || !STATUS_QUEUED.equals(replication.getStatus()))
+				replication.setSavedTime(new Date());
+			replication.setProjectID(projectID);
+			replication.setVersion(replication.getVersion() + 1);
+			replication.setExistReplicated(false);
+			replication.setMongoReplicated(false);
+			replication.setStatus(STATUS_QUEUED);
+			replication.setMessage(null);
+			replication.setAttempts(0);
+			replication.setNextAttempt(new Date());
+			replication.save();
+		}
+	}
+
+	/**
+	 * Give the rows that ran out of attempts another AIMReplicationAttempts tries.
+	 * 
+	 * @return number of rows queued again
+	 */
+	public int requeueFailed()
+	{
+		int requeued = 0;
+		try {
+			while (true) {
+				List<AIMReplication> replications;
+				synchronized (rowLock) {
+					replications = new AIMReplication().getObjects("status = '" + STATUS_FAILED + "' order by id", 0, batchSize);
+					for (AIMReplication replication : replications) {
+						replication.setStatus(STATUS_QUEUED);
+						replication.setAttempts(0);
+						replication.setNextAttempt(new Date());
+					}
+					AbstractDAO.updateAll(replications);
+				}
+				requeued += replications.size();
+				if (replications.size() < batchSize)
+					break;
+			}
+		} catch (Exception e) {
+			log.warning("Error queueing failed AIM replications", e);
+		}
+		return requeued;
+	}
+
+	/**
+	 * The saved copy of an AIM that eXist does not have yet, so it can be read back before it has been sent out.
+	 * 
+	 * @return null if eXist is up to date with the AIM, or it was saved to another project
+	 */
+	public ImageAnnotationCollection getUnreplicated(String aimID, String projectID)
+	{
+		try {
+			AIMReplication replication = getReplication(aimID);
+			if (replication == null || replication.isExistReplicated())
+				return null;
+			if (projectID != null && projectID.length() > 0 && !projectID.equals(replication.getProjectID()))
+				return null;
+			File aimFile = new File(EPADConfig.baseAnnotationDir + aimID + ".xml");
+			if (!aimFile.exists())
+				return null;
+			List<ImageAnnotationCollection> iacs = AnnotationGetter.getImageAnnotationCollectionsFromString(
+					FileUtils.readFileToString(aimFile, "UTF-8"), null);
+			return iacs.isEmpty() ? null : iacs.get(0);
+		} catch (Exception e) {
+			log.warning("Error reading saved AIM " + aimID, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Forget an AIM that is being deleted, waiting for it if it is being sent out right now.
+	 */
+	public void cancel(String aimID)
+	{
+		synchronized (lockFor(aimID)) {
+			synchronized (rowLock) {
+				try {
+					new AIMReplication().deleteObjects("aimid = " + AbstractDAO.toSQL(aimID));
+				} catch (Exception e) {
+					log.warning("Error removing replication of AIM " + aimID, e);
+				}
+			}
+		}
+	}
+
+	public String getStatistics()
+	{
+		long count = replicated.get();
+		String queued = "?";
+		String failedRows = "?";
+		try {
+			queued = "" + new AIMReplication().getCount("status = '" + STATUS_QUEUED + "'");
+			failedRows = "" + new AIMReplication().getCount("status = '" + STATUS_FAILED + "'");
+		} catch (Exception e) {}
+		return "queued:" + queued + " failed:" + failedRows + " replicated:" + count + " retried:" + retried.get()
+				+ " gaveUp:" + failed.get() + " lagMs:" + lastLag + " avgLagMs:" + (count == 0 ? 0 : totalLag.get() / count)
+				+ " maxLagMs:" + maxLag.get();
+	}
+
+	private void replicatePending()
+	{
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				List<AIMReplication> replications = new AIMReplication().getObjects("status = '" + STATUS_QUEUED
+						+ "' and next_attempt <= NOW() order by next_attempt", 0, batchSize);
+				boolean progress = false;
+				for (AIMReplication replication : replications) {
+					if (Thread.currentThread().isInterrupted())
+						return;
+					synchronized (lockFor(replication.getAimID())) {
+						// It may have been deleted, or saved again, since the batch was read
+						AIMReplication current = getReplication(replication.getAimID());
+						if (current != null && STATUS_QUEUED.equals(current.getStatus()))
+							progress = replicate(current) || progress;
+					}
+				}
+				// A full batch that all failed again is left for the next run
+				if (replications.size() < batchSize || !progress)
+					break;
+			}
+		} catch (Exception e) {
+			log.warning("Error replicating AIMs", e);
+		}
+	}
+
+	private boolean replicate(AIMReplication replication)
+	{
+		String aimID = replication.getAimID();
+		String projectID = replication.getProjectID();
+		File aimFile = new File(EPADConfig.baseAnnotationDir + aimID + ".xml");
+		boolean existReplicated = replication.isExistReplicated();
+		boolean mongoReplicated = replication.isMongoReplicated();
+		String error = null;
+		if (!aimFile.exists()) {
+			log.warning("AIM file " + aimFile.getAbsolutePath() + " is gone, not replicating it");
+			existReplicated = true;
+			mongoReplicated = true;
+		} else {
+			byte[] xml = null;
+			try {
+				xml = FileUtils.readFileToByteArray(aimFile);
+			} catch (Exception e) {
+				error = "Error reading " + aimFile.getName() + ":" + e.getMessage();
+			}
+			if (xml != null && !existReplicated) {
+				try {
+					String collectionName = EPADConfig.eXistCollectionV4;
+					if (projectID != null && projectID.length() > 0)
+						collectionName = collectionName + "/" + projectID;
+					saveToExist(aimID, xml, collectionName);
+					existReplicated = true;
+				} catch (Exception e) {
+					log.warning("Error saving AIM " + aimID + " to eXist", e);
+					error = "eXist:" + e.getMessage();
+				}
+			}
+			if (xml != null && !mongoReplicated) {
+				try {
+					if (projectID != null && projectID.length() > 0)
+						MongoDBOperations.saveAnnotationToMongo(aimID, new String(xml, "UTF-8"), projectID);
+					mongoReplicated = true;
+				} catch (Exception e) {
+					log.warning("Error saving AIM " + aimID + " to mongodb", e);
+					error = error == null ? "mongo:" + e.getMessage() : error + " mongo:" + e.getMessage();
+				}
+			}
+		}
+		return recordResult(replication, existReplicated, mongoReplicated, error);
+	}
+
+	/**
+	 * The file was validated when it was saved, so a new AIM is put into the collection as it is. Saving over an AIM
+	 * goes through the audit trail, which keeps the version being replaced and needs the parsed AIM for that.
+	 */
+	private static void saveToExist(String aimID, byte[] xml, String collectionName) throws Exception
+	{
+		if (AnnotationGetter.isExistInTheServer(EPADConfig.eXistServerUrl, EPADConfig.aim4Namespace, collectionName,
+				EPADConfig.eXistUsername, EPADConfig.eXistPassword, aimID)) {
+			List<ImageAnnotationCollection> iacs = AnnotationGetter.getImageAnnotationCollectionsFromString(new String(xml,
+					"UTF-8"), null);
+			if (iacs.size() == 0)
+				throw new Exception("No annotation in AIM " + aimID);
+			new AuditTrailManager(EPADConfig.eXistServerUrl, EPADConfig.aim4Namespace, collectionName,
+					EPADConfig.eXistUsername, EPADConfig.eXistPassword, EPADConfig.xsdFilePathV4).performV4(iacs.get(0));
+			return;
+		}
+		String url = EPADConfig.eXistServerUrl;
+		if (!url.endsWith("/"))
+			url = url + "/";
+		url = url + "rest/db/" + collectionName + "/AIM_" + aimID + ".xml";
+		HttpClient client = new HttpClient();
+		PutMethod putMethod = new PutMethod(url);
+		if (EPADConfig.eXistUsername != null && EPADConfig.eXistUsername.trim().length() > 0) {
+			String credentials = EPADConfig.eXistUsername + ":" + EPADConfig.eXistPassword;
+			putMethod.setRequestHeader("Authorization", "Basic " + new String(Base64.encodeBase64(credentials.getBytes("UTF-8")), "UTF-8"));
+		}
+		putMethod.setRequestEntity(new ByteArrayRequestEntity(xml, "application/xml"));
+		try {
+			int status = client.executeMethod(putMethod);
+			if (status != HttpServletResponse.SC_OK && status != HttpServletResponse.SC_CREATED)
+				throw new Exception("eXist returned " + putMethod.getStatusLine() + " for " + url);
+		} finally {
+			putMethod.releaseConnection();
+		}
+	}
+
+	private boolean recordResult(AIMReplication replication, boolean existReplicated, boolean mongoReplicated, String error)
+	{
+		synchronized (rowLock) {
+			try {
+				AIMReplication current = getReplication(replication.getAimID());
+				if (current == null || current.getVersion() != replication.getVersion())
+					return false; // Deleted or saved again meanwhile, the new version goes out on its own
+				if (existReplicated && mongoReplicated) {
+					current.delete();
+					long lag = System.currentTimeMillis() - current.getSavedTime().getTime();
+					lastLag = lag;
+					totalLag.addAndGet(lag);
+					if (lag > maxLag.get())
+						maxLag.set(lag);
+					replicated.incrementAndGet();
+					return true;
+				}
+				current.setExistReplicated(existReplicated);
+				current.setMongoReplicated(mongoReplicated);
+				current.setAttempts(current.getAttempts() + 1);
+				current.setMessage(truncate(error));
+				if (current.getAttempts() >= attempts) {
+					log.warning("Giving up replicating AIM " + current.getAimID() + " after " + current.getAttempts() + " attempts");
+					current.setStatus(STATUS_FAILED);
+					failed.incrementAndGet();
+				} else {
+					long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(current.getAttempts() - 1, 20));
+					current.setNextAttempt(new Date(System.currentTimeMillis() + delay));
+					retried.incrementAndGet();
+				}
+				current.save();
+			} catch (Exception e) {
+				log.warning("Error saving replication of AIM " + replication.getAimID(), e);
+			}
+			return false;
+		}
+	}
+
+	private Object lockFor(String aimID)
+	{
+		return replicationLocks[(aimID.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+
+	private static AIMReplication getReplication(String aimID) throws Exception
+	{
+		return (AIMReplication) new AIMReplication().getObject("aimid = " + AbstractDAO.toSQL(aimID));
+	}
+
+	private static String truncate(String message)
+	{
+		if (message == null || message.length() <= MAX_MESSAGE_LENGTH)
+			return message;
+		return message.substring(0, MAX_MESSAGE_LENGTH);
+	}
+}
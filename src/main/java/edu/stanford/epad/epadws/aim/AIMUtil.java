@@ -118,6 +118,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -138,6 +139,7 @@ import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONObject;
 import org.json.XML;
@@ -181,7 +183,7 @@ import edu.stanford.epad.epadws.models.NonDicomSeries;
 import edu.stanford.epad.epadws.models.Project;
 import edu.stanford.epad.epadws.models.Subject;
 import edu.stanford.epad.epadws.plugins.PluginConfig;
-import edu.stanford.epad.epadws.processing.pipeline.task.PluginStartTask;
+import edu.stanford.epad.epadws.plugins.PluginJobEngine;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
@@ -198,7 +200,6 @@ import edu.stanford.hakan.aim4api.compability.aimv3.Person;
 import edu.stanford.hakan.aim4api.compability.aimv3.Segmentation;
 import edu.stanford.hakan.aim4api.compability.aimv3.SegmentationCollection;
 import edu.stanford.hakan.aim4api.compability.aimv3.User;
-import edu.stanford.hakan.aim4api.usage.AnnotationBuilder;
 import edu.stanford.hakan.aim4api.usage.AnnotationGetter;
 import edu.stanford.hakan.aim4api.usage.AnnotationValidator;
 
@@ -276,36 +277,10 @@ public class AIMUtil
 			if (isPluginStillRunning(aim.getUniqueIdentifier().getRoot()))
 				throw new edu.stanford.hakan.aim4api.base.AimException("Previous version of this AIM " + aim.getUniqueIdentifier().getRoot() + " is still being processed by the plugin");
 			
-			// For safety, write a backup file - what is this strange safety feature??
-		    String tempXmlPath = baseAnnotationDir + "temp-" + aim.getUniqueIdentifier().getRoot() + ".xml";
-		    String storeXmlPath = baseAnnotationDir + aim.getUniqueIdentifier().getRoot() + ".xml";
-		    File tempFile = new File(tempXmlPath);
-		    File storeFile = new File(storeXmlPath);
+			// Saved to eXist and mongo through AIMReplicator, which retries a store that fails
 		    String xml = edu.stanford.hakan.aim4api.usage.AnnotationBuilder.convertToString(aim);
 		    log.info("Saving AIM xml="+ xml);
-		    log.info("Saving AIM file with ID " + aim.getUniqueIdentifier() + " to temp folder "+ tempXmlPath);
-			edu.stanford.hakan.aim4api.usage.AnnotationBuilder.saveToFile(aim, tempXmlPath, xsdFilePathV4);
-		    
-		    log.info(AnnotationBuilder.getAimXMLsaveResult());
-		    if (storeFile.exists()) {
-		        storeFile.delete();
-		    }
-		    tempFile.renameTo(storeFile);
-		
-		    String collectionName = eXistCollectionV4;
-		    if (projectID != null && projectID.length() > 0)
-		    	collectionName = collectionName + "/" + projectID;
-		    aim = edu.stanford.hakan.aim4api.usage.AnnotationBuilder.saveToServer(aim, eXistServerUrl, aim4Namespace,
-		    		collectionName, xsdFilePathV4, eXistUsername, eXistPassword);
-		  
-		
-		    log.info(edu.stanford.hakan.aim4api.usage.AnnotationBuilder.getAimXMLsaveResult());
-			try {
-				if (projectID != null && projectID.length() > 0)
-					saveAimToMongo(aim, projectID);
-			} catch (Exception e) {
-				log.warning("Error saving aim to mongodb", e);
-			}
+		    storeAimFile(aim.getUniqueIdentifier().getRoot(), xml, projectID);
 		
 		    if (aim.getImageAnnotations().get(0).getListTypeCode().get(0).getCodeSystemName() != null && aim.getImageAnnotations().get(0).getListTypeCode().get(0).getCodeSystemName().equals("epad-plugin")) { // Which template has been used to fill the AIM file
 		        String templateName = aim.getImageAnnotations().get(0).getListTypeCode().get(0).getCode(); // ex: jjv-5
@@ -326,8 +301,12 @@ public class AIMUtil
 		
 		        if (templateHasBeenFound && jsessionID != null && invokePlugin) {
 		        	// Start plugin task
-					log.info("Starting Plugin task for:" + pluginName);
-					(new Thread(new PluginStartTask(jsessionID, pluginName, aim.getUniqueIdentifier().getRoot(), frameNumber, projectID))).start();				
+					log.info("Queueing Plugin task for:" + pluginName);
+					try {
+						PluginJobEngine.getInstance().submit(jsessionID, pluginName, projectID, aim.getUniqueIdentifier().getRoot(), frameNumber);
+					} catch (Exception e) {
+						log.warning("Error queueing plugin " + pluginName, e);
+					}
 		        }
 		    }
 		}
@@ -337,6 +316,7 @@ public class AIMUtil
 	public static boolean deleteAIM(String aimID, String projectID)
 	{
 		try {
+			AIMReplicator.getInstance().cancel(aimID);
 		    String collectionName = eXistCollectionV4;
 		    if (projectID != null && projectID.length() > 0)
 		    	collectionName = collectionName + "/" + projectID;
@@ -355,6 +335,8 @@ public class AIMUtil
 
 	public static boolean isPluginStillRunning(String aimID)
 	{
+		if (PluginJobEngine.getInstance().hasActiveJob(aimID))
+			return true;
 		try {
 			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 			List<Map<String, String>> eventMaps = epadDatabaseOperations.getEpadEventsForAimID(aimID);
@@ -1814,23 +1796,27 @@ public class AIMUtil
 			}
 		}
 		
-		if (inParallel) { 
-			for (String aimID:  aimIDs)
+		Set<String> queuedIDs = new LinkedHashSet<String>();
+		for (String aimID:  aimIDs)
+		{
+			if (queuedIDs.contains(aimID))
+				continue;
+			if (isPluginStillRunning(aimID))
 			{
-				if (isPluginStillRunning(aimID))
-				{
-					result = result + "\n" + "Previous version of this AIM " + aimID + " is still being processed by the plugin";
-					continue;
-				}
-				
-	
-				if (templateHasBeenFound && jsessionID != null) {
-					log.info("Starting Plugin task for:" + pluginName);
-					(new Thread(new PluginStartTask(jsessionID, pluginName, aimID, 0, projectID))).start();				
-				}
+				result = result + "\n" + "Previous version of this AIM " + aimID + " is still being processed by the plugin";
+				continue;
+			}
+			queuedIDs.add(aimID);
+		}
+		if (queuedIDs.isEmpty())
+			return result;
+		if (inParallel) { 
+			if (templateHasBeenFound && jsessionID != null) {
+				log.info("Queueing Plugin task for:" + pluginName + " on " + queuedIDs.size() + " AIMs");
+				PluginJobEngine.getInstance().submit(jsessionID, pluginName, projectID, queuedIDs.toArray(new String[queuedIDs.size()]), 0, true);
 			}
 		} else { //send all aims at once
-			(new Thread(new PluginStartTask(jsessionID, pluginName, aimIDs, 0, projectID))).start();	
+			PluginJobEngine.getInstance().submit(jsessionID, pluginName, projectID, queuedIDs.toArray(new String[queuedIDs.size()]), 0, false);
 		}
 		return result;
 	}
@@ -1865,36 +1851,38 @@ public class AIMUtil
 	edu.stanford.hakan.aim4api.base.AimException
 	{
 	    ImageAnnotationCollection aim4 = null;
-		String result = "";
-
-		if (aim.getCodeValue() != null) { // First, write a backup file
-			String tempXmlPath = baseAnnotationDir + "temp-" + aim.getUniqueIdentifier() + ".xml";
-			String storeXmlPath = baseAnnotationDir + aim.getUniqueIdentifier() + ".xml";
-			File tempFile = new File(tempXmlPath);
-			File storeFile = new File(storeXmlPath);
 
-			edu.stanford.hakan.aim4api.usage.AnnotationBuilder.saveToFile(aim.toAimV4(), tempXmlPath, xsdFilePathV4);
-			result = edu.stanford.hakan.aim4api.usage.AnnotationBuilder.getAimXMLsaveResult();
+		if (aim.getCodeValue() != null) {
+		    aim4 = aim.toAimV4();
+		    storeAimFile(aim.getUniqueIdentifier(), edu.stanford.hakan.aim4api.usage.AnnotationBuilder.convertToString(aim4), projectID);
+		}
+		return aim4;
+	}
 
-			log.info("Save AIM file:" + result);
+	/**
+	 * Write the AIM to the annotation directory and queue it for AIMReplicator, which sends it to eXist and mongo. The
+	 * XML is checked against the cached V4 schema first and an AIM that does not validate is rejected, as saveToFile did.
+	 */
+	private static void storeAimFile(String aimID, String xml, String projectID) throws edu.stanford.hakan.aim4api.base.AimException
+	{
+		String validationError = AIMSchemas.validate(xml, xsdFilePathV4);
+		if (validationError != null) {
+			log.warning("AIM " + aimID + " does not validate against " + xsdFileV4 + ":" + validationError);
+			throw new edu.stanford.hakan.aim4api.base.AimException("AIM " + aimID + " does not validate against " + xsdFileV4 + ":" + validationError);
+		}
+		File tempFile = new File(baseAnnotationDir + "temp-" + aimID + ".xml");
+		File storeFile = new File(baseAnnotationDir + aimID + ".xml");
+		try {
+			FileUtils.writeStringToFile(tempFile, xml, "UTF-8");
 			if (storeFile.exists()) {
 				storeFile.delete();
 			}
 			tempFile.renameTo(storeFile);
-		    String collectionName = eXistCollectionV4;
-		    if (projectID != null && projectID.length() > 0)
-		    	collectionName = collectionName + "/" + projectID;
-		    aim4 = aim.toAimV4();
-		    aim4 = edu.stanford.hakan.aim4api.usage.AnnotationBuilder.saveToServer(aim4, eXistServerUrl, aim4Namespace,
-					collectionName, xsdFilePathV4, eXistUsername, eXistPassword);
-			try {
-				saveAimToMongo(aim4, projectID);
-			} catch (Exception e) {
-				log.warning("Error saving aim to mongodb", e);
-			}
-			log.info("Save AIM to Exist:" + result);
+			AIMReplicator.getInstance().aimSaved(aimID, projectID);
+		} catch (Exception e) {
+			log.warning("Error saving AIM " + aimID, e);
+			throw new edu.stanford.hakan.aim4api.base.AimException("Error saving AIM " + aimID + ":" + e.getMessage());
 		}
-		return aim4;
 	}
 	
 	public static Map<String, String> getUIDCsvList(String sessionID, EPADAIMList aimlist, String username)
@@ -179,6 +179,11 @@ public class Dcm4CheeDatabase
 		return connectionPool.usedConnectionCount();
 	}
 
+	public String getConnectionPoolStatistics()
+	{
+		return connectionPool.getStatistics();
+	}
+
 	private void initConnectionPool()
 	{
 		try {
@@ -113,6 +113,12 @@ package edu.stanford.epad.epadws.dcm4chee;
 public interface Dcm4CheeDatabaseCommands
 {
 	public static final String SELECT_FILES_FOR_SERIES = "SELECT i.sop_iuid, i.inst_no, s.series_iuid, f.created_time, f.filepath, f.file_size, st.study_iuid, s.modality from pacsdb.files as f, pacsdb.instance as i, pacsdb.series as s, pacsdb.study as st WHERE f.instance_fk=i.pk and i.series_fk=s.pk and s.study_fk=st.pk and s.series_iuid=?";
+	public static final String SELECT_FILES_FOR_SERIES_UIDS = "SELECT i.sop_iuid, i.inst_no, s.series_iuid, f.created_time, f.filepath, f.file_size, st.study_iuid, s.modality from pacsdb.files as f, pacsdb.instance as i, pacsdb.series as s, pacsdb.study as st WHERE f.instance_fk=i.pk and i.series_fk=s.pk and s.study_fk=st.pk and s.series_iuid in ";
+	// Instances of ready series without an epad_files entry, i.e. without a generated PNG; instance pk is the resume point
+	public static final String SELECT_UNPROCESSED_FILES_AFTER_PK = "SELECT i.pk, i.sop_iuid, i.inst_no, s.series_iuid, f.created_time, f.filepath, f.file_size, st.study_iuid, s.modality from pacsdb.files as f, pacsdb.instance as i, pacsdb.series as s, pacsdb.study as st WHERE f.instance_fk=i.pk and i.series_fk=s.pk and s.study_fk=st.pk and i.pk>? and s.series_status=0 and (s.modality is null or s.modality not in ('RTPLAN','PR','SR')) and not exists (select 1 from epaddb.epad_files as e where e.instance_fk=i.pk) order by i.pk limit ?";
+	public static final String SELECT_PROCESSED_FILES_FOR_MODALITY = "SELECT i.pk, i.sop_iuid, i.inst_no, s.series_iuid, f.created_time, f.filepath, f.file_size, st.study_iuid, s.modality from pacsdb.files as f, pacsdb.instance as i, pacsdb.series as s, pacsdb.study as st WHERE f.instance_fk=i.pk and i.series_fk=s.pk and s.study_fk=st.pk and s.modality=? and exists (select 1 from epaddb.epad_files as e where e.instance_fk=i.pk) order by i.pk";
+	public static final String SELECT_FILES_FOR_INSTANCE_PKS = "SELECT i.pk, i.sop_iuid, i.inst_no, s.series_iuid, f.created_time, f.filepath, f.file_size, st.study_iuid, s.modality from pacsdb.files as f, pacsdb.instance as i, pacsdb.series as s, pacsdb.study as st WHERE f.instance_fk=i.pk and i.series_fk=s.pk and s.study_fk=st.pk and i.pk in ";
+	public static final String SELECT_FILE_FOR_IMAGE = "SELECT f.filepath from pacsdb.files as f, pacsdb.instance as i WHERE f.instance_fk=i.pk and i.sop_iuid=? order by f.pk desc limit 1";
 	public static final String SELECT_IMAGE_UID_FOR_SERIES = "SELECT sop_iuid from pacsdb.instance as i, pacsdb.series as s where i.series_fk=s.pk and s.series_iuid=? order by i.inst_no";
 	//ml remove * for faster access and format blob on query 
 	public static final String SELECT_IMAGE_FOR_SERIES = "SELECT i.sop_iuid,i.inst_no,i.inst_custom1,i.content_datetime,i.updated_time,i.created_time,i.sop_cuid,CAST(i.inst_attrs AS CHAR(10000) CHARACTER SET utf8) as inst_attrs_ch  from pacsdb.instance as i, pacsdb.series as s where i.series_fk=s.pk and s.series_iuid=? and i.sop_iuid=?";
@@ -122,9 +128,16 @@ public interface Dcm4CheeDatabaseCommands
 	public static final String SELECT_SERIES_FOR_STUDY = "SELECT s.pk, st.study_iuid, s.series_iuid, p.pat_id, p.pat_name, st.study_datetime, s.pps_start, s.modality, s.series_desc, s.num_instances, s.series_status, s.body_part, s.institution, s.station_name, s.department, s.created_time, s.updated_time from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where st.study_iuid=? and s.study_fk=st.pk and st.patient_fk=p.pk";
 	public static final String SELECT_SERIES_BY_STATUS = "SELECT st.study_iuid, s.series_iuid, p.pat_id, p.pat_name, st.study_datetime, s.modality, s.series_desc, s.num_instances, s.series_status, s.body_part, s.institution, s.station_name, s.department, s.created_time, s.updated_time from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where s.series_status=? and s.study_fk=st.pk and st.patient_fk=p.pk";
 	public static final String SELECT_SERIES = "SELECT st.study_iuid, s.series_iuid, p.pat_id, p.pat_name, st.study_datetime, s.modality, s.series_desc, s.num_instances, s.series_status, s.body_part, s.institution, s.station_name, s.department, s.created_time, s.updated_time from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where s.study_fk=st.pk and st.patient_fk=p.pk";
+	public static final String SELECT_SERIES_AFTER_PK = "SELECT s.pk, st.study_iuid, s.series_iuid, p.pat_id, p.pat_name, st.study_datetime, s.modality, s.series_desc, s.num_instances, s.series_status, s.body_part, s.institution, s.station_name, s.department, s.created_time, s.updated_time from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where s.pk>? and s.study_fk=st.pk and st.patient_fk=p.pk order by s.pk limit ?";
+	public static final String SELECT_SERIES_FOR_PKS = "SELECT s.pk, st.study_iuid, s.series_iuid, p.pat_id, p.pat_name, st.study_datetime, s.modality, s.series_desc, s.num_instances, s.series_status, s.body_part, s.institution, s.station_name, s.department, s.created_time, s.updated_time from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where s.study_fk=st.pk and st.patient_fk=p.pk and s.pk in ";
+	public static final String SELECT_NOT_READY_SERIES_PKS = "SELECT s.pk from pacsdb.series as s where s.series_status<>0 and s.pk<=?";
+	public static final String SELECT_SERIES_UIDS_IN = "SELECT s.series_iuid from pacsdb.series as s where s.series_iuid in ";
 	public static final String SELECT_SERIES_BY_ID = "SELECT st.study_iuid, s.series_iuid, p.pat_id, p.pat_name, st.study_datetime, s.modality, s.series_desc, s.num_instances, s.series_status, s.body_part, s.institution, s.station_name, s.department, s.created_time, s.updated_time from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where s.series_iuid=? and s.study_fk=st.pk and st.patient_fk=p.pk";
 	public static final String SELECT_STUDY_FOR_PATIENT = "SELECT * from pacsdb.patient as p, pacsdb.study as st WHERE p.pk=st.patient_fk and p.pat_id=?";
 	public static final String SELECT_COUNT_STUDY_FOR_PATIENT = "SELECT COUNT(*) from pacsdb.patient as p, pacsdb.study as st WHERE p.pk=st.patient_fk and p.pat_id=?";
+	public static final String SELECT_COUNT_STUDY_FOR_PATIENTS = "SELECT p.pat_id, COUNT(*) from pacsdb.patient as p, pacsdb.study as st WHERE p.pk=st.patient_fk and p.pat_id in ";
+	public static final String SELECT_MODALITIES_FOR_PATIENTS = "SELECT DISTINCT p.pat_id, s.modality from pacsdb.series as s, pacsdb.study as st, pacsdb.patient as p where s.study_fk=st.pk and st.patient_fk=p.pk and p.pat_id in ";
+	public static final String SELECT_INSTANCE_COUNTS_FOR_STUDIES = "SELECT st.study_iuid, s.series_iuid, COUNT(*) as num_instances, SUM(f.file_size) as num_bytes from pacsdb.files as f, pacsdb.instance as i, pacsdb.series as s, pacsdb.study as st WHERE f.instance_fk=i.pk and i.series_fk=s.pk and s.study_fk=st.pk and st.study_iuid in ";
 	public static final String SELECT_PATIENT_FOR_STUDY = "SELECT * from pacsdb.patient as p, pacsdb.study as st WHERE p.pk=st.patient_fk and st.study_iuid=?";
 	public static final String SELECT_PARENT_STUDY_FOR_SERIES = "SELECT * from pacsdb.study as st, pacsdb.series as s WHERE st.pk=s.study_fk and s.series_iuid=?";
 	public static final String PK_FOR_INSTANCE = "SELECT pk from pacsdb.instance where sop_iuid=?";
@@ -104,6 +104,7 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.dcm4chee;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -142,10 +143,52 @@ public interface Dcm4CheeDatabaseOperations
 
 	int getNumberOfStudiesForPatients(Set<String> patientIDs);
 
+	/**
+	 * Get the number of studies of each of the specified patients; patients without studies are left out.
+	 */
+	Map<String, Integer> getStudyCountsForPatients(Collection<String> patientIDs);
+
+	/**
+	 * Get the distinct series modalities of each of the specified patients.
+	 */
+	Map<String, Set<String>> getModalitiesForPatients(Collection<String> patientIDs);
+
+	/**
+	 * Get the number of instances and their total file size in each series of the specified studies, as rows with
+	 * study_iuid, series_iuid, num_instances and num_bytes.
+	 */
+	List<Map<String, String>> getInstanceCountsForStudies(Collection<String> studyUIDs);
+
 	Map<String, String> getParentStudyForSeries(String seriesUID);
 
 	public Set<DICOMFileDescription> getDICOMFilesForSeries(String seriesUID);
 
+	/**
+	 * Get the files of the specified series in one query, keyed by series UID. Series without files are left out.
+	 */
+	Map<String, Set<DICOMFileDescription>> getDICOMFilesForSeries(Collection<String> seriesUIDs);
+
+	/**
+	 * Get up to maxFiles files of ready series whose instance has no epad_files entry and a primary key greater than
+	 * instancePk, keyed and ordered by instance primary key. Series without images to render are left out.
+	 */
+	Map<Long, DICOMFileDescription> getUnprocessedDICOMFilesAfterPrimaryKey(long instancePk, int maxFiles);
+
+	/**
+	 * Get the files of the instances of a modality that have an epad_files entry, keyed by instance primary key.
+	 */
+	Map<Long, DICOMFileDescription> getProcessedDICOMFilesForModality(String modality);
+
+	/**
+	 * Get the files of the instances with the specified primary keys, keyed by instance primary key.
+	 */
+	Map<Long, DICOMFileDescription> getDICOMFilesForInstancePrimaryKeys(Collection<Long> instancePks);
+
+	/**
+	 * Path of the newest archive file of an image, relative to the dcm4chee root directory; null if there is none.
+	 */
+	String getDICOMFilePathForImage(String imageUID);
+
 	List<DCM4CHEEImageDescription> getImageDescriptions(String studyUID, String seriesUID);
 
 	DCM4CHEEImageDescription getImageDescription(ImageReference imageReference);
@@ -164,6 +207,28 @@ public interface Dcm4CheeDatabaseOperations
 	 */
 	Set<String> getAllDcm4CheeSeriesUIDs();
 
+	/**
+	 * Get up to maxSeries series (in any state) whose primary key is greater than seriesPk, ordered by primary key. Each
+	 * map has the same keys as {@link #getSeriesData(String)} returns for the series query, plus pk.
+	 */
+	List<Map<String, String>> getSeriesAfterPrimaryKey(long seriesPk, int maxSeries);
+
+	/**
+	 * Get the series with the specified primary keys. Returns null if the database could not be queried.
+	 */
+	List<Map<String, String>> getSeriesForPrimaryKeys(Collection<Long> seriesPks);
+
+	/**
+	 * Get primary keys of series at or below maxSeriesPk that dcm4chee has not finished processing.
+	 */
+	Set<Long> getNotReadySeriesPrimaryKeys(long maxSeriesPk);
+
+	/**
+	 * Of the specified series, return the ones that are still in dcm4chee. Returns null if the database could not be
+	 * queried, so callers do not mistake a failure for deleted series.
+	 */
+	Set<String> getExistingDcm4CheeSeriesUIDs(Collection<String> seriesUIDs);
+
 	/**
 	 * typeValue one of: patientName, patientId, studyDate, accessionNum, examType
 	 * 
@@ -113,11 +113,11 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -377,6 +377,119 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 		return retVal;
 	}
 
+	@Override
+	public List<Map<String, String>> getSeriesAfterPrimaryKey(long seriesPk, int maxSeries)
+	{
+		List<Map<String, String>> retVal = new ArrayList<Map<String, String>>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_SERIES_AFTER_PK);
+			ps.setLong(1, seriesPk);
+			ps.setInt(2, maxSeries);
+			if (log.isDebugEnabled())
+				log.debug(ps.toString());
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				retVal.add(createResultMap(rs));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public List<Map<String, String>> getSeriesForPrimaryKeys(Collection<Long> seriesPks)
+	{
+		List<Map<String, String>> retVal = new ArrayList<Map<String, String>>();
+		if (seriesPks.isEmpty())
+			return retVal;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_SERIES_FOR_PKS + DatabaseUtils.parameterList(seriesPks.size()));
+			int index = 1;
+			for (Long seriesPk : seriesPks)
+				ps.setLong(index++, seriesPk);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				retVal.add(createResultMap(rs));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+			return null;
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public Set<Long> getNotReadySeriesPrimaryKeys(long maxSeriesPk)
+	{
+		Set<Long> retVal = new HashSet<Long>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_NOT_READY_SERIES_PKS);
+			ps.setLong(1, maxSeriesPk);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				retVal.add(rs.getLong(1));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public Set<String> getExistingDcm4CheeSeriesUIDs(Collection<String> seriesUIDs)
+	{
+		Set<String> retVal = new HashSet<String>();
+		if (seriesUIDs.isEmpty())
+			return retVal;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_SERIES_UIDS_IN + DatabaseUtils.parameterList(seriesUIDs.size()));
+			int index = 1;
+			for (String seriesUID : seriesUIDs)
+				ps.setString(index++, seriesUID);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				retVal.add(rs.getString(1));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+			return null;
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
 	@Override
 	public Set<String> getStudyUIDsForPatient(String patientID)
 	{
@@ -454,6 +567,107 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 		return numberOfStudies;
 	}
 
+	@Override
+	public Map<String, Integer> getStudyCountsForPatients(Collection<String> patientIDs)
+	{
+		Map<String, Integer> retVal = new HashMap<String, Integer>();
+		if (patientIDs.isEmpty())
+			return retVal;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_COUNT_STUDY_FOR_PATIENTS
+					+ DatabaseUtils.parameterList(patientIDs.size()) + " group by p.pat_id");
+			int index = 1;
+			for (String patientID : patientIDs)
+				ps.setString(index++, patientID);
+			rs = ps.executeQuery();
+			while (rs.next())
+				retVal.put(rs.getString(1), rs.getInt(2));
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public List<Map<String, String>> getInstanceCountsForStudies(Collection<String> studyUIDs)
+	{
+		List<Map<String, String>> retVal = new ArrayList<Map<String, String>>();
+		if (studyUIDs.isEmpty())
+			return retVal;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_INSTANCE_COUNTS_FOR_STUDIES
+					+ DatabaseUtils.parameterList(studyUIDs.size()) + " group by st.study_iuid, s.series_iuid");
+			int index = 1;
+			for (String studyUID : studyUIDs)
+				ps.setString(index++, studyUID);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				Map<String, String> row = new HashMap<String, String>();
+				row.put("study_iuid", rs.getString(1));
+				row.put("series_iuid", rs.getString(2));
+				row.put("num_instances", rs.getString(3));
+				row.put("num_bytes", rs.getString(4));
+				retVal.add(row);
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public Map<String, Set<String>> getModalitiesForPatients(Collection<String> patientIDs)
+	{
+		Map<String, Set<String>> retVal = new HashMap<String, Set<String>>();
+		if (patientIDs.isEmpty())
+			return retVal;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_MODALITIES_FOR_PATIENTS
+					+ DatabaseUtils.parameterList(patientIDs.size()));
+			int index = 1;
+			for (String patientID : patientIDs)
+				ps.setString(index++, patientID);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				String patientID = rs.getString(1);
+				String modality = rs.getString(2);
+				Set<String> modalities = retVal.get(patientID);
+				if (modalities == null) {
+					modalities = new HashSet<String>();
+					retVal.put(patientID, modalities);
+				}
+				modalities.add(modality == null ? "" : modality);
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
 	@Override
 	public int getNumberOfStudiesForPatient(String patientID)
 	{
@@ -573,18 +787,7 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 				log.debug(ps.toString());
 			rs = ps.executeQuery();
 			while (rs.next()) {
-				Map<String, String> resultMap = createResultMap(rs);
-				String studyUID = resultMap.get("study_iuid");
-				String createdTime = resultMap.get("created_time");
-				String imageUID = resultMap.get("sop_iuid");
-				int instanceNumber = extractInteger(seriesUID, "instance number", resultMap.get("inst_no"), 0);
-				String filePath = resultMap.get("filepath");
-				int fileSize = extractInteger(seriesUID, "file_size", resultMap.get("file_size"), 0);
-				String modality = resultMap.get("modality");
-				
-				DICOMFileDescription dicomFileDescription = new DICOMFileDescription(studyUID, seriesUID, imageUID,
-						instanceNumber, filePath, fileSize, createdTime, modality);
-				dicomFileDescriptions.add(dicomFileDescription);
+				dicomFileDescriptions.add(createDICOMFileDescription(createResultMap(rs)));
 			}
 		} catch (SQLException sqle) {
 			String debugInfo = DatabaseUtils.getDebugData(rs);
@@ -597,10 +800,162 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 		return dicomFileDescriptions;
 	}
 
+	@Override
+	public Map<String, Set<DICOMFileDescription>> getDICOMFilesForSeries(Collection<String> seriesUIDs)
+	{
+		Map<String, Set<DICOMFileDescription>> dicomFileDescriptions = new HashMap<String, Set<DICOMFileDescription>>();
+		if (seriesUIDs.isEmpty())
+			return dicomFileDescriptions;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_FILES_FOR_SERIES_UIDS + DatabaseUtils.parameterList(seriesUIDs.size()));
+			int index = 1;
+			for (String seriesUID : seriesUIDs)
+				ps.setString(index++, seriesUID);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				DICOMFileDescription dicomFileDescription = createDICOMFileDescription(createResultMap(rs));
+				Set<DICOMFileDescription> seriesFiles = dicomFileDescriptions.get(dicomFileDescription.seriesUID);
+				if (seriesFiles == null) {
+					seriesFiles = new HashSet<DICOMFileDescription>();
+					dicomFileDescriptions.put(dicomFileDescription.seriesUID, seriesFiles);
+				}
+				seriesFiles.add(dicomFileDescription);
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return dicomFileDescriptions;
+	}
+
+	@Override
+	public Map<Long, DICOMFileDescription> getUnprocessedDICOMFilesAfterPrimaryKey(long instancePk, int maxFiles)
+	{
+		Map<Long, DICOMFileDescription> dicomFileDescriptions = new LinkedHashMap<Long, DICOMFileDescription>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_UNPROCESSED_FILES_AFTER_PK);
+			ps.setLong(1, instancePk);
+			ps.setInt(2, maxFiles);
+			if (log.isDebugEnabled())
+				log.debug(ps.toString());
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				dicomFileDescriptions.put(rs.getLong("pk"), createDICOMFileDescription(createResultMap(rs)));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return dicomFileDescriptions;
+	}
+
+	@Override
+	public Map<Long, DICOMFileDescription> getProcessedDICOMFilesForModality(String modality)
+	{
+		Map<Long, DICOMFileDescription> dicomFileDescriptions = new LinkedHashMap<Long, DICOMFileDescription>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_PROCESSED_FILES_FOR_MODALITY);
+			ps.setString(1, modality);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				dicomFileDescriptions.put(rs.getLong("pk"), createDICOMFileDescription(createResultMap(rs)));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return dicomFileDescriptions;
+	}
+
+	@Override
+	public Map<Long, DICOMFileDescription> getDICOMFilesForInstancePrimaryKeys(Collection<Long> instancePks)
+	{
+		Map<Long, DICOMFileDescription> dicomFileDescriptions = new LinkedHashMap<Long, DICOMFileDescription>();
+		if (instancePks.isEmpty())
+			return dicomFileDescriptions;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_FILES_FOR_INSTANCE_PKS + DatabaseUtils.parameterList(instancePks.size()));
+			int index = 1;
+			for (Long instancePk : instancePks)
+				ps.setLong(index++, instancePk);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				dicomFileDescriptions.put(rs.getLong("pk"), createDICOMFileDescription(createResultMap(rs)));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return dicomFileDescriptions;
+	}
+
+	@Override
+	public String getDICOMFilePathForImage(String imageUID)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_FILE_FOR_IMAGE);
+			ps.setString(1, imageUID);
+			if (log.isDebugEnabled())
+				log.debug(ps.toString());
+
+			rs = ps.executeQuery();
+			if (rs.next())
+				return rs.getString("filepath");
+			else
+				return null;
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+			return null;
+		} finally {
+			close(c, ps, rs);
+		}
+	}
+
+	/**
+	 * Served from SeriesImageIndex, which also puts series with gaps in their instance numbers in slice order.
+	 */
 	@Override
 	public List<DCM4CHEEImageDescription> getImageDescriptions(String studyUID, String seriesUID)
 	{
-		List<DCM4CHEEImageDescription> retVal = new ArrayList<>();
+		SeriesImageIndex seriesImageIndex = SeriesImageIndex.getInstance();
+		List<DCM4CHEEImageDescription> retVal = seriesImageIndex.get(studyUID, seriesUID);
+		if (retVal != null)
+			return retVal;
+		long loadSequence = seriesImageIndex.startLoad();
+		retVal = new ArrayList<>();
 
 		Connection c = null;
 		PreparedStatement ps = null;
@@ -621,39 +976,11 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 		} catch (SQLException e) {
 			String debugInfo = DatabaseUtils.getDebugData(rs);
 			log.warning("Database operation failed; debugInfo=" + debugInfo, e);
+			return retVal; // Not cached
 		} finally {
 			close(c, ps, rs);
 		}
-		
-		//check if the images list has proper instance numbers
-		//if not order the slices
-		//we should read the required tags and then use that to sort instead of using just the slicelocation
-//		if(!(retVal.get(0).instanceNumber==1 && retVal.get(retVal.size()-1).instanceNumber== retVal.size())) {
-		if(retVal.get(retVal.size()-1).instanceNumber-retVal.get(0).instanceNumber+1 != retVal.size()) {
-			//sort before filling image list
-			//but we just have slice location
-			//the image showed darker after doing this, why??
-			Collections.sort(retVal, new Comparator<DCM4CHEEImageDescription>() {
-			    @Override
-			    public int compare(DCM4CHEEImageDescription o1, DCM4CHEEImageDescription o2) {
-			    	Double o1Loc=Double.parseDouble(o1.sliceLocation);
-			    	Double o2Loc=Double.parseDouble(o2.sliceLocation);
-			    	//use the reverse order 
-			        return -1*o1Loc.compareTo(o2Loc);
-			    }
-
-			});
-			
-			//update instance numbers after sorting
-			
-			for(int i=1; i<=retVal.size(); i++) {
-				retVal.get(i-1).instanceNumber=i;
-				
-			}
-			
-		}
-		
-		return retVal;
+		return seriesImageIndex.put(studyUID, seriesUID, retVal, loadSequence);
 	}
 
 	@Override
@@ -770,6 +1097,21 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 		return retVal;
 	}
 
+	private DICOMFileDescription createDICOMFileDescription(Map<String, String> resultMap)
+	{
+		String studyUID = resultMap.get("study_iuid");
+		String seriesUID = resultMap.get("series_iuid");
+		String createdTime = resultMap.get("created_time");
+		String imageUID = resultMap.get("sop_iuid");
+		int instanceNumber = extractInteger(seriesUID, "instance number", resultMap.get("inst_no"), 0);
+		String filePath = resultMap.get("filepath");
+		int fileSize = extractInteger(seriesUID, "file_size", resultMap.get("file_size"), 0);
+		String modality = resultMap.get("modality");
+
+		return new DICOMFileDescription(studyUID, seriesUID, imageUID, instanceNumber, filePath, fileSize, createdTime,
+				modality);
+	}
+
 	private int extractInteger(String seriesUID, String fieldName, String rawValue, int defaultValue)
 	{
 		if (rawValue == null) {
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.dcm4chee;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+
+import edu.stanford.epad.common.dicom.DCM4CHEEImageDescription;
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
+import edu.stanford.epad.epadws.models.ImageIndex;
+import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+
+/**
+ * The images of a series in display order, kept so listing a series does not query dcm4chee and sort it every time.
+ * <p>
+ * When the PNG pipeline reads an image's header it records the image's instance number, slice position and frame
+ * count in <code>epaddb.image_index</code> (see imageIngested()). The first listing of a series reads dcm4chee and
+ * those positions once; if the instance numbers do not run from first to last without gaps the images are put in
+ * slice position order and renumbered, as before but by ImagePositionPatient rather than the slice location. The
+ * ordered list is then kept in an LRU of up to SeriesImageIndexSize images, until the series gets new images or is
+ * deleted.
+ */
+public class SeriesImageIndex
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final int MAX_REMEMBERED_INVALIDATIONS = 10000;
+
+	private static final SeriesImageIndex ourInstance = new SeriesImageIndex();
+
+	private final int maxImages;
+	private int cachedImages = 0; // Guarded by series
+	private long sequence = 0; // Guarded by series
+	private long forgottenSequence = 0; // Guarded by series
+	private final LinkedHashMap<String, List<DCM4CHEEImageDescription>> series = new LinkedHashMap<String, List<DCM4CHEEImageDescription>>(
+			256, 0.75f, true);
+	// When each series was last invalidated, so a listing that read dcm4chee before that is not cached
+	private final LinkedHashMap<String, Long> invalidated = new LinkedHashMap<String, Long>(256, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+		{
+			if (size() > MAX_REMEMBERED_INVALIDATIONS) {
+				forgottenSequence = eldest.getValue();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong reordered = new AtomicLong();
+
+	public static SeriesImageIndex getInstance()
+	{
+		return ourInstance;
+	}
+
+	private SeriesImageIndex()
+	{
+		maxImages = ConfigParams.getPositiveIntParam("SeriesImageIndexSize", 200000);
+	}
+
+	/**
+	 * @return the series' images in order, or null if they have to be read from dcm4chee and passed to put()
+	 */
+	public List<DCM4CHEEImageDescription> get(String studyUID, String seriesUID)
+	{
+		List<DCM4CHEEImageDescription> imageDescriptions;
+		synchronized (series) {
+			imageDescriptions = series.get(seriesUID);
+		}
+		if (imageDescriptions == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return copyOf(studyUID, imageDescriptions);
+	}
+
+	/**
+	 * Call before reading a series from dcm4chee, and pass the result to put().
+	 */
+	public long startLoad()
+	{
+		synchronized (series) {
+			return sequence;
+		}
+	}
+
+	/**
+	 * Order the images read from dcm4chee and cache them, unless the series changed since startLoad().
+	 * 
+	 * @return the ordered images
+	 */
+	public List<DCM4CHEEImageDescription> put(String studyUID, String seriesUID,
+			List<DCM4CHEEImageDescription> imageDescriptions, long loadSequence)
+	{
+		Map<String, ImageIndex> positions = getImagePositions(seriesUID);
+		for (DCM4CHEEImageDescription imageDescription : imageDescriptions) {
+			ImageIndex position = positions.get(imageDescription.imageUID);
+			if (position != null && position.getNumberOfFrames() > 1)
+				imageDescription.multiFrameImage = true;
+		}
+		order(imageDescriptions, positions);
+		synchronized (series) {
+			Long invalidatedAt = invalidated.get(seriesUID);
+			if (!imageDescriptions.isEmpty() && (invalidatedAt == null || invalidatedAt <= loadSequence)
+					&& forgottenSequence <= loadSequence) {
+				List<DCM4CHEEImageDescription> previous = series.put(seriesUID, imageDescriptions);
+				if (previous != null)
+					cachedImages -= previous.size();
+				cachedImages += imageDescriptions.size();
+				evict();
+			}
+		}
+		return copyOf(studyUID, imageDescriptions);
+	}
+
+	/**
+	 * Record an image's place in its series from its header; called by the PNG pipeline for each image it processes.
+	 */
+	public void imageIngested(String seriesUID, DicomObject header)
+	{
+		String imageUID = header.getString(Tag.SOPInstanceUID);
+		if (imageUID == null)
+			return;
+		ImageIndex imageIndex = new ImageIndex();
+		imageIndex.setSeriesUID(seriesUID);
+		imageIndex.setImageUID(imageUID);
+		imageIndex.setInstanceNumber(header.getInt(Tag.InstanceNumber, 0));
+		imageIndex.setSlicePosition(getSlicePosition(header));
+		imageIndex.setNumberOfFrames(header.getInt(Tag.NumberOfFrames, 1));
+		EpadFilesBatchWriter.getInstance().insertImageIndex(imageIndex);
+		invalidateSeries(seriesUID);
+	}
+
+	public void invalidateSeries(String seriesUID)
+	{
+		synchronized (series) {
+			sequence++;
+			invalidated.put(seriesUID, sequence);
+			List<DCM4CHEEImageDescription> removed = series.remove(seriesUID);
+			if (removed != null) {
+				cachedImages -= removed.size();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public void clear()
+	{
+		synchronized (series) {
+			sequence++;
+			forgottenSequence = sequence;
+			series.clear();
+			cachedImages = 0;
+		}
+	}
+
+	public String getStatistics()
+	{
+		int size;
+		int images;
+		synchronized (series) {
+			size = series.size();
+			images = cachedImages;
+		}
+		return "series:" + size + " images:" + images + " max:" + maxImages + " hits:" + hits.get() + " misses:"
+				+ misses.get() + " reordered:" + reordered.get() + " evicted:" + evictions.get() + " invalidated:"
+				+ invalidations.get();
+	}
+
+	/**
+	 * Images are listed by instance number, but if the instance numbers have gaps or repeats they are sorted by slice
+	 * position (highest first) and renumbered.
+	 */
+	private void order(List<DCM4CHEEImageDescription> imageDescriptions, final Map<String, ImageIndex> positions)
+	{
+		if (imageDescriptions.size() < 2)
+			return;
+		if (imageDescriptions.get(imageDescriptions.size() - 1).instanceNumber - imageDescriptions.get(0).instanceNumber + 1 == imageDescriptions.size())
+			return;
+		boolean allPositioned = true;
+		for (DCM4CHEEImageDescription imageDescription : imageDescriptions) {
+			ImageIndex position = positions.get(imageDescription.imageUID);
+			if (position == null || position.getSlicePosition() == null) {
+				allPositioned = false;
+				break;
+			}
+		}
+		final boolean byPosition = allPositioned;
+		Collections.sort(imageDescriptions, new Comparator<DCM4CHEEImageDescription>() {
+			@Override
+			public int compare(DCM4CHEEImageDescription o1, DCM4CHEEImageDescription o2)
+			{
+				double location1 = byPosition ? positions.get(o1.imageUID).getSlicePosition() : parseLocation(o1.sliceLocation);
+				double location2 = byPosition ? positions.get(o2.imageUID).getSlicePosition() : parseLocation(o2.sliceLocation);
+				return Double.compare(location2, location1);
+			}
+		});
+		for (int i = 0; i < imageDescriptions.size(); i++)
+			imageDescriptions.get(i).instanceNumber = i + 1;
+		reordered.incrementAndGet();
+	}
+
+	private Map<String, ImageIndex> getImagePositions(String seriesUID)
+	{
+		Map<String, ImageIndex> positions = new HashMap<String, ImageIndex>();
+		try {
+			List<ImageIndex> imageIndexes = new ImageIndex().getObjects("series_uid = " + AbstractDAO.toSQL(seriesUID)
+					+ " order by id");
+			for (ImageIndex imageIndex : imageIndexes)
+				positions.put(imageIndex.getImageUID(), imageIndex); // The latest for an image wins
+		} catch (Exception e) {
+			log.warning("Error reading image positions of series " + seriesUID, e);
+		}
+		return positions;
+	}
+
+	private void evict()
+	{
+		Iterator<List<DCM4CHEEImageDescription>> eldest = series.values().iterator();
+		while (cachedImages > maxImages && series.size() > 1 && eldest.hasNext()) {
+			cachedImages -= eldest.next().size();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Distance of the image along the normal of its plane, from ImagePositionPatient and ImageOrientationPatient.
+	 */
+	static Double getSlicePosition(DicomObject header)
+	{
+		double[] position = header.getDoubles(Tag.ImagePositionPatient);
+		double[] orientation = header.getDoubles(Tag.ImageOrientationPatient);
+		if (position == null || position.length != 3 || orientation == null || orientation.length != 6)
+			return null;
+		double normalX = orientation[1] * orientation[5] - orientation[2] * orientation[4];
+		double normalY = orientation[2] * orientation[3] - orientation[0] * orientation[5];
+		double normalZ = orientation[0] * orientation[4] - orientation[1] * orientation[3];
+		return position[0] * normalX + position[1] * normalY + position[2] * normalZ;
+	}
+
+	private static double parseLocation(String sliceLocation)
+	{
+		try {
+			return Double.parseDouble(sliceLocation);
+		} catch (Exception e) {
+			return 0.0;
+		}
+	}
+
+	// Callers get their own descriptions since they set multiFrameImage on them
+	private static List<DCM4CHEEImageDescription> copyOf(String studyUID, List<DCM4CHEEImageDescription> imageDescriptions)
+	{
+		List<DCM4CHEEImageDescription> copy = new ArrayList<DCM4CHEEImageDescription>(imageDescriptions.size());
+		for (DCM4CHEEImageDescription d : imageDescriptions) {
+			DCM4CHEEImageDescription imageDescription;
+			if (d.rescaleIntercept != null && d.rescaleSlope != null)
+				imageDescription = new DCM4CHEEImageDescription(studyUID, d.seriesUID, d.imageUID, d.instanceNumber,
+						d.sliceLocation, d.contentTime, d.updatedTime, d.createdTime, d.classUID, d.rescaleIntercept,
+						d.rescaleSlope);
+			else
+				imageDescription = new DCM4CHEEImageDescription(studyUID, d.seriesUID, d.imageUID, d.instanceNumber,
+						d.sliceLocation, d.contentTime, d.updatedTime, d.createdTime, d.classUID);
+			imageDescription.multiFrameImage = d.multiFrameImage;
+			copy.add(imageDescription);
+		}
+		return copy;
+	}
+}
@@ -107,14 +107,27 @@ package edu.stanford.epad.epadws.epaddb;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.config.ConfigParams;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 
 /**
+ * Bounded JDBC connection pool.
+ * <p>
+ * Checkout takes a permit from a fair semaphore sized to the maximum number of connections, so callers queue in order
+ * and give up with an SQLException after a configurable wait instead of opening connections without limit. Idle
+ * connections are kept on a lock-free deque and handed out most recently used first. Connections are not validated on
+ * checkout; a background thread validates idle connections, trims the idle set back to its initial size and reports
+ * connections that have been checked out for too long, together with the stack trace of the code that took them.
  * 
  * @author amsnyder
  */
@@ -122,69 +135,145 @@ public class ConnectionPool implements Runnable
 {
 	private static final EPADLogger logger = EPADLogger.getInstance();
 
-	private final List<Connection> connectionsAvailable = new ArrayList<Connection>();
-	private final List<Connection> connectionsUsed = new ArrayList<Connection>();
+	private final ConcurrentLinkedDeque<IdleConnection> connectionsAvailable = new ConcurrentLinkedDeque<IdleConnection>();
+	private final Map<Connection, Checkout> connectionsUsed = new ConcurrentHashMap<Connection, Checkout>();
+	private final AtomicInteger availableCount = new AtomicInteger();
 
 	private final String connectionUrl;
 	private final String username;
 	private final String password;
 
 	private int initialConnections = 25;
+	private final int maxConnections;
+	private final long waitTimeoutMillis;
+	private final long leakThresholdMillis;
+	private final long maintenanceIntervalMillis;
+	private final boolean captureCheckoutStack;
+	private final Semaphore permits;
+	private volatile boolean disposed = false;
+
+	private final AtomicLong checkouts = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong totalCheckoutNanos = new AtomicLong();
+	private final AtomicLong maxCheckoutNanos = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicLong connectionsCreated = new AtomicLong();
+	private final AtomicLong connectionsEvicted = new AtomicLong();
 
 	public ConnectionPool(String connectionUrl, String username, String password) throws SQLException
 	{
 		this.connectionUrl = connectionUrl;
 		this.username = username;
 		this.password = password;
+		this.maxConnections = Math.max(1, ConfigParams.getIntParam("DatabaseMaxConnections", 50));
+		this.initialConnections = Math.min(initialConnections, maxConnections);
+		this.waitTimeoutMillis = ConfigParams.getIntParam("DatabaseConnectionWaitSeconds", 30) * 1000L;
+		this.leakThresholdMillis = ConfigParams.getIntParam("DatabaseConnectionLeakSeconds", 300) * 1000L;
+		this.maintenanceIntervalMillis = ConfigParams.getIntParam("DatabaseConnectionCheckSeconds", 30) * 1000L;
+		this.captureCheckoutStack = !"false".equalsIgnoreCase(EPADConfig.getParamValue("DatabaseLeakDetection", "true"));
+		this.permits = new Semaphore(maxConnections, true);
 
-		logger.info("Creating connection pool for URL " + connectionUrl);
+		logger.info("Creating connection pool for URL " + connectionUrl + ", max connections " + maxConnections);
 
 		try {
 			Class.forName("com.mysql.jdbc.Driver");
 			for (int count = 0; count < initialConnections; count++) {
-				connectionsAvailable.add(createConnection());
+				makeAvailable(createConnection());
 			}
 		} catch (ClassNotFoundException e) {
 			logger.warning(e.toString(), e);
 		}
+		Thread maintenanceThread = new Thread(this, "ConnectionPool " + connectionUrl);
+		maintenanceThread.setDaemon(true);
+		maintenanceThread.start();
 	}
 
 	private Connection createConnection() throws SQLException
 	{
-		return DriverManager.getConnection(connectionUrl, username, password);
+		Connection connection = DriverManager.getConnection(connectionUrl, username, password);
+		connectionsCreated.incrementAndGet();
+		return connection;
 	}
 
-	public synchronized Connection getConnection() throws SQLException
+	/**
+	 * Check out a connection, waiting if all connections are in use. Every connection returned must be given back with
+	 * {@link #freeConnection(Connection)}.
+	 * 
+	 * @throws SQLException if no connection became free within the configured wait, or a new connection failed to open
+	 */
+	public Connection getConnection() throws SQLException
 	{
-		if (connectionsAvailable.size() == 0) {
-			logger.info("Creating new connection, used:" + connectionsUsed.size());
-			Connection connection = createConnection();
-			logger.info("Connection created");
-			connectionsUsed.add(connection);
-			return connection;
-		} else {
-			int size = connectionsAvailable.size();
-			Connection connection = connectionsAvailable.get(size - 1);
-			connectionsAvailable.remove(connection);
-			if (!connection.isValid(1)) {
-				logger.info("Closing invalid/expired connection for URL " + connectionUrl); // TODO Remove this log eventually
-				connection.close();
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a database connection for URL " + connectionUrl);
+		}
+		long waited = System.nanoTime() - start;
+		if (!acquired) {
+			timeouts.incrementAndGet();
+			throw new SQLException("Timed out after " + waitTimeoutMillis + " ms waiting for a database connection for URL "
+					+ connectionUrl + ", used:" + connectionsUsed.size());
+		}
+		totalWaitNanos.addAndGet(waited);
+		updateMax(maxWaitNanos, waited);
+
+		Connection connection;
+		try {
+			IdleConnection idleConnection = connectionsAvailable.pollFirst();
+			if (idleConnection != null) {
+				availableCount.decrementAndGet();
+				connection = idleConnection.connection;
+			} else {
 				connection = createConnection();
 			}
-			connectionsUsed.add(connection);
-			return connection;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
 		}
+		checkouts.incrementAndGet();
+		connectionsUsed.put(connection, new Checkout(captureCheckoutStack));
+		return connection;
 	}
 
-	public synchronized void freeConnection(Connection connection)
+	/**
+	 * Return a connection to the pool. Null and unknown connections are ignored, so this is safe to call from finally
+	 * blocks whether or not the checkout succeeded.
+	 */
+	public void freeConnection(Connection connection)
 	{
-		connectionsUsed.remove(connection);
-		connectionsAvailable.add(connection);
+		if (connection == null)
+			return;
+		Checkout checkout = connectionsUsed.remove(connection);
+		if (checkout == null) {
+			logger.warning("Connection returned that was not checked out from pool for URL " + connectionUrl);
+			return;
+		}
+		long held = System.nanoTime() - checkout.startNanos;
+		totalCheckoutNanos.addAndGet(held);
+		updateMax(maxCheckoutNanos, held);
+		try {
+			if (disposed || connection.isClosed())
+				closeQuietly(connection);
+			else
+				makeAvailable(connection);
+		} catch (SQLException e) {
+			closeQuietly(connection);
+		} finally {
+			permits.release();
+		}
 	}
 
 	public int availableConnectionCount()
 	{
-		return connectionsAvailable.size();
+		return availableCount.get();
 	}
 
 	public int usedConnectionCount()
@@ -192,39 +281,158 @@ public class ConnectionPool implements Runnable
 		return connectionsUsed.size();
 	}
 
+	public int maxConnectionCount()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Number of callers currently waiting for a connection.
+	 */
+	public int waitingCount()
+	{
+		return permits.getQueueLength();
+	}
+
+	public long getCheckoutCount()
+	{
+		return checkouts.get();
+	}
+
+	public long getTotalWaitMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+	}
+
+	public long getMaxWaitMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+
+	public long getTotalCheckoutMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(totalCheckoutNanos.get());
+	}
+
+	public long getMaxCheckoutMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxCheckoutNanos.get());
+	}
+
+	public long getTimeoutCount()
+	{
+		return timeouts.get();
+	}
+
+	public long getLeakCount()
+	{
+		return leaks.get();
+	}
+
+	public long getCreatedCount()
+	{
+		return connectionsCreated.get();
+	}
+
+	public long getEvictedCount()
+	{
+		return connectionsEvicted.get();
+	}
+
+	/**
+	 * One line summary of the pool counters for status pages and logs.
+	 */
+	public String getStatistics()
+	{
+		long count = checkouts.get();
+		return "used:" + usedConnectionCount() + " avail:" + availableConnectionCount() + " max:" + maxConnections
+				+ " waiting:" + waitingCount() + " checkouts:" + count + " avgWaitMs:"
+				+ (count == 0 ? 0 : getTotalWaitMillis() / count) + " maxWaitMs:" + getMaxWaitMillis() + " avgHeldMs:"
+				+ (count == 0 ? 0 : getTotalCheckoutMillis() / count) + " maxHeldMs:" + getMaxCheckoutMillis() + " timeouts:"
+				+ getTimeoutCount() + " leaks:" + getLeakCount() + " created:" + getCreatedCount() + " evicted:"
+				+ getEvictedCount();
+	}
+
 	@Override
 	public void run()
 	{
 		try {
 			ShutdownSignal shutdownSignal = ShutdownSignal.getInstance();
-			while (!shutdownSignal.hasShutdown()) {
-				synchronized (this) {
-					closeExcessConnections();
-				}
-				Thread.sleep(600000);
+			while (!shutdownSignal.hasShutdown() && !disposed) {
+				Thread.sleep(maintenanceIntervalMillis);
+				validateAvailableConnections();
+				closeExcessConnections();
+				reportLeakedConnections();
 			}
-		} catch (SQLException sqle) {
-			logger.severe("SQL Exception. Lost the connection pool.", sqle);
-			sqle.printStackTrace();
+		} catch (InterruptedException e) {
+			logger.info("Connection pool maintenance stopped for URL " + connectionUrl);
 		} catch (Exception e) {
-			logger.severe("Lost MySQL connection pool! ", e);
-			e.printStackTrace();
+			logger.severe("Connection pool maintenance failed for URL " + connectionUrl, e);
 		}
 	}
 
 	/**
-	 * Private method to close excess connections.
-	 * 
-	 * @throws SQLException
+	 * Validate connections that have been idle for a full maintenance interval, oldest first. Each connection is checked
+	 * while holding a permit, so validation never pushes the number of open connections past the maximum; if no permit
+	 * is free the pool is busy and there is nothing idle worth checking.
 	 */
-	private synchronized void closeExcessConnections() throws SQLException
+	private void validateAvailableConnections()
 	{
-		int caSize = connectionsAvailable.size();
-		while (caSize > initialConnections) {
-			Connection connection = connectionsAvailable.get(caSize - 1);
-			connectionsAvailable.remove(connection);
-			connection.close();
-			caSize = connectionsAvailable.size();
+		int toCheck = availableCount.get();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < toCheck && !disposed; i++) {
+			if (!permits.tryAcquire())
+				return;
+			try {
+				IdleConnection idleConnection = connectionsAvailable.peekLast();
+				if (idleConnection == null || now - idleConnection.idleSince < maintenanceIntervalMillis)
+					return;
+				if (!connectionsAvailable.removeLastOccurrence(idleConnection))
+					continue;
+				availableCount.decrementAndGet();
+				if (isValid(idleConnection.connection)) {
+					connectionsAvailable.offerFirst(new IdleConnection(idleConnection.connection, now));
+					availableCount.incrementAndGet();
+				} else {
+					logger.info("Closing invalid/expired connection for URL " + connectionUrl);
+					connectionsEvicted.incrementAndGet();
+					closeQuietly(idleConnection.connection);
+				}
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Close the least recently used idle connections above the initial pool size.
+	 */
+	private void closeExcessConnections()
+	{
+		while (availableCount.get() > initialConnections) {
+			IdleConnection idleConnection = connectionsAvailable.pollLast();
+			if (idleConnection == null)
+				break;
+			availableCount.decrementAndGet();
+			connectionsEvicted.incrementAndGet();
+			closeQuietly(idleConnection.connection);
+		}
+	}
+
+	private void reportLeakedConnections()
+	{
+		long now = System.currentTimeMillis();
+		for (Checkout checkout : connectionsUsed.values()) {
+			if (!checkout.reported && now - checkout.startMillis > leakThresholdMillis) {
+				checkout.reported = true;
+				leaks.incrementAndGet();
+				String message = "Database connection for URL " + connectionUrl + " checked out "
+						+ (now - checkout.startMillis) / 1000 + " seconds ago and not freed";
+				if (checkout.stack != null)
+					logger.warning(message, checkout.stack);
+				else
+					logger.warning(message);
+			}
 		}
 	}
 
@@ -232,16 +440,67 @@ public class ConnectionPool implements Runnable
 	 * Call during shutdown to get rid of all the connections.
 	 */
 	public void dispose()
+	{
+		logger.info("Shutting down mysql database connection pool. #avail: " + availableConnectionCount() + " #used: "
+				+ usedConnectionCount() + " " + getStatistics());
+		disposed = true;
+		initialConnections = 0;
+		closeExcessConnections();
+	}
+
+	private void makeAvailable(Connection connection)
+	{
+		connectionsAvailable.offerFirst(new IdleConnection(connection, System.currentTimeMillis()));
+		availableCount.incrementAndGet();
+	}
+
+	private boolean isValid(Connection connection)
 	{
 		try {
-			synchronized (this) {
-				logger.info("Shutting down mysql database connection pool. #avail: " + connectionsAvailable.size() + " #used: "
-						+ connectionsUsed.size());
-				initialConnections = 0;
-				closeExcessConnections();
-			}
-		} catch (SQLException sqle) {
-			logger.severe("Failed to dispose of connections.", sqle);
+			return connection.isValid(1);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static void closeQuietly(Connection connection)
+	{
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			logger.warning("Failed to close connection", e);
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value)
+	{
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	private static class IdleConnection
+	{
+		final Connection connection;
+		final long idleSince;
+
+		IdleConnection(Connection connection, long idleSince)
+		{
+			this.connection = connection;
+			this.idleSince = idleSince;
+		}
+	}
+
+	private static class Checkout
+	{
+		final long startNanos = System.nanoTime();
+		final long startMillis = System.currentTimeMillis();
+		final Throwable stack;
+		volatile boolean reported = false;
+
+		Checkout(boolean captureStack)
+		{
+			this.stack = captureStack ? new Throwable("Connection checked out by " + Thread.currentThread().getName()) : null;
 		}
 	}
-}
\ No newline at end of file
+}
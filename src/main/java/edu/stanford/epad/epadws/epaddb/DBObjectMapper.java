@@ -0,0 +1,674 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.epaddb;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Column mapper for the DAO tables described by a DBCOLUMNS array (see EpadDatabaseOperations).
+ * <p>
+ * The accessors and the insert/update/select SQL are resolved once per class and column structure and then reused,
+ * so reading or writing a row no longer looks up getters and setters by name. The value handling (types, nulls,
+ * skipped Id columns) is the same as the original reflective code in DefaultEpadDatabaseOperations.
+ * 
+ */
+public final class DBObjectMapper
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final ConcurrentMap<Key, DBObjectMapper> mappers = new ConcurrentHashMap<Key, DBObjectMapper>();
+	private static final ConcurrentMap<Class<?>, ConcurrentMap<String, MethodHandle>> fieldGetters = new ConcurrentHashMap<Class<?>, ConcurrentMap<String, MethodHandle>>();
+	private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	private enum ValueType
+	{
+		STRING, INT, INTEGER, LONG, LONG_OBJECT, DOUBLE, DOUBLE_OBJECT, BOOLEAN, BOOLEAN_OBJECT, TIMESTAMP, DATE, NONE
+	}
+
+	private final Class<?> dbClass;
+	private final String[][] columns;
+	private final Column[] mappedColumns;
+	private final String insertSQL;
+	private final String updateSQL;
+	private final String selectSQL;
+	private final String selectDistinctSQL;
+	private final String selectByIdSQL;
+	private final MethodHandle idGetter;
+	private final MethodHandle idSetter;
+	private final String idError;
+
+	public static DBObjectMapper getInstance(Class<?> dbClass, String dbTable, String[][] columns)
+	{
+		Key key = new Key(dbClass, dbTable, columns);
+		DBObjectMapper mapper = mappers.get(key);
+		if (mapper == null) {
+			mapper = new DBObjectMapper(dbClass, dbTable, columns);
+			DBObjectMapper existing = mappers.putIfAbsent(key, mapper);
+			if (existing != null)
+				mapper = existing;
+		}
+		return mapper;
+	}
+
+	/**
+	 * Returns the value of a bean property using a cached getter ("get" then "is").
+	 */
+	public static Object getFieldValue(Object data, String field) throws Exception
+	{
+		ConcurrentMap<String, MethodHandle> getters = fieldGetters.get(data.getClass());
+		if (getters == null) {
+			getters = new ConcurrentHashMap<String, MethodHandle>();
+			ConcurrentMap<String, MethodHandle> existing = fieldGetters.putIfAbsent(data.getClass(), getters);
+			if (existing != null)
+				getters = existing;
+		}
+		MethodHandle getter = getters.get(field);
+		if (getter == null) {
+			String name = capitalize(field);
+			getter = findGetter(data.getClass(), "get" + name);
+			if (getter == null)
+				getter = findGetter(data.getClass(), "is" + name);
+			if (getter == null)
+				throw new NoSuchMethodException(data.getClass().getName() + ".get" + name);
+			getters.putIfAbsent(field, getter);
+		}
+		try {
+			return getter.invokeExact(data);
+		} catch (Exception e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new Exception(t);
+		}
+	}
+
+	private DBObjectMapper(Class<?> dbClass, String dbTable, String[][] columns)
+	{
+		this.dbClass = dbClass;
+		this.columns = columns;
+		this.mappedColumns = new Column[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			mappedColumns[i] = new Column(dbClass, columns[i]);
+		this.insertSQL = buildInsertSQL(dbTable, columns);
+		this.updateSQL = buildUpdateSQL(dbTable, columns);
+		this.selectSQL = "SELECT * FROM " + dbTable + " a ";
+		this.selectDistinctSQL = "SELECT DISTINCT * FROM " + dbTable + " a ";
+		this.selectByIdSQL = "SELECT * FROM " + dbTable + " where id = ?";
+
+		String name = capitalize(columns[0][0]);
+		MethodHandle setter = null;
+		String error = null;
+		try {
+			setter = lookup.findVirtual(dbClass, "set" + name, MethodType.methodType(void.class, int.class));
+		} catch (NoSuchMethodException ne) {
+			try {
+				setter = lookup.findVirtual(dbClass, "set" + name, MethodType.methodType(void.class, long.class));
+			} catch (Exception e) {
+				error = e.getMessage();
+			}
+		} catch (Exception e) {
+			error = e.getMessage();
+		}
+		this.idSetter = setter == null ? null : setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+		this.idError = error;
+		this.idGetter = findGetter(dbClass, "get" + name);
+	}
+
+	public String getInsertSQL()
+	{
+		return insertSQL;
+	}
+
+	public String getUpdateSQL()
+	{
+		return updateSQL;
+	}
+
+	public String getSelectSQL(boolean distinct)
+	{
+		return distinct ? selectDistinctSQL : selectSQL;
+	}
+
+	public String getSelectByIdSQL()
+	{
+		return selectByIdSQL;
+	}
+
+	/**
+	 * Sets data values in insert/update preparedStatement. Id columns are skipped.
+	 */
+	public void setValues(PreparedStatement ps, Object data) throws SQLException
+	{
+		int i = 1;
+		int j = 0;
+		try
+		{
+			for (j = 0; j < mappedColumns.length; j++)
+			{
+				Column column = mappedColumns[j];
+				if (column.isId)
+					continue;
+				switch (column.writeType)
+				{
+					case STRING:
+					{
+						String value = (String) column.get(data);
+						if (value != null)
+							ps.setString(i, value);
+						else
+							ps.setNull(i, java.sql.Types.VARCHAR);
+						break;
+					}
+					case INT:
+					{
+						Integer value = (Integer) column.get(data);
+						if (value != null)
+							ps.setInt(i, value);
+						else
+							ps.setNull(i, java.sql.Types.INTEGER);
+						break;
+					}
+					case LONG:
+					{
+						Long value = (Long) column.get(data);
+						if (value != null)
+							ps.setLong(i, value);
+						else
+							ps.setNull(i, java.sql.Types.INTEGER);
+						break;
+					}
+					case DOUBLE:
+					{
+						Double value = (Double) column.get(data);
+						if (value != null)
+							ps.setDouble(i, value);
+						else
+							ps.setNull(i, java.sql.Types.DOUBLE);
+						break;
+					}
+					case BOOLEAN:
+					{
+						Boolean value = (Boolean) column.get(data);
+						if (value != null)
+							ps.setBoolean(i, value);
+						else
+							ps.setInt(i, 0);
+						break;
+					}
+					case TIMESTAMP:
+					case DATE:
+					{
+						Date value = (Date) column.get(data);
+						if (value != null)
+							ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
+						else
+							ps.setNull(i, column.writeType == ValueType.DATE ? java.sql.Types.DATE : java.sql.Types.TIMESTAMP);
+						break;
+					}
+					default:
+						break;
+				}
+				i++;
+			}
+		}
+		catch (Throwable x)
+		{
+			String message = "Error setting values for " + columns[j][0] + " : " + x.getMessage();
+			log.warning(message, x);
+			throw new SQLException(message, x);
+		}
+	}
+
+	/**
+	 * Binds the id of the object to the where clause of the update statement.
+	 */
+	public void setIdValue(PreparedStatement ps, Object data) throws SQLException
+	{
+		String[] idColumn = columns[0];
+		try
+		{
+			if (idGetter == null)
+				throw new NoSuchMethodException(dbClass.getName() + ".get" + capitalize(idColumn[0]));
+			Object value = idGetter.invokeExact(data);
+			if (idColumn[3].equalsIgnoreCase("Id") && idColumn[1].equalsIgnoreCase("long"))
+				ps.setLong(columns.length, (Long) value);
+			else if (idColumn[3].equalsIgnoreCase("Id"))
+				ps.setInt(columns.length, (Integer) value);
+			else if (idColumn[2].equalsIgnoreCase("String"))
+				ps.setString(columns.length, (String) value);
+		}
+		catch (Throwable e)
+		{
+			String message = "Error setting id value for " + idColumn[0] + " : " + e.getMessage();
+			log.warning(message, e);
+			throw new SQLException(message, e);
+		}
+	}
+
+	/**
+	 * Sets the generated key on a newly inserted object.
+	 */
+	public void setGeneratedId(Object data, int id)
+	{
+		if (idSetter == null)
+			throw new IllegalArgumentException(idError);
+		try
+		{
+			idSetter.invokeExact(data, id);
+		}
+		catch (Throwable e)
+		{
+			log.warning("Error setting generated id " + id + " on " + dbClass.getName(), e);
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Resolves the result set positions of the mapped columns, once per result set.
+	 */
+	public int[] getColumnIndexes(ResultSet rs) throws SQLException
+	{
+		int[] indexes = new int[mappedColumns.length];
+		int i = 0;
+		try
+		{
+			for (i = 0; i < mappedColumns.length; i++)
+			{
+				if (mappedColumns[i].readType != ValueType.NONE)
+					indexes[i] = rs.findColumn(columns[i][2]);
+			}
+		}
+		catch (SQLException x)
+		{
+			throw new SQLException("Error setting values for " + columns[i][0] + ":" + x.getMessage(), x);
+		}
+		return indexes;
+	}
+
+	public Object newInstance(ResultSet rs, int[] indexes) throws Exception
+	{
+		Object data = dbClass.newInstance();
+		getValues(rs, indexes, data);
+		return data;
+	}
+
+	/**
+	 * Populates the object from the current row of the result set.
+	 */
+	public void getValues(ResultSet rs, int[] indexes, Object data) throws SQLException
+	{
+		int i = 0;
+		try
+		{
+			for (i = 0; i < mappedColumns.length; i++)
+			{
+				Column column = mappedColumns[i];
+				int index = indexes[i];
+				Object value;
+				switch (column.readType)
+				{
+					case STRING:
+						value = rs.getString(index);
+						break;
+					case INTEGER:
+						value = rs.getInt(index);
+						if (rs.wasNull()) value = null;
+						break;
+					case INT:
+						value = rs.getInt(index);
+						break;
+					case LONG_OBJECT:
+						value = rs.getLong(index);
+						if (rs.wasNull()) value = null;
+						break;
+					case LONG:
+						value = rs.getLong(index);
+						break;
+					case BOOLEAN_OBJECT:
+						value = rs.getBoolean(index);
+						if (rs.wasNull()) value = null;
+						break;
+					case BOOLEAN:
+						value = rs.getBoolean(index);
+						break;
+					case TIMESTAMP:
+						value = rs.getTimestamp(index);
+						break;
+					case DATE:
+						Timestamp stamp = rs.getTimestamp(index);
+						value = stamp == null ? null : new Date(stamp.getTime());
+						break;
+					case DOUBLE_OBJECT:
+						value = rs.getDouble(index);
+						if (rs.wasNull()) value = null;
+						break;
+					case DOUBLE:
+						value = rs.getDouble(index);
+						break;
+					default:
+						continue;
+				}
+				column.set(data, value);
+			}
+		}
+		catch (Throwable x)
+		{
+			String message = "Error setting values for " + columns[i][0] + ":" + x.getMessage();
+			log.warning(message, x);
+			throw new SQLException(message, x);
+		}
+	}
+
+	private static String buildInsertSQL(String tableName, String[][] columns)
+	{
+		StringBuilder insertSQL = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+		StringBuilder values = new StringBuilder(") VALUES (");
+		String delim = "";
+		for (int i = 0; i < columns.length; i++)
+		{
+			if (columns[i][3].equalsIgnoreCase("Id")) continue;
+			insertSQL.append(delim).append(columns[i][2]);
+			values.append(delim).append("?");
+			delim = ",";
+		}
+		return insertSQL.append(values).append(")").toString();
+	}
+
+	private static String buildUpdateSQL(String tableName, String[][] columns)
+	{
+		StringBuilder updateSQL = new StringBuilder("UPDATE ").append(tableName).append(" set ");
+		String comma = "";
+		String whereClause = null;
+		for (int i = 0; i < columns.length; i++)
+		{
+			if (columns[i][3].equalsIgnoreCase("Id") || columns[i][3].equalsIgnoreCase("RID") || columns[i][3].equalsIgnoreCase("CID"))
+			{
+				String idcol = columns[i][2];
+				if (whereClause == null)
+					whereClause = idcol + " = ?";
+				else
+					whereClause = " and " + idcol + " = ?";
+				continue;
+			}
+			updateSQL.append(comma).append(columns[i][2]).append(" = ?");
+			comma = ",";
+		}
+		return updateSQL.append(" where ").append(whereClause).toString();
+	}
+
+	private static MethodHandle findGetter(Class<?> dbClass, String methodName)
+	{
+		try {
+			return lookup.unreflect(dbClass.getMethod(methodName)).asType(GETTER_TYPE);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static MethodHandle findSetter(Class<?> dbClass, String methodName, Class<?> type)
+	{
+		try {
+			return lookup.unreflect(dbClass.getMethod(methodName, type)).asType(SETTER_TYPE);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static String capitalize(String field)
+	{
+		return field.substring(0,1).toUpperCase() + field.substring(1);
+	}
+
+	private static ValueType getWriteType(String type)
+	{
+		if (type.equalsIgnoreCase("String"))
+			return ValueType.STRING;
+		else if (type.equalsIgnoreCase("Integer") || type.equalsIgnoreCase("int"))
+			return ValueType.INT;
+		else if (type.equalsIgnoreCase("Long"))
+			return ValueType.LONG;
+		else if (type.equalsIgnoreCase("Double"))
+			return ValueType.DOUBLE;
+		else if (type.equalsIgnoreCase("Boolean"))
+			return ValueType.BOOLEAN;
+		else if (type.equalsIgnoreCase("Timestamp"))
+			return ValueType.TIMESTAMP;
+		else if (type.equalsIgnoreCase("Date"))
+			return ValueType.DATE;
+		return ValueType.NONE;
+	}
+
+	private static ValueType getReadType(String type)
+	{
+		if (type.equals("String"))
+			return ValueType.STRING;
+		else if (type.equals("Integer"))
+			return ValueType.INTEGER;
+		else if (type.equals("int"))
+			return ValueType.INT;
+		else if (type.equals("Long"))
+			return ValueType.LONG_OBJECT;
+		else if (type.equals("long"))
+			return ValueType.LONG;
+		else if (type.equals("Boolean"))
+			return ValueType.BOOLEAN_OBJECT;
+		else if (type.equals("boolean"))
+			return ValueType.BOOLEAN;
+		else if (type.equals("Timestamp"))
+			return ValueType.TIMESTAMP;
+		else if (type.equals("Date"))
+			return ValueType.DATE;
+		else if (type.equals("Double"))
+			return ValueType.DOUBLE_OBJECT;
+		else if (type.equals("double"))
+			return ValueType.DOUBLE;
+		return ValueType.NONE;
+	}
+
+	private static Class<?> getJavaClass(ValueType type)
+	{
+		switch (type)
+		{
+			case STRING: return String.class;
+			case INTEGER: return Integer.class;
+			case INT: return int.class;
+			case LONG_OBJECT: return Long.class;
+			case LONG: return long.class;
+			case BOOLEAN_OBJECT: return Boolean.class;
+			case BOOLEAN: return boolean.class;
+			case TIMESTAMP: return Timestamp.class;
+			case DATE: return Date.class;
+			case DOUBLE_OBJECT: return Double.class;
+			case DOUBLE: return double.class;
+			default: return null;
+		}
+	}
+
+	private static class Column
+	{
+		final String field;
+		final boolean isId;
+		final ValueType writeType;
+		final ValueType readType;
+		final MethodHandle getter;
+		final MethodHandle setter;
+		final String setterName;
+
+		Column(Class<?> dbClass, String[] column)
+		{
+			field = column[0];
+			isId = column[3].equalsIgnoreCase("Id");
+			writeType = getWriteType(column[1]);
+			readType = getReadType(column[1]);
+			String name = capitalize(field);
+			MethodHandle get = null;
+			if (writeType == ValueType.BOOLEAN)
+				get = findGetter(dbClass, "is" + name);
+			if (get == null)
+				get = findGetter(dbClass, "get" + name);
+			getter = get;
+			setterName = "set" + name;
+			Class<?> type = getJavaClass(readType);
+			setter = type == null ? null : findSetter(dbClass, setterName, type);
+		}
+
+		Object get(Object data) throws Throwable
+		{
+			if (getter == null)
+				throw new NoSuchMethodException("get" + capitalize(field));
+			return getter.invokeExact(data);
+		}
+
+		void set(Object data, Object value) throws Throwable
+		{
+			if (setter == null)
+				throw new NoSuchMethodException(setterName);
+			setter.invokeExact(data, value);
+		}
+	}
+
+	private static class Key
+	{
+		private final Class<?> dbClass;
+		private final String dbTable;
+		private final String[][] columns;
+
+		Key(Class<?> dbClass, String dbTable, String[][] columns)
+		{
+			this.dbClass = dbClass;
+			this.dbTable = dbTable;
+			this.columns = columns;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return dbClass.hashCode() * 31 + dbTable.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return dbClass == other.dbClass && dbTable.equals(other.dbTable)
+					&& (columns == other.columns || Arrays.deepEquals(columns, other.columns));
+		}
+	}
+}
@@ -246,6 +246,20 @@ public class DatabaseUtils
             return "'" + value.toString() + "'";
     }
 
+    /**
+     * Returns a parenthesized list of JDBC placeholders, e.g. (?,?,?), for use in an IN clause
+     */
+    public static String parameterList(int count)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0) sb.append(",");
+            sb.append("?");
+        }
+        return sb.append(")").toString();
+    }
+
     /**
      * Escapes single quotes
      */
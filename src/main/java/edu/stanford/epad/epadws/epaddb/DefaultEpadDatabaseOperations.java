@@ -105,7 +105,6 @@
 package edu.stanford.epad.epadws.epaddb;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -114,6 +113,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -135,6 +135,7 @@ import edu.stanford.epad.dtos.SeriesProcessingStatus;
 import edu.stanford.epad.epadws.aim.AIMDatabaseOperations;
 import edu.stanford.epad.epadws.aim.AIMSearchType;
 import edu.stanford.epad.epadws.aim.AIMUtil;
+import edu.stanford.epad.epadws.dcm4chee.SeriesImageIndex;
 import edu.stanford.epad.epadws.handlers.coordination.Term;
 import edu.stanford.epad.epadws.handlers.core.FrameReference;
 import edu.stanford.epad.epadws.handlers.core.ImageReference;
@@ -143,6 +144,10 @@ import edu.stanford.epad.epadws.handlers.core.SeriesReference;
 import edu.stanford.epad.epadws.handlers.core.StudyReference;
 import edu.stanford.epad.epadws.handlers.core.SubjectReference;
 import edu.stanford.epad.epadws.models.Project;
+import edu.stanford.epad.epadws.processing.events.EventBus;
+import edu.stanford.epad.epadws.queries.DICOMMetadataCache;
+import edu.stanford.epad.epadws.queries.Dcm4CheeSeriesTracker;
+import edu.stanford.epad.epadws.security.EPADSession;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.hakan.aim4api.base.AimException;
 import edu.stanford.hakan.aim4api.base.Enumerations.AimVersion;
@@ -154,6 +159,9 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 {
 	private static final EPADLogger log = EPADLogger.getInstance();
 
+	private static final String[] EVENT_COLUMNS = { "event_status", "aim_uid", "aim_name", "patient_id", "patient_name",
+			"template_id", "template_name", "plugin_name", "project_id", "project_name", "series_uid", "study_uid", "error" };
+
 	private final ConnectionPool connectionPool;
 
 	public DefaultEpadDatabaseOperations(ConnectionPool connectionPool)
@@ -1376,6 +1384,71 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 	}
 
+	@Override
+	public boolean insertEpadFileRows(List<Map<String, String>> rows)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		boolean autoCommit = true;
+		try {
+			c = getConnection();
+			autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EPAD_FILES_FOR_IMAGE);
+			for (Map<String, String> row : rows) {
+				ps.setInt(1, Integer.parseInt(row.get("file_type")));
+				ps.setString(2, row.get("file_path"));
+				ps.setLong(3, Long.parseLong(row.get("file_size")));
+				ps.setInt(4, getSeriesProcessingStatusCode(row));
+				ps.setString(5, getErrMsg(row));
+				ps.setString(6, row.get("file_md5"));
+				ps.setString(7, row.get("sop_iuid"));
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			c.commit();
+			return true;
+		} catch (Exception e) {
+			rollback(c);
+			log.warning("Database operation (insert " + rows.size() + " epad_files) failed", e);
+			return false;
+		} finally {
+			restoreAutoCommit(c, autoCommit);
+			close(c, ps);
+		}
+	}
+
+	@Override
+	public boolean updateEpadFileRows(List<Map<String, String>> rows)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		boolean autoCommit = true;
+		try {
+			c = getConnection();
+			autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			ps = c.prepareStatement(EpadDatabaseCommands.UPDATE_EPAD_FILES_FOR_EXACT_PATH);
+			for (Map<String, String> row : rows) {
+				ps.setInt(1, getSeriesProcessingStatusCode(row));
+				ps.setLong(2, Long.parseLong(row.get("file_size")));
+				ps.setString(3, getValueOrDefault(row.get("err_msg"), ""));
+				ps.setString(4, row.get("file_path"));
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			c.commit();
+			return true;
+		} catch (Exception e) {
+			rollback(c);
+			log.warning("Database operation (update " + rows.size() + " epad_files) failed", e);
+			return false;
+		} finally {
+			restoreAutoCommit(c, autoCommit);
+			close(c, ps);
+		}
+	}
+
 	@Override
 	public boolean hasEpadFileRow(String filePath)
 	{
@@ -1524,6 +1597,9 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			ps.close();
 			ps = c.prepareStatement(EpadDatabaseCommands.DELETE_ALL_FROM_SERIES_STATUS);
 			ps.executeUpdate();
+			EpadStatisticsCollector.getInstance().tableCleared(EpadStatisticsCollector.SERIES_STATUS);
+			EpadFilesBatchWriter.getInstance().forgetAllSeries();
+			Dcm4CheeSeriesTracker.rescanAllSeries();
 		} catch (SQLException sqle) {
 			String debugInfo = DatabaseUtils.getDebugData(rs);
 			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
@@ -1698,6 +1774,43 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 	}
 
+	@Override
+	public boolean updateOrInsertSeries(Map<String, SeriesProcessingStatus> seriesProcessingStatuses)
+	{
+		Connection c = null;
+		PreparedStatement update = null;
+		PreparedStatement insert = null;
+		boolean autoCommit = true;
+		int inserted = 0;
+		try {
+			c = getConnection();
+			autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			update = c.prepareStatement(EpadDatabaseCommands.UPDATE_EPAD_SERIES_STATUS);
+			insert = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EPAD_SERIES_STATUS);
+			for (Map.Entry<String, SeriesProcessingStatus> entry : seriesProcessingStatuses.entrySet()) {
+				update.setInt(1, entry.getValue().getCode());
+				update.setString(2, entry.getKey());
+				if (update.executeUpdate() == 0) {
+					insert.setString(1, entry.getKey());
+					insert.setInt(2, entry.getValue().getCode());
+					inserted += insert.executeUpdate();
+				}
+			}
+			c.commit();
+			EpadStatisticsCollector.getInstance().rowsInserted(EpadStatisticsCollector.SERIES_STATUS, inserted, 0);
+			return true;
+		} catch (SQLException sqle) {
+			rollback(c);
+			log.warning("Database operation (update " + seriesProcessingStatuses.size() + " series status) failed", sqle);
+			return false;
+		} finally {
+			restoreAutoCommit(c, autoCommit);
+			DatabaseUtils.close(insert);
+			close(c, update);
+		}
+	}
+
 	@Override
 	public void updateSeriesDefaultTags(String seriesUID, String defaultTags) throws Exception {
 		Connection c = null;
@@ -1908,6 +2021,102 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		return retVal;
 	}
 
+	@Override
+	public Set<String> getSeriesUIDsInEPadDatabase(Collection<String> seriesUIDs)
+	{
+		Set<String> retVal = new HashSet<String>();
+		if (seriesUIDs.isEmpty())
+			return retVal;
+
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_EPAD_SERIES_UIDS_IN + DatabaseUtils.parameterList(seriesUIDs.size()));
+			int index = 1;
+			for (String seriesUID : seriesUIDs)
+				ps.setString(index++, seriesUID);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				retVal.add(rs.getString("series_iuid"));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+			return null;
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public List<String> getSeriesUIDsFromEPadDatabase(String afterSeriesUID, int maxSeries)
+	{
+		List<String> retVal = new ArrayList<String>();
+
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_EPAD_SERIES_UIDS_AFTER);
+			ps.setString(1, afterSeriesUID == null ? "" : afterSeriesUID);
+			ps.setInt(2, maxSeries);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				retVal.add(rs.getString("series_iuid"));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return retVal;
+	}
+
+	@Override
+	public String getCheckpoint(String name)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_CHECKPOINT);
+			ps.setString(1, name);
+			rs = ps.executeQuery();
+			if (rs.next())
+				return rs.getString(1);
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return null;
+	}
+
+	@Override
+	public void saveCheckpoint(String name, String value)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.UPDATE_CHECKPOINT);
+			ps.setString(1, name);
+			ps.setString(2, value);
+			ps.execute();
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed; checkpoint=" + name, sqle);
+		} finally {
+			close(c, ps);
+		}
+	}
+
 	@Override
 	public void deleteStudy(String studyUID)
 	{
@@ -1920,6 +2129,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			ps.setString(1, "%" + studyUID.replace('.', '_') + "%");
 			log.info("delete sql:" + ps.toString());
 			ps.executeUpdate();
+			EpadFilesBatchWriter.getInstance().forgetAllSeries();
 		} catch (SQLException sqle) {
 			String debugInfo = DatabaseUtils.getDebugData(rs);
 			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
@@ -1957,6 +2167,16 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			log.info("delete sql:" + ps.toString());
 			rows = ps.executeUpdate();
 			log.info("" + rows + " deleted from ePAD series status table");
+			EpadStatisticsCollector.getInstance().rowsDeleted(EpadStatisticsCollector.SERIES_STATUS, rows);
+			ps.close();
+
+			ps = c.prepareStatement(EpadDatabaseCommands.DELETE_SERIES_FROM_IMAGE_INDEX);
+			ps.setString(1, seriesUID);
+			rows = ps.executeUpdate();
+			log.info("" + rows + " deleted from ePAD image index table");
+			DICOMMetadataCache.getInstance().invalidateSeries(seriesUID);
+			SeriesImageIndex.getInstance().invalidateSeries(seriesUID);
+			EpadFilesBatchWriter.getInstance().seriesDeleted(seriesUID);
 		} catch (SQLException sqle) {
 			String debugInfo = DatabaseUtils.getDebugData(rs);
 			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
@@ -1981,6 +2201,10 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			log.info("delete sql:" + ps.toString());
 			int rows = ps.executeUpdate();
 			log.info("" + rows + " deleted from ePAD series status table");
+			EpadStatisticsCollector.getInstance().rowsDeleted(EpadStatisticsCollector.SERIES_STATUS, rows);
+			DICOMMetadataCache.getInstance().invalidateSeries(seriesUID);
+			SeriesImageIndex.getInstance().invalidateSeries(seriesUID);
+			Dcm4CheeSeriesTracker.rescanSeries(seriesUID);
 		} catch (SQLException sqle) {
 			String debugInfo = DatabaseUtils.getDebugData(rs);
 			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
@@ -2012,7 +2236,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			// logger.info("Inserting into event table: " + sessionID + " EVENT:" + aim_uid);
 
 			c = getConnection();
-			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EVENT);
+			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EVENT, Statement.RETURN_GENERATED_KEYS);
 			ps.setString(1, sessionID);
 			ps.setString(2, event_status);
 			ps.setString(3, aim_uid);
@@ -2028,6 +2252,8 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			ps.setString(13, studyUID);
 			ps.setString(14, String.valueOf(error));
 			ps.execute();
+			publishEvent(ps, sessionID, event_status, aim_uid, aim_name, patient_id, patient_name, template_id,
+					template_name, plugin_name, projectID, projectName, seriesUID, studyUID, String.valueOf(error));
 		} catch (SQLException sqle) {
 			log.warning("Database operation failed.", sqle);
 		} catch (Exception e) {
@@ -2047,7 +2273,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			// logger.info("Inserting into event table: " + sessionID + " EVENT:" + aim_uid);
 
 			c = getConnection();
-			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EVENT);
+			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EVENT, Statement.RETURN_GENERATED_KEYS);
 			ps.setString(1, sessionID);
 			ps.setString(2, message);
 			ps.setString(3, "");
@@ -2058,6 +2284,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			ps.setString(8, "");
 			ps.setString(9, target);
 			ps.execute();
+			publishEvent(ps, sessionID, message, "", "", "", name, "", "", target, null, null, null, null, null);
 		} catch (SQLException sqle) {
 			log.warning("Database operation failed.", sqle);
 		} catch (Exception e) {
@@ -2067,6 +2294,170 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 	}
 
+	/**
+	 * Hands a newly inserted event row to the event bus, so clients get it without querying the table.
+	 */
+	private void publishEvent(PreparedStatement ps, String sessionID, String... values) throws SQLException
+	{
+		ResultSet keys = ps.getGeneratedKeys();
+		try {
+			if (!keys.next())
+				return;
+			long pk = keys.getLong(1);
+			Map<String, String> row = new HashMap<String, String>();
+			row.put("pk", String.valueOf(pk));
+			row.put("username", sessionID);
+			for (int i = 0; i < EVENT_COLUMNS.length && i < values.length; i++)
+				row.put(EVENT_COLUMNS[i], values[i]);
+			row.put("created_time", new Timestamp(System.currentTimeMillis()).toString());
+			EventBus.getInstance().publish(sessionID, pk, row);
+		} finally {
+			keys.close();
+		}
+	}
+
+	@Override
+	public void deleteEpadEvents(String sessionID, long lastPk)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.DELETE_EVENTS_FOR_SESSIONID);
+			ps.setString(1, sessionID);
+			ps.setLong(2, lastPk);
+			int rowsAffected = ps.executeUpdate();
+			if (log.isDebugEnabled())
+				log.debug("" + rowsAffected + " delivered event(s) deleted for session ID " + sessionID);
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed.", sqle);
+		} finally {
+			close(c, ps);
+		}
+	}
+
+	@Override
+	public void insertEpadSession(EPADSession session)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_EPAD_SESSION);
+			ps.setString(1, session.getSessionId());
+			ps.setString(2, session.getUsername());
+			ps.setTimestamp(3, new Timestamp(session.getCreatedTime().getTime()));
+			ps.setTimestamp(4, new Timestamp(session.getLastActivity().getTime()));
+			ps.setString(5, session.getRemoteHost());
+			ps.setString(6, session.getRemoteAddr());
+			ps.executeUpdate();
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed.", sqle);
+		} finally {
+			close(c, ps);
+		}
+	}
+
+	@Override
+	public EPADSession getEpadSession(String sessionID)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_EPAD_SESSION);
+			ps.setString(1, sessionID);
+			rs = ps.executeQuery();
+			if (rs.next()) {
+				Timestamp createdTime = rs.getTimestamp("createdtime");
+				Timestamp lastActivity = rs.getTimestamp("lastactivity");
+				EPADSession session = new EPADSession(rs.getString("sessionid"), rs.getString("username"), 0,
+						createdTime == null ? null : new Date(createdTime.getTime()),
+						new Date(lastActivity == null ? 0 : lastActivity.getTime()));
+				session.setRemoteHost(rs.getString("remotehost"));
+				session.setRemoteAddr(rs.getString("remoteaddr"));
+				session.setLastRequest(rs.getString("lastrequest"));
+				return session;
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return null;
+	}
+
+	@Override
+	public Set<String> updateEpadSessions(Collection<EPADSession> sessions)
+	{
+		Set<String> missing = new HashSet<String>();
+		List<String> sessionIDs = new ArrayList<String>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.UPDATE_EPAD_SESSION);
+			for (EPADSession session: sessions)
+			{
+				ps.setTimestamp(1, new Timestamp(session.getLastActivity().getTime()));
+				ps.setString(2, session.getLastRequest());
+				ps.setString(3, session.getRemoteHost());
+				ps.setString(4, session.getRemoteAddr());
+				ps.setString(5, session.getSessionId());
+				ps.addBatch();
+				sessionIDs.add(session.getSessionId());
+			}
+			int[] counts = ps.executeBatch();
+			for (int i = 0; i < counts.length && i < sessionIDs.size(); i++)
+			{
+				if (counts[i] == 0)
+					missing.add(sessionIDs.get(i));
+			}
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed.", sqle);
+		} finally {
+			close(c, ps);
+		}
+		return missing;
+	}
+
+	@Override
+	public void deleteEpadSession(String sessionID)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.DELETE_EPAD_SESSION);
+			ps.setString(1, sessionID);
+			ps.executeUpdate();
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed.", sqle);
+		} finally {
+			close(c, ps);
+		}
+	}
+
+	@Override
+	public int deleteExpiredEpadSessions(Date cutoff)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.DELETE_EXPIRED_EPAD_SESSIONS);
+			ps.setTimestamp(1, new Timestamp(cutoff.getTime()));
+			return ps.executeUpdate();
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed.", sqle);
+		} finally {
+			close(c, ps);
+		}
+		return 0;
+	}
+
 	/**
 	 * Cross database query that gets all image UIDs for a series if the corresponding image is recorded in the epad_files
 	 * table.
@@ -2186,45 +2577,20 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 	@Override
 	public Object insertDBObject(Object dbObject, String tableName, String[][] columns) throws Exception
 	{
+		DBObjectMapper mapper = DBObjectMapper.getInstance(dbObject.getClass(), tableName, columns);
 		Connection dbCon = getConnection();
 		PreparedStatement ps = null;
 		ResultSet rs = null;
-		String insertSQL = getInsertSQL(tableName, columns);
 		try
 		{
-			ps = dbCon.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS);
-			setSQLValues(columns, ps, dbObject);
+			ps = dbCon.prepareStatement(mapper.getInsertSQL(), Statement.RETURN_GENERATED_KEYS);
+			mapper.setValues(ps, dbObject);
 			if (log.isDebugEnabled())
 				log.debug("insert sql:" + ps.toString());
 			ps.executeUpdate();
 			rs = ps.getGeneratedKeys();
 			if (rs.next())
-			{
-				String methodName = "set" + columns[0][0].substring(0,1).toUpperCase() + columns[0][0].substring(1);
-				Integer value = rs.getInt(1);
-				try
-				{
-					Method method = dbObject.getClass().getMethod(methodName, new Class[] {int.class});
-					method.invoke(dbObject, new Object[] {value});
-				}
-				catch(NoSuchMethodException ne)
-				{
-					try
-					{
-						Method method = dbObject.getClass().getMethod(methodName, new Class[] {long.class});
-						method.invoke(dbObject, new Object[] {value});
-					}catch(Exception e)
-					{
-						e.printStackTrace();
-						throw new IllegalArgumentException(e.getMessage());
-					}
-				}
-				catch (Exception e)
-				{
-					e.printStackTrace();
-					throw new IllegalArgumentException(e.getMessage());
-				}
-			}
+				mapper.setGeneratedId(dbObject, rs.getInt(1));
 		}
 		catch (SQLException x)
 		{
@@ -2238,58 +2604,104 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		return dbObject;
 	}
 
+	@Override
+	public void insertDBObjects(List<?> dbObjects, String tableName, String[][] columns) throws Exception
+	{
+		if (dbObjects.isEmpty())
+			return;
+		DBObjectMapper mapper = DBObjectMapper.getInstance(dbObjects.get(0).getClass(), tableName, columns);
+		Connection dbCon = getConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		boolean autoCommit = dbCon.getAutoCommit();
+		try
+		{
+			dbCon.setAutoCommit(false);
+			ps = dbCon.prepareStatement(mapper.getInsertSQL(), Statement.RETURN_GENERATED_KEYS);
+			for (Object dbObject: dbObjects)
+			{
+				mapper.setValues(ps, dbObject);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			dbCon.commit();
+			rs = ps.getGeneratedKeys();
+			for (int i = 0; i < dbObjects.size() && rs.next(); i++)
+				mapper.setGeneratedId(dbObjects.get(i), rs.getInt(1));
+			if (log.isDebugEnabled())
+				log.debug("Inserted " + dbObjects.size() + " rows into " + tableName);
+		}
+		catch (SQLException x)
+		{
+			rollback(dbCon);
+			throw x;
+		}
+		finally
+		{
+			restoreAutoCommit(dbCon, autoCommit);
+			close(dbCon, ps, rs);
+		}
+	}
 
 	@Override
 	public Object updateDBObject(Object dbObject, String dbTable, String[][] dbColumns) throws Exception
 	{	   
+		DBObjectMapper mapper = DBObjectMapper.getInstance(dbObject.getClass(), dbTable, dbColumns);
 		PreparedStatement ps = null;
-		ResultSet rs = null;
-
-		String updateSQL = getUpdateSQL(dbTable, dbColumns);
 		Connection dbCon = null;
 		try
 		{
 			dbCon = getConnection();
-			//log.debug("Update:" + updateSQL);
-			ps = dbCon.prepareStatement(updateSQL);
-			setSQLValues(dbColumns, ps, dbObject);
-			String methodName = "get" + dbColumns[0][0].substring(0,1).toUpperCase() + dbColumns[0][0].substring(1);
-			try
-			{
-				Method method = dbObject.getClass().getMethod(methodName, (Class[])null);
-				if (dbColumns[0][3].equalsIgnoreCase("Id") && dbColumns[0][1].equalsIgnoreCase("long"))
-				{
-					Long value = (Long) method.invoke(dbObject, (Object[])null);
-					ps.setLong(dbColumns.length, value);					
-				}
-				else if (dbColumns[0][3].equalsIgnoreCase("Id"))
-				{
-					Integer value = (Integer) method.invoke(dbObject, (Object[])null);
-					ps.setInt(dbColumns.length, value);					
-				}
-				else if (dbColumns[0][2].equalsIgnoreCase("String"))
-				{
-					String value = (String) method.invoke(dbObject, (Object[])null);
-					ps.setString(dbColumns.length, value);					
-				}
-			}
-			catch (Exception e)
-			{
-				log.warning("Error setting DB values", e);
-				throw new IllegalArgumentException(e.getMessage());
-			}
+			ps = dbCon.prepareStatement(mapper.getUpdateSQL());
+			mapper.setValues(ps, dbObject);
+			mapper.setIdValue(ps, dbObject);
 			if (log.isDebugEnabled())
 				log.debug("update sql:" + ps.toString());
 			ps.executeUpdate();
-			ps.close();
 		}
 		finally
 		{
-			close(dbCon, ps, rs);
+			close(dbCon, ps);
 		}
 		return dbObject;
 	}
 
+	@Override
+	public void updateDBObjects(List<?> dbObjects, String dbTable, String[][] dbColumns) throws Exception
+	{
+		if (dbObjects.isEmpty())
+			return;
+		DBObjectMapper mapper = DBObjectMapper.getInstance(dbObjects.get(0).getClass(), dbTable, dbColumns);
+		Connection dbCon = getConnection();
+		PreparedStatement ps = null;
+		boolean autoCommit = dbCon.getAutoCommit();
+		try
+		{
+			dbCon.setAutoCommit(false);
+			ps = dbCon.prepareStatement(mapper.getUpdateSQL());
+			for (Object dbObject: dbObjects)
+			{
+				mapper.setValues(ps, dbObject);
+				mapper.setIdValue(ps, dbObject);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			dbCon.commit();
+			if (log.isDebugEnabled())
+				log.debug("Updated " + dbObjects.size() + " rows in " + dbTable);
+		}
+		catch (SQLException x)
+		{
+			rollback(dbCon);
+			throw x;
+		}
+		finally
+		{
+			restoreAutoCommit(dbCon, autoCommit);
+			close(dbCon, ps);
+		}
+	}
+
 	@Override
 	public int deleteDBObject(String dbTable, long id) throws Exception {
 		return deleteDBObjects(dbTable, "id =" + id);
@@ -2336,9 +2748,8 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 				stmt = dbCon.createStatement();
 			else
 				stmt = dbCon.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			String sql = "SELECT * FROM "  + dbTable + " a " + criteria;
-			if (distinct)
-				sql = "SELECT DISTINCT * FROM "  + dbTable + " a " + criteria;
+			DBObjectMapper mapper = DBObjectMapper.getInstance(dbClass, dbTable, dbColumns);
+			String sql = mapper.getSelectSQL(distinct) + criteria;
 			if (maxRecords <= 0)
 				maxRecords = 5000;
 			if (startRecord > 0)
@@ -2350,12 +2761,12 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			if (log.isDebugEnabled())
 				log.debug("Query:" + sql);
 			rs = stmt.executeQuery(sql);
-			Object data = null;
+			int[] columnIndexes = null;
 			while (rs.next()) 
 			{
-				data = dbClass.newInstance();
-				getSQLValues(dbColumns, rs, data);
-				datas.add(data);
+				if (columnIndexes == null)
+					columnIndexes = mapper.getColumnIndexes(rs);
+				datas.add(mapper.newInstance(rs, columnIndexes));
 			}
 			if (log.isDebugEnabled())
 				log.debug("Returned:" + datas.size() + " rows");
@@ -2370,28 +2781,28 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 	@Override
 	public Object retrieveObjectById(Object dbObject, long id, String dbTable,
 			String[][] dbColumns) throws Exception {
-		Statement stmt = null;
+		DBObjectMapper mapper = DBObjectMapper.getInstance(dbObject.getClass(), dbTable, dbColumns);
+		PreparedStatement ps = null;
 		ResultSet rs = null;
 		Connection dbCon = null;
 		try
 		{
 			dbCon = getConnection();
-			stmt = dbCon.createStatement();
-			String sql = "SELECT * FROM "  + dbTable + " where id = " + id;
+			ps = dbCon.prepareStatement(mapper.getSelectByIdSQL());
+			ps.setLong(1, id);
 			if (log.isDebugEnabled())
-				log.debug("Query:" + sql);
-			rs = stmt.executeQuery(sql);
-			Object data = null;
+				log.debug("Query:" + mapper.getSelectByIdSQL() + " id:" + id);
+			rs = ps.executeQuery();
 			if (rs.next()) 
 			{
-				getSQLValues(dbColumns, rs, dbObject);
+				mapper.getValues(rs, mapper.getColumnIndexes(rs), dbObject);
 				return dbObject;
 			}
 			return null;
 		}
 		finally
 		{
-			close(dbCon, stmt, rs);
+			close(dbCon, ps, rs);
 		}
 	}
 
@@ -2470,238 +2881,56 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 	}
 
-	private String getInsertSQL(String tableName, String[][]columns)
-	{
-		String insertSQL = "INSERT INTO " + tableName + " (";
-		String values = ") VALUES (";
-		String delim = "";
-		for (int i = 0; i < columns.length; i++)
-		{
-			if (columns[i][3].equalsIgnoreCase("Id")) continue;
-			insertSQL = insertSQL + delim + columns[i][2];
-			values = values + delim + "?";
-			delim = ",";
-		}
-		insertSQL = insertSQL + values +")";
-		return insertSQL;
-	}
-
-	protected String getUpdateSQL(String tableName, String[][]columns)
-	{
-		String updateSQL = "UPDATE " + tableName + " set ";
-		String idcol = "id";
-		String comma = "";
-		String whereClause = null;
-		for (int i = 0; i < columns.length; i++)
-		{
-			if (columns[i][3].equalsIgnoreCase("Id") || columns[i][3].equalsIgnoreCase("RID") || columns[i][3].equalsIgnoreCase("CID"))
-			{
-				idcol = columns[i][2];				
-				if (whereClause == null)
-					whereClause = idcol + " = ?";
-				else
-					whereClause = " and " + idcol + " = ?";
-				continue;
-			}
-			updateSQL = updateSQL + comma + columns[i][2] + " = ?";
-			comma = ",";
-		}
-		updateSQL = updateSQL + " where " + whereClause;
-		return updateSQL;		
-	}
-
-	/**
-	 * Sets data values in insert/update preparedStatement using the object's column structure.
-	 * @param columns - see above
-	 * @param ps
-	 * @param data
-	 * @throws SQLException
-	 */
-	protected void setSQLValues(String[][]columns, PreparedStatement ps, Object data)
-			throws SQLException
-	{
-		int i = 1;
-		int j = 0;
+	@Override
+	public long[] getDBCountAfterId(String dbTable, long id) throws Exception {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		Connection dbCon = null;
 		try
 		{
-			for (j = 0; j < columns.length; j++)	
-			{
-				if (columns[j][3].equalsIgnoreCase("Id"))
-				{
-					continue;				
-				}
-				String methodName = "get" + columns[j][0].substring(0,1).toUpperCase() + columns[j][0].substring(1);
-				if (columns[j][1].equalsIgnoreCase("Boolean"))
-					methodName = "is" + columns[j][0].substring(0,1).toUpperCase() + columns[j][0].substring(1);
-				Method method = null;
-				try {
-					method = data.getClass().getMethod(methodName, (Class[])null);
-				} catch (Exception x) {
-					if (methodName.startsWith("is"))
-						method = data.getClass().getMethod("get" + methodName.substring(2), (Class[])null);
-				}
-				if (columns[j][1].equalsIgnoreCase("String"))
-				{
-					String value = (String) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setString(i, value);
-					else
-						ps.setNull(i, java.sql.Types.VARCHAR);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Integer") || columns[j][1].equalsIgnoreCase("int"))
-				{
-					Integer value = (Integer) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setInt(i, value);
-					else
-						ps.setNull(i, java.sql.Types.INTEGER);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Long") || columns[j][1].equalsIgnoreCase("long"))
-				{
-					Long value = (Long) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setLong(i, value);
-					else
-						ps.setNull(i, java.sql.Types.INTEGER);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Double"))
-				{
-					Double value = (Double) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setDouble(i, value);
-					else
-						ps.setNull(i, java.sql.Types.DOUBLE);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Boolean"))
-				{
-					Boolean value = (Boolean) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setBoolean(i, value);
-					else
-						ps.setInt(i, 0);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Timestamp"))
-				{
-					Timestamp value = (Timestamp) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
-					else
-						ps.setNull(i, java.sql.Types.TIMESTAMP);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Date"))
-				{
-					Date value = (Date) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
-					else
-						ps.setNull(i, java.sql.Types.DATE);		
-				}
-				i++;
-			}
+			dbCon = getConnection();
+			ps = dbCon.prepareStatement("SELECT count(*), max(id) FROM " + dbTable + " WHERE id > ?");
+			ps.setLong(1, id);
+			rs = ps.executeQuery();
+			if (rs.next() && rs.getLong(1) > 0)
+				return new long[] { rs.getLong(1), rs.getLong(2) };
+			return new long[] { 0, id };
 		}
-		catch (Exception x)
+		finally
 		{
-			x.printStackTrace();
-			throw new SQLException("Error setting values for " + columns[j][0] + " : " + x.getMessage());
+			close(dbCon, ps, rs);
 		}
 	}
 
-	/**
-	 * Gets data values from result set and populates object using the object's column structure.
-	 * @param columns - see above
-	 * @param rs
-	 * @param data
-	 * @throws SQLException
-	 */
-	protected void getSQLValues(String[][]columns, ResultSet rs, Object data)
-			throws SQLException
+	@Override
+	public List<Map<String, String>> getEpadFilesAfterPrimaryKey(long pk, PNGFileProcessingStatus status, int maxRows)
 	{
-		int i = 0;
-		try
-		{
-			for (i = 0; i < columns.length; i++)	
-			{
-				String methodName = "set" + columns[i][0].substring(0,1).toUpperCase() + columns[i][0].substring(1);
-				if (columns[i][1].equals("String"))
-				{
-					String value = rs.getString(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {String.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Integer"))
-				{
-					Integer value = rs.getInt(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Integer.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("int"))
-				{
-					Integer value = rs.getInt(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {int.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Long"))
-				{
-					Long value = rs.getLong(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Long.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("long"))
-				{
-					Long value = rs.getLong(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {long.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Boolean"))
-				{
-					Boolean value = rs.getBoolean(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Boolean.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("boolean"))
-				{
-					Boolean value = rs.getBoolean(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {boolean.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Timestamp"))
-				{
-					Timestamp value = rs.getTimestamp(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {Timestamp.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Date"))
-				{
-					Timestamp stamp = rs.getTimestamp((columns[i][2]));
-					Date value = null;
-					if (stamp != null)
-						value = new Date(stamp.getTime());
-					Method method = data.getClass().getMethod(methodName, new Class[] {Date.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Double"))
-				{
-					Double value = rs.getDouble(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Double.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("double"))
-				{
-					Double value = rs.getDouble(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {double.class});
-					method.invoke(data, new Object[] {value});
-				}
+		List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_EPAD_FILES_WITH_STATUS_AFTER_PK);
+			ps.setLong(1, pk);
+			ps.setInt(2, status.getCode());
+			ps.setInt(3, maxRows);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				Map<String, String> row = new HashMap<String, String>();
+				row.put("pk", rs.getString(1));
+				row.put("instance_fk", rs.getString(2));
+				row.put("file_path", rs.getString(3));
+				rows.add(row);
 			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
 		}
-		catch (Exception x)
-		{
-			x.printStackTrace();
-			throw new SQLException("Error setting values for " + columns[i][0] + ":" + x.getMessage());
-		}
+		return rows;
 	}
 
 	private List<String> getAllEPadFilePathsWithStatus(PNGFileProcessingStatus pngFileProcessingStatus)
@@ -2944,6 +3173,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			ps.setString(1, seriesUID);
 			ps.setInt(2, seriesProcessingStatus.getCode());
 			ps.execute();
+			EpadStatisticsCollector.getInstance().rowsInserted(EpadStatisticsCollector.SERIES_STATUS, 1, 0);
 		} catch (SQLException sqle) {
 			log.warning("Database operation failed", sqle);
 		} catch (Exception e) {
@@ -2977,6 +3207,28 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		return connectionPool.getConnection();
 	}
 
+	private void rollback(Connection c)
+	{
+		if (c != null) {
+			try {
+				c.rollback();
+			} catch (SQLException e) {
+				log.warning("Rollback failed", e);
+			}
+		}
+	}
+
+	private void restoreAutoCommit(Connection c, boolean autoCommit)
+	{
+		if (c != null) {
+			try {
+				c.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				log.warning("Failed to restore auto-commit", e);
+			}
+		}
+	}
+
 	private void close(Connection c)
 	{
 		connectionPool.freeConnection(c);
@@ -3021,4 +3273,94 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 		return 0;
 	}
+
+	@Override
+	public Map<String, Integer> getProjectStudyCountsForSubjects(String projectID, Collection<String> subjectUIDs)
+	{
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		if (subjectUIDs.isEmpty())
+			return counts;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_PROJECT_STUDY_COUNTS_FOR_SUBJECTS
+					+ DatabaseUtils.parameterList(subjectUIDs.size()) + " group by s.subjectuid");
+			setSubjectParameters(ps, projectID, subjectUIDs);
+			rs = ps.executeQuery();
+			while (rs.next())
+				counts.put(rs.getString(1), rs.getInt(2));
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed; debugInfo=" + DatabaseUtils.getDebugData(rs), sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Map<String, Integer>> getAIMCountsForSubjects(String projectID, Collection<String> subjectUIDs)
+	{
+		Map<String, Map<String, Integer>> counts = new HashMap<String, Map<String, Integer>>();
+		if (subjectUIDs.isEmpty())
+			return counts;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_AIM_COUNTS_FOR_SUBJECTS
+					+ DatabaseUtils.parameterList(subjectUIDs.size()) + " group by s.subjectuid, a.UserLoginName");
+			setSubjectParameters(ps, projectID, subjectUIDs);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				String subjectUID = rs.getString(1);
+				Map<String, Integer> userCounts = counts.get(subjectUID);
+				if (userCounts == null) {
+					userCounts = new HashMap<String, Integer>();
+					counts.put(subjectUID, userCounts);
+				}
+				userCounts.put(rs.getString(2), rs.getInt(3));
+			}
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed; debugInfo=" + DatabaseUtils.getDebugData(rs), sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Integer> getSharedAIMCountsForSubjects(String projectID, Collection<String> subjectUIDs)
+	{
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		if (subjectUIDs.isEmpty())
+			return counts;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(EpadDatabaseCommands.SELECT_SHARED_AIM_COUNTS_FOR_SUBJECTS
+					+ DatabaseUtils.parameterList(subjectUIDs.size()) + " group by PatientID");
+			setSubjectParameters(ps, "%," + projectID + ",%", subjectUIDs);
+			rs = ps.executeQuery();
+			while (rs.next())
+				counts.put(rs.getString(1), rs.getInt(2));
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed; debugInfo=" + DatabaseUtils.getDebugData(rs), sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return counts;
+	}
+
+	private void setSubjectParameters(PreparedStatement ps, String first, Collection<String> subjectUIDs) throws SQLException
+	{
+		int index = 1;
+		ps.setString(index++, first);
+		for (String subjectUID : subjectUIDs)
+			ps.setString(index++, subjectUID);
+	}
 }
@@ -171,6 +171,7 @@ public class EpadDatabase
 		long time = System.currentTimeMillis();
 		log.info("Shutting down database.");
 
+		EpadFilesBatchWriter.getInstance().shutdown();
 		closeConnectionPool();
 		log.info("The database took " + (System.currentTimeMillis() - time) + " ms, to shutdown.");
 	}
@@ -190,6 +191,11 @@ public class EpadDatabase
 		return connectionPool.usedConnectionCount();
 	}
 
+	public String getConnectionPoolStatistics()
+	{
+		return connectionPool.getStatistics();
+	}
+
 	private void initConnectionPool()
 	{
 		try {
@@ -250,7 +256,7 @@ public class EpadDatabase
 			log.info(sb.toString());
 			DatabaseUtils.close(rs);
 			DatabaseUtils.close(s);
-			DatabaseUtils.close(conn);
+			connectionPool.freeConnection(conn);
 		}
 		if (getDouble(version) == getDouble(requiredVersion))
 		{
@@ -115,6 +115,7 @@ public interface EpadDatabaseCommands
 	public static final String DELETE_ALL_FROM_SERIES_STATUS = "delete from epaddb.series_status";
 
 	public static final String DELETE_SERIES_FROM_SERIES_STATUS = "delete from epaddb.series_status where series_iuid=?";
+	public static final String DELETE_SERIES_FROM_IMAGE_INDEX = "delete from epaddb.image_index where series_uid=?";
 
 	public static final String SELECT_EPAD_IMAGE_UIDS_FOR_SERIES = "select i.sop_iuid from epaddb.epad_files as f, pacsdb.instance as i, pacsdb.series as s where series_iuid=? and i.series_fk=s.pk and f.instance_fk=i.pk";
 	public static final String INSERT_INTO_EVENT = "INSERT INTO epaddb.events"
@@ -124,12 +125,21 @@ public interface EpadDatabaseCommands
 	public static final String DELETE_EVENTS_FOR_SESSIONID = "DELETE from epaddb.events where username=? and pk <= ?";
 	public static final String SELECT_EVENTS_FOR_AIMID = "SELECT * from epaddb.events where aim_uid=? ORDER BY pk desc";
 	public static final String DELETE_OLD_EVENTS = "DELETE from epaddb.events where created_time < ?";
+	public static final String INSERT_EPAD_SESSION = "INSERT INTO epaddb.epad_session (sessionid, username, createdtime, lastactivity, remotehost, remoteaddr) VALUES (?,?,?,?,?,?)";
+	public static final String SELECT_EPAD_SESSION = "SELECT sessionid, username, createdtime, lastactivity, remotehost, remoteaddr, lastrequest FROM epaddb.epad_session WHERE sessionid = ?";
+	public static final String UPDATE_EPAD_SESSION = "UPDATE epaddb.epad_session SET lastactivity = ?, lastrequest = ?, remotehost = ?, remoteaddr = ? WHERE sessionid = ?";
+	public static final String DELETE_EPAD_SESSION = "DELETE FROM epaddb.epad_session WHERE sessionid = ?";
+	public static final String DELETE_EXPIRED_EPAD_SESSIONS = "DELETE FROM epaddb.epad_session WHERE lastactivity < ?";
 	
 	public static final String INSERT_INTO_EPAD_SERIES_STATUS = "INSERT INTO epaddb.series_status(series_iuid,status) VALUES (?,?)";
 	public static final String UPDATE_EPAD_SERIES_STATUS = "UPDATE epaddb.series_status SET status=? where series_iuid=?";
 	public static final String UPDATE_EPAD_SERIES_TAGS = "UPDATE epaddb.series_status SET default_tags=? where series_iuid=?";
 	public static final String GET_EPAD_SERIES_TAGS = "SELECT default_tags from epaddb.series_status where series_iuid=?";
 	public static final String SELECT_EPAD_SERIES_BY_ID = "SELECT * from epaddb.series_status where series_iuid=?";
+	public static final String SELECT_EPAD_SERIES_UIDS_AFTER = "SELECT series_iuid from epaddb.series_status where series_iuid>? order by series_iuid limit ?";
+	public static final String SELECT_EPAD_SERIES_UIDS_IN = "SELECT series_iuid from epaddb.series_status where series_iuid in ";
+	public static final String SELECT_CHECKPOINT = "SELECT value from epaddb.epad_checkpoint where name=?";
+	public static final String UPDATE_CHECKPOINT = "INSERT INTO epaddb.epad_checkpoint(name,value,updatetime) VALUES (?,?,now()) ON DUPLICATE KEY UPDATE value=VALUES(value), updatetime=now()";
 	public static final String SELECT_DCM4CHE_STUDY_BY_ID = "SELECT study_iuid,study_desc,study_datetime,accession_no from pacsdb.study where study_iuid=?";
 	public static final String SELECT_ANNOTATION_STATUS_FOR_SERIES_BY_IDs = "SELECT annotationstatus from epaddb.project_subject_study_series_user_status s, epaddb.project p, epaddb.subject su, epaddb.study st, epaddb.user u  where s.project_id=p.id and s.subject_id=su.id and s.study_id=st.id and s.user_id=u.id and p.projectid=? and su.subjectuid=? and st.studyuid=? and series_uid=? and u.username=?";
 	public static final String SELECT_ANNOTATION_DONE_COUNT_FOR_SERIES_BY_IDs = "SELECT count(*) from epaddb.project_subject_study_series_user_status s, epaddb.project p, epaddb.subject su, epaddb.study st  where s.project_id=p.id and s.subject_id=su.id and s.study_id=st.id and p.projectid=? and su.subjectuid=? and st.studyuid=? and series_uid=? and s.annotationstatus=3";
@@ -137,12 +147,16 @@ public interface EpadDatabaseCommands
 	public static final String SELECT_STATUS_AND_CREATED_TIME_FOR_SERIES_BY_ID = "SELECT status,created_time from epaddb.series_status where series_iuid=?";
 
 	public static final String SELECT_ALL_EPAD_FILE_PATHS_WITH_STATUS = "select file_path from epaddb.epad_files where file_status = ?";
+	public static final String SELECT_EPAD_FILES_WITH_STATUS_AFTER_PK = "select pk, instance_fk, file_path from epaddb.epad_files where pk>? and file_status=? order by pk limit ?";
 	public static final String SELECT_EPAD_FILES_FOR_EXACT_PATH = "SELECT * from epaddb.epad_files where file_path=?";
 	public static final String UPDATE_EPAD_FILES_FOR_EXACT_PATH = "UPDATE epaddb.epad_files SET file_status=?, file_size=?, err_msg=? where file_path=?";
 	public static final String DELETE_ALL_FROM_EPAD_FILES = "delete from epaddb.epad_files";
 	public static final String DELETE_FROM_EPAD_FILES = "delete from epaddb.epad_files where file_path like ?";
 	public static final String INSERT_INTO_EPAD_FILES = "INSERT INTO epaddb.epad_files"
 			+ "(instance_fk,file_type,file_path,file_size,file_status,err_msg,file_md5)" + "VALUES (?,?,?,?,?,?,?)";
+	public static final String INSERT_INTO_EPAD_FILES_FOR_IMAGE = "INSERT INTO epaddb.epad_files"
+			+ "(instance_fk,file_type,file_path,file_size,file_status,err_msg,file_md5) "
+			+ "SELECT pk,?,?,?,?,?,? FROM pacsdb.instance WHERE sop_iuid=?";
 	//pk added for removing broken links
 	public static final String SELECT_EPAD_FILE_PATH_FOR_IMAGE = "SELECT file_path, f.pk from epaddb.epad_files as f, pacsdb.instance as i where i.sop_iuid=? and i.pk = f.instance_fk";
 	public static final String SELECT_EPAD_FILE_PATH_BY_IMAGE_UID = "SELECT file_path from epaddb.epad_files as f where file_path like ?";
@@ -169,4 +183,11 @@ public interface EpadDatabaseCommands
 	public static final String CLEANUP_OBSOLETE_EPAD_FILES = "delete from epad_files where instance_fk not in (select pk from pacsdb.instance)";
 
 	public static final String SELECT_DISTINCT_EPADS = "select distinct host from epaddb.epadstatistics";
+
+	// Per-subject aggregates of a project; the subject UIDs are appended as an IN list followed by the group by
+	public static final String SELECT_PROJECT_STUDY_COUNTS_FOR_SUBJECTS = "select s.subjectuid, count(*) from project p, project_subject ps, subject s, project_subject_study pss "
+			+ "where p.projectid=? and ps.project_id=p.id and s.id=ps.subject_id and pss.proj_subj_id=ps.id and s.subjectuid in ";
+	public static final String SELECT_AIM_COUNTS_FOR_SUBJECTS = "select s.subjectuid, a.UserLoginName, count(*) from annotations a, project p, project_subject ps, subject s, project_subject_study pss, study st "
+			+ "where p.projectid=? and a.ProjectUID=p.projectid and ps.project_id=p.id and s.id=ps.subject_id and pss.proj_subj_id=ps.id and st.id=pss.study_id and a.StudyUID=st.studyuid and s.subjectuid in ";
+	public static final String SELECT_SHARED_AIM_COUNTS_FOR_SUBJECTS = "select PatientID, count(*) from annotations where SHAREDPROJECTS like ? and PatientID in ";
 }
@@ -106,6 +106,8 @@ package edu.stanford.epad.epadws.epaddb;
 
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -124,6 +126,7 @@ import edu.stanford.epad.epadws.handlers.core.ProjectReference;
 import edu.stanford.epad.epadws.handlers.core.SeriesReference;
 import edu.stanford.epad.epadws.handlers.core.StudyReference;
 import edu.stanford.epad.epadws.handlers.core.SubjectReference;
+import edu.stanford.epad.epadws.security.EPADSession;
 
 /**
  * Defines all operations on ePAD's database
@@ -152,6 +155,24 @@ public interface EpadDatabaseOperations
 
 	Set<String> getImageUIDsInSeries(String seriesUID);
 
+	/**
+	 * Of the specified series, return the ones that ePAD already knows about, or null if the database could not be
+	 * queried.
+	 */
+	Set<String> getSeriesUIDsInEPadDatabase(Collection<String> seriesUIDs);
+
+	/**
+	 * Page through ePAD's series in UID order, returning up to maxSeries UIDs greater than afterSeriesUID.
+	 */
+	List<String> getSeriesUIDsFromEPadDatabase(String afterSeriesUID, int maxSeries);
+
+	/**
+	 * Get a value saved by a background task so it can resume where it left off after a restart.
+	 */
+	String getCheckpoint(String name);
+
+	void saveCheckpoint(String name, String value);
+
 	void deleteStudy(String studyUID);
 
 	void deleteSeries(String seriesUID);
@@ -174,6 +195,13 @@ public interface EpadDatabaseOperations
 
 	void updateOrInsertSeries(String seriesUID, SeriesProcessingStatus seriesProcessingStatus);
 
+	/**
+	 * Batch version of {@link #updateOrInsertSeries(String, SeriesProcessingStatus)}.
+	 * 
+	 * @return false if the statuses could not be written
+	 */
+	boolean updateOrInsertSeries(Map<String, SeriesProcessingStatus> seriesProcessingStatuses);
+
 	void updateSeriesDefaultTags(String seriesUID, String defaultTags) throws Exception;
 
 	String getSeriesDefaultTags(String seriesUID);
@@ -184,6 +212,26 @@ public interface EpadDatabaseOperations
 
 	List<Map<String, String>> getEpadEventsForSessionID(String sessionID, boolean delete);
 
+	/**
+	 * Deletes the events of a session/user up to and including the given pk, once they have been delivered.
+	 */
+	void deleteEpadEvents(String sessionID, long lastPk);
+
+	void insertEpadSession(EPADSession session);
+
+	EPADSession getEpadSession(String sessionID);
+
+	/**
+	 * Updates the activity of the sessions in one batch.
+	 * 
+	 * @return IDs of the sessions not found
+	 */
+	Set<String> updateEpadSessions(Collection<EPADSession> sessions);
+
+	void deleteEpadSession(String sessionID);
+
+	int deleteExpiredEpadSessions(Date cutoff);
+
 	List<Map<String, String>> getEpadEventsForAimID(String sessionID);
 
 	void forceDICOMReprocessing();
@@ -194,11 +242,31 @@ public interface EpadDatabaseOperations
 
 	void updateEpadFileRow(String filePath, PNGFileProcessingStatus newStatus, long fileSize, String errorMsg);
 
+	/**
+	 * Batch version of {@link #insertEpadFileRow}; each row has the image's sop_iuid instead of instance_fk.
+	 * 
+	 * @return false if the rows could not be written
+	 */
+	boolean insertEpadFileRows(List<Map<String, String>> fileRecords);
+
+	/**
+	 * Batch version of {@link #updateEpadFileRow}; each row has file_path, file_status, file_size and err_msg.
+	 * 
+	 * @return false if the rows could not be written
+	 */
+	boolean updateEpadFileRows(List<Map<String, String>> fileRecords);
+
 	boolean hasEpadFileRow(String filePath);
 
 	List<String> getAllEPadFilePathsWithErrors();
 
 	List<String> getAllEPadInPipelineFilePaths();
+
+	/**
+	 * Get up to maxRows epad_files rows (pk, instance_fk and file_path) with the given status and a primary key greater
+	 * than pk, ordered by primary key.
+	 */
+	List<Map<String, String>> getEpadFilesAfterPrimaryKey(long pk, PNGFileProcessingStatus status, int maxRows);
 	
 	void deleteObsoleteEpadFileEntries();
 	
@@ -379,11 +447,21 @@ public interface EpadDatabaseOperations
 	 */
 	Object insertDBObject(Object dbObject, String dbTable, String[][] dbColumns) throws Exception;
 	Object updateDBObject(Object dbObject, String dbTable, String[][] dbColumns) throws Exception;
+	/**
+	 * Inserts/updates all objects with a single JDBC batch in one transaction. The objects must be of the same class.
+	 */
+	void insertDBObjects(List<?> dbObjects, String dbTable, String[][] dbColumns) throws Exception;
+	void updateDBObjects(List<?> dbObjects, String dbTable, String[][] dbColumns) throws Exception;
 	int deleteDBObject(String dbTable, long id) throws Exception;
 	int deleteDBObjects(String dbTable, String criteria) throws Exception;
 	List getDBObjects(Class dbClass, String dbTable, String[][] dbColumns, String criteria, int startRecords, int maxRecords, boolean distinct) throws Exception;
 	List<Long> getDBIds(String dbTable, String criteria, int startRecords, int maxRecords) throws Exception;
 	int getDBCount(String dbTable, String criteria) throws Exception;	
+	/**
+	 * Counts rows with an id above the given one using the primary key index.
+	 * @return {row count, highest id} (the highest id is the given id when there are no such rows)
+	 */
+	long[] getDBCountAfterId(String dbTable, long id) throws Exception;
 	Object retrieveObjectById(Object dbObject, long id, String dbTable, String[][] dbColumns) throws Exception;
 	/**
 	 * @param script
@@ -403,6 +481,30 @@ public interface EpadDatabaseOperations
 	 */
 	int getAIMCount(String projectID, String studyUID, String username);
 
+	/**
+	 * Number of studies of each subject that belong to the project
+	 * @param projectID
+	 * @param subjectUIDs
+	 * @return subjectUID to study count, subjects without studies are left out
+	 */
+	Map<String, Integer> getProjectStudyCountsForSubjects(String projectID, Collection<String> subjectUIDs);
+
+	/**
+	 * Number of the project's annotations on the project studies of each subject, grouped by owner
+	 * @param projectID
+	 * @param subjectUIDs
+	 * @return subjectUID to (user login name to annotation count)
+	 */
+	Map<String, Map<String, Integer>> getAIMCountsForSubjects(String projectID, Collection<String> subjectUIDs);
+
+	/**
+	 * Number of annotations of each subject that are shared with the project
+	 * @param projectID
+	 * @param subjectUIDs
+	 * @return subjectUID to shared annotation count
+	 */
+	Map<String, Integer> getSharedAIMCountsForSubjects(String projectID, Collection<String> subjectUIDs);
+
 	/**
 	 * Gets all the parameters and returns the annotation status for that specific user and series
 	 * @param projectuid
@@ -0,0 +1,541 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.epaddb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.PNGFileProcessingStatus;
+import edu.stanford.epad.dtos.SeriesProcessingStatus;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
+import edu.stanford.epad.epadws.dcm4chee.SeriesImageIndex;
+import edu.stanford.epad.epadws.models.ImageIndex;
+import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+
+/**
+ * Write-behind for the PNG pipeline's bookkeeping in <code>epaddb.epad_files</code>, <code>epaddb.series_status</code>
+ * and <code>epaddb.image_index</code>. Inserts and status updates are queued and written as JDBC batches every EpadFilesFlushInterval ms, or sooner once
+ * EpadFilesBatchSize rows are waiting. Inserts are written before updates, and only the last status of a series is kept.
+ * If a batch fails its rows are written one at a time, and rows that still fail are queued again for the next few
+ * flushes, so a database outage does not lose them.
+ * <p>
+ * Also keeps the image UIDs of each series that have an <code>epad_files</code> row, so the series watcher does not have
+ * to query them on every pass. The set is reloaded from the database when older than a minute.
+ */
+public class EpadFilesBatchWriter
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final long SERIES_CACHE_TTL = 60000;
+	private static final int MAX_CACHED_SERIES = 1000;
+	private static final int MAX_WRITE_ATTEMPTS = 5;
+
+	private static final EpadFilesBatchWriter ourInstance = new EpadFilesBatchWriter();
+
+	private final int batchSize;
+	private final long flushInterval;
+	private final ScheduledExecutorService flusher;
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	private final Object flushLock = new Object();
+
+	// Guarded by this
+	private List<Map<String, String>> pendingInserts = new ArrayList<Map<String, String>>();
+	private List<Map<String, String>> pendingUpdates = new ArrayList<Map<String, String>>();
+	private Map<String, SeriesProcessingStatus> pendingSeriesStatuses = new LinkedHashMap<String, SeriesProcessingStatus>();
+	private List<ImageIndex> pendingImageIndexes = new ArrayList<ImageIndex>();
+	private final Map<String, SeriesFiles> seriesFiles = new LinkedHashMap<String, SeriesFiles>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SeriesFiles> eldest)
+		{
+			return size() > MAX_CACHED_SERIES;
+		}
+	};
+	// Failed writes of each queued row or series status still to be retried
+	private final Map<Object, Integer> failedRowAttempts = new IdentityHashMap<Object, Integer>();
+	private final Map<String, Integer> failedSeriesAttempts = new HashMap<String, Integer>();
+	private long rowsWritten = 0;
+	private long batchesWritten = 0;
+	private long rowsRetried = 0;
+	private long rowsDropped = 0;
+
+	private static class SeriesFiles
+	{
+		final Set<String> imageUIDs;
+		final long loadTime = System.currentTimeMillis();
+
+		SeriesFiles(Set<String> imageUIDs)
+		{
+			this.imageUIDs = imageUIDs;
+		}
+	}
+
+	public static EpadFilesBatchWriter getInstance()
+	{
+		return ourInstance;
+	}
+
+	private EpadFilesBatchWriter()
+	{
+		batchSize = ConfigParams.getPositiveIntParam("EpadFilesBatchSize", 200);
+		flushInterval = ConfigParams.getPositiveIntParam("EpadFilesFlushInterval", 1000);
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "EpadFilesBatchWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue a new <code>epad_files</code> row for a file generated from an image.
+	 */
+	public void insertEpadFile(String seriesUID, String imageUID, String filePath, long fileSize,
+			PNGFileProcessingStatus status)
+	{
+		Map<String, String> row = new HashMap<String, String>();
+		row.put("sop_iuid", imageUID);
+		row.put("series_iuid", seriesUID);
+		row.put("file_type", "" + Dcm4CheeDatabaseUtils.getFileTypeFromName(filePath));
+		row.put("file_path", filePath);
+		row.put("file_size", "" + fileSize);
+		row.put("file_md5", "n/a");
+		row.put("file_status", "" + status.getCode());
+		row.put("err_msg", "");
+		synchronized (this) {
+			pendingInserts.add(row);
+			SeriesFiles files = seriesFiles.get(seriesUID);
+			if (files != null)
+				files.imageUIDs.add(imageUID);
+		}
+		requestFlushIfFull();
+	}
+
+	/**
+	 * Queue a status update of an <code>epad_files</code> row.
+	 */
+	public void updateEpadFile(String filePath, PNGFileProcessingStatus status, long fileSize, String errorMsg)
+	{
+		Map<String, String> row = new HashMap<String, String>();
+		row.put("file_path", filePath);
+		row.put("file_status", "" + status.getCode());
+		row.put("file_size", "" + fileSize);
+		row.put("err_msg", errorMsg == null ? "" : errorMsg);
+		if (status == PNGFileProcessingStatus.DONE)
+			EpadStatisticsCollector.getInstance().increment(EpadStatisticsCollector.PNGS_GENERATED, 1);
+		else if (status == PNGFileProcessingStatus.ERROR)
+			EpadStatisticsCollector.getInstance().increment(EpadStatisticsCollector.PNGS_FAILED, 1);
+		synchronized (this) {
+			pendingUpdates.add(row);
+		}
+		requestFlushIfFull();
+	}
+
+	/**
+	 * Queue a status change of a series; replaces any status for the series still waiting to be written.
+	 */
+	public void updateOrInsertSeries(String seriesUID, SeriesProcessingStatus status)
+	{
+		synchronized (this) {
+			pendingSeriesStatuses.remove(seriesUID);
+			pendingSeriesStatuses.put(seriesUID, status);
+		}
+		requestFlushIfFull();
+	}
+
+	/**
+	 * Queue an <code>image_index</code> row; it replaces any earlier row for the image.
+	 */
+	public void insertImageIndex(ImageIndex imageIndex)
+	{
+		synchronized (this) {
+			pendingImageIndexes.add(imageIndex);
+		}
+		requestFlushIfFull();
+	}
+
+	/**
+	 * @return image UIDs in the series that have an <code>epad_files</code> row, including queued ones
+	 */
+	public Set<String> getImageUIDsInSeries(String seriesUID)
+	{
+		synchronized (this) {
+			SeriesFiles files = seriesFiles.get(seriesUID);
+			if (files != null && System.currentTimeMillis() - files.loadTime < SERIES_CACHE_TTL)
+				return new HashSet<String>(files.imageUIDs);
+		}
+		flush(); // So the database has everything queued for the series
+		Set<String> imageUIDs = EpadDatabase.getInstance().getEPADDatabaseOperations().getImageUIDsInSeries(seriesUID);
+		synchronized (this) {
+			SeriesFiles files = new SeriesFiles(new HashSet<String>(imageUIDs));
+			for (Map<String, String> row : pendingInserts) { // Queued since the flush above
+				if (seriesUID.equals(row.get("series_iuid")))
+					files.imageUIDs.add(row.get("sop_iuid"));
+			}
+			seriesFiles.put(seriesUID, files);
+			return new HashSet<String>(files.imageUIDs);
+		}
+	}
+
+	/**
+	 * Drop the cached image UIDs of a series, e.g. once it is no longer in the pipeline.
+	 */
+	public synchronized void forgetSeries(String seriesUID)
+	{
+		seriesFiles.remove(seriesUID);
+	}
+
+	/**
+	 * The series' rows have been deleted, so also drop any of its inserts and status still queued.
+	 */
+	public synchronized void seriesDeleted(String seriesUID)
+	{
+		seriesFiles.remove(seriesUID);
+		pendingSeriesStatuses.remove(seriesUID);
+		failedSeriesAttempts.remove(seriesUID);
+		Iterator<Map<String, String>> rows = pendingInserts.iterator();
+		while (rows.hasNext()) {
+			Map<String, String> row = rows.next();
+			if (seriesUID.equals(row.get("series_iuid"))) {
+				rows.remove();
+				failedRowAttempts.remove(row);
+			}
+		}
+		Iterator<ImageIndex> imageIndexes = pendingImageIndexes.iterator();
+		while (imageIndexes.hasNext()) {
+			ImageIndex imageIndex = imageIndexes.next();
+			if (seriesUID.equals(imageIndex.getSeriesUID())) {
+				imageIndexes.remove();
+				failedRowAttempts.remove(imageIndex);
+			}
+		}
+	}
+
+	public synchronized void forgetAllSeries()
+	{
+		seriesFiles.clear();
+	}
+
+	/**
+	 * Write everything queued so far.
+	 */
+	public void flush()
+	{
+		synchronized (flushLock) {
+			List<Map<String, String>> inserts;
+			List<Map<String, String>> updates;
+			Map<String, SeriesProcessingStatus> seriesStatuses;
+			List<ImageIndex> imageIndexes;
+			synchronized (this) {
+				flushRequested.set(false);
+				if (pendingInserts.isEmpty() && pendingUpdates.isEmpty() && pendingSeriesStatuses.isEmpty()
+						&& pendingImageIndexes.isEmpty())
+					return;
+				inserts = pendingInserts;
+				updates = pendingUpdates;
+				seriesStatuses = pendingSeriesStatuses;
+				imageIndexes = pendingImageIndexes;
+				pendingInserts = new ArrayList<Map<String, String>>();
+				pendingUpdates = new ArrayList<Map<String, String>>();
+				pendingSeriesStatuses = new LinkedHashMap<String, SeriesProcessingStatus>();
+				pendingImageIndexes = new ArrayList<ImageIndex>();
+			}
+			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+			List<Map<String, String>> failedInserts = new ArrayList<Map<String, String>>();
+			List<Map<String, String>> failedUpdates = new ArrayList<Map<String, String>>();
+			Map<String, SeriesProcessingStatus> failedSeriesStatuses = new LinkedHashMap<String, SeriesProcessingStatus>();
+			List<ImageIndex> failedImageIndexes = new ArrayList<ImageIndex>();
+			int batches = 0;
+			for (int i = 0; i < inserts.size(); i += batchSize, batches++) {
+				List<Map<String, String>> batch = inserts.subList(i, Math.min(inserts.size(), i + batchSize));
+				if (!epadDatabaseOperations.insertEpadFileRows(batch)) {
+					for (Map<String, String> row : batch) {
+						if (!epadDatabaseOperations.insertEpadFileRows(Collections.singletonList(row)))
+							failedInserts.add(row);
+					}
+				}
+			}
+			for (int i = 0; i < updates.size(); i += batchSize, batches++) {
+				List<Map<String, String>> batch = updates.subList(i, Math.min(updates.size(), i + batchSize));
+				if (!epadDatabaseOperations.updateEpadFileRows(batch)) {
+					for (Map<String, String> row : batch) {
+						if (!epadDatabaseOperations.updateEpadFileRows(Collections.singletonList(row)))
+							failedUpdates.add(row);
+					}
+				}
+			}
+			if (!seriesStatuses.isEmpty()) {
+				if (!epadDatabaseOperations.updateOrInsertSeries(seriesStatuses)) {
+					for (Map.Entry<String, SeriesProcessingStatus> entry : seriesStatuses.entrySet()) {
+						if (!epadDatabaseOperations.updateOrInsertSeries(Collections.singletonMap(entry.getKey(), entry.getValue())))
+							failedSeriesStatuses.put(entry.getKey(), entry.getValue());
+					}
+				}
+				batches++;
+			}
+			for (int i = 0; i < imageIndexes.size(); i += batchSize, batches++) {
+				List<ImageIndex> batch = imageIndexes.subList(i, Math.min(imageIndexes.size(), i + batchSize));
+				if (!writeImageIndexes(batch)) {
+					for (ImageIndex imageIndex : batch) {
+						if (!writeImageIndexes(Collections.singletonList(imageIndex)))
+							failedImageIndexes.add(imageIndex);
+					}
+				}
+			}
+			synchronized (this) {
+				int failed = failedInserts.size() + failedUpdates.size() + failedSeriesStatuses.size() + failedImageIndexes.size();
+				rowsWritten += inserts.size() + updates.size() + seriesStatuses.size() + imageIndexes.size() - failed;
+				batchesWritten += batches;
+				forgetWritten(inserts, failedInserts);
+				forgetWritten(updates, failedUpdates);
+				forgetWritten(imageIndexes, failedImageIndexes);
+				for (String seriesUID : seriesStatuses.keySet()) {
+					if (!failedSeriesStatuses.containsKey(seriesUID))
+						failedSeriesAttempts.remove(seriesUID);
+				}
+				if (failed > 0) {
+					// Retried rows go ahead of those queued since, so a file's insert is still written before its update
+					pendingInserts.addAll(0, retryable(failedInserts));
+					pendingUpdates.addAll(0, retryable(failedUpdates));
+					pendingImageIndexes.addAll(0, retryable(failedImageIndexes));
+					for (Map.Entry<String, SeriesProcessingStatus> entry : failedSeriesStatuses.entrySet()) {
+						String seriesUID = entry.getKey();
+						Integer attempts = failedSeriesAttempts.get(seriesUID);
+						attempts = attempts == null ? 1 : attempts + 1;
+						if (pendingSeriesStatuses.containsKey(seriesUID)) { // A newer status is already queued
+							failedSeriesAttempts.remove(seriesUID);
+						} else if (attempts < MAX_WRITE_ATTEMPTS) {
+							failedSeriesAttempts.put(seriesUID, attempts);
+							pendingSeriesStatuses.put(seriesUID, entry.getValue());
+							rowsRetried++;
+						} else {
+							failedSeriesAttempts.remove(seriesUID);
+							rowsDropped++;
+						}
+					}
+					log.warning("Error writing " + failedInserts.size() + " epad_files inserts, " + failedUpdates.size()
+							+ " updates, " + failedSeriesStatuses.size() + " series statuses and " + failedImageIndexes.size()
+							+ " image indexes; rows retried:" + rowsRetried + " dropped:" + rowsDropped);
+				}
+			}
+		}
+	}
+
+	private void forgetWritten(List<?> rows, List<?> failedRows)
+	{
+		if (failedRowAttempts.isEmpty())
+			return;
+		Set<Object> failed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		failed.addAll(failedRows);
+		for (Object row : rows) {
+			if (!failed.contains(row))
+				failedRowAttempts.remove(row);
+		}
+	}
+
+	/**
+	 * @return the failed rows that have not yet used up their attempts
+	 */
+	private <T> List<T> retryable(List<T> failedRows)
+	{
+		List<T> retryRows = new ArrayList<T>(failedRows.size());
+		for (T row : failedRows) {
+			Integer attempts = failedRowAttempts.get(row);
+			attempts = attempts == null ? 1 : attempts + 1;
+			if (attempts < MAX_WRITE_ATTEMPTS) {
+				failedRowAttempts.put(row, attempts);
+				retryRows.add(row);
+				rowsRetried++;
+			} else {
+				failedRowAttempts.remove(row);
+				rowsDropped++;
+			}
+		}
+		return retryRows;
+	}
+
+	/**
+	 * Replace the rows of the images and let SeriesImageIndex re-read their series.
+	 */
+	private boolean writeImageIndexes(List<ImageIndex> imageIndexes)
+	{
+		StringBuilder imageUIDs = new StringBuilder();
+		Set<String> seriesUIDs = new HashSet<String>();
+		for (ImageIndex imageIndex : imageIndexes) {
+			if (imageUIDs.length() > 0)
+				imageUIDs.append(",");
+			imageUIDs.append(AbstractDAO.toSQL(imageIndex.getImageUID()));
+			seriesUIDs.add(imageIndex.getSeriesUID());
+		}
+		try {
+			new ImageIndex().deleteObjects("image_uid in (" + imageUIDs + ")");
+			AbstractDAO.insertAll(imageIndexes);
+		} catch (Exception e) {
+			log.warning("Error writing " + imageIndexes.size() + " image indexes", e);
+			return false;
+		}
+		for (String seriesUID : seriesUIDs)
+			SeriesImageIndex.getInstance().invalidateSeries(seriesUID);
+		return true;
+	}
+
+	public void shutdown()
+	{
+		flusher.shutdownNow();
+		flush();
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "pendingInserts:" + pendingInserts.size() + " pendingUpdates:" + pendingUpdates.size() + " pendingSeries:"
+				+ pendingSeriesStatuses.size() + " pendingImageIndexes:" + pendingImageIndexes.size() + " rowsWritten:" + rowsWritten + " batches:" + batchesWritten
+				+ " rowsRetried:" + rowsRetried + " rowsDropped:" + rowsDropped
+				+ " cachedSeries:" + seriesFiles.size();
+	}
+
+	private void requestFlushIfFull()
+	{
+		int pending;
+		synchronized (this) {
+			pending = pendingInserts.size() + pendingUpdates.size() + pendingSeriesStatuses.size()
+					+ pendingImageIndexes.size();
+		}
+		if (pending >= batchSize && flushRequested.compareAndSet(false, true)) {
+			flusher.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					flush();
+				}
+			});
+		}
+	}
+}
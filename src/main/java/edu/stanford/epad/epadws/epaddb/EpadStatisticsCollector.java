@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.epaddb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.models.EpadFile;
+import edu.stanford.epad.epadws.models.EpadStatistics;
+import edu.stanford.epad.epadws.models.FileType;
+import edu.stanford.epad.epadws.models.NonDicomSeries;
+import edu.stanford.epad.epadws.models.Plugin;
+import edu.stanford.epad.epadws.models.Project;
+import edu.stanford.epad.epadws.models.RemotePACQuery;
+import edu.stanford.epad.epadws.models.Study;
+import edu.stanford.epad.epadws.models.Subject;
+import edu.stanford.epad.epadws.models.User;
+import edu.stanford.epad.epadws.models.WorkList;
+
+/**
+ * Row counts of the main ePAD tables and counters of pipeline events, kept in memory so that statistics can be read
+ * without counting tables.
+ * <p>
+ * Table counts are seeded once with COUNT(*) and then maintained by the insert and delete paths (AbstractDAO and the
+ * series status operations). Every StatisticsReconcileInterval seconds the id based tables are checked for rows
+ * inserted behind our back (a primary key range count above the highest id seen), and one count in turn is rebased
+ * with a full COUNT(*) to correct deletes made directly in SQL. AIM, DSO and template counts are only refreshed by
+ * rebasing. Each reconcile also records a sample, the last StatisticsHistorySize of which are kept with the per
+ * minute rates of the event counters.
+ */
+public class EpadStatisticsCollector
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final String SERIES_STATUS = "series_status";
+	public static final String TEMPLATES = "templates";
+	public static final String AIMS = "aims";
+	public static final String DSOS = "dsos";
+
+	public static final String DICOM_SERIES_RECEIVED = "dicom.series.received";
+	public static final String DICOM_IMAGES_RECEIVED = "dicom.images.received";
+	public static final String PNGS_GENERATED = "png.generated";
+	public static final String PNGS_FAILED = "png.failed";
+
+	private static final String[] ID_TABLES = { User.DBTABLE, Project.DBTABLE, Subject.DBTABLE, Study.DBTABLE,
+			EpadFile.DBTABLE, Plugin.DBTABLE, RemotePACQuery.DBTABLE, WorkList.DBTABLE, NonDicomSeries.DBTABLE };
+	private static final String[] EVENTS = { DICOM_SERIES_RECEIVED, DICOM_IMAGES_RECEIVED, PNGS_GENERATED, PNGS_FAILED };
+
+	private static final EpadStatisticsCollector ourInstance = new EpadStatisticsCollector();
+
+	private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> highestIds = new ConcurrentHashMap<String, AtomicLong>();
+	private final List<String> rebaseOrder = new ArrayList<String>();
+	private final int historySize;
+	private final long reconcileInterval;
+	private final ScheduledExecutorService reconciler;
+	private final Object seedLock = new Object();
+
+	// Guarded by this
+	private final LinkedList<Sample> history = new LinkedList<Sample>();
+	private boolean seeded = false;
+	private int nextRebase = 0;
+	private long reconciles = 0;
+	private long rebases = 0;
+	private long missedInserts = 0;
+
+	/**
+	 * Counts at one point in time, with the per minute rates of the event counters since the previous sample.
+	 */
+	public static class Sample
+	{
+		public final long time;
+		public final Map<String, Long> counts;
+		public final Map<String, Double> ratesPerMinute = new LinkedHashMap<String, Double>();
+
+		Sample(long time, Map<String, Long> counts)
+		{
+			this.time = time;
+			this.counts = counts;
+		}
+	}
+
+	public static EpadStatisticsCollector getInstance()
+	{
+		return ourInstance;
+	}
+
+	private EpadStatisticsCollector()
+	{
+		for (String table : ID_TABLES) {
+			counts.put(table, new AtomicLong());
+			highestIds.put(table, new AtomicLong());
+			rebaseOrder.add(table);
+		}
+		for (String name : Arrays.asList(SERIES_STATUS, TEMPLATES, AIMS, DSOS)) {
+			counts.put(name, new AtomicLong());
+			rebaseOrder.add(name);
+		}
+		for (String event : EVENTS)
+			counts.put(event, new AtomicLong());
+		historySize = ConfigParams.getPositiveIntParam("StatisticsHistorySize", 288);
+		reconcileInterval = ConfigParams.getPositiveIntParam("StatisticsReconcileInterval", 300);
+		reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "EpadStatisticsCollector");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Seed the counts in the background and start reconciling them.
+	 */
+	public void start()
+	{
+		reconciler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					reconcile();
+				} catch (Throwable t) {
+					log.warning("Error reconciling statistics", t);
+				}
+			}
+		}, 0, reconcileInterval, TimeUnit.SECONDS);
+	}
+
+	public void shutdown()
+	{
+		reconciler.shutdownNow();
+	}
+
+	/**
+	 * Called after rows were inserted into a table; highestID is the largest generated id among them.
+	 */
+	public void rowsInserted(String table, int rows, long highestID)
+	{
+		AtomicLong count = counts.get(table);
+		if (count == null || rows <= 0)
+			return;
+		count.addAndGet(rows);
+		AtomicLong highest = highestIds.get(table);
+		if (highest != null)
+			raise(highest, highestID);
+	}
+
+	public void rowsDeleted(String table, int rows)
+	{
+		AtomicLong count = counts.get(table);
+		if (count != null && rows > 0)
+			count.addAndGet(-rows);
+	}
+
+	public void tableCleared(String table)
+	{
+		AtomicLong count = counts.get(table);
+		if (count != null)
+			count.set(0);
+	}
+
+	/**
+	 * Count pipeline events, see DICOM_SERIES_RECEIVED etc.
+	 */
+	public void increment(String event, long n)
+	{
+		AtomicLong count = counts.get(event);
+		if (count != null)
+			count.addAndGet(n);
+	}
+
+	public long getCount(String name)
+	{
+		AtomicLong count = counts.get(name);
+		return count == null ? 0 : Math.max(0, count.get());
+	}
+
+	public long getNumberOfSeries()
+	{
+		return getCount(SERIES_STATUS) + getCount(NonDicomSeries.DBTABLE);
+	}
+
+	public Map<String, Long> getCounts()
+	{
+		Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+		for (String name : rebaseOrder)
+			snapshot.put(name, getCount(name));
+		snapshot.put("series", getNumberOfSeries());
+		for (String event : EVENTS)
+			snapshot.put(event, getCount(event));
+		return snapshot;
+	}
+
+	public synchronized List<Sample> getHistory()
+	{
+		return new ArrayList<Sample>(history);
+	}
+
+	public synchronized boolean isSeeded()
+	{
+		return seeded;
+	}
+
+	/**
+	 * Current counts as an epadstatistics row (not saved). Seeds the counts first if that has not happened yet.
+	 */
+	public EpadStatistics getEpadStatistics()
+	{
+		seed();
+		EpadStatistics es = new EpadStatistics();
+		es.setNumOfUsers((int)getCount(User.DBTABLE));
+		es.setNumOfProjects((int)getCount(Project.DBTABLE));
+		es.setNumOfPatients((int)getCount(Subject.DBTABLE));
+		es.setNumOfStudies((int)getCount(Study.DBTABLE));
+		es.setNumOfSeries((int)getNumberOfSeries());
+		es.setNumOfAims((int)getCount(AIMS));
+		es.setNumOfDSOs((int)getCount(DSOS));
+		es.setNumOfWorkLists((int)getCount(WorkList.DBTABLE));
+		es.setNumOfAutoQueries((int)getCount(RemotePACQuery.DBTABLE));
+		es.setNumOfFiles((int)getCount(EpadFile.DBTABLE));
+		es.setNumOfTemplates((int)getCount(TEMPLATES));
+		es.setNumOfPlugins((int)getCount(Plugin.DBTABLE));
+		return es;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "seeded:" + seeded + " reconciles:" + reconciles + " rebases:" + rebases + " missedInserts:" + missedInserts
+				+ " samples:" + history.size() + " counts:" + getCounts();
+	}
+
+	private void seed()
+	{
+		synchronized (seedLock) {
+			if (isSeeded())
+				return;
+			long start = System.currentTimeMillis();
+			for (String name : rebaseOrder)
+				rebase(name);
+			synchronized (this) {
+				seeded = true;
+			}
+			log.info("Seeded ePAD statistics in " + (System.currentTimeMillis() - start) + " ms: " + getCounts());
+		}
+	}
+
+	private void reconcile()
+	{
+		if (!isSeeded()) {
+			seed();
+		} else {
+			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+			for (String table : ID_TABLES) {
+				try {
+					AtomicLong highest = highestIds.get(table);
+					long[] delta = epadDatabaseOperations.getDBCountAfterId(table, highest.get());
+					if (delta[0] > 0) {
+						counts.get(table).addAndGet(delta[0]);
+						raise(highest, delta[1]);
+						synchronized (this) {
+							missedInserts += delta[0];
+						}
+					}
+				} catch (Exception e) {
+					log.warning("Error counting new rows in " + table, e);
+				}
+			}
+			String name;
+			synchronized (this) {
+				name = rebaseOrder.get(nextRebase);
+				nextRebase = (nextRebase + 1) % rebaseOrder.size();
+			}
+			rebase(name);
+		}
+		long now = System.currentTimeMillis();
+		Sample sample = new Sample(now, getCounts());
+		synchronized (this) {
+			Sample previous = history.isEmpty() ? null : history.getLast();
+			if (previous != null && now > previous.time) {
+				double minutes = (now - previous.time) / 60000.0;
+				for (String event : EVENTS)
+					sample.ratesPerMinute.put(event, (sample.counts.get(event) - previous.counts.get(event)) / minutes);
+			}
+			history.add(sample);
+			while (history.size() > historySize)
+				history.removeFirst();
+			reconciles++;
+		}
+	}
+
+	private void rebase(String name)
+	{
+		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		try {
+			long value;
+			if (AIMS.equals(name))
+				value = epadDatabaseOperations.getNumberOfAIMs("1 = 1");
+			else if (DSOS.equals(name))
+				value = epadDatabaseOperations.getNumberOfAIMs("DSOSeriesUID is not null and DSOSeriesUID != ''");
+			else if (TEMPLATES.equals(name))
+				value = epadDatabaseOperations.getDBCount(EpadFile.DBTABLE, "filetype = '" + FileType.TEMPLATE.getName() + "'");
+			else if (highestIds.containsKey(name)) {
+				// Count and highest id from one statement, so later inserts are found by the next delta
+				long[] all = epadDatabaseOperations.getDBCountAfterId(name, 0);
+				raise(highestIds.get(name), all[1]);
+				value = all[0];
+			} else
+				value = epadDatabaseOperations.getDBCount(name, "");
+			counts.get(name).set(value);
+			synchronized (this) {
+				rebases++;
+			}
+		} catch (Exception e) {
+			log.warning("Error counting " + name, e);
+		}
+	}
+
+	private static void raise(AtomicLong value, long to)
+	{
+		long current;
+		while ((current = value.get()) < to && !value.compareAndSet(current, to))
+			;
+	}
+}
@@ -120,6 +120,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -132,7 +134,9 @@ import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Level;
 import org.json.JSONObject;
@@ -142,6 +146,8 @@ import com.sun.jersey.api.uri.UriTemplate;
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.EPADMessage;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.handlers.core.RouteTable;
 
 /**
  * Utility methods for handlers
@@ -153,6 +159,14 @@ public class HandlerUtil
 {
 	private static final EPADLogger log = EPADLogger.getInstance();
 
+	/**
+	 * Shared keep-alive client for proxying to dcm4chee, so requests do not open a new connection each time.
+	 */
+	private static final HttpClient pooledClient = createPooledClient();
+
+	private static final ConcurrentMap<String, UriTemplate> uriTemplates = new ConcurrentHashMap<String, UriTemplate>();
+	private static final ThreadLocal<RouteTable.RouteMatch> lastRouteMatch = new ThreadLocal<RouteTable.RouteMatch>();
+
 	public static int infoResponse(int responseCode, String message, PrintWriter responseStream, EPADLogger log)
 	{
 		log.info(message);
@@ -353,10 +367,12 @@ public class HandlerUtil
 
 	public static Map<String, String> getTemplateMap(String template, String path)
 	{
-		Map<String, String> map = new HashMap<String, String>();
+		RouteTable.RouteMatch routeMatch = getRouteMatch(template, path);
+		if (routeMatch != null)
+			return routeMatch.getTemplateMap(template);
 
-		UriTemplate uriTemplate = new UriTemplate(template);
-		if (uriTemplate.match(path, map)) {
+		Map<String, String> map = new HashMap<String, String>();
+		if (getUriTemplate(template).match(path, map)) {
 			return map;
 		} else {
 			return Collections.<String, String> emptyMap();
@@ -365,25 +381,57 @@ public class HandlerUtil
 
 	public static boolean matchesTemplate(String template, String path)
 	{
+		RouteTable.RouteMatch routeMatch = getRouteMatch(template, path);
+		if (routeMatch != null)
+			return routeMatch.matches(template);
+
 		Map<String, String> map = new HashMap<String, String>();
+		return getUriTemplate(template).match(path, map);
+	}
+
+	/**
+	 * Handlers test one path against many templates in turn, so the route table is walked once per path and the
+	 * result kept for the thread.
+	 */
+	private static RouteTable.RouteMatch getRouteMatch(String template, String path)
+	{
+		if (path == null || path.length() == 0)
+			return null;
+		RouteTable routeTable = RouteTable.getInstance();
+		if (!routeTable.contains(template))
+			return null;
+		RouteTable.RouteMatch routeMatch = lastRouteMatch.get();
+		if (routeMatch == null || !routeMatch.getPath().equals(path)) {
+			routeMatch = routeTable.match(path);
+			lastRouteMatch.set(routeMatch);
+		}
+		return routeMatch;
+	}
 
-		UriTemplate uriTemplate = new UriTemplate(template);
-		return uriTemplate.match(path, map);
+	private static UriTemplate getUriTemplate(String template)
+	{
+		UriTemplate uriTemplate = uriTemplates.get(template);
+		if (uriTemplate == null) {
+			uriTemplate = new UriTemplate(template);
+			UriTemplate existing = uriTemplates.putIfAbsent(template, uriTemplate);
+			if (existing != null)
+				uriTemplate = existing;
+		}
+		return uriTemplate;
 	}
 
 	public static int streamGetResponse(String url, OutputStream outputStream, EPADLogger log) throws IOException,
 			HttpException
 	{
-		HttpClient client = new HttpClient();
 		GetMethod method = new GetMethod(url);
 		int statusCode;
 
 		try {
-			statusCode = client.executeMethod(method);
+			statusCode = pooledClient.executeMethod(method);
 			if (statusCode == HttpServletResponse.SC_OK) {
 				InputStream is = method.getResponseBodyAsStream();
 				int read = 0;
-				byte[] bytes = new byte[4096];
+				byte[] bytes = new byte[0xffff];
 				while ((read = is.read(bytes)) != -1) {
 					outputStream.write(bytes, 0, read);
 				}
@@ -396,6 +444,22 @@ public class HandlerUtil
 		return statusCode;
 	}
 
+	private static HttpClient createPooledClient()
+	{
+		MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		int maxConnections = ConfigParams.getPositiveIntParam("ProxyMaxConnections", 50);
+		params.setDefaultMaxConnectionsPerHost(maxConnections);
+		params.setMaxTotalConnections(maxConnections);
+		params.setConnectionTimeout(ConfigParams.getIntParam("ProxyConnectTimeoutMs", 10000));
+		// A hung dcm4chee must not hold a pooled connection, and the request thread, forever
+		params.setSoTimeout(ConfigParams.getIntParam("ProxySocketTimeoutMs", 300000));
+		HttpClient client = new HttpClient(connectionManager);
+		// Bounded wait for a free connection when the pool is exhausted
+		client.getParams().setConnectionManagerTimeout(ConfigParams.getIntParam("ProxyPoolWaitMs", 30000));
+		return client;
+	}
+
 	public static List<File> extractFiles(FileItemIterator fileItemIterator, String prefix, String extension)
 			throws FileUploadException, IOException, FileNotFoundException
 	{
@@ -107,7 +107,6 @@ package edu.stanford.epad.epadws.handlers.admin;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.SQLException;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -121,14 +120,12 @@ import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.EPADAIM;
 import edu.stanford.epad.dtos.EPADSeries;
-import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
-import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.handlers.core.SeriesReference;
-import edu.stanford.epad.epadws.processing.pipeline.task.DSOMaskPNGGeneratorTask;
-import edu.stanford.epad.epadws.processing.pipeline.task.SingleFrameDICOMPngGeneratorTask;
+import edu.stanford.epad.epadws.processing.pipeline.process.PngGeneratorProcess.Priority;
+import edu.stanford.epad.epadws.processing.pipeline.task.ImageConsistencyChecker;
 import edu.stanford.epad.epadws.processing.pipeline.watcher.QueueAndWatcherManager;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
@@ -170,14 +167,19 @@ public class ImageCheckHandler extends AbstractHandler
 						boolean fix = fixValue != null && fixValue.equalsIgnoreCase("true");
 						String seriesUID = httpRequest.getParameter("seriesUID");
 						String imageUID = httpRequest.getParameter("imageUID");
-						if (seriesUID != null)
+						String statusValue = httpRequest.getParameter("status");
+						if (statusValue != null && statusValue.equalsIgnoreCase("true"))
+						{
+							writeImageCheckStatus(responseStream);
+							fix = false;
+						}
+						else if (seriesUID != null)
 						{
 							fixSeriesImages(responseStream, seriesUID, imageUID);
 						}
 						else 
 						{
-							String response = verifyImageGeneration(fix);
-							responseStream.write(response);
+							streamImageCheck(responseStream, ImageConsistencyChecker.getInstance().start(fix));
 						}
 						if (fix)
 						{
@@ -203,82 +205,46 @@ public class ImageCheckHandler extends AbstractHandler
 		httpResponse.setStatus(statusCode);
 	}
 
-	public static String verifyImageGeneration(boolean fix) throws SQLException, IOException
+	/**
+	 * Run an image check and wait for its report. A check already in progress is waited for instead of starting another.
+	 * 
+	 * @see ImageConsistencyChecker
+	 */
+	public static String verifyImageGeneration(boolean fix) throws InterruptedException
 	{
-		log.info("Starting ImageCheck, fix=" + fix);
-		long startTime = System.currentTimeMillis();
-		String response = "";
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-		Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations = Dcm4CheeDatabase.getInstance()
-				.getDcm4CheeDatabaseOperations();
-		EpadOperations epadQueries = DefaultEpadOperations.getInstance();
-		Set<String> seriesUIDs = dcm4CheeDatabaseOperations.getAllReadyDcm4CheeSeriesUIDs();
-		Set<DICOMFileDescription> allUnprocessedDICOMFileDescriptions = new HashSet<DICOMFileDescription>();
-
-		int numberOfSeriesWithMissingEPADDatabaseEntry = 0;
-		epadDatabaseOperations.deleteObsoleteEpadFileEntries();
+		return ImageConsistencyChecker.getInstance().run(fix).getReport();
+	}
 
-		// Verify that each image in a DICOM series in DCM4CHEE has an entry for a generated PNG file in the ePAD database,
-		// which indicates that the image's existence was detected. We then detect that the PNG file itself exists.
-		for (String seriesUID : seriesUIDs) {
-			final Set<DICOMFileDescription> unprocessedDICOMFileDescriptionsInSeries = epadQueries
-					.getUnprocessedDICOMFilesInSeries(seriesUID);
-			final int numberOfUnprocessedImages = unprocessedDICOMFileDescriptionsInSeries.size();
-			if (numberOfUnprocessedImages != 0) {
-				String modality = unprocessedDICOMFileDescriptionsInSeries.iterator().next().modality;
-				if (modality != null && modality.equals("SEG"))
-				{
-					response = response + "Missing mask images for DSO series " + seriesUID + "\n";
-					log.info("Missing mask images for DSO series " + seriesUID);
-				}
-				else
-				{
-					String message = "Number of instances in series " + seriesUID
-							+ " for which there is no ePAD database entry for a PNG file = " + numberOfUnprocessedImages;
-					response = response + message + "\n";
-				}
-				numberOfSeriesWithMissingEPADDatabaseEntry++;
-				if (fix)
-					QueueAndWatcherManager.getInstance().addDICOMFileToPNGGeneratorPipeline("REPROCESS", unprocessedDICOMFileDescriptionsInSeries);
-				allUnprocessedDICOMFileDescriptions.addAll(unprocessedDICOMFileDescriptionsInSeries);
-			} else {
-				// response = response + "All instances detected for series " + seriesUID + "\n";
-			}
+	/**
+	 * Write the report lines of a check as they are produced, until the check is done.
+	 */
+	private void streamImageCheck(PrintWriter responseStream, ImageConsistencyChecker.Run run)
+			throws InterruptedException
+	{
+		int linesWritten = 0;
+		while (true) {
+			boolean done = run.isDone();
+			List<String> lines = run.getLines(linesWritten);
+			for (String line : lines)
+				responseStream.write(line + "\n");
+			linesWritten += lines.size();
+			responseStream.flush();
+			if (done && lines.isEmpty())
+				break;
+			run.awaitLines(linesWritten, 5000);
 		}
+	}
 
-		int numberOfPNGFilesWithErrors = 0;
-		for (String pngFileName : epadDatabaseOperations.getAllEPadFilePathsWithErrors()) {
-			String message = "PNG file " + pngFileName + " generation failed";
-			response = response + message + "\n";
-			numberOfPNGFilesWithErrors++;
+	private void writeImageCheckStatus(PrintWriter responseStream)
+	{
+		ImageConsistencyChecker.Run run = ImageConsistencyChecker.getInstance().getCurrentRun();
+		if (run == null) {
+			responseStream.write("No image check has run since startup\n");
+			return;
 		}
-
-		response = response + "Number of dcm4chee series  = " + seriesUIDs.size() + "\n";
-		if (numberOfSeriesWithMissingEPADDatabaseEntry != 0)
-			response = response + "Number of series in dcm4chee with missing pngs = "
-					+ numberOfSeriesWithMissingEPADDatabaseEntry + "\n";
-		response = response + "Total number of dcm4chee images that do not have PNGs in ePAD = "
-				+ allUnprocessedDICOMFileDescriptions.size() + "\n";
-		response = response + "Total number of invalid PNG files = " + numberOfPNGFilesWithErrors + "\n";
-
-		if (fix) {
-			if (allUnprocessedDICOMFileDescriptions.size() != 0) {
-				response = response + "Adding " + allUnprocessedDICOMFileDescriptions.size()
-						+ " unprocessed image(s) to PNG pipeline...";
-				String message = "All unprocessed files added to PNG queue";
-				response = response + message + "\n";
-			}
-		} else if (allUnprocessedDICOMFileDescriptions.size() != 0)
-			response = response + "Use fix=true to attempt to regenerate any broken PNGs\n";
-		if (DSOMaskPNGGeneratorTask.seriesBeingProcessed.size() > 0)
-			log.info("DSO Series being processed:" + DSOMaskPNGGeneratorTask.seriesBeingProcessed);
-		if (SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed.size() > 0)
-			log.info("DICOM Series being processed:" + SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed);
-		long endTime = System.currentTimeMillis();
-		log.info("ImageCheck done, took " + (endTime-startTime)/1000.0 + " secs");
-		return response;
+		responseStream.write((run.isDone() ? "Last image check: " : "Image check in progress: ") + run.getProgress() + "\n");
+		responseStream.write(run.getReport());
 	}
-	
 
 	private void fixSeriesImages(PrintWriter responseStream, String seriesUID, String imageUID) throws SQLException, IOException
 	{
@@ -287,7 +253,7 @@ public class ImageCheckHandler extends AbstractHandler
 		Set<DICOMFileDescription> dicomFilesDescriptions = epadQueries.getDICOMFilesInSeries(seriesUID, imageUID);
 		SeriesReference seriesReference = new SeriesReference(null, null, dicomFilesDescriptions.iterator().next().studyUID, seriesUID);
 		epadQueries.deleteSeriesPNGs(seriesReference);
-		QueueAndWatcherManager.getInstance().addDICOMFileToPNGGeneratorPipeline("REPROCESS", dicomFilesDescriptions);
+		QueueAndWatcherManager.getInstance().addDICOMFileToPNGGeneratorPipeline("REPROCESS", dicomFilesDescriptions, Priority.INTERACTIVE);
 		log.info("Series " +  seriesUID + " added to PNG Pipeline");
 		responseStream.write("Series " +  seriesUID + " added to PNG Pipeline\n");
 	}
@@ -129,20 +129,34 @@ import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.TaskStatus;
 import edu.stanford.epad.epadws.EPadWebServerVersion;
 import edu.stanford.epad.epadws.Main;
+import edu.stanford.epad.epadws.aim.AIMReplicator;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
+import edu.stanford.epad.epadws.dcm4chee.SeriesImageIndex;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
+import edu.stanford.epad.epadws.epaddb.EpadStatisticsCollector;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.handlers.dicom.FramePNGWriter;
 import edu.stanford.epad.epadws.models.EventLog;
 import edu.stanford.epad.epadws.models.Plugin;
 import edu.stanford.epad.epadws.models.User;
+import edu.stanford.epad.epadws.plugins.PluginJobEngine;
+import edu.stanford.epad.epadws.processing.events.EventBus;
 import edu.stanford.epad.epadws.processing.pipeline.PipelineFactory;
 import edu.stanford.epad.epadws.processing.pipeline.task.EpadStatisticsTask;
+import edu.stanford.epad.epadws.processing.pipeline.task.ImageConsistencyChecker;
 import edu.stanford.epad.epadws.processing.pipeline.watcher.EPADSessionWatcher;
 import edu.stanford.epad.epadws.processing.pipeline.watcher.QueueAndWatcherManager;
+import edu.stanford.epad.epadws.queries.DICOMMetadataCache;
+import edu.stanford.epad.epadws.queries.SubjectSummaryIndex;
 import edu.stanford.epad.epadws.security.EPADSession;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.PluginOperations;
+import edu.stanford.epad.epadws.service.RemotePACService;
+import edu.stanford.epad.epadws.service.RemotePACTransferTracker;
 import edu.stanford.epad.epadws.service.SessionService;
+import edu.stanford.epad.epadws.service.TCIAImportEngine;
 
 /**
  * <code>
@@ -237,6 +251,20 @@ public class ServerStatusHandler extends AbstractHandler
 					responseStream.println("<tr><td colspan=2><hr></td></tr>");
 					responseStream.println("<tr><td nowrap><b>Available DB Connections:</b></td><td>" + free + "</td></tr>");
 					responseStream.println("<tr><td><b>Used DB Connections:</b></td><td>" + used + "</td></tr>");
+					responseStream.println("<tr><td><b>ePAD DB Pool:</b></td><td>" + EpadDatabase.getInstance().getConnectionPoolStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>DCM4CHEE DB Pool:</b></td><td>" + Dcm4CheeDatabase.getInstance().getConnectionPoolStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>DICOM Header Cache:</b></td><td>" + DICOMMetadataCache.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Series Image Index:</b></td><td>" + SeriesImageIndex.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Subject Summaries:</b></td><td>" + SubjectSummaryIndex.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Remote PAC Queries:</b></td><td>" + RemotePACService.getQueryStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Remote PAC Transfers:</b></td><td>" + RemotePACTransferTracker.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>TCIA Imports:</b></td><td>" + TCIAImportEngine.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>AIM Replication:</b></td><td>" + AIMReplicator.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Image Check:</b></td><td>" + ImageConsistencyChecker.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>ePAD Files Writer:</b></td><td>" + EpadFilesBatchWriter.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Frame PNG Writer:</b></td><td>" + FramePNGWriter.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Plugin Jobs:</b></td><td>" + PluginJobEngine.getInstance().getStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>ePAD Statistics:</b></td><td>" + EpadStatisticsCollector.getInstance().getStatistics() + "</td></tr>");
 					responseStream.println("<tr><td colspan=2><hr></td></tr>");
 					long freeHeap = Runtime.getRuntime().freeMemory();
 					long totalHeap = Runtime.getRuntime().totalMemory();
@@ -253,8 +281,10 @@ public class ServerStatusHandler extends AbstractHandler
 					} catch (Exception x) {}
 					responseStream.println("<tr><td colspan=2><hr></td></tr>");
 					responseStream.println("<tr><td><b>Series Queue:</b></td><td>" + QueueAndWatcherManager.dicomSeriesWatcherQueue.size() + "</td></tr>");
-					responseStream.println("<tr><td><b>PNG Queue:</b></td><td>" + QueueAndWatcherManager.pngGeneratorTaskQueue.size() + "</td></tr>");
+					responseStream.println("<tr><td><b>PNG Queue:</b></td><td>" + QueueAndWatcherManager.getInstance().getPNGGeneratorStatistics() + "</td></tr>");
 					responseStream.println("<tr><td><b>AddToProject Queue:</b></td><td>" + QueueAndWatcherManager.xnatSeriesWatcherQueue.size() + "</td></tr>");
+					responseStream.println("<tr><td><b>Upload Pipeline:</b></td><td>" + QueueAndWatcherManager.getInstance().getUploadStatistics() + "</td></tr>");
+					responseStream.println("<tr><td><b>Events:</b></td><td>" + EventBus.getInstance().getStatistics() + "</td></tr>");
 					responseStream.println("<tr><td colspan=2><hr></td></tr>");
 					responseStream.println("</table>");
 					List<Plugin> plugins = PluginOperations.getInstance().getPlugins();
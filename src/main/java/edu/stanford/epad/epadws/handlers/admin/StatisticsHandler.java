@@ -107,6 +107,8 @@ package edu.stanford.epad.epadws.handlers.admin;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -114,9 +116,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import com.google.gson.Gson;
+
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.epaddb.EpadStatisticsCollector;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.models.EpadStatistics;
+import edu.stanford.epad.epadws.service.SessionService;
 
 /**
  * @author dev
@@ -125,7 +131,7 @@ public class StatisticsHandler extends AbstractHandler
 {
 	private static final EPADLogger log = EPADLogger.getInstance();
 
-	private static final String FORBIDDEN = "Forbidden method - only PUT supported on statistics route";
+	private static final String FORBIDDEN = "Forbidden method - only GET and PUT supported on statistics route";
 	private static final String INTERNAL_ERROR_MESSAGE = "Internal server error on statistics route";
 	private static final String INTERNAL_IO_ERROR_MESSAGE = "Internal server IO error on statistics route";
 	private static final String INTERNAL_SQL_ERROR_MESSAGE = "Internal server SQL error on statistics route";
@@ -143,7 +149,21 @@ public class StatisticsHandler extends AbstractHandler
 			responseStream = httpResponse.getWriter();
 
 			String method = httpRequest.getMethod();
-			if ("PUT".equalsIgnoreCase(method)) {
+			if ("GET".equalsIgnoreCase(method)) {
+				if (SessionService.hasValidSessionID(httpRequest)) {
+					// Current counts of this server, kept up to date by EpadStatisticsCollector
+					EpadStatisticsCollector collector = EpadStatisticsCollector.getInstance();
+					Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+					statistics.put("counts", collector.getCounts());
+					if ("true".equalsIgnoreCase(httpRequest.getParameter("history")))
+						statistics.put("history", collector.getHistory());
+					httpResponse.setContentType("application/json");
+					responseStream.append(new Gson().toJson(statistics));
+					statusCode = HttpServletResponse.SC_OK;
+				} else {
+					statusCode = HandlerUtil.invalidTokenJSONResponse(INVALID_SESSION_TOKEN_MESSAGE, responseStream, log);
+				}
+			} else if ("PUT".equalsIgnoreCase(method)) {
 				try {
 					String host = httpRequest.getParameter("host");
 					if (host != null) {
@@ -122,8 +122,10 @@ import edu.stanford.epad.epadws.models.User;
 import edu.stanford.epad.epadws.models.WorkList;
 import edu.stanford.epad.epadws.models.WorkListToStudy;
 import edu.stanford.epad.epadws.models.WorkListToSubject;
+import edu.stanford.epad.epadws.plugins.PluginJobEngine;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
+import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.DefaultWorkListOperations;
 import edu.stanford.epad.epadws.service.EpadWorkListOperations;
 import edu.stanford.epad.epadws.service.PluginOperations;
@@ -388,6 +390,23 @@ public class EPADDeleteHandler
 				epadOperations.deleteFile(username, seriesReference, filename);
 				statusCode = HttpServletResponse.SC_OK;
 			
+			} else if (HandlerUtil.matchesTemplate(PluginRouteTemplates.PLUGIN_JOB_LIST, pathInfo)) {
+				PluginReference pluginReference = PluginReference.extract(PluginRouteTemplates.PLUGIN_JOB_LIST, pathInfo);
+				boolean allUsers = "true".equalsIgnoreCase(httpRequest.getParameter("allUsers"))
+						&& DefaultEpadProjectOperations.getInstance().isAdmin(username);
+				int cancelled = PluginJobEngine.getInstance().cancel(allUsers ? null : username, pluginReference.pluginID);
+				responseStream.append(new EPADMessage(cancelled + " plugin jobs cancelled").toJSON());
+				statusCode = HttpServletResponse.SC_OK;
+
+			} else if (HandlerUtil.matchesTemplate(PluginRouteTemplates.PLUGIN_JOB, pathInfo)) {
+				Map<String, String> templateMap = HandlerUtil.getTemplateMap(PluginRouteTemplates.PLUGIN_JOB, pathInfo);
+				long jobID = Long.parseLong(HandlerUtil.getTemplateParameter(templateMap, "jobid"));
+				boolean isAdmin = DefaultEpadProjectOperations.getInstance().isAdmin(username);
+				if (PluginJobEngine.getInstance().cancel(jobID, isAdmin ? null : username))
+					statusCode = HttpServletResponse.SC_OK;
+				else
+					statusCode = HandlerUtil.warningJSONResponse(HttpServletResponse.SC_NOT_FOUND, "No queued or running plugin job " + jobID, responseStream, log);
+
 			} else if (HandlerUtil.matchesTemplate(PluginRouteTemplates.PLUGIN, pathInfo)) {
 				PluginReference pluginReference = PluginReference.extract(PluginRouteTemplates.PLUGIN, pathInfo);
 				Plugin plugin=pluginOperations.getPlugin(pluginReference.pluginID);
@@ -173,6 +173,7 @@ import edu.stanford.epad.epadws.models.RemotePACQuery;
 import edu.stanford.epad.epadws.models.User;
 import edu.stanford.epad.epadws.processing.pipeline.task.EpadStatisticsTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.TCIADownloadTask;
+import edu.stanford.epad.epadws.plugins.PluginJobEngine;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
 import edu.stanford.epad.epadws.security.EPADSession;
@@ -181,6 +182,7 @@ import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.PluginOperations;
 import edu.stanford.epad.epadws.service.RemotePACService;
+import edu.stanford.epad.epadws.service.RemotePACTransferTracker;
 import edu.stanford.epad.epadws.service.TCIAService;
 import edu.stanford.epad.epadws.service.UserProjectService;
 
@@ -1875,6 +1877,12 @@ public class EPADGetHandler
 				responseStream.append(tagList.toJSON());
 				statusCode = HttpServletResponse.SC_OK;
 
+			} else if (HandlerUtil.matchesTemplate(PACSRouteTemplates.TRANSFER_LIST, pathInfo)) {
+				User user = DefaultEpadProjectOperations.getInstance().getUser(username);
+				boolean all = user.isAdmin() && "true".equalsIgnoreCase(httpRequest.getParameter("all"));
+				responseStream.append(new Gson().toJson(RemotePACTransferTracker.getInstance().getTransfers(all ? null : username)));
+				statusCode = HttpServletResponse.SC_OK;
+
 			} else if (HandlerUtil.matchesTemplate(PACSRouteTemplates.TCIA_TRANSFER, pathInfo)) {
 				String seriesUID = httpRequest.getParameter("seriesUID");
 				String projectID = httpRequest.getParameter("projectID");
@@ -1896,6 +1904,13 @@ public class EPADGetHandler
 				responseStream.append(plugins.toJSON());
 				statusCode = HttpServletResponse.SC_OK;
 
+			} else if (HandlerUtil.matchesTemplate(PluginRouteTemplates.PLUGIN_JOB_LIST, pathInfo)) {
+				PluginReference pluginReference = PluginReference.extract(PluginRouteTemplates.PLUGIN_JOB_LIST, pathInfo);
+				boolean allUsers = "true".equalsIgnoreCase(httpRequest.getParameter("allUsers"))
+						&& DefaultEpadProjectOperations.getInstance().isAdmin(username);
+				responseStream.append(new Gson().toJson(PluginJobEngine.getInstance().getJobs(allUsers ? null : username, pluginReference.pluginID)));
+				statusCode = HttpServletResponse.SC_OK;
+
 			} else if (HandlerUtil.matchesTemplate(PluginRouteTemplates.PLUGIN, pathInfo)) { //ML
 								
 				PluginReference pluginReference = PluginReference.extract(PluginRouteTemplates.PLUGIN, pathInfo);
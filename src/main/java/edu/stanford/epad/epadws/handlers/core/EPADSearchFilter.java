@@ -105,12 +105,17 @@
 package edu.stanford.epad.epadws.handlers.core;
 
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.epaddb.DatabaseUtils;
 
 /**
  * 
- * 
+ * The match strings are compiled once when they are set, so checking a row does not build a new regex.
+ * Name, ID, modality and accession number matches that are plain text can also be handed to the database with
+ * {@link #getSubjectSQLCriteria} and {@link #getStudySQLCriteria}.
  * 
  * @author martin
  * @see EPADSearchFilterBuilder
@@ -129,6 +134,12 @@ public class EPADSearchFilter
 	private String studyDateStartMatch = null;
 	private String studyDateFinishMatch = null;
 	private String fileTypeMatch = null;
+	private TextMatch projectNameMatcher = null;
+	private TextMatch patientNameMatcher = null;
+	private TextMatch patientIDMatcher = null;
+	private TextMatch accessionNumberMatcher = null;
+	private TextMatch modalityMatcher = null;
+	private TextMatch fileTypeMatcher = null;
 
 	public boolean hasProjectNameMatch()
 	{
@@ -173,20 +184,15 @@ public class EPADSearchFilter
 	public void setProjectNameMatch(String projectNameMatch)
 	{
 		this.projectNameMatch = projectNameMatch;
+		this.projectNameMatcher = projectNameMatch == null ? null : new TextMatch(projectNameMatch, true, false);
 	}
 
 	public boolean projectNameMatches(String projectName)
 	{
 		if (this.projectNameMatch == null)
 			return true;
-		else {
-			projectNameMatch = removeAsterisk(projectNameMatch);
-			String projectNameRegex = "(?i).*" + projectNameMatch + ".*";
-			if (projectName.matches(projectNameRegex))
-				return true;
-			else
-				return false;
-		}
+		else
+			return projectNameMatcher.matches(projectName);
 	}
 
 	public String getPatientNameMatch()
@@ -197,20 +203,15 @@ public class EPADSearchFilter
 	public void setPatientNameMatch(String patientNameMatch)
 	{
 		this.patientNameMatch = patientNameMatch;
+		this.patientNameMatcher = patientNameMatch == null ? null : new TextMatch(patientNameMatch, true, true);
 	}
 
 	public boolean patientNameMatches(String patientName)
 	{
 		if (this.patientNameMatch == null)
 			return true;
-		else {
-			patientNameMatch = removeAsterisk(patientNameMatch);
-			String patientNameRegex = "(?i).*" + patientNameMatch.replace('^', ' ') + ".*";
-			if (patientName.replace('^', ' ').matches(patientNameRegex))
-				return true;
-			else
-				return false;
-		}
+		else
+			return patientNameMatcher.matches(patientName);
 	}
 
 	public String getPatientIDMatch()
@@ -221,20 +222,15 @@ public class EPADSearchFilter
 	public void setPatientIDMatch(String patientIDMatch)
 	{
 		this.patientIDMatch = patientIDMatch;
+		this.patientIDMatcher = patientIDMatch == null ? null : new TextMatch(patientIDMatch, true, false);
 	}
 
 	public boolean patientIDMatches(String patientID)
 	{
 		if (this.patientIDMatch == null)
 			return true;
-		else {
-			patientIDMatch = removeAsterisk(patientIDMatch);
-			String patientIDRegex = "(?i).*" + patientIDMatch + ".*";
-			if (patientID.matches(patientIDRegex))
-				return true;
-			else
-				return false;
-		}
+		else
+			return patientIDMatcher.matches(patientID);
 	}
 
 	public String getAccessionNumberMatch()
@@ -245,20 +241,15 @@ public class EPADSearchFilter
 	public void setAccessionNumberMatch(String accessionNumberMatch)
 	{
 		this.accessionNumberMatch = accessionNumberMatch;
+		this.accessionNumberMatcher = accessionNumberMatch == null ? null : new TextMatch(accessionNumberMatch, true, false);
 	}
 
 	public boolean accessionNumberMatches(String accessionNumber)
 	{
 		if (this.accessionNumberMatch == null)
 			return true;
-		else {
-			accessionNumberMatch = removeAsterisk(accessionNumberMatch);
-			String accessionNumberRegex = "(?i).*" + accessionNumberMatch + ".*";
-			if (accessionNumber.matches(accessionNumberRegex))
-				return true;
-			else
-				return false;
-		}
+		else
+			return accessionNumberMatcher.matches(accessionNumber);
 	}
 
 	public String getModalityMatch()
@@ -269,6 +260,7 @@ public class EPADSearchFilter
 	public void setModalityMatch(String modalityMatch)
 	{
 		this.modalityMatch = modalityMatch;
+		this.modalityMatcher = modalityMatch == null ? null : new TextMatch(modalityMatch, true, false);
 	}
 
 	public boolean modalitiesMatch(Set<String> modalities)
@@ -283,14 +275,8 @@ public class EPADSearchFilter
 	{
 		if (this.modalityMatch == null)
 			return true;
-		else {
-			modalityMatch = removeAsterisk(modalityMatch);
-			String modalityRegex = "(?i).*" + modalityMatch + ".*";
-			if (modality.matches(modalityRegex))
-				return true;
-			else
-				return false;
-		}
+		else
+			return modalityMatcher.matches(modality);
 	}
 
 	public boolean hasAnnotationsAnnotationMatch()
@@ -456,6 +442,7 @@ public class EPADSearchFilter
 
 	public void setFileTypeMatch(String fileTypeMatch) {
 		this.fileTypeMatch = fileTypeMatch;
+		this.fileTypeMatcher = fileTypeMatch == null ? null : new TextMatch(fileTypeMatch, false, false);
 	};
 
 	public boolean hasFileTypeMatch()
@@ -467,13 +454,8 @@ public class EPADSearchFilter
 	{
 		if (this.fileTypeMatch == null)
 			return true;
-		else {
-			String fileTypeRegex = "(?i).*" + fileTypeMatch + ".*";
-			if (fileType.matches(fileTypeRegex))
-				return true;
-			else
-				return false;
-		}
+		else
+			return fileTypeMatcher.matches(fileType);
 	}
 
 	public boolean shouldFilterFileType(String fileType)
@@ -488,18 +470,136 @@ public class EPADSearchFilter
 				|| (hasFileTypeMatch() && !fileTypeMatches(fileType));
 	}
 	
-	private String removeAsterisk(String match)
-	{
-		match = match.replace('%', '*');
-		while (match.startsWith("*"))
+	/**
+	 * SQL condition on a subject table for the patient ID, name and modality matches, null if there is nothing that
+	 * can be asked of the database. The modality is matched against the patient's series in dcm4chee, like the exam
+	 * types of the subject. Rows that come back still go through shouldFilterSubject.
+	 */
+	public String getSubjectSQLCriteria(String idColumn, String nameColumn)
+	{
+		String criteria = null;
+		if (hasPatientIDMatch() && patientIDMatcher.getLikePattern() != null)
+			criteria = "lower(" + idColumn + ") like '" + patientIDMatcher.getLikePattern() + "' escape '!'";
+		if (hasPatientNameMatch() && patientNameMatcher.getLikePattern() != null)
+		{
+			String nameCriteria = "lower(replace(" + nameColumn + ",'^',' ')) like '" + patientNameMatcher.getLikePattern() + "' escape '!'";
+			criteria = criteria == null ? nameCriteria : criteria + " and " + nameCriteria;
+		}
+		if (hasModalityMatch() && modalityMatcher.getLikePattern() != null)
+		{
+			String modalityCriteria = "exists (select 1 from pacsdb.patient as dp, pacsdb.study as ds, pacsdb.series as dse where dp.pat_id = "
+					+ idColumn + " and ds.patient_fk = dp.pk and dse.study_fk = ds.pk and lower(dse.modality) like '"
+					+ modalityMatcher.getLikePattern() + "' escape '!')";
+			criteria = criteria == null ? modalityCriteria : criteria + " and " + modalityCriteria;
+		}
+		return criteria;
+	}
+
+	/**
+	 * SQL condition on a study table for the accession number match, null if it cannot be asked of the database.
+	 * Like shouldFilterStudy, a modality match has to hold for the same study. An annotation match is counted per
+	 * study, which only the study list can do, so it keeps the accession number match out of the database too.
+	 */
+	public String getStudySQLCriteria(String studyUIDColumn)
+	{
+		if (!hasAccessionNumberMatch() || accessionNumberMatcher.getLikePattern() == null || hasAnnotationMatch())
+			return null;
+		if (hasModalityMatch() && modalityMatcher.getLikePattern() == null)
+			return null;
+		String criteria = "exists (select 1 from pacsdb.study as ds where ds.study_iuid = " + studyUIDColumn
+				+ " and lower(ds.accession_no) like '" + accessionNumberMatcher.getLikePattern() + "' escape '!'";
+		if (hasModalityMatch())
+			criteria = criteria + " and exists (select 1 from pacsdb.series as dse where dse.study_fk = ds.pk and lower(dse.modality) like '"
+					+ modalityMatcher.getLikePattern() + "' escape '!')";
+		return criteria + ")";
+	}
+
+	/**
+	 * True if getSubjectSQLCriteria and getStudySQLCriteria cover everything that would filter a subject, so the
+	 * database can page the subjects
+	 */
+	public boolean hasOnlySubjectSQLCriteria()
+	{
+		return !hasAnnotationMatch()
+				&& (!hasPatientIDMatch() || patientIDMatcher.getLikePattern() != null)
+				&& (!hasPatientNameMatch() || patientNameMatcher.getLikePattern() != null)
+				&& (!hasModalityMatch() || modalityMatcher.getLikePattern() != null)
+				&& (!hasAccessionNumberMatch() || accessionNumberMatcher.getLikePattern() != null);
+	}
+
+	/**
+	 * A match string as the case insensitive 'contains' regex the filter has always used, plus the same match
+	 * as a LIKE pattern when the string has no regex in it
+	 */
+	private static class TextMatch
+	{
+		private static final String REGEX_CHARACTERS = "\\.[]{}()*+?$|";
+
+		private final Pattern pattern;
+		private final boolean patientName;
+		private final String likePattern;
+
+		TextMatch(String match, boolean stripAsterisks, boolean patientName)
 		{
-			match = match.substring(1);
+			if (stripAsterisks)
+				match = removeAsterisk(match);
+			if (patientName)
+				match = match.replace('^', ' ');
+			this.patientName = patientName;
+			Pattern compiled;
+			try {
+				compiled = Pattern.compile("(?i).*" + match + ".*");
+			} catch (PatternSyntaxException e) {
+				log.warning("Invalid search pattern " + match + ", matching it as text");
+				compiled = Pattern.compile("(?i).*" + Pattern.quote(match) + ".*");
+			}
+			this.pattern = compiled;
+			this.likePattern = toLikePattern(match, patientName);
 		}
-		while (match.endsWith("*"))
+
+		boolean matches(String value)
+		{
+			if (value == null)
+				value = "";
+			if (patientName)
+				value = value.replace('^', ' ');
+			return pattern.matcher(value).matches();
+		}
+
+		String getLikePattern()
+		{
+			return likePattern;
+		}
+
+		private static String toLikePattern(String match, boolean patientName)
+		{
+			if (match.length() == 0)
+				return null;
+			StringBuilder like = new StringBuilder("%");
+			for (char c: match.toLowerCase().toCharArray())
+			{
+				if (REGEX_CHARACTERS.indexOf(c) != -1 || (c == '^' && !patientName))
+					return null;
+				if (c == '%' || c == '_' || c == '!')
+					like.append('!');
+				like.append(c);
+			}
+			return DatabaseUtils.escapeQuote(like.append('%').toString());
+		}
+
+		private static String removeAsterisk(String match)
 		{
-			match = match.substring(0, match.length()-1);
+			match = match.replace('%', '*');
+			while (match.startsWith("*"))
+			{
+				match = match.substring(1);
+			}
+			while (match.endsWith("*"))
+			{
+				match = match.substring(0, match.length()-1);
+			}
+			return match;
 		}
-		return match;
 	}
 
 }
@@ -108,5 +108,7 @@ public class PluginRouteTemplates
 {
 	public static final String PLUGIN_LIST = "/plugins/";
 	public static final String PLUGIN = PLUGIN_LIST + "{pluginid}";
+	public static final String PLUGIN_JOB_LIST = PLUGIN + "/jobs/";
+	public static final String PLUGIN_JOB = PLUGIN_JOB_LIST + "{jobid}";
 
 }
@@ -155,6 +155,7 @@ import com.pixelmed.display.SourceImage;
 
 import edu.stanford.epad.common.dicom.DCM4CHEEImageDescription;
 import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
+import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.dicom.DicomFileUtil;
 import edu.stanford.epad.common.dicom.DicomSegmentationObject;
 import edu.stanford.epad.common.pixelmed.PixelMedUtils;
@@ -180,13 +181,19 @@ import edu.stanford.epad.epadws.aim.AIMUtil;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
+import edu.stanford.epad.epadws.dcm4chee.DicomHeaderReader;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
+import edu.stanford.epad.epadws.handlers.dicom.FramePNGWriter.FramePNG;
+import edu.stanford.epad.epadws.handlers.dicom.FramePNGWriter.FrameRenderer;
+import edu.stanford.epad.epadws.handlers.dicom.FramePNGWriter.FrameSource;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.handlers.core.ImageReference;
 import edu.stanford.epad.epadws.models.EpadFile;
 import edu.stanford.epad.epadws.models.FileType;
-import edu.stanford.epad.epadws.queries.Dcm4CheeQueries;
+import edu.stanford.epad.epadws.queries.DICOMMetadataCache;
+import edu.stanford.epad.epadws.queries.Dcm4CheeSeriesTracker;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
@@ -246,7 +253,7 @@ public class DSOUtil
 			}
 			ImageReference imageReference = new ImageReference(dsoEditRequest);
 			log.info("DSO to be edited, UID:" + imageReference.seriesUID);
-			DICOMElementList dicomElements = Dcm4CheeQueries.getDICOMElementsFromWADO(imageReference.studyUID, imageReference.seriesUID, imageReference.imageUID);
+			DICOMElementList dicomElements = DICOMMetadataCache.getInstance().getDICOMElements(imageReference.studyUID, imageReference.seriesUID, imageReference.imageUID);
 			int numberOfSegments = getNumberOfSegments(dicomElements);
 			if (numberOfSegments > 1)
 				throw new Exception("Editing of Multi-Segment DSOs not supported, number of segments:" + numberOfSegments);
@@ -537,6 +544,7 @@ public class DSOUtil
 				// No longer needed since we are updating masks already
 				EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 				epadDatabaseOperations.deleteSeries(dsoSeriesUID);
+				Dcm4CheeSeriesTracker.rescanSeries(dsoSeriesUID);
 			}
 			return true;
 		} catch (Exception e) {
@@ -550,8 +558,6 @@ public class DSOUtil
 		String pngFilePath = "";
 		EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 		try {
-			int numberOfFrames = 1;
-			
 			String pngDirectoryPath = baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID + "/images/"
 					+ imageUID + "/frames/";
 			File pngFilesDirectory = new File(pngDirectoryPath);
@@ -560,48 +566,27 @@ public class DSOUtil
 			log.info("Writing PNGs for MultiFrame DICOM " + imageUID + " in series " + seriesUID);
 
 			pngFilesDirectory.mkdirs();
-			Opener opener = new Opener();
-			ImagePlus image = opener.openImage(dicomFile.getAbsolutePath());
-			if (image != null) {
-				numberOfFrames  = image.getNFrames();
-				int numberOfSlices  = image.getNSlices();
-				log.info("Multiframe dicom, frames:" + numberOfFrames + " slices:" + numberOfSlices + " stack size:" + image.getImageStackSize());
-				ImageStack stack = image.getImageStack();
-	
-				for (int frameNumber = 0; frameNumber < numberOfSlices; frameNumber++) {
-					BufferedImage bufferedImage = stack.getProcessor(frameNumber+1).getBufferedImage();
-					pngFilePath = pngDirectoryPath + frameNumber + ".png";
-					File pngFile = new File(pngFilePath);
-					try {
-						insertEpadFile(databaseOperations, pngFilePath, 0, imageUID);
-						log.info("Writing PNG frame " + frameNumber + " in multi-frame image " + imageUID + " in series " + seriesUID);
-						ImageIO.write(bufferedImage, "png", pngFile);
-						databaseOperations.updateEpadFileRow(pngFilePath, PNGFileProcessingStatus.DONE, pngFile.length(), "");
-					} catch (IOException e) {
-						log.warning("Failure writing PNG file " + pngFilePath + " for frame " + frameNumber
-								+ " in multi-frame image " + imageUID + " in series " + seriesUID, e);
-					}
-				}
-			} else {
-				log.info("Using pixelmed:" + pngFilePath + " Dir:" + pngFilesDirectory.getAbsolutePath());
-				ConsumerFormatImageMaker.convertFileToEightBitImage(dicomFile.getAbsolutePath(), pngFilePath, "png", 0);
-				File[] pngs = pngFilesDirectory.listFiles();
-				for (File png: pngs)
-				{
-					if (!png.getName().endsWith(".png"))
-					{
-						deleteQuietly(png);
-					}
-					else
-					{
-						String name = png.getName().replace("0_","");
-						File newFile = new File(pngDirectoryPath, name);
-						png.renameTo(newFile);
-						insertEpadFile(databaseOperations, newFile.getAbsolutePath(), 0, imageUID);
-						databaseOperations.updateEpadFileRow(newFile.getAbsolutePath(), PNGFileProcessingStatus.DONE,png.length(), "");
-					}
+			FrameSource frames = null;
+			try {
+				frames = FramePNGWriter.openDICOMFrames(dicomFile);
+			} catch (Exception e) {
+				log.warning("Cannot read multi-frame DICOM " + imageUID + " frame by frame, reading it whole", e);
+			}
+			int written = 0;
+			if (frames != null) {
+				try {
+					int numberOfFrames = frames.getNumberOfFrames();
+					log.info("Multiframe dicom, frames:" + numberOfFrames + " size:" + frames.getWidth() + "x" + frames.getHeight());
+					List<FramePNG> pngs = new ArrayList<FramePNG>(numberOfFrames);
+					for (int frameNumber = 0; frameNumber < numberOfFrames; frameNumber++)
+						pngs.add(new FramePNG(frameNumber, pngDirectoryPath + frameNumber + ".png"));
+					written = FramePNGWriter.getInstance().write(seriesUID, imageUID, frames, pngs, null);
+				} finally {
+					frames.close();
 				}
 			}
+			if (written == 0)
+				writeMultiFramePNGsInMemory(seriesUID, imageUID, dicomFile, pngDirectoryPath);
 			log.info("Finished writing PNGs for multi-frame DICOM " + imageUID + " in series " + seriesUID);
 		} catch (Exception e) {
 			log.warning("Exception writing multi-frame PNGs", e);
@@ -612,16 +597,129 @@ public class DSOUtil
 			throw e;
 		} 
 	}
+
+	/**
+	 * For multi-frame images the dcm4che reader cannot read frame by frame; the whole image is opened with ImageJ, or
+	 * converted by pixelmed.
+	 */
+	private static void writeMultiFramePNGsInMemory(String seriesUID, String imageUID, File dicomFile,
+			String pngDirectoryPath) throws Exception
+	{
+		EpadFilesBatchWriter epadFilesWriter = EpadFilesBatchWriter.getInstance();
+		File pngFilesDirectory = new File(pngDirectoryPath);
+		String pngFilePath = pngDirectoryPath + "0.png";
+		Opener opener = new Opener();
+		ImagePlus image = opener.openImage(dicomFile.getAbsolutePath());
+		if (image != null) {
+			int numberOfFrames  = image.getNFrames();
+			int numberOfSlices  = image.getNSlices();
+			log.info("Multiframe dicom, frames:" + numberOfFrames + " slices:" + numberOfSlices + " stack size:" + image.getImageStackSize());
+			ImageStack stack = image.getImageStack();
+
+			for (int frameNumber = 0; frameNumber < numberOfSlices; frameNumber++) {
+				BufferedImage bufferedImage = stack.getProcessor(frameNumber+1).getBufferedImage();
+				pngFilePath = pngDirectoryPath + frameNumber + ".png";
+				File pngFile = new File(pngFilePath);
+				try {
+					log.info("Writing PNG frame " + frameNumber + " in multi-frame image " + imageUID + " in series " + seriesUID);
+					ImageIO.write(bufferedImage, "png", pngFile);
+					epadFilesWriter.insertEpadFile(seriesUID, imageUID, pngFilePath, pngFile.length(), PNGFileProcessingStatus.DONE);
+				} catch (IOException e) {
+					log.warning("Failure writing PNG file " + pngFilePath + " for frame " + frameNumber
+							+ " in multi-frame image " + imageUID + " in series " + seriesUID, e);
+				}
+			}
+		} else {
+			log.info("Using pixelmed:" + pngFilePath + " Dir:" + pngFilesDirectory.getAbsolutePath());
+			ConsumerFormatImageMaker.convertFileToEightBitImage(dicomFile.getAbsolutePath(), pngFilePath, "png", 0);
+			File[] pngs = pngFilesDirectory.listFiles();
+			for (File png: pngs)
+			{
+				if (!png.getName().endsWith(".png"))
+				{
+					deleteQuietly(png);
+				}
+				else
+				{
+					String name = png.getName().replace("0_","");
+					File newFile = new File(pngDirectoryPath, name);
+					png.renameTo(newFile);
+					epadFilesWriter.insertEpadFile(seriesUID, imageUID, newFile.getAbsolutePath(), newFile.length(), PNGFileProcessingStatus.DONE);
+				}
+			}
+		}
+		epadFilesWriter.flush();
+	}
 	
+	/**
+	 * Check the masks of a DSO stored in dcm4chee. The manifest written with the masks is enough while the DSO is the
+	 * same dcm4chee file; otherwise the DSO's MD5, and then its header, are checked against the masks directory.
+	 */
+	public static boolean checkDSOMaskPNGs(DICOMFileDescription dicomFileDescription)
+	{
+		String imageUID = dicomFileDescription.imageUID;
+		String dsoFilePath = dicomFileDescription.filePath;
+		if (DSOMaskManifest.isVerified(imageUID, dsoFilePath))
+			return true;
+		File pngMaskFilesDirectory = new File(baseDicomDirectory + "/studies/" + dicomFileDescription.studyUID + "/series/"
+				+ dicomFileDescription.seriesUID + "/images/" + imageUID + "/masks/");
+		DSOMaskManifest manifest = DSOMaskManifest.read(pngMaskFilesDirectory);
+		if (manifest != null && !manifest.masksPresent(pngMaskFilesDirectory))
+			manifest = null;
+		if (manifest != null && dsoFilePath != null && dsoFilePath.equals(manifest.getDsoFilePath()))
+		{
+			setMasksVerified(dicomFileDescription, manifest);
+			return true;
+		}
+		File dsoFile = new File(EPADConfig.dcm4cheeDirRoot + "/" + dsoFilePath);
+		File temporaryFile = null;
+		try {
+			if (!dsoFile.exists())
+			{
+				log.info("Downloading remote DICOM file with image " + imageUID + " for series UID " + dicomFileDescription.seriesUID);
+				temporaryFile = File.createTempFile(imageUID, ".tmp");
+				DCM4CHEEUtil.downloadDICOMFileFromWADO(dicomFileDescription, temporaryFile);
+				dsoFile = temporaryFile;
+			}
+			if (manifest != null && manifest.getChecksum().equals(DSOMaskManifest.checksum(dsoFile)))
+			{
+				// Same DSO stored again, remember the new file
+				manifest.setDsoFilePath(dsoFilePath);
+				manifest.write(pngMaskFilesDirectory);
+				setMasksVerified(dicomFileDescription, manifest);
+				return true;
+			}
+			boolean complete = checkDSOMaskPNGs(dsoFile);
+			if (complete)
+				DSOMaskManifest.setVerified(imageUID, dsoFilePath);
+			return complete;
+		} catch (Exception e) {
+			log.warning("Error checking DSO masks for series UID " + dicomFileDescription.seriesUID + " and image UID " + imageUID, e);
+			return false;
+		} finally {
+			if (temporaryFile != null)
+				temporaryFile.delete();
+		}
+	}
+
+	private static void setMasksVerified(DICOMFileDescription dicomFileDescription, DSOMaskManifest manifest)
+	{
+		if (manifest.getNumberOfMasks() < manifest.getNumberOfFrames())
+		{
+			// Some referenced series are missing, but pngs are ok
+			EpadDatabase.getInstance().getEPADDatabaseOperations().updateOrInsertSeries(dicomFileDescription.seriesUID, SeriesProcessingStatus.ERROR);
+		}
+		DSOMaskManifest.setVerified(dicomFileDescription.imageUID, dicomFileDescription.filePath);
+	}
+
 	public static boolean checkDSOMaskPNGs(File dsoFile)
 	{
 		String seriesUID = "";
 		try {
 			EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-			DicomSegmentationObject dso = new DicomSegmentationObject();
-			SourceImage sourceDSOImage = dso.convert(dsoFile.getAbsolutePath());
-			int numberOfFrames = sourceDSOImage.getNumberOfBufferedImages();
-			AttributeList dicomAttributes = PixelMedUtils.readAttributeListFromDicomFile(dsoFile.getAbsolutePath());
+			// Only the header is needed, the frames are not decoded
+			AttributeList dicomAttributes = readDICOMHeader(dsoFile);
+			int numberOfFrames = Attribute.getSingleIntegerValueOrDefault(dicomAttributes, TagFromName.NumberOfFrames, 1);
 			String studyUID = Attribute.getSingleStringValueOrEmptyString(dicomAttributes, TagFromName.StudyInstanceUID);
 			seriesUID = Attribute.getSingleStringValueOrEmptyString(dicomAttributes, TagFromName.SeriesInstanceUID);
 			String imageUID = Attribute.getSingleStringValueOrEmptyString(dicomAttributes, TagFromName.SOPInstanceUID);
@@ -638,7 +736,7 @@ public class DSOUtil
 			else
 			{
 				// One more check - find number of referenced images
-				DICOMElementList dicomElementList = Dcm4CheeQueries.getDICOMElementsFromWADO(studyUID, seriesUID, imageUID);
+				DICOMElementList dicomElementList = DICOMMetadataCache.getInstance().getDICOMElements(studyUID, seriesUID, imageUID);
 				List<DICOMElement> referencedSOPInstanceUIDDICOMElements = getDICOMElementsByCode(dicomElementList,
 						PixelMedUtils.ReferencedSOPInstanceUIDCode);
 				for (int i = 0; i < referencedSOPInstanceUIDDICOMElements.size(); i++)
@@ -666,6 +764,16 @@ public class DSOUtil
 		}
 	}
 
+	/**
+	 * Read a DICOM file up to its pixel data
+	 */
+	private static AttributeList readDICOMHeader(File dicomFile) throws IOException, DicomException
+	{
+		AttributeList attributeList = new AttributeList();
+		attributeList.read(dicomFile.getAbsolutePath(), TagFromName.PixelData);
+		return attributeList;
+	}
+
 	public static void writeDSOMaskPNGs(File dsoFile) throws Exception
 	{
 		writeDSOMaskPNGs(dsoFile, null);
@@ -675,38 +783,40 @@ public class DSOUtil
 	{
 		log.info("Start generating DSO PNGs: " + dsoFile.getName());
 		String seriesUID = "";
-		File tmpDSO = File.createTempFile("DSO_" + dsoFile.getName(), ".dcm");
+		FrameSource dsoFrames = null;
 		try {
-			EPADFileUtils.copyFile(dsoFile, tmpDSO);
-			EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+			String checksum = DSOMaskManifest.checksum(dsoFile);
 			EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-			DicomSegmentationObject dso = new DicomSegmentationObject();
-			SourceImage sourceDSOImage = dso.convert(tmpDSO.getAbsolutePath());
-			int numberOfFrames = sourceDSOImage.getNumberOfBufferedImages();
-			AttributeList dicomAttributes = PixelMedUtils.readAttributeListFromDicomFile(tmpDSO.getAbsolutePath());
-			String studyUID = Attribute.getSingleStringValueOrEmptyString(dicomAttributes, TagFromName.StudyInstanceUID);
-			seriesUID = Attribute.getSingleStringValueOrEmptyString(dicomAttributes, TagFromName.SeriesInstanceUID);
-			String imageUID = Attribute.getSingleStringValueOrEmptyString(dicomAttributes, TagFromName.SOPInstanceUID);
+			AttributeList dsoDICOMAttributes = readDICOMHeader(dsoFile);
+			String studyUID = Attribute.getSingleStringValueOrEmptyString(dsoDICOMAttributes, TagFromName.StudyInstanceUID);
+			seriesUID = Attribute.getSingleStringValueOrEmptyString(dsoDICOMAttributes, TagFromName.SeriesInstanceUID);
+			String imageUID = Attribute.getSingleStringValueOrEmptyString(dsoDICOMAttributes, TagFromName.SOPInstanceUID);
+			dsoFrames = openDSOFrames(dsoFile);
+			int numberOfFrames = dsoFrames.getNumberOfFrames();
 			String pngMaskDirectoryPath = baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID + "/images/"
 					+ imageUID + "/masks/";
 			String pngContourDirectoryPath = baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID + "/images/"
 					+ imageUID + "/contours/";
 			File pngMaskFilesDirectory = new File(pngMaskDirectoryPath);
 			pngMaskFilesDirectory.mkdirs();
+			DSOMaskManifest.forget(imageUID);
 			if ("true".equalsIgnoreCase(EPADConfig.getParamValue("GenerateDSOContours")))
 			{
 				File pngContourFilesDirectory = new File(pngContourDirectoryPath);
 				pngContourFilesDirectory.mkdirs();
 			}
 
-			DICOMElementList dicomElementList = Dcm4CheeQueries.getDICOMElementsFromWADO(studyUID, seriesUID, imageUID);
-			AttributeList dsoDICOMAttributes = PixelMedUtils.readDICOMAttributeList(tmpDSO);
+			// The DSO is at hand, so no need to fetch its header from dcm4chee
+			DICOMElementList dicomElementList = DicomHeaderReader.readDICOMElements(dsoFile);
 			//SequenceAttribute segmentSequence = (SequenceAttribute) dsoDICOMAttributes.get(TagFromName.SegmentSequence);
 			//AttributeTag t = TagFromName.SegmentNumber;
 			//Attribute a = new UnsignedShortAttribute(t);
 
 			int nonblankFrame = 0;
 			String nonBlankImageUID="";
+			int numberOfMasks = 0;
+			List<String> frameImageUIDs = new ArrayList<String>();
+			List<MaskPNG> maskPNGs = new ArrayList<MaskPNG>();
 					
 			List<DICOMElement> referencedSOPInstanceUIDDICOMElements = getDICOMElementsByCode(dicomElementList,
 					PixelMedUtils.ReferencedSOPInstanceUIDCode);
@@ -740,16 +850,6 @@ public class DSOUtil
 				}
 				int frameNumber = 0;
 	
-				File[] oldFiles = pngMaskFilesDirectory.listFiles();
-	//			for (File oldFile: oldFiles)
-	//			{
-	//				try
-	//				{
-	//					if (oldFile.getName().contains("png"))
-	//						oldFile.delete();
-	//				} catch (Exception x) {};
-	//			}
-	
 				log.info("Writing PNG masks for DSO " + imageUID + " in series " + seriesUID + " DSOFile:" + dsoFile.getAbsolutePath() + " number of frames:" + numberOfFrames + " ...");
 				List<DCM4CHEEImageDescription> referencedImages = new ArrayList<DCM4CHEEImageDescription>();
 				List<DCM4CHEEImageDescription> imageDescriptions = dcm4CheeDatabaseOperations.getImageDescriptions(
@@ -786,7 +886,6 @@ public class DSOUtil
 						continue;
 					}
 	
-					//log.info("Image dimensions - width " + bufferedImage.getWidth() + ", height " + bufferedImage.getHeight());
 					int instanceNumber = dcm4cheeReferencedImageDescription.instanceNumber;
 					if (instanceNumber == 1 && onefound) // These are dicoms where all instance numbers are one !
 					{
@@ -800,47 +899,8 @@ public class DSOUtil
 					}
 					int refFrameNumber = instanceNumber - instanceOffset; // Frames 0-based, instances 1 or more
 					if (refFrameNumber < 0) continue;
-					log.info("FrameNumber:" + frameNumber + " refFrameNumber:" + refFrameNumber + " instance number:" + dcm4cheeReferencedImageDescription.instanceNumber);
-					projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_DSO_PNG_GEN, seriesUID, "Generating PNGs, frame:" + frameNumber, null, null);
-					String pngMaskFilePath = pngMaskDirectoryPath + refFrameNumber + ".png";
-					try {
-						log.info("buffered image ");
-						BufferedImage bufferedImage = sourceDSOImage.getBufferedImage(frameNumber);
-						log.info("buffered image "+ bufferedImage.toString());
-						
-						BufferedImage bufferedImageWithTransparency = generateTransparentImage(bufferedImage);
-						log.info(" bufferedImageWithTransparency "+ bufferedImageWithTransparency.toString());
-						
-						if (nonBlank.get()) {
-							nonblankFrame = refFrameNumber;
-							nonBlankImageUID = dcm4cheeReferencedImageDescription.imageUID;
-						}
-						log.info(" nonblankFrame "+ nonblankFrame);
-						
-						File pngMaskFile = new File(pngMaskFilePath);
-						log.info(" pngMaskFile "+ pngMaskFile.getAbsolutePath());
-						
-						insertEpadFile(databaseOperations, pngMaskFilePath, pngMaskFile.length(), imageUID);
-						log.info("Writing PNG mask file frame " + frameNumber + " of " + numberOfFrames + " for DSO " + imageUID + " in series " + seriesUID + " file:" + pngMaskFilePath + " nonBlank:" + nonBlank.get());
-						ImageIO.write(bufferedImageWithTransparency, "png", pngMaskFile);
-						databaseOperations.updateEpadFileRow(pngMaskFilePath, PNGFileProcessingStatus.DONE, 0, "");
-					} catch (Exception e) {
-						log.warning("Failure writing PNG mask file " + pngMaskFilePath + " for frame " + frameNumber + " of DSO "
-								+ imageUID + " in series " + seriesUID, e);
-					}
-					
-					// Contours are currently never set to true, so never used
-					if ("true".equalsIgnoreCase(EPADConfig.getParamValue("GenerateDSOContours")))
-					{
-						String pngContourFilePath = pngContourDirectoryPath + refFrameNumber + ".png";
-						try {
-							RunSystemCommand rsc = new RunSystemCommand("convert " + pngMaskFilePath + " -negate -edge 1 -negate " + pngContourFilePath);
-							rsc.run();
-						} catch (Exception e) {
-							log.warning("Failure writing PNG contour file " + pngContourFilePath + " for frame " + frameNumber + " of DSO "
-									+ imageUID + " in series " + seriesUID, e);
-						}
-					}
+					maskPNGs.add(new MaskPNG(frameNumber, pngMaskDirectoryPath + refFrameNumber + ".png", refFrameNumber,
+							referencedImageUID, dcm4cheeReferencedImageDescription.imageUID));
 					frameNumber++;
 				}
 			}
@@ -875,28 +935,44 @@ public class DSOUtil
 					DCM4CHEEImageDescription dcm4cheeReferencedImageDescription = descMap.get(referencedSOPInstanceUIDs[i]);
 					int instanceNumber = dcm4cheeReferencedImageDescription.instanceNumber;
 					int frameNumber = instanceNumber - 1;
-					BufferedImage bufferedImage = sourceDSOImage.getBufferedImage(i);
-					BufferedImage bufferedImageWithTransparency = generateTransparentImage(bufferedImage);
-					if (nonBlank.get()) {
-						nonblankFrame = frameNumber;
-						nonBlankImageUID = dcm4cheeReferencedImageDescription.imageUID;
-					}
-					String pngMaskFilePath = pngMaskDirectoryPath + frameNumber  + "_"  + segmentNumbers[i] + ".png";
-					
-					File pngMaskFile = new File(pngMaskFilePath);
+					maskPNGs.add(new MaskPNG(i, pngMaskDirectoryPath + frameNumber  + "_"  + segmentNumbers[i] + ".png", frameNumber,
+							referencedSOPInstanceUIDs[i], dcm4cheeReferencedImageDescription.imageUID));
+				}
+			}
+
+			projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_DSO_PNG_GEN, seriesUID, "Generating PNGs, frames:" + maskPNGs.size(), null, null);
+			FramePNGWriter.getInstance().write(seriesUID, imageUID, dsoFrames, maskPNGs, maskRenderer);
+			for (MaskPNG maskPNG : maskPNGs) {
+				if (!maskPNG.isWritten())
+					continue;
+				numberOfMasks++;
+				frameImageUIDs.add(maskPNG.referencedImageUID);
+				if (maskPNG.isNonBlank()) {
+					nonblankFrame = maskPNG.referencedFrameNumber;
+					nonBlankImageUID = maskPNG.nonBlankImageUID;
+				}
+				// Contours are currently never set to true, so never used
+				if ("true".equalsIgnoreCase(EPADConfig.getParamValue("GenerateDSOContours")))
+				{
+					String pngContourFilePath = pngContourDirectoryPath + maskPNG.referencedFrameNumber + ".png";
 					try {
-						insertEpadFile(databaseOperations, pngMaskFilePath, pngMaskFile.length(), imageUID);
-						log.info("Writing PNG mask file frame " + frameNumber + " of " + numberOfFrames + " for DSO " + imageUID + " in series " + seriesUID + " file:" + pngMaskFilePath + " nonBlank:" + nonBlank.get());
-						ImageIO.write(bufferedImageWithTransparency, "png", pngMaskFile);
-						databaseOperations.updateEpadFileRow(pngMaskFilePath, PNGFileProcessingStatus.DONE, 0, "");
-					} catch (IOException e) {
-						log.warning("Failure writing PNG mask file " + pngMaskFilePath + " for frame " + frameNumber + " of DSO "
+						RunSystemCommand rsc = new RunSystemCommand("convert " + maskPNG.getFilePath() + " -negate -edge 1 -negate " + pngContourFilePath);
+						rsc.run();
+					} catch (Exception e) {
+						log.warning("Failure writing PNG contour file " + pngContourFilePath + " for frame " + maskPNG.getFrame() + " of DSO "
 								+ imageUID + " in series " + seriesUID, e);
 					}
 				}
-			
 			}
 	
+			try {
+				// Without any masks the DSO is left to be tried again
+				if (numberOfMasks > 0)
+					new DSOMaskManifest(DSOMaskManifest.getDcm4CheeFilePath(dsoFile), checksum, numberOfFrames, numberOfMasks,
+							frameImageUIDs).write(pngMaskFilesDirectory);
+			} catch (IOException e) {
+				log.warning("Error writing mask manifest for DSO " + imageUID + " in series " + seriesUID, e);
+			}
 			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 			List<EPADAIM> aims = epadDatabaseOperations.getAIMsByDSOSeries(seriesUID);
 			for (EPADAIM aim: aims)
@@ -915,11 +991,80 @@ public class DSOUtil
 			log.warning("Exception writing DSO PNG masks, series:" + seriesUID, e);
 			throw new Exception("Exception writing DSO PNG masks, series:" + seriesUID, e);
 		} finally {
-			try {
-				tmpDSO.delete();
-			} catch (Exception e) {};
+			if (dsoFrames != null)
+				dsoFrames.close();
 		}
 	}
+
+	/**
+	 * Frames of the DSO read from the file one at a time, or decoded all at once if its pixel data is compressed.
+	 */
+	private static FrameSource openDSOFrames(File dsoFile) throws Exception
+	{
+		FrameSource frames = FramePNGWriter.openSegmentationFrames(dsoFile);
+		if (frames != null)
+			return frames;
+		log.info("Decoding whole DSO " + dsoFile.getName());
+		final SourceImage sourceDSOImage = new DicomSegmentationObject().convert(dsoFile.getAbsolutePath());
+		return new FrameSource() {
+			@Override
+			public int getNumberOfFrames()
+			{
+				return sourceDSOImage.getNumberOfBufferedImages();
+			}
+
+			@Override
+			public int getWidth()
+			{
+				return sourceDSOImage.getWidth();
+			}
+
+			@Override
+			public int getHeight()
+			{
+				return sourceDSOImage.getHeight();
+			}
+
+			@Override
+			public BufferedImage readFrame(int frame)
+			{
+				return sourceDSOImage.getBufferedImage(frame);
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+	}
+
+	/**
+	 * Mask of a DSO frame; the frame number and image it is for, and the image to start at if the mask is not blank.
+	 */
+	private static class MaskPNG extends FramePNG
+	{
+		final int referencedFrameNumber;
+		final String referencedImageUID;
+		final String nonBlankImageUID;
+
+		MaskPNG(int frame, String filePath, int referencedFrameNumber, String referencedImageUID, String nonBlankImageUID)
+		{
+			super(frame, filePath);
+			this.referencedFrameNumber = referencedFrameNumber;
+			this.referencedImageUID = referencedImageUID;
+			this.nonBlankImageUID = nonBlankImageUID;
+		}
+	}
+
+	private static final FrameRenderer maskRenderer = new FrameRenderer() {
+		@Override
+		public BufferedImage render(FramePNG png, BufferedImage frame)
+		{
+			BufferedImage bufferedImageWithTransparency = generateTransparentImage(frame);
+			png.setNonBlank(nonBlank.get());
+			return bufferedImageWithTransparency;
+		}
+	};
 	
 	private static List<DICOMElement> getDICOMElementsByCode(DICOMElementList dicomElementList, String tagCode)
 	{
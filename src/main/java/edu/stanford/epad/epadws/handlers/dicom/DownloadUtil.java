@@ -108,23 +108,22 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.io.IOUtils;
 
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADFileUtils;
@@ -132,7 +131,6 @@ import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.EPADAIM;
 import edu.stanford.epad.dtos.EPADAIMList;
 import edu.stanford.epad.dtos.EPADFile;
-import edu.stanford.epad.dtos.EPADImage;
 import edu.stanford.epad.dtos.EPADImageList;
 import edu.stanford.epad.dtos.EPADSeries;
 import edu.stanford.epad.dtos.EPADSeriesList;
@@ -193,132 +191,46 @@ public class DownloadUtil {
 		for (String id: ids)
 			subjects.add(id.trim());
 	}
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
-	List<String> fileNames = new ArrayList<String>();
-	//TODO ml change the static numbers
-	//subjects
-	for (String subjectID: subjects)
+	String zipName = "Subjects-" + subjectUIDs + ".zip";
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
+	try
 	{
-		SubjectReference subjectReference = new SubjectReference(null, subjectID);
-		EPADSubject subject = epadOperations.getSubjectDescription(subjectReference, username, sessionID);
-
-		if (!subjects.isEmpty() && !subjects.contains(subject.subjectID)) continue;
-		File subjectDir = new File(downloadDir, "Subject-" + subject.subjectID);
-		subjectDir.mkdirs();
-		//studies
-		EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter);
-		
-		for (EPADStudy study: studyList.ResultSet.Result)
-		{
-			File studyDir = new File(subjectDir, "Study-" + study.studyUID);
-			studyDir.mkdirs();
-
-			StudyReference studyReference = new StudyReference(subjectReference.projectID, subjectReference.subjectID, study.studyUID);
-			//series
-			EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
-			for (EPADSeries series: seriesList.ResultSet.Result)
+		//TODO ml change the static numbers
+		//subjects
+		for (String subjectID: subjects)
+		{
+			SubjectReference subjectReference = new SubjectReference(null, subjectID);
+			EPADSubject subject = epadOperations.getSubjectDescription(subjectReference, username, sessionID);
+	
+			if (!subjects.isEmpty() && !subjects.contains(subject.subjectID)) continue;
+			//studies
+			EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter);
+			
+			for (EPADStudy study: studyList.ResultSet.Result)
 			{
-				File seriesDir = new File(studyDir, "Series-" + series.seriesUID);
-				seriesDir.mkdirs();
-				SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
-				EPADImageList imageList = new EPADImageList();
-				try {
-					imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-				} catch (Exception x) {}
-				for (EPADImage image: imageList.ResultSet.Result)
+				StudyReference studyReference = new StudyReference(subjectReference.projectID, subjectReference.subjectID, study.studyUID);
+				//series
+				EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
+				for (EPADSeries series: seriesList.ResultSet.Result)
 				{
-					String name = image.imageUID + ".dcm";
-					File imageFile = new File(seriesDir, name);
-					fileNames.add("Subject-" + subjectReference.subjectID +"/Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-					FileOutputStream fos = null;
-					try 
-					{
-						fos = new FileOutputStream(imageFile);
-						String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-								+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-						performWADOQuery(queryString, fos, username, sessionID);
-					}
-					catch (Exception x)
-					{
-						log.warning("Error downloading image using wado", x);
-					}
-					finally 
-					{
-						if (fos != null) fos.close();
-					}
-				}
-
-				//ml include aims copied from series
-				if (includeAIMs)
-				{
-					EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-					aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-					for (EPADAIM aim: aimList.ResultSet.Result)
-					{
-						
-						String name ="Aim_" + format4Filename(subject.subjectName)+ "_" +aim.aimID + ".xml";
-						
-						File aimFile = new File(seriesDir, name);
-						fileNames.add("Subject-" + subjectReference.subjectID +"/Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-						FileWriter fw = null;
-						try 
-						{
-							fw = new FileWriter(aimFile);
-							fw.write(aim.xml);
-						}
-						catch (Exception x)
-						{
-							log.warning("Error writing aim file");
-						}
-						finally 
-						{
-							if (fw != null) fw.close();
-						}
-					}
+					String seriesDir = "Subject-" + subjectReference.subjectID +"/Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/";
+					SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
+					addImages(download.zip, seriesDir, seriesReference, sessionID);
+	
+					//ml include aims copied from series
+					if (includeAIMs)
+						addAIMs(download.zip, seriesDir, subject.subjectName, seriesReference, username, sessionID);
 				}
 			}
 		}
-	}
-	String zipName = "Subjects-" + subjectUIDs + ".zip";
-	if (stream)
-	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-	}
-
-	File zipFile = null;
-	OutputStream out = null;
-	try
-	{
-		if (stream)
-		{
-			out = httpResponse.getOutputStream();
-		}
-		else
-		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
-		}
+		download.finish("Subjects", subjectUIDs);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
-	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Subjects", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, subjectUIDs);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
-	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
 }
 /**
  * Method to download Project dicoms
@@ -343,129 +255,44 @@ public static void downloadProject(boolean stream, HttpServletResponse httpRespo
 		for (String id: ids)
 			subjects.add(id.trim());
 	}
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
-	List<String> fileNames = new ArrayList<String>();
-	//TODO ml change the static numbers
-	//subjects
-	EPADSubjectList subjectList = epadOperations.getSubjectDescriptions(projectReference.projectID, username, sessionID, searchFilter, 1, 5000, "", false);
-	for (EPADSubject subject: subjectList.ResultSet.Result)
+	String zipName = "Project-" + projectReference.projectID + ".zip";
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
+	try
 	{
-		if (!subjects.isEmpty() && !subjects.contains(subject.subjectID)) continue;
-		File subjectDir = new File(downloadDir, "Subject-" + subject.subjectID);
-		subjectDir.mkdirs();
-		SubjectReference subjectReference = new SubjectReference(projectReference.projectID, subject.subjectID);
-		//studies
-		EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter);
-		for (EPADStudy study: studyList.ResultSet.Result)
+		//TODO ml change the static numbers
+		//subjects
+		EPADSubjectList subjectList = epadOperations.getSubjectDescriptions(projectReference.projectID, username, sessionID, searchFilter, 1, 5000, "", false);
+		for (EPADSubject subject: subjectList.ResultSet.Result)
 		{
-			File studyDir = new File(subjectDir, "Study-" + study.studyUID);
-			studyDir.mkdirs();
-
-			StudyReference studyReference = new StudyReference(subjectReference.projectID, subjectReference.subjectID, study.studyUID);
-			//series
-			EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
-			for (EPADSeries series: seriesList.ResultSet.Result)
+			if (!subjects.isEmpty() && !subjects.contains(subject.subjectID)) continue;
+			SubjectReference subjectReference = new SubjectReference(projectReference.projectID, subject.subjectID);
+			//studies
+			EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter);
+			for (EPADStudy study: studyList.ResultSet.Result)
 			{
-				File seriesDir = new File(studyDir, "Series-" + series.seriesUID);
-				seriesDir.mkdirs();
-				SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
-				EPADImageList imageList = new EPADImageList();
-				try {
-					imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-				} catch (Exception x) {}
-				for (EPADImage image: imageList.ResultSet.Result)
+				StudyReference studyReference = new StudyReference(subjectReference.projectID, subjectReference.subjectID, study.studyUID);
+				//series
+				EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
+				for (EPADSeries series: seriesList.ResultSet.Result)
 				{
-					String name = image.imageUID + ".dcm";
-					File imageFile = new File(seriesDir, name);
-					fileNames.add("Subject-" + subjectReference.subjectID +"/Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-					FileOutputStream fos = null;
-					try 
-					{
-						fos = new FileOutputStream(imageFile);
-						String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-								+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-						performWADOQuery(queryString, fos, username, sessionID);
-					}
-					catch (Exception x)
-					{
-						log.warning("Error downloading image using wado");
-					}
-					finally 
-					{
-						if (fos != null) fos.close();
-					}
-				}
-
-				//ml include aims copied from series
-				if (includeAIMs)
-				{
-					EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-					aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-					for (EPADAIM aim: aimList.ResultSet.Result)
-					{
-						String name ="Aim_" + format4Filename(subject.subjectName)+ "_" +aim.aimID + ".xml";
-						File aimFile = new File(seriesDir, name);
-						fileNames.add("Subject-" + subjectReference.subjectID +"/Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-						FileWriter fw = null;
-						try 
-						{
-							fw = new FileWriter(aimFile);
-							fw.write(aim.xml);
-						}
-						catch (Exception x)
-						{
-							log.warning("Error writing aim file");
-						}
-						finally 
-						{
-							if (fw != null) fw.close();
-						}
-					}
+					String seriesDir = "Subject-" + subjectReference.subjectID +"/Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/";
+					SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
+					addImages(download.zip, seriesDir, seriesReference, sessionID);
+	
+					//ml include aims copied from series
+					if (includeAIMs)
+						addAIMs(download.zip, seriesDir, subject.subjectName, seriesReference, username, sessionID);
 				}
 			}
 		}
-	}
-	String zipName = "Project-" + projectReference.projectID + ".zip";
-	if (stream)
-	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-	}
-
-	File zipFile = null;
-	OutputStream out = null;
-	try
-	{
-		if (stream)
-		{
-			out = httpResponse.getOutputStream();
-		}
-		else
-		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
-		}
+		download.finish("Project", projectReference.projectID);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
-	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Project", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, projectReference.projectID);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
-	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
-
 }
 
 
@@ -491,120 +318,38 @@ public static void downloadSubject(boolean stream, HttpServletResponse httpRespo
 		for (String id: ids)
 			studies.add(id.trim());
 	}
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
-	List<String> fileNames = new ArrayList<String>();
-	EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter);
-	for (EPADStudy study: studyList.ResultSet.Result)
-	{
-		if (!studies.isEmpty() && !studies.contains(study.studyUID)) continue;
-		File studyDir = new File(downloadDir, "Study-" + study.studyUID);
-		studyDir.mkdirs();
-		StudyReference studyReference = new StudyReference(subjectReference.projectID, subjectReference.subjectID, study.studyUID);
-		EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
-		for (EPADSeries series: seriesList.ResultSet.Result)
-		{
-			log.info("series proj=" + series.projectID + " study proj="+studyReference.projectID);
-			if (series.projectID!= studyReference.projectID) //if the series is not in this project, skip
-				continue;
-			File seriesDir = new File(studyDir, "Series-" + series.seriesUID);
-			seriesDir.mkdirs();
-			SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
-			EPADImageList imageList = new EPADImageList();
-			try {
-				imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-			} catch (Exception x) {}
-			for (EPADImage image: imageList.ResultSet.Result)
-			{
-				String name = image.imageUID + ".dcm";
-				File imageFile = new File(seriesDir, name);
-				fileNames.add("Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-				FileOutputStream fos = null;
-				try 
-				{
-					fos = new FileOutputStream(imageFile);
-					String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-							+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-					performWADOQuery(queryString, fos, username, sessionID);
-				}
-				catch (Exception x)
-				{
-					log.warning("Error downloading image using wado");
-				}
-				finally 
-				{
-					if (fos != null) fos.close();
-				}
-			}
-
-			//ml include aims copied from series
-			if (includeAIMs)
-			{
-				EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-				aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-				for (EPADAIM aim: aimList.ResultSet.Result)
-				{
-					String name ="Aim_" + format4Filename(study.patientName)+ "_" +aim.aimID + ".xml";
-					File aimFile = new File(seriesDir, name);
-					fileNames.add("Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-					FileWriter fw = null;
-					try 
-					{
-						fw = new FileWriter(aimFile);
-						fw.write(aim.xml);
-					}
-					catch (Exception x)
-					{
-						log.warning("Error writing aim file");
-					}
-					finally 
-					{
-						if (fw != null) fw.close();
-					}
-				}
-			}
-		}
-	}
 	String zipName = "Patient-" + subjectReference.subjectID + ".zip";
-	if (stream)
-	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-	}
-
-	File zipFile = null;
-	OutputStream out = null;
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
 	try
 	{
-		if (stream)
-		{
-			out = httpResponse.getOutputStream();
-		}
-		else
+		EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter);
+		for (EPADStudy study: studyList.ResultSet.Result)
 		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
+			if (!studies.isEmpty() && !studies.contains(study.studyUID)) continue;
+			StudyReference studyReference = new StudyReference(subjectReference.projectID, subjectReference.subjectID, study.studyUID);
+			EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
+			for (EPADSeries series: seriesList.ResultSet.Result)
+			{
+				log.info("series proj=" + series.projectID + " study proj="+studyReference.projectID);
+				if (series.projectID!= studyReference.projectID) //if the series is not in this project, skip
+					continue;
+				String seriesDir = "Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/";
+				SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
+				addImages(download.zip, seriesDir, seriesReference, sessionID);
+	
+				//ml include aims copied from series
+				if (includeAIMs)
+					addAIMs(download.zip, seriesDir, study.patientName, seriesReference, username, sessionID);
+			}
 		}
+		download.finish("Patient", subjectReference.subjectID);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
-	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Patient", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, subjectReference.subjectID);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
-	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
-
 }
 
 /**
@@ -628,148 +373,58 @@ public static void downloadStudies(boolean stream, HttpServletResponse httpRespo
 		for (String id: ids)
 			studies.add(id.trim());
 	}
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
 	EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 	EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-	List<String> fileNames = new ArrayList<String>();
-	for (String studyUID: studies)
-	{
-		if (studyUID.length() == 0) continue;
-		File studyDir = new File(downloadDir, "Study-" + studyUID);
-		studyDir.mkdirs();
-
-		StudyReference studyReference = new StudyReference(null, null, studyUID);
-		EPADStudy study = epadOperations.getStudyDescription(studyReference, username, sessionID);
-		if (study == null)
-			throw new Exception("Study not found:" + studyReference.studyUID);
-		studyReference = new StudyReference(null, study.patientID, studyUID);
-		EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, new EPADSearchFilter(), false);
-		for (EPADSeries series: seriesList.ResultSet.Result)
-		{
-			if (series.isNonDicomSeries) {
-				File seriesDir = new File(studyDir, "Series-" + series.seriesUID);
-				seriesDir.mkdirs();
-				List<EpadFile> files = projectOperations.getSeriesFiles(null, null, studyUID, series.seriesUID);
-				for (EpadFile file: files) {
-					String name = file.getName();
-					File epadFile = new File(seriesDir, name);
-					EPADFileUtils.copyFile(new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)), epadFile);
-				}
-				continue;
-			}
-			if (series.isDSO) {
-				try {
-					List<EPADAIM> aims = databaseOperations.getAIMsByDSOSeries(series.seriesUID);
-					boolean skip = true;
-					for (EPADAIM aim: aims) {
-						if (aim.userName.equals(username))
-							skip = false;
-					}
-					if (skip)
-						continue;
-				} catch (Exception x) {};
-			}
-			File seriesDir = new File(studyDir, "Series-" + series.seriesUID);
-			seriesDir.mkdirs();
-			SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
-			EPADImageList imageList = new EPADImageList();
-			try {
-				imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-			} catch (Exception x) {}
-			for (EPADImage image: imageList.ResultSet.Result)
-			{
-				String name = image.imageUID + ".dcm";
-				File imageFile = new File(seriesDir, name);
-				fileNames.add("Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-				FileOutputStream fos = null;
-				try 
-				{
-					fos = new FileOutputStream(imageFile);
-					String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-							+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-					performWADOQuery(queryString, fos, username, sessionID);
-				}
-				catch (Exception x)
-				{
-					log.warning("Error downloading image using wado");
-				}
-				finally 
-				{
-					if (fos != null) fos.close();
-				}
-			}
-			if (includeAIMs)
-			{
-				EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-				aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-				for (EPADAIM aim: aimList.ResultSet.Result)
-				{
-					//String name = "Aim_" + aim.aimID + ".xml";
-					String name ="Aim_" + format4Filename(study.patientName)+ "_" +aim.aimID + ".xml";
-					
-					File aimFile = new File(seriesDir, name);
-					fileNames.add("Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/" + name);
-					FileWriter fw = null;
-					try 
-					{
-						fw = new FileWriter(aimFile);
-						fw.write(aim.xml);
-					}
-					catch (Exception x)
-					{
-						log.warning("Error writing aim file");
-					}
-					finally 
-					{
-						if (fw != null) fw.close();
-					}
-				}
-			}
-		}
-	}
 	String ids = studyUIDs.replace(",","-");
 	if (ids.length() > 128) ids = ids.substring(0, 128);
 	String zipName = "Studies-" + ids + ".zip";
-	if (stream)
-	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-	}
-
-	File zipFile = null;
-	OutputStream out = null;
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
 	try
 	{
-		if (stream)
-		{
-			out = httpResponse.getOutputStream();
-		}
-		else
+		for (String studyUID: studies)
 		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
+			if (studyUID.length() == 0) continue;
+	
+			StudyReference studyReference = new StudyReference(null, null, studyUID);
+			EPADStudy study = epadOperations.getStudyDescription(studyReference, username, sessionID);
+			if (study == null)
+				throw new Exception("Study not found:" + studyReference.studyUID);
+			studyReference = new StudyReference(null, study.patientID, studyUID);
+			EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, new EPADSearchFilter(), false);
+			for (EPADSeries series: seriesList.ResultSet.Result)
+			{
+				String seriesDir = "Study-" + studyReference.studyUID + "/Series-" + series.seriesUID + "/";
+				if (series.isNonDicomSeries) {
+					List<EpadFile> files = projectOperations.getSeriesFiles(null, null, studyUID, series.seriesUID);
+					addEpadFiles(download.zip, seriesDir, files);
+					continue;
+				}
+				if (series.isDSO) {
+					try {
+						List<EPADAIM> aims = databaseOperations.getAIMsByDSOSeries(series.seriesUID);
+						boolean skip = true;
+						for (EPADAIM aim: aims) {
+							if (aim.userName.equals(username))
+								skip = false;
+						}
+						if (skip)
+							continue;
+					} catch (Exception x) {};
+				}
+				SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
+				addImages(download.zip, seriesDir, seriesReference, sessionID);
+				if (includeAIMs)
+					addAIMs(download.zip, seriesDir, study.patientName, seriesReference, username, sessionID);
+			}
 		}
+		download.finish("Studies", studyUIDs);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
-	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Studies", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, studyUIDs);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
-	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
-
 }
 
 /**
@@ -787,80 +442,63 @@ public static void downloadStudies(boolean stream, HttpServletResponse httpRespo
 public static void downloadFiles(HttpServletResponse httpResponse, String[] filePaths, String username) throws Exception
 {
 	log.info("Downloading files:" + filePaths.length);
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
-	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
 	EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-	EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-	List<String> fileNames = new ArrayList<String>();
-	for (String filePath: filePaths)
-	{
-		if (filePath.startsWith("/")) filePath = filePath.substring(1);
-		String[] parts = filePath.split("/");
-		String projectID = null;
-		String subjectID = null;
-		String studyUID = null;
-		String seriesUID = null;
-		String fileName = null;
-		if (parts.length < 4)
-		{
-			log.warning("Invalid filePath:" + filePath);
-			continue;
-		}
-		projectID = parts[1];
-		if (parts.length == 4)
-		{
-			fileName = parts[3];
-		}
-		else if (parts.length == 6)
-		{
-			subjectID = parts[3];
-			fileName = parts[5];
-		}
-		else if (parts.length == 8)
-		{
-			subjectID = parts[3];
-			studyUID = parts[5];
-			fileName = parts[7];
-		}
-		else if (parts.length == 10)
-		{
-			subjectID = parts[3];
-			studyUID = parts[5];
-			seriesUID = parts[7];
-			fileName = parts[9];
-		}
-		else
-		{
-			log.warning("Invalid filePath:" + filePath);
-		}
-		File projectDir = new File(downloadDir, "Project-" + projectID);
-		projectDir.mkdirs();
-		EpadFile file = projectOperations.getEpadFile(projectID, subjectID, studyUID, seriesUID, fileName);
-		String name = file.getName();
-		File epadFile = new File(projectDir, name);
-		EPADFileUtils.copyFile(new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)), epadFile);
-		fileNames.add("Project-" + projectID + "/" + name);
-	}
 	String zipName = "EpadFiles-" + timestamp.format(new Date()) + ".zip";
-	httpResponse.setContentType("application/zip");
-	httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-
-	File zipFile = null;
-	OutputStream out = null;
+	ZipDownload download = new ZipDownload(true, httpResponse, zipName, username, null);
 	try
 	{
-		out = httpResponse.getOutputStream();
+		for (String filePath: filePaths)
+		{
+			if (filePath.startsWith("/")) filePath = filePath.substring(1);
+			String[] parts = filePath.split("/");
+			String projectID = null;
+			String subjectID = null;
+			String studyUID = null;
+			String seriesUID = null;
+			String fileName = null;
+			if (parts.length < 4)
+			{
+				log.warning("Invalid filePath:" + filePath);
+				continue;
+			}
+			projectID = parts[1];
+			if (parts.length == 4)
+			{
+				fileName = parts[3];
+			}
+			else if (parts.length == 6)
+			{
+				subjectID = parts[3];
+				fileName = parts[5];
+			}
+			else if (parts.length == 8)
+			{
+				subjectID = parts[3];
+				studyUID = parts[5];
+				fileName = parts[7];
+			}
+			else if (parts.length == 10)
+			{
+				subjectID = parts[3];
+				studyUID = parts[5];
+				seriesUID = parts[7];
+				fileName = parts[9];
+			}
+			else
+			{
+				log.warning("Invalid filePath:" + filePath);
+			}
+			EpadFile file = projectOperations.getEpadFile(projectID, subjectID, studyUID, seriesUID, fileName);
+			download.zip.addFile("Project-" + projectID + "/" + file.getName(), 
+					new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)));
+		}
+		download.finish(null, null);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
-
 }
 
 private static String getEpadFilePath(EpadFile file)
@@ -894,124 +532,36 @@ public static void downloadStudy(boolean stream, HttpServletResponse httpRespons
 		for (String id: ids)
 			seriesSet.add(id.trim());
 	}
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
-	List<String> fileNames = new ArrayList<String>();
-	EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
-	int imageCount = 0;
-	log.info("Number series in study:" + seriesList.ResultSet.totalRecords);
-	for (EPADSeries series: seriesList.ResultSet.Result)
-	{
-		if (!seriesSet.isEmpty() && !seriesSet.contains(series.seriesUID)) continue;
-		File seriesDir = new File(downloadDir, "Series-"+ series.seriesUID);
-		seriesDir.mkdirs();
-		SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
-		if (series.isNonDicomSeries) {
-			log.debug("Downloading files:" + series.seriesUID);
-			EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-			List<EpadFile> files = projectOperations.getSeriesFiles(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
-			for (EpadFile file: files) {
-				String name = file.getName();
-				File epadFile = new File(seriesDir, name);
-				EPADFileUtils.copyFile(new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)), epadFile);
-				fileNames.add("Series-" + series.seriesUID + "/" + name);
-			}
-			continue;
-		}
-		EPADImageList imageList = new EPADImageList();
-		try {
-			imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-		} catch (Exception x) {}
-		int i = 0;
-		for (EPADImage image: imageList.ResultSet.Result)
-		{
-			imageCount++;
-			String name = image.imageUID + ".dcm";
-			File imageFile = new File(seriesDir, name);
-			fileNames.add("Series-" + series.seriesUID + "/" + name);
-			FileOutputStream fos = null;
-			try 
-			{
-				fos = new FileOutputStream(imageFile);
-				String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-						+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-				performWADOQuery(queryString, fos, username, sessionID);
-			}
-			catch (Exception x)
-			{
-				log.warning("Error downloading image using wado");
-			}
-			finally 
-			{
-				if (fos != null) fos.close();
-			}
-		}
-		if (includeAIMs)
-		{
-			EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-			aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-			for (EPADAIM aim: aimList.ResultSet.Result)
-			{
-				String name ="Aim_" + format4Filename(series.patientName)+ "_" +aim.aimID + ".xml";
-				File aimFile = new File(seriesDir, name);
-				fileNames.add("Series-" + series.seriesUID + "/" + name);
-				FileWriter fw = null;
-				try 
-				{
-					fw = new FileWriter(aimFile);
-					fw.write(aim.xml);
-				}
-				catch (Exception x)
-				{
-					log.warning("Error writing aim file");
-				}
-				finally 
-				{
-					if (fw != null) fw.close();
-				}
-			}
-		}
-	}
 	String zipName = "Patient-" + studyReference.subjectID + "-Study-" + studyReference.studyUID + ".zip";
-	if (stream)
-	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-	}
-
-	File zipFile = null;
-	OutputStream out = null;
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
 	try
 	{
-		if (stream)
-		{
-			out = httpResponse.getOutputStream();
-		}
-		else
+		EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID, searchFilter, false);
+		log.info("Number series in study:" + seriesList.ResultSet.totalRecords);
+		for (EPADSeries series: seriesList.ResultSet.Result)
 		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
+			if (!seriesSet.isEmpty() && !seriesSet.contains(series.seriesUID)) continue;
+			String seriesDir = "Series-"+ series.seriesUID + "/";
+			SeriesReference seriesReference = new SeriesReference(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
+			if (series.isNonDicomSeries) {
+				log.debug("Downloading files:" + series.seriesUID);
+				EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
+				List<EpadFile> files = projectOperations.getSeriesFiles(studyReference.projectID, studyReference.subjectID, studyReference.studyUID, series.seriesUID);
+				addEpadFiles(download.zip, seriesDir, files);
+				continue;
+			}
+			addImages(download.zip, seriesDir, seriesReference, sessionID);
+			if (includeAIMs)
+				addAIMs(download.zip, seriesDir, series.patientName, seriesReference, username, sessionID);
 		}
+		download.finish("Study", studyReference.studyUID);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
-	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Study", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, studyReference.studyUID);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
-	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
-
 }
 
 /**
@@ -1029,125 +579,38 @@ public static void downloadStudy(boolean stream, HttpServletResponse httpRespons
 public static void downloadSeries(boolean stream, HttpServletResponse httpResponse, String seriesUIDs, String username, String sessionID, boolean includeAIMs) throws Exception
 {
 	log.info("Downloading seriesUIDs:" + seriesUIDs + " stream:" + stream);
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
-	List<String> fileNames = new ArrayList<String>();
-	String[] seriesIDs = seriesUIDs.split(",");
-	for (String seriesUID: seriesIDs)
-	{
-		if (seriesUID.trim().length() == 0) continue;
-		File seriesDir = new File(downloadDir, "Series-"+ seriesUID);
-		seriesDir.mkdirs();
-		SeriesReference seriesReference = new SeriesReference(null, null, null, seriesUID);
-		EPADSeries series = epadOperations.getSeriesDescription(seriesReference, username, sessionID);
-		if (series.isNonDicomSeries) {
-			EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-			List<EpadFile> files = projectOperations.getSeriesFiles(null, null, null, series.seriesUID);
-			for (EpadFile file: files) {
-				String name = file.getName();
-				File epadFile = new File(seriesDir, name);
-				EPADFileUtils.copyFile(new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)), epadFile);
-				fileNames.add("Series-" + series.seriesUID + "/" + name);
-			}
-			continue;
-		}
-		seriesReference = new SeriesReference(null, series.patientID, series.studyUID, seriesUID);
-		EPADImageList imageList = new EPADImageList();
-		try {
-			imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-		} catch (Exception x) {}
-		int i = 0;
-		for (EPADImage image: imageList.ResultSet.Result)
-		{
-			String name = image.imageUID + ".dcm";
-			File imageFile = new File(seriesDir, name);
-			fileNames.add("Series-" + series.seriesUID + "/" + name);
-			FileOutputStream fos = null;
-			try 
-			{
-				fos = new FileOutputStream(imageFile);
-				String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-						+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-				performWADOQuery(queryString, fos, username, sessionID);
-			}
-			catch (Exception x)
-			{
-				log.warning("Error downloading image using wado");
-			}
-			finally 
-			{
-				if (fos != null) fos.close();
-			}
-		}
-		if (includeAIMs)
-		{
-			EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-			log.info("go filter");
-			aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-			for (EPADAIM aim: aimList.ResultSet.Result)
-			{
-				String name ="Aim_" + format4Filename(series.patientName)+ "_" +aim.aimID + ".xml";
-				File aimFile = new File(seriesDir, name);
-				fileNames.add("Series-" + series.seriesUID + "/" + name);
-				FileWriter fw = null;
-				try 
-				{
-					fw = new FileWriter(aimFile);
-					fw.write(aim.xml);
-				}
-				catch (Exception x)
-				{
-					log.warning("Error writing aim file");
-				}
-				finally 
-				{
-					if (fw != null) fw.close();
-				}
-			}
-		}
-	}
 	String ids = seriesUIDs.replace(",","-");
 	if (ids.length() > 128) ids = ids.substring(0, 128);
 	String zipName = "Series-" + ids + ".zip";
-	if (stream)
-	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
-	}
-
-	File zipFile = null;
-	OutputStream out = null;
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
 	try
 	{
-		if (stream)
-		{
-			out = httpResponse.getOutputStream();
-		}
-		else
+		String[] seriesIDs = seriesUIDs.split(",");
+		for (String seriesUID: seriesIDs)
 		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
+			if (seriesUID.trim().length() == 0) continue;
+			String seriesDir = "Series-"+ seriesUID + "/";
+			SeriesReference seriesReference = new SeriesReference(null, null, null, seriesUID);
+			EPADSeries series = epadOperations.getSeriesDescription(seriesReference, username, sessionID);
+			if (series.isNonDicomSeries) {
+				EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
+				List<EpadFile> files = projectOperations.getSeriesFiles(null, null, null, series.seriesUID);
+				addEpadFiles(download.zip, seriesDir, files);
+				continue;
+			}
+			seriesReference = new SeriesReference(null, series.patientID, series.studyUID, seriesUID);
+			addImages(download.zip, seriesDir, seriesReference, sessionID);
+			if (includeAIMs)
+				addAIMs(download.zip, seriesDir, series.patientName, seriesReference, username, sessionID);
 		}
+		download.finish("Series", seriesUIDs);
 	}
 	catch (Exception e)
 	{
-		log.warning("Error getting output stream", e);
+		download.abort();
 		throw e;
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
-	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Series", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, seriesUIDs);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
-	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
-
 }
 
 /**
@@ -1165,112 +628,130 @@ public static void downloadSeries(boolean stream, HttpServletResponse httpRespon
 	log.info("Downloading series:" + seriesReference.seriesUID + " stream:" + stream);
 	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
 	EPADSeries series = epadOperations.getSeriesDescription(seriesReference, username, sessionID);
-	String downloadDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis());
-	File downloadDir = new File(downloadDirPath);
-	downloadDir.mkdirs();
-	List<String> fileNames = new ArrayList<String>();
-	if (series.isNonDicomSeries) {
-		EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-		List<EpadFile> files = projectOperations.getSeriesFiles(null, null, null, series.seriesUID);
-		for (EpadFile file: files) {
-			String name = file.getName();
-			File epadFile = new File(downloadDir, name);
-			EPADFileUtils.copyFile(new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)), epadFile);
-			fileNames.add(name);
-		}
-	}
-	else
+	String zipName = "Patient-" + seriesReference.subjectID + "-Study-" + seriesReference.studyUID + "-Serie-" + seriesReference.seriesUID + ".zip";
+	ZipDownload download = new ZipDownload(stream, httpResponse, zipName, username, sessionID);
+	try
 	{
-		EPADImageList imageList = new EPADImageList();
-		try {
-			imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
-		} catch (Exception x) {}
-		for (EPADImage image: imageList.ResultSet.Result)
+		if (series.isNonDicomSeries) {
+			EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
+			List<EpadFile> files = projectOperations.getSeriesFiles(null, null, null, series.seriesUID);
+			addEpadFiles(download.zip, "", files);
+		}
+		else
 		{
-			String name = image.imageUID + ".dcm";
-			File imageFile = new File(downloadDir, name);
-			fileNames.add(name);
-			FileOutputStream fos = null;
-			try 
-			{
-				fos = new FileOutputStream(imageFile);
-				String queryString = "requestType=WADO&studyUID=" + seriesReference.studyUID 
-						+ "&seriesUID=" + seriesReference.seriesUID + "&objectUID=" + image.imageUID + "&contentType=application/dicom";
-				performWADOQuery(queryString, fos, username, sessionID);
-			}
-			catch (Exception x)
-			{
-				log.warning("Error downloading image using wado");
-			}
-			finally 
-			{
-				if (fos != null) fos.close();
-			}
+			addImages(download.zip, "", seriesReference, sessionID);
 		}
-	}
-	if (includeAIMs)
-	{
-		EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
-		log.info("go filter");
-		aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
-		for (EPADAIM aim: aimList.ResultSet.Result)
+		if (includeAIMs)
 		{
-			String name ="Aim_" + format4Filename(series.patientName)+ "_" +aim.aimID + ".xml";
-			File aimFile = new File(downloadDir, name);
-			fileNames.add(name);
-			FileWriter fw = null;
-			try 
-			{
-				fw = new FileWriter(aimFile);
-				fw.write(aim.xml);
-			}
-			catch (Exception x)
-			{
-				log.warning("Error writing aim file");
-			}
-			finally 
-			{
-				if (fw != null) fw.close();
-			}
+			log.info("go filter");
+			addAIMs(download.zip, "", series.patientName, seriesReference, username, sessionID);
 		}
+		download.finish("Series", seriesReference.seriesUID);
 	}
-	String zipName = "Patient-" + seriesReference.subjectID + "-Study-" + seriesReference.studyUID + "-Serie-" + seriesReference.seriesUID + ".zip";
-	if (stream)
+	catch (Exception e)
 	{
-		httpResponse.setContentType("application/zip");
-		httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
+		download.abort();
+		throw e;
 	}
+}
 
-	File zipFile = null;
-	OutputStream out = null;
-	try
+private static void addImages(ZipExportStream zip, String seriesDir, SeriesReference seriesReference, String sessionID) throws IOException
+{
+	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
+	EPADImageList imageList = new EPADImageList();
+	try {
+		imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, null);
+	} catch (Exception x) {}
+	zip.addSeriesImages(seriesDir, seriesReference.studyUID, seriesReference.seriesUID, imageList.ResultSet.Result);
+}
+
+private static void addAIMs(ZipExportStream zip, String seriesDir, String patientName, SeriesReference seriesReference, String username, String sessionID) throws Exception
+{
+	EpadOperations epadOperations = DefaultEpadOperations.getInstance();
+	EPADAIMList aimList = epadOperations.getSeriesAIMDescriptions(seriesReference, username, sessionID);
+	aimList = AIMUtil.filterPermittedImageAnnotations(aimList, username, sessionID);
+	for (EPADAIM aim: aimList.ResultSet.Result)
+	{
+		String name ="Aim_" + format4Filename(patientName)+ "_" +aim.aimID + ".xml";
+		zip.addText(seriesDir + name, aim.xml);
+	}
+}
+
+private static void addEpadFiles(ZipExportStream zip, String seriesDir, List<EpadFile> files) throws IOException
+{
+	for (EpadFile file: files) {
+		zip.addFile(seriesDir + file.getName(), new File(EPADConfig.getEPADWebServerResourcesDir() +  getEpadFilePath(file)));
+	}
+}
+
+/**
+ * A zip that is either streamed to the client or written under the download folder and returned as a link.
+ */
+private static class ZipDownload
+{
+	final boolean stream;
+	final HttpServletResponse httpResponse;
+	final String zipName;
+	final File partialZipFile;
+	final OutputStream out;
+	final ZipExportStream zip;
+
+	ZipDownload(boolean stream, HttpServletResponse httpResponse, String zipName, String username, String sessionID) throws Exception
 	{
-		if (stream)
+		this.stream = stream;
+		this.httpResponse = httpResponse;
+		this.zipName = zipName;
+		try
 		{
-			out = httpResponse.getOutputStream();
+			if (stream)
+			{
+				httpResponse.setContentType("application/zip");
+				httpResponse.setHeader("Content-Disposition", "attachment;filename=\"" + zipName + "\"");
+				partialZipFile = null;
+				out = httpResponse.getOutputStream();
+			}
+			else
+			{
+				File downloadDir = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/");
+				downloadDir.mkdirs();
+				// Unique per export, so concurrent exports with the same name do not write into one file
+				partialZipFile = File.createTempFile(zipName + ".", ".part", downloadDir);
+				out = new FileOutputStream(partialZipFile);
+			}
 		}
-		else
+		catch (Exception e)
 		{
-			zipFile = new File(downloadDir, zipName);
-			out = new FileOutputStream(zipFile);
+			log.warning("Error getting output stream", e);
+			throw e;
 		}
+		zip = new ZipExportStream(out, username, sessionID);
 	}
-	catch (Exception e)
+
+	void finish(String type, String id) throws Exception
 	{
-		log.warning("Error getting output stream", e);
-		throw e;
+		zip.finish();
+		if (!stream)
+		{
+			out.close();
+			File zipFile = new File(partialZipFile.getParentFile(), zipName);
+			Files.move(partialZipFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), type, 
+					formatDate(new Date()), "download/" + zipFile.getName(), true, id);
+			PrintWriter responseStream = httpResponse.getWriter();
+			responseStream.append(epadFile.toJSON());
+		}
 	}
-	ZipAndStreamFiles(out, fileNames, downloadDirPath + "/");
-	if (!stream)
+
+	void abort()
 	{
-		File newZip = new File(EPADConfig.getEPADWebServerResourcesDir() + "download/", zipName);
-		zipFile.renameTo(newZip);
-		EPADFile epadFile = new EPADFile("", "", "", "", "", zipName, zipFile.length(), "Series", 
-				formatDate(new Date()), "download/" + zipFile.getName(), true, seriesReference.seriesUID);
-		PrintWriter responseStream = httpResponse.getWriter();
-		responseStream.append(epadFile.toJSON());
+		zip.abort();
+		if (!stream)
+		{
+			IOUtils.closeQuietly(out);
+			partialZipFile.delete();
+		}
 	}
-	EPADFileUtils.deleteDirectoryAndContents(downloadDir);
 }
 
 /**
@@ -1431,65 +912,6 @@ private static String buildWADOURL(String host, int port, String base, String qu
 	return sb.toString();
 }
 
-public static boolean ZipAndStreamFiles(OutputStream out, List<String> fileNames, String dirPath)
-{
-
-	File dir_file = new File(dirPath);
-	int dir_l = dir_file.getAbsolutePath().length();
-	ZipOutputStream zipout = new ZipOutputStream(out);
-	zipout.setLevel(1);
-	for (int i = 0; i < fileNames.size(); i++)
-	{
-		File f = (File) new File(dirPath + fileNames.get(i));
-		if (f.canRead())
-		{
-			log.debug("Adding file: " + f.getAbsolutePath());
-			try
-			{
-				zipout.putNextEntry(new ZipEntry(f.getAbsolutePath().substring(dir_l + 1)));
-			}
-			catch (Exception e)
-			{
-				log.warning("Error adding to zip file", e);
-				return false;
-			}
-			BufferedInputStream fr;
-			try
-			{
-				fr = new BufferedInputStream(new FileInputStream(f));
-
-				byte buffer[] = new byte[0xffff];
-				int b;
-				while ((b = fr.read(buffer)) != -1)
-					zipout.write(buffer, 0, b);
-
-				fr.close();
-				zipout.closeEntry();
-
-			}
-			catch (Exception e)
-			{
-				log.warning("Error closing zip file", e);
-				return false;
-			}
-		}
-	}
-
-	try
-	{
-		zipout.finish();
-		out.flush();
-	}
-	catch (IOException e)
-	{
-		e.printStackTrace();
-		return false;
-	}
-
-	return true;
-
-}
-
 private static String format4Filename(String name) {
 	return name.replaceAll("[^A-Za-z0-9 _\\.\\-:]", "");
 }
@@ -0,0 +1,560 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.dicom;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.PNGFileProcessingStatus;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
+
+/**
+ * Writes one PNG per frame of a multi-frame object (a multi-frame image or a DSO) without holding the whole object in
+ * memory. Frames are decoded one at a time by the calling thread and encoded to PNG on a shared pool of
+ * FramePNGThreads threads. An object only has as many decoded frames waiting for the pool as fit in FramePNGMemoryMB,
+ * so large enhanced multi-frame images no longer run the server out of memory.
+ * <p>
+ * The <code>epad_files</code> row of each frame is queued on the {@link EpadFilesBatchWriter} once its PNG is written,
+ * and everything queued is flushed before {@link #write} returns.
+ */
+public class FramePNGWriter
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final FramePNGWriter ourInstance = new FramePNGWriter();
+
+	private final int threads;
+	private final long maxBytesPerObject;
+	private final ThreadPoolExecutor encoders;
+
+	private final AtomicLong objectsWritten = new AtomicLong();
+	private final AtomicLong framesWritten = new AtomicLong();
+	private final AtomicLong framesFailed = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong millis = new AtomicLong();
+	private volatile String lastObject = "";
+
+	/**
+	 * Frames of a multi-frame object. Only called by the thread calling {@link FramePNGWriter#write}.
+	 */
+	public interface FrameSource
+	{
+		int getNumberOfFrames();
+
+		int getWidth();
+
+		int getHeight();
+
+		BufferedImage readFrame(int frame) throws Exception;
+
+		void close();
+	}
+
+	/**
+	 * Turns a decoded frame into the image written as its PNG. Called on the pool's threads.
+	 */
+	public interface FrameRenderer
+	{
+		BufferedImage render(FramePNG png, BufferedImage frame) throws Exception;
+	}
+
+	/**
+	 * A PNG to write from a frame of the source.
+	 */
+	public static class FramePNG
+	{
+		private final int frame;
+		private final String filePath;
+		private volatile boolean written = false;
+		private volatile boolean nonBlank = false;
+		private volatile long fileSize = 0;
+
+		public FramePNG(int frame, String filePath)
+		{
+			this.frame = frame;
+			this.filePath = filePath;
+		}
+
+		public int getFrame()
+		{
+			return frame;
+		}
+
+		public String getFilePath()
+		{
+			return filePath;
+		}
+
+		public boolean isWritten()
+		{
+			return written;
+		}
+
+		public boolean isNonBlank()
+		{
+			return nonBlank;
+		}
+
+		public void setNonBlank(boolean nonBlank)
+		{
+			this.nonBlank = nonBlank;
+		}
+
+		public long getFileSize()
+		{
+			return fileSize;
+		}
+	}
+
+	public static FramePNGWriter getInstance()
+	{
+		return ourInstance;
+	}
+
+	private FramePNGWriter()
+	{
+		threads = ConfigParams.getPositiveIntParam("FramePNGThreads", Runtime.getRuntime().availableProcessors());
+		maxBytesPerObject = ConfigParams.getPositiveIntParam("FramePNGMemoryMB", 256) * 1024L * 1024L;
+		encoders = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "FramePNGWriter-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY); // Let interactive threads run sooner
+						return thread;
+					}
+				});
+		encoders.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Write the PNGs of an object's frames, in the order given, and add their <code>epad_files</code> rows. A frame
+	 * that cannot be decoded or written is logged and skipped.
+	 * 
+	 * @param renderer null to write the decoded frames as they are
+	 * @return number of PNGs written
+	 */
+	public int write(String seriesUID, String imageUID, FrameSource source, List<? extends FramePNG> pngs,
+			FrameRenderer renderer) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		int maxFramesInFlight = getMaxFramesInFlight(source);
+		Semaphore inFlight = new Semaphore(maxFramesInFlight);
+		List<Future<?>> encodings = new ArrayList<Future<?>>(pngs.size());
+		try {
+			for (FramePNG png : pngs) {
+				inFlight.acquire();
+				BufferedImage frame;
+				try {
+					frame = source.readFrame(png.getFrame());
+				} catch (Exception e) {
+					inFlight.release();
+					log.warning("Failure decoding frame " + png.getFrame() + " of image " + imageUID + " in series "
+							+ seriesUID, e);
+					continue;
+				}
+				encodings.add(encoders.submit(new FrameEncoder(seriesUID, imageUID, png, frame, renderer, inFlight)));
+			}
+			for (Future<?> encoding : encodings)
+				encoding.get();
+		} catch (ExecutionException e) { // FrameEncoder catches everything, so not expected
+			log.warning("Failure writing PNGs of image " + imageUID + " in series " + seriesUID, e);
+		} finally {
+			for (Future<?> encoding : encodings)
+				encoding.cancel(false);
+			EpadFilesBatchWriter.getInstance().flush();
+		}
+
+		int written = 0;
+		long bytes = 0;
+		for (FramePNG png : pngs) {
+			if (png.isWritten()) {
+				written++;
+				bytes += png.getFileSize();
+			}
+		}
+		int failed = pngs.size() - written;
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		objectsWritten.incrementAndGet();
+		framesWritten.addAndGet(written);
+		framesFailed.addAndGet(failed);
+		bytesWritten.addAndGet(bytes);
+		millis.addAndGet(elapsed);
+		lastObject = imageUID + " frames:" + written + " failed:" + failed + " ms:" + elapsed + " framesPerSecond:"
+				+ (written * 1000L / elapsed);
+		log.info("Wrote " + written + " of " + pngs.size() + " frame PNGs of image " + imageUID + " in series "
+				+ seriesUID + " in " + elapsed + "ms, " + (written * 1000L / elapsed) + " frames/s, "
+				+ (bytes * 1000L / elapsed / 1024) + " KB/s, up to " + maxFramesInFlight + " frames in flight");
+		return written;
+	}
+
+	public String getStatistics()
+	{
+		long elapsed = Math.max(1, millis.get());
+		return "threads:" + threads + " active:" + encoders.getActiveCount() + " queued:" + encoders.getQueue().size()
+				+ " objects:" + objectsWritten.get() + " frames:" + framesWritten.get() + " failed:" + framesFailed.get()
+				+ " framesPerSecond:" + (framesWritten.get() * 1000L / elapsed) + " last:" + lastObject;
+	}
+
+	/**
+	 * Decoded frames, and the rendered image of each, that fit in FramePNGMemoryMB; at least one, at most twice the
+	 * number of threads.
+	 */
+	private int getMaxFramesInFlight(FrameSource source)
+	{
+		long frameBytes = Math.max(1L, (long)source.getWidth() * source.getHeight() * 8); // ARGB frame and its PNG's image
+		return (int)Math.max(1, Math.min(2L * threads, maxBytesPerObject / frameBytes));
+	}
+
+	private static class FrameEncoder implements Runnable
+	{
+		private final String seriesUID;
+		private final String imageUID;
+		private final FramePNG png;
+		private final FrameRenderer renderer;
+		private final Semaphore inFlight;
+		private BufferedImage frame;
+
+		FrameEncoder(String seriesUID, String imageUID, FramePNG png, BufferedImage frame, FrameRenderer renderer,
+				Semaphore inFlight)
+		{
+			this.seriesUID = seriesUID;
+			this.imageUID = imageUID;
+			this.png = png;
+			this.frame = frame;
+			this.renderer = renderer;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				BufferedImage image = renderer == null ? frame : renderer.render(png, frame);
+				frame = null;
+				File pngFile = new File(png.getFilePath());
+				if (!ImageIO.write(image, "png", pngFile))
+					throw new IOException("No PNG writer for image type " + image.getType());
+				png.fileSize = pngFile.length();
+				png.written = true;
+				EpadFilesBatchWriter.getInstance().insertEpadFile(seriesUID, imageUID, png.getFilePath(), png.fileSize,
+						PNGFileProcessingStatus.DONE);
+			} catch (Throwable t) {
+				log.warning("Failure writing PNG file " + png.getFilePath() + " for frame " + png.getFrame() + " of image "
+						+ imageUID + " in series " + seriesUID, t);
+			} finally {
+				frame = null;
+				inFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * Frames of a DICOM file read with the dcm4che image reader, which seeks to each frame rather than reading them all.
+	 * Monochrome frames come out windowed to 8 bits, as for single-frame images.
+	 */
+	public static FrameSource openDICOMFrames(File dicomFile) throws IOException
+	{
+		Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("DICOM");
+		if (!readers.hasNext())
+			throw new IOException("No DICOM image reader");
+		final ImageReader reader = readers.next();
+		final ImageInputStream imageInputStream = ImageIO.createImageInputStream(dicomFile);
+		try {
+			reader.setInput(imageInputStream, false);
+			final int numberOfFrames = reader.getNumImages(true);
+			final int width = reader.getWidth(0);
+			final int height = reader.getHeight(0);
+			return new FrameSource() {
+				@Override
+				public int getNumberOfFrames()
+				{
+					return numberOfFrames;
+				}
+
+				@Override
+				public int getWidth()
+				{
+					return width;
+				}
+
+				@Override
+				public int getHeight()
+				{
+					return height;
+				}
+
+				@Override
+				public BufferedImage readFrame(int frame) throws IOException
+				{
+					return reader.read(frame);
+				}
+
+				@Override
+				public void close()
+				{
+					reader.dispose();
+					IOUtils.closeQuietly(imageInputStream);
+				}
+			};
+		} catch (IOException e) {
+			reader.dispose();
+			IOUtils.closeQuietly(imageInputStream);
+			throw e;
+		} catch (RuntimeException e) {
+			reader.dispose();
+			IOUtils.closeQuietly(imageInputStream);
+			throw e;
+		}
+	}
+
+	/**
+	 * Frames of a DICOM segmentation with uncompressed 1 or 8 bit pixel data, read straight from the file one frame at
+	 * a time. Set bits of a binary segmentation come out as 255.
+	 * 
+	 * @return null if the pixel data is compressed, big endian or otherwise not laid out frame after frame
+	 */
+	public static FrameSource openSegmentationFrames(File dsoFile) throws IOException
+	{
+		DicomInputStream dicomInputStream = null;
+		DicomObject header;
+		long pixelDataPosition;
+		long pixelDataLength;
+		try {
+			dicomInputStream = new DicomInputStream(dsoFile);
+			dicomInputStream.setHandler(new StopTagInputHandler(Tag.PixelData));
+			header = dicomInputStream.readDicomObject();
+			TransferSyntax transferSyntax = dicomInputStream.getTransferSyntax();
+			if (dicomInputStream.tag() != Tag.PixelData || dicomInputStream.valueLength() == -1
+					|| transferSyntax.deflated() || transferSyntax.bigEndian())
+				return null;
+			pixelDataPosition = dicomInputStream.getStreamPosition();
+			pixelDataLength = dicomInputStream.valueLength() & 0xFFFFFFFFL;
+		} finally {
+			IOUtils.closeQuietly(dicomInputStream);
+		}
+		int rows = header.getInt(Tag.Rows);
+		int columns = header.getInt(Tag.Columns);
+		int bitsAllocated = header.getInt(Tag.BitsAllocated);
+		int numberOfFrames = header.getInt(Tag.NumberOfFrames, 1);
+		if (rows <= 0 || columns <= 0 || header.getInt(Tag.SamplesPerPixel, 1) != 1
+				|| (bitsAllocated != 1 && bitsAllocated != 8))
+			return null;
+		long bytesNeeded = ((long)rows * columns * bitsAllocated * numberOfFrames + 7) / 8;
+		if (bytesNeeded > pixelDataLength || pixelDataPosition + bytesNeeded > dsoFile.length())
+			return null;
+		return new SegmentationFrames(dsoFile, pixelDataPosition, rows, columns, bitsAllocated, numberOfFrames);
+	}
+
+	static class SegmentationFrames implements FrameSource
+	{
+		private final RandomAccessFile file;
+		private final long pixelDataPosition;
+		private final int rows;
+		private final int columns;
+		private final int bitsAllocated;
+		private final int numberOfFrames;
+
+		SegmentationFrames(File dsoFile, long pixelDataPosition, int rows, int columns, int bitsAllocated,
+				int numberOfFrames) throws IOException
+		{
+			this.file = new RandomAccessFile(dsoFile, "r");
+			this.pixelDataPosition = pixelDataPosition;
+			this.rows = rows;
+			this.columns = columns;
+			this.bitsAllocated = bitsAllocated;
+			this.numberOfFrames = numberOfFrames;
+		}
+
+		@Override
+		public int getNumberOfFrames()
+		{
+			return numberOfFrames;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return columns;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return rows;
+		}
+
+		@Override
+		public BufferedImage readFrame(int frame) throws IOException
+		{
+			if (frame < 0 || frame >= numberOfFrames)
+				throw new IOException("Frame " + frame + " out of range, number of frames " + numberOfFrames);
+			int pixelsPerFrame = rows * columns;
+			BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+			byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+			if (bitsAllocated == 8) {
+				file.seek(pixelDataPosition + (long)frame * pixelsPerFrame);
+				file.readFully(pixels);
+			} else { // Frames are not byte aligned, a frame can start in the middle of a byte
+				long firstBit = (long)frame * pixelsPerFrame;
+				int bitOffset = (int)(firstBit & 7);
+				byte[] packed = new byte[(bitOffset + pixelsPerFrame + 7) / 8];
+				file.seek(pixelDataPosition + (firstBit >> 3));
+				file.readFully(packed);
+				unpackBits(packed, bitOffset, pixels);
+			}
+			return image;
+		}
+
+		@Override
+		public void close()
+		{
+			IOUtils.closeQuietly(file);
+		}
+
+		/**
+		 * DICOM packs 1 bit pixels from the least significant bit of each byte.
+		 */
+		static void unpackBits(byte[] packed, int bitOffset, byte[] pixels)
+		{
+			for (int i = 0; i < pixels.length; i++) {
+				int bit = bitOffset + i;
+				pixels[i] = (packed[bit >> 3] & (1 << (bit & 7))) != 0 ? (byte)0xFF : 0;
+			}
+		}
+	}
+}
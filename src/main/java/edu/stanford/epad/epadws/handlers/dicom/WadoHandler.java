@@ -104,19 +104,32 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.handlers.dicom;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.SessionService;
@@ -134,6 +147,22 @@ public class WadoHandler extends AbstractHandler
 
 	private static final String INVALID_SESSION_TOKEN_MESSAGE = "Session token is invalid on WADO route";
 
+	private static final String DICOM_CONTENT_TYPE = "application/dicom";
+	private static final Set<String> DIRECT_PARAMETERS = new HashSet<String>(Arrays.asList("requestType", "studyUID",
+			"seriesUID", "objectUID", "contentType"));
+	private static final int MAX_CACHED_FILE_PATHS = 10000;
+
+	/** Archive file path (relative to the dcm4chee root) by image UID, so slice scrolling skips the database */
+	private static final Map<String, String> archiveFilePaths = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+		{
+			return size() > MAX_CACHED_FILE_PATHS;
+		}
+	};
+
 	@Override
 	public void handle(String s, Request request, HttpServletRequest httpRequest, HttpServletResponse httpResponse)
 	{
@@ -173,7 +202,12 @@ public class WadoHandler extends AbstractHandler
 						String queryString = httpRequest.getQueryString();
 						queryString = URLDecoder.decode(queryString, "UTF-8");
 						if (queryString != null) {
-							statusCode = performWADOQuery(queryString, responseStream, username, sessionID);
+							File archiveFile = getArchiveFile(queryString);
+							if (archiveFile != null)
+								statusCode = serveArchiveFile(archiveFile, httpRequest, httpResponse, responseStream, username,
+										sessionID, queryString);
+							else
+								statusCode = performWADOQuery(queryString, responseStream, username, sessionID);
 						} else {
 							statusCode = HandlerUtil.badRequestResponse(MISSING_QUERY_MESSAGE, log);
 							log.warning("Missing Wado query");
@@ -198,6 +232,179 @@ public class WadoHandler extends AbstractHandler
 		return true;
 	}
 
+	/**
+	 * A request for the original DICOM object can be answered from the dcm4chee archive file without going through
+	 * dcm4chee's WADO service. Anything that needs dcm4chee to transform the object (rendering, transcoding, frame
+	 * selection...) returns null and is proxied as before.
+	 */
+	private File getArchiveFile(String queryString)
+	{
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (String parameter : queryString.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals == -1)
+				continue;
+			String name = parameter.substring(0, equals);
+			if (!DIRECT_PARAMETERS.contains(name))
+				return null;
+			parameters.put(name, parameter.substring(equals + 1).trim());
+		}
+		String imageUID = parameters.get("objectUID");
+		if (!DICOM_CONTENT_TYPE.equalsIgnoreCase(parameters.get("contentType")) || imageUID == null
+				|| imageUID.length() == 0)
+			return null;
+
+		String filePath;
+		synchronized (archiveFilePaths) {
+			filePath = archiveFilePaths.get(imageUID);
+		}
+		if (filePath == null) {
+			filePath = Dcm4CheeDatabase.getInstance().getDcm4CheeDatabaseOperations().getDICOMFilePathForImage(imageUID);
+			if (filePath == null)
+				return null;
+		}
+		File archiveFile = new File(EPADConfig.dcm4cheeDirRoot, filePath);
+		if (!archiveFile.canRead()) {
+			synchronized (archiveFilePaths) {
+				archiveFilePaths.remove(imageUID);
+			}
+			return null;
+		}
+		synchronized (archiveFilePaths) {
+			archiveFilePaths.put(imageUID, filePath);
+		}
+		return archiveFile;
+	}
+
+	private int serveArchiveFile(File archiveFile, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+			ServletOutputStream outputStream, String username, String sessionID, String queryString) throws IOException
+	{
+		long length = archiveFile.length();
+		long lastModified = archiveFile.lastModified();
+		String eTag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+
+		httpResponse.setHeader("ETag", eTag);
+		httpResponse.setDateHeader("Last-Modified", lastModified);
+		httpResponse.setHeader("Accept-Ranges", "bytes");
+		if (isNotModified(httpRequest, eTag, lastModified)) {
+			httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return HttpServletResponse.SC_NOT_MODIFIED;
+		}
+
+		long start = 0;
+		long end = length - 1;
+		int statusCode = HttpServletResponse.SC_OK;
+		String range = httpRequest.getHeader("Range");
+		if (range != null && isRangeApplicable(httpRequest, eTag, lastModified)) {
+			long[] bounds = parseRange(range, length);
+			if (bounds == null) {
+				httpResponse.setHeader("Content-Range", "bytes */" + length);
+				httpResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+			} else if (bounds.length == 2) {
+				start = bounds[0];
+				end = bounds[1];
+				statusCode = HttpServletResponse.SC_PARTIAL_CONTENT;
+				httpResponse.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+		if (start == 0)
+			log.info("User:" + username + " host:" + EPADSessionOperations.getSessionHost(sessionID)
+					+ " Wado Request to download dicom:" + queryString + " (archive file)");
+
+		long count = end - start + 1;
+		httpResponse.setStatus(statusCode);
+		httpResponse.setHeader("Content-Length", Long.toString(count));
+		FileInputStream fileInputStream = null;
+		try {
+			fileInputStream = new FileInputStream(archiveFile);
+			FileChannel fileChannel = fileInputStream.getChannel();
+			WritableByteChannel responseChannel = Channels.newChannel(outputStream);
+			long position = start;
+			while (count > 0) {
+				long transferred = fileChannel.transferTo(position, count, responseChannel);
+				if (transferred <= 0)
+					break;
+				position += transferred;
+				count -= transferred;
+			}
+		} finally {
+			IOUtils.closeQuietly(fileInputStream);
+		}
+		return statusCode;
+	}
+
+	private boolean isNotModified(HttpServletRequest httpRequest, String eTag, long lastModified)
+	{
+		String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+			return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(eTag);
+		long ifModifiedSince = getDateHeader(httpRequest, "If-Modified-Since");
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * A Range with an If-Range that no longer matches gets the whole file.
+	 */
+	private boolean isRangeApplicable(HttpServletRequest httpRequest, String eTag, long lastModified)
+	{
+		String ifRange = httpRequest.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.trim().startsWith("\""))
+			return ifRange.trim().equals(eTag);
+		long ifRangeDate = getDateHeader(httpRequest, "If-Range");
+		return ifRangeDate != -1 && lastModified / 1000 <= ifRangeDate / 1000;
+	}
+
+	private long getDateHeader(HttpServletRequest httpRequest, String name)
+	{
+		try {
+			return httpRequest.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse a single "bytes=" range. Returns {start, end}, an empty array if the header should be ignored (malformed or
+	 * several ranges) or null if the range cannot be satisfied.
+	 */
+	static long[] parseRange(String range, long length)
+	{
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+			return new long[0];
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1)
+			return new long[0];
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start, end;
+			if (first.length() == 0) { // Suffix range: the last n bytes
+				if (last.length() == 0)
+					return new long[0];
+				long suffix = Long.parseLong(last);
+				if (suffix == 0 || length == 0)
+					return null;
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+				if (start >= length)
+					return null;
+				if (end < start)
+					return new long[0];
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
 	private int performWADOQuery(String queryString, ServletOutputStream outputStream, String username, String sessionID)
 
 	{
@@ -110,12 +110,17 @@ import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -126,6 +131,7 @@ import edu.stanford.epad.dtos.TaskStatus;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.processing.events.EventBus;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.SessionService;
@@ -150,6 +156,8 @@ public class EventHandler extends AbstractHandler
 	public static final String EVENT_COMPLETE = "complete";
 	public static final String EVENT_FAILED = "failed";
 	
+	private static final int MAX_WAIT_SECONDS = 60;
+
 	private static int count = 999;
 	
 	@Override
@@ -181,7 +189,16 @@ public class EventHandler extends AbstractHandler
 						boolean json = "json".equalsIgnoreCase(httpRequest.getParameter("format"));
 						if (json)
 							httpResponse.setContentType("application/json");
-						findEventsForSessionID(username, responseStream, jsessionID, json);
+						if (jsessionID.indexOf(",") != -1)
+							jsessionID = jsessionID.substring(0, jsessionID.indexOf(","));
+						List<Map<String, String>> events = takeEvents(username, jsessionID);
+						int wait = getWaitSeconds(httpRequest);
+						Continuation continuation = ContinuationSupport.getContinuation(httpRequest);
+						if (events.isEmpty() && wait > 0 && continuation.isInitial()) {
+							waitForEvents(continuation, username, jsessionID, wait);
+							return;
+						}
+						writeEvents(events, responseStream, json);
 						statusCode = HttpServletResponse.SC_OK;
 					} else {
 						statusCode = HandlerUtil.badRequestResponse(MISSING_JSESSIONID_MESSAGE, log);
@@ -284,15 +301,74 @@ public class EventHandler extends AbstractHandler
 
 	public static Map<String, Map<String, String>> deletedEvents = new HashMap<String, Map<String, String>>();
 	
-	private void findEventsForSessionID(String username, PrintWriter responseStream, String sessionID, boolean json)
+	/**
+	 * Long-poll: the request is suspended without holding a thread until an event is published for the session or
+	 * user, or the wait times out, and is then dispatched again to write whatever has arrived.
+	 */
+	private void waitForEvents(final Continuation continuation, String username, String sessionID, int wait)
+	{
+		final Set<String> keys = new HashSet<String>();
+		keys.add(sessionID);
+		if (username != null)
+			keys.add(username);
+		final EventBus.EventListener listener = new EventBus.EventListener() {
+			@Override
+			public void eventsAvailable(String key)
+			{
+				resume(continuation);
+			}
+		};
+		continuation.setTimeout(wait * 1000L);
+		continuation.addContinuationListener(new ContinuationListener() {
+			@Override
+			public void onComplete(Continuation continuation)
+			{
+				EventBus.getInstance().removeListener(keys, listener);
+			}
+
+			@Override
+			public void onTimeout(Continuation continuation)
+			{
+				EventBus.getInstance().removeListener(keys, listener);
+			}
+		});
+		continuation.suspend();
+		if (!EventBus.getInstance().addListener(keys, listener))
+			resume(continuation);
+	}
+
+	private static void resume(Continuation continuation)
+	{
+		try {
+			continuation.resume();
+		} catch (IllegalStateException e) {
+			// Already resumed or expired
+		}
+	}
+
+	private static int getWaitSeconds(HttpServletRequest httpRequest)
+	{
+		String wait = httpRequest.getParameter("wait");
+		if (wait == null)
+			return 0;
+		try {
+			return Math.max(0, Math.min(MAX_WAIT_SECONDS, Integer.parseInt(wait.trim())));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private List<Map<String, String>> takeEvents(String username, String sessionID)
+	{
+		List<Map<String, String>> eventMap = EventBus.getInstance().take(sessionID);
+		if (username != null)
+			eventMap.addAll(EventBus.getInstance().take(username));
+		return eventMap;
+	}
+
+	private void writeEvents(List<Map<String, String>> eventMap, PrintWriter responseStream, boolean json)
 	{
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 		// TODO This map should be replaced with a class describing an event.
-		if (sessionID.indexOf(",") != -1)
-			sessionID = sessionID.substring(0, sessionID.indexOf(","));
-		List<Map<String, String>> eventMap = epadDatabaseOperations.getEpadEventsForSessionID(sessionID, true);
-		List<Map<String, String>> userEvents = epadDatabaseOperations.getEpadEventsForSessionID(username, true);
-		eventMap.addAll(userEvents);
 		String separator = ", ";
 
 		if (eventMap.size() == 0)
@@ -105,14 +105,16 @@
 package edu.stanford.epad.epadws.models.dao;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.epaddb.DBObjectMapper;
 import edu.stanford.epad.epadws.epaddb.DatabaseUtils;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadStatisticsCollector;
 
 public abstract class AbstractDAO implements Serializable, Cloneable {
 	abstract public String returnDBTABLE();
@@ -132,6 +134,7 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
 		this.setCreatedTime(time);
 		this.setUpdateTime(time);
 		epadDatabaseOperations.insertDBObject(this, this.returnDBTABLE(), this.returnDBCOLUMNS());
+		EpadStatisticsCollector.getInstance().rowsInserted(returnDBTABLE(), 1, getId());
 	}
 	
 	public void update() throws Exception
@@ -140,9 +143,58 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
 		epadDatabaseOperations.updateDBObject(this, returnDBTABLE(), returnDBCOLUMNS());
 	}
 	
+	/**
+	 * Inserts new objects and updates existing ones, each group as one JDBC batch.
+	 * All objects must be of the same class.
+	 */
+	public static void saveAll(List<? extends AbstractDAO> objects) throws Exception
+	{
+		List<AbstractDAO> inserts = new ArrayList<AbstractDAO>();
+		List<AbstractDAO> updates = new ArrayList<AbstractDAO>();
+		for (AbstractDAO object: objects)
+		{
+			if (object.getId() <= 0)
+				inserts.add(object);
+			else
+				updates.add(object);
+		}
+		insertAll(inserts);
+		updateAll(updates);
+	}
+
+	public static void insertAll(List<? extends AbstractDAO> objects) throws Exception
+	{
+		if (objects.isEmpty())
+			return;
+		Date time = new Date();
+		for (AbstractDAO object: objects)
+		{
+			object.setCreatedTime(time);
+			object.setUpdateTime(time);
+		}
+		AbstractDAO first = objects.get(0);
+		first.epadDatabaseOperations.insertDBObjects(objects, first.returnDBTABLE(), first.returnDBCOLUMNS());
+		long highestID = 0;
+		for (AbstractDAO object: objects)
+			highestID = Math.max(highestID, object.getId());
+		EpadStatisticsCollector.getInstance().rowsInserted(first.returnDBTABLE(), objects.size(), highestID);
+	}
+
+	public static void updateAll(List<? extends AbstractDAO> objects) throws Exception
+	{
+		if (objects.isEmpty())
+			return;
+		Date time = new Date();
+		for (AbstractDAO object: objects)
+			object.setUpdateTime(time);
+		AbstractDAO first = objects.get(0);
+		first.epadDatabaseOperations.updateDBObjects(objects, first.returnDBTABLE(), first.returnDBCOLUMNS());
+	}
+
 	public void delete() throws Exception
 	{
-		epadDatabaseOperations.deleteDBObject(returnDBTABLE(), getId());
+		int rows = epadDatabaseOperations.deleteDBObject(returnDBTABLE(), getId());
+		EpadStatisticsCollector.getInstance().rowsDeleted(returnDBTABLE(), rows);
 	}
 	
 	public AbstractDAO retrieve() throws Exception
@@ -181,7 +233,9 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
     
 	public int deleteObjects(String criteria) throws Exception
 	{
-		return epadDatabaseOperations.deleteDBObjects(returnDBTABLE(), criteria);
+		int rows = epadDatabaseOperations.deleteDBObjects(returnDBTABLE(), criteria);
+		EpadStatisticsCollector.getInstance().rowsDeleted(returnDBTABLE(), rows);
+		return rows;
 	}
         
     public AbstractDAO getObject(String criteria) throws Exception
@@ -217,14 +271,7 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
 			return field;
 		try
 		{
-			String methodName = "get" + field.substring(0,1).toUpperCase() + field.substring(1);
-			Method method = null;
-			try {
-				method = this.getClass().getMethod(methodName, (Class[])null);
-			} catch (Exception x) {
-				method = this.getClass().getMethod("is" + methodName.substring(3), (Class[])null);
-			}
-			return method.invoke(this, (Object[])null);
+			return DBObjectMapper.getFieldValue(this, field);
 		}
 		catch (Exception x)
 		{
@@ -0,0 +1,624 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.plugins;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.TaskStatus;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.models.PluginJob;
+import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.epad.epadws.processing.pipeline.task.PluginStartTask;
+import edu.stanford.epad.epadws.security.EPADSessionOperations;
+import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
+import edu.stanford.epad.epadws.service.SessionService;
+
+/**
+ * Runs plugins on AIMs from a job queue kept in <code>epaddb.plugin_job</code>.
+ * <p>
+ * Each plugin gets its own pool of PluginParallelism workers (or &lt;plugin name&gt;PluginParallelism for one plugin),
+ * so a run over thousands of AIMs waits in the queue instead of starting a thread each. Workers call the plugin's
+ * handler from PluginHandlerMap directly (see PluginStartTask). Jobs are saved when submitted and when they start and
+ * end, so jobs still queued or running at shutdown are picked up again by start() as long as their session is valid.
+ * Plugins interrupted by shutdown() are left Running in the table for that reason, not marked Failed.
+ * Queue position, wait and run times are reported in the user's plugin task status.
+ */
+public class PluginJobEngine
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final String STATUS_QUEUED = "Queued";
+	public static final String STATUS_RUNNING = "Running";
+	public static final String STATUS_COMPLETED = "Completed";
+	public static final String STATUS_FAILED = "Failed";
+	public static final String STATUS_CANCELLED = "Cancelled";
+
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+	private static final int RESUME_PAGE_SIZE = 1000;
+
+	private static final PluginJobEngine ourInstance = new PluginJobEngine();
+
+	private final ConcurrentMap<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+	private final ConcurrentMap<Long, PluginJob> activeJobs = new ConcurrentHashMap<Long, PluginJob>();
+	private final ConcurrentMap<Long, Future<?>> futures = new ConcurrentHashMap<Long, Future<?>>();
+	private final ConcurrentMap<String, PluginStatistics> statistics = new ConcurrentHashMap<String, PluginStatistics>();
+	private final Map<String, Integer> activeAimCounts = new HashMap<String, Integer>(); // AIM id to its active jobs
+	private volatile boolean shuttingDown;
+	private final int defaultParallelism;
+	private final int keepDays;
+
+	private static class PluginStatistics
+	{
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong cancelled = new AtomicLong();
+		final AtomicLong started = new AtomicLong();
+		final AtomicLong ended = new AtomicLong();
+		final AtomicLong totalWait = new AtomicLong();
+		final AtomicLong totalRun = new AtomicLong();
+
+		@Override
+		public String toString()
+		{
+			return "queued:" + queued.get() + " running:" + running.get() + " completed:" + completed.get() + " failed:"
+					+ failed.get() + " cancelled:" + cancelled.get() + " avgWait:"
+					+ (started.get() == 0 ? 0 : totalWait.get() / started.get()) + "ms avgRun:"
+					+ (ended.get() == 0 ? 0 : totalRun.get() / ended.get()) + "ms";
+		}
+	}
+
+	/**
+	 * What the jobs route returns for a job.
+	 */
+	public static class JobStatus
+	{
+		public long id;
+		public String pluginName;
+		public String username;
+		public String projectID;
+		public String aimIDs;
+		public String batchID;
+		public String status;
+		public String message;
+		public long queuedTime;
+		public long startTime;
+		public long endTime;
+
+		JobStatus(PluginJob job)
+		{
+			synchronized (job) {
+				id = job.getId();
+				pluginName = job.getPluginName();
+				username = job.getUsername();
+				projectID = job.getProjectID();
+				aimIDs = job.getAimIDs();
+				batchID = job.getBatchID();
+				status = job.getStatus();
+				message = job.getMessage();
+				queuedTime = job.getCreatedTime() == null ? 0 : job.getCreatedTime().getTime();
+				startTime = job.getStartTime() == null ? 0 : job.getStartTime().getTime();
+				endTime = job.getEndTime() == null ? 0 : job.getEndTime().getTime();
+			}
+		}
+	}
+
+	public static PluginJobEngine getInstance()
+	{
+		return ourInstance;
+	}
+
+	private PluginJobEngine()
+	{
+		defaultParallelism = ConfigParams.getPositiveIntParam("PluginParallelism", 2);
+		keepDays = ConfigParams.getPositiveIntParam("PluginJobKeepDays", 7);
+	}
+
+	/**
+	 * Requeue jobs left queued or running by the last shutdown, and delete old finished jobs.
+	 */
+	public void start()
+	{
+		try {
+			new PluginJob().deleteObjects("status in ('" + STATUS_COMPLETED + "','" + STATUS_FAILED + "','"
+					+ STATUS_CANCELLED + "') and updatetime < DATE_SUB(NOW(), INTERVAL " + keepDays + " DAY)");
+			int resumed = 0;
+			long lastID = 0;
+			while (true) {
+				List<PluginJob> jobs = new PluginJob().getObjects("id > " + lastID + " and status in ('" + STATUS_QUEUED
+						+ "','" + STATUS_RUNNING + "') order by id", 0, RESUME_PAGE_SIZE);
+				for (PluginJob job : jobs) {
+					lastID = job.getId();
+					if (job.getSessionID() != null && SessionService.hasValidSessionID(job.getSessionID())) {
+						job.setStatus(STATUS_QUEUED);
+						enqueue(job);
+						resumed++;
+					} else {
+						job.setStatus(STATUS_FAILED);
+						job.setMessage("Session expired before the job could run");
+						job.setEndTime(new Date());
+						job.save();
+					}
+				}
+				if (jobs.size() < RESUME_PAGE_SIZE)
+					break;
+			}
+			if (resumed > 0)
+				log.info("Resumed " + resumed + " plugin jobs");
+		} catch (Exception e) {
+			log.warning("Error resuming plugin jobs", e);
+		}
+	}
+
+	/**
+	 * Stop the workers. Queued jobs are dropped from the pools and running plugins are interrupted, but neither is
+	 * saved as finished, so start() runs them again.
+	 */
+	public void shutdown()
+	{
+		shuttingDown = true;
+		for (ThreadPoolExecutor executor : executors.values())
+			executor.shutdownNow();
+	}
+
+	public boolean isShuttingDown()
+	{
+		return shuttingDown;
+	}
+
+	/**
+	 * Whether a queued or running job includes this AIM.
+	 */
+	public boolean hasActiveJob(String aimID)
+	{
+		synchronized (activeAimCounts) {
+			return activeAimCounts.containsKey(aimID);
+		}
+	}
+
+	/**
+	 * Queue one plugin run on one AIM.
+	 */
+	public PluginJob submit(String jsessionID, String pluginName, String projectID, String aimID, int frameNumber)
+			throws Exception
+	{
+		PluginJob job = createJob(jsessionID, pluginName, projectID, aimID, frameNumber, null);
+		job.save();
+		enqueue(job);
+		return job;
+	}
+
+	/**
+	 * Queue a plugin run on several AIMs, either a job per AIM (inParallel) or one job with all of them. The jobs are
+	 * written in one batch and share a batch id.
+	 */
+	public List<PluginJob> submit(String jsessionID, String pluginName, String projectID, String[] aimIDs,
+			int frameNumber, boolean inParallel) throws Exception
+	{
+		String batchID = UUID.randomUUID().toString();
+		List<PluginJob> jobs = new ArrayList<PluginJob>();
+		if (inParallel) {
+			for (String aimID : aimIDs)
+				jobs.add(createJob(jsessionID, pluginName, projectID, aimID, frameNumber, batchID));
+		} else {
+			StringBuilder ids = new StringBuilder();
+			for (String aimID : aimIDs) {
+				if (ids.length() > 0)
+					ids.append(",");
+				ids.append(aimID);
+			}
+			jobs.add(createJob(jsessionID, pluginName, projectID, ids.toString(), frameNumber, batchID));
+		}
+		AbstractDAO.insertAll(jobs);
+		for (PluginJob job : jobs)
+			enqueue(job);
+		return jobs;
+	}
+
+	/**
+	 * Cancel a user's queued and running jobs for a plugin (all users' if username is null, all plugins' if pluginName
+	 * is null). Running plugins are interrupted.
+	 * 
+	 * @return number of jobs cancelled
+	 */
+	public int cancel(String username, String pluginName)
+	{
+		int cancelled = 0;
+		for (PluginJob job : activeJobs.values()) {
+			if ((username == null || username.equals(job.getUsername()))
+					&& (pluginName == null || normalize(pluginName).equals(normalize(job.getPluginName()))) && cancel(job))
+				cancelled++;
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Cancel a queued or running job, if it belongs to username (any user's if null).
+	 */
+	public boolean cancel(long jobID, String username)
+	{
+		PluginJob job = activeJobs.get(jobID);
+		return job != null && (username == null || username.equals(job.getUsername())) && cancel(job);
+	}
+
+	/**
+	 * Jobs in the queue, running, and finished in the last PluginJobKeepDays days, newest first.
+	 */
+	public List<JobStatus> getJobs(String username, String pluginName) throws Exception
+	{
+		String criteria = "1 = 1";
+		if (username != null)
+			criteria = criteria + " and username = " + AbstractDAO.toSQL(username);
+		if (pluginName != null)
+			criteria = criteria + " and plugin_name = " + AbstractDAO.toSQL(pluginName);
+		List<PluginJob> jobs = new PluginJob().getObjects(criteria + " order by id desc");
+		List<JobStatus> statuses = new ArrayList<JobStatus>();
+		for (PluginJob job : jobs) {
+			PluginJob active = activeJobs.get(job.getId());
+			statuses.add(new JobStatus(active == null ? job : active));
+		}
+		return statuses;
+	}
+
+	public String getStatistics()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, PluginStatistics> entry : statistics.entrySet()) {
+			if (sb.length() > 0)
+				sb.append("; ");
+			sb.append(entry.getKey()).append(" ").append(entry.getValue());
+		}
+		return sb.length() == 0 ? "no jobs" : sb.toString();
+	}
+
+	/**
+	 * Called by PluginStartTask when a worker picks up the job.
+	 * 
+	 * @return false if the job was cancelled while queued
+	 */
+	public boolean jobStarted(PluginJob job)
+	{
+		PluginStatistics stats = getPluginStatistics(job.getPluginName());
+		long waited;
+		synchronized (job) {
+			if (shuttingDown || !STATUS_QUEUED.equals(job.getStatus()))
+				return false;
+			job.setStatus(STATUS_RUNNING);
+			job.setStartTime(new Date());
+			waited = job.getStartTime().getTime() - job.getCreatedTime().getTime();
+		}
+		stats.queued.decrementAndGet();
+		stats.running.incrementAndGet();
+		stats.started.incrementAndGet();
+		stats.totalWait.addAndGet(waited);
+		save(job);
+		updateTaskStatus(job, "Started Plugin, waited " + waited / 1000 + " secs", job.getStartTime(), null);
+		return true;
+	}
+
+	/**
+	 * Called by PluginStartTask when the plugin returns; message is null on success.
+	 */
+	public void jobFinished(PluginJob job, String message)
+	{
+		PluginStatistics stats = getPluginStatistics(job.getPluginName());
+		long ran;
+		synchronized (job) {
+			if (shuttingDown && !STATUS_CANCELLED.equals(job.getStatus())) {
+				// Interrupted by shutdown; the row stays Running so start() picks it up again
+				log.info("Plugin job " + job.getId() + " left for the next start");
+				stats.running.decrementAndGet();
+				removeActive(job);
+				return;
+			}
+			job.setEndTime(new Date());
+			ran = job.getEndTime().getTime() - job.getStartTime().getTime();
+			if (!STATUS_CANCELLED.equals(job.getStatus())) {
+				job.setStatus(message == null ? STATUS_COMPLETED : STATUS_FAILED);
+				job.setMessage(truncate(message));
+			}
+		}
+		stats.running.decrementAndGet();
+		stats.ended.incrementAndGet();
+		stats.totalRun.addAndGet(ran);
+		if (STATUS_COMPLETED.equals(job.getStatus()))
+			stats.completed.incrementAndGet();
+		else if (STATUS_FAILED.equals(job.getStatus()))
+			stats.failed.incrementAndGet();
+		removeActive(job);
+		save(job);
+		String status = job.getStatus() + " in " + ran / 1000 + " secs";
+		if (job.getMessage() != null && job.getMessage().length() > 0)
+			status = status + ": " + job.getMessage();
+		updateTaskStatus(job, status, null, job.getEndTime());
+	}
+
+	private boolean cancel(PluginJob job)
+	{
+		PluginStatistics stats = getPluginStatistics(job.getPluginName());
+		boolean wasQueued;
+		synchronized (job) {
+			wasQueued = STATUS_QUEUED.equals(job.getStatus());
+			if (!wasQueued && !STATUS_RUNNING.equals(job.getStatus()))
+				return false;
+			job.setStatus(STATUS_CANCELLED);
+			job.setMessage("Cancelled");
+		}
+		stats.cancelled.incrementAndGet();
+		Future<?> future = futures.get(job.getId());
+		if (wasQueued) {
+			// The worker skips it; take it off the queue now so the queue length is right
+			stats.queued.decrementAndGet();
+			ThreadPoolExecutor executor = executors.get(normalize(job.getPluginName()));
+			if (future != null && executor != null && future instanceof Runnable)
+				executor.remove((Runnable)future);
+			removeActive(job);
+			job.setEndTime(new Date());
+			save(job);
+			updateTaskStatus(job, STATUS_CANCELLED, null, job.getEndTime());
+		} else if (future != null) {
+			future.cancel(true); // jobFinished records the end
+		}
+		return true;
+	}
+
+	private void enqueue(PluginJob job)
+	{
+		ThreadPoolExecutor executor = getExecutor(job.getPluginName());
+		PluginStatistics stats = getPluginStatistics(job.getPluginName());
+		activeJobs.put(job.getId(), job);
+		synchronized (activeAimCounts) {
+			for (String aimID : getAimIDs(job)) {
+				Integer count = activeAimCounts.get(aimID);
+				activeAimCounts.put(aimID, count == null ? 1 : count + 1);
+			}
+		}
+		stats.queued.incrementAndGet();
+		updateTaskStatus(job, "Queued, " + (executor.getQueue().size() + executor.getActiveCount()) + " jobs ahead", null, null);
+		try {
+			futures.put(job.getId(), executor.submit(new PluginStartTask(job)));
+		} catch (RejectedExecutionException e) {
+			// The pool is shut down, so nothing will ever run or finish this job
+			log.warning("Plugin job " + job.getId() + " rejected, engine is shutting down");
+			synchronized (job) {
+				job.setStatus(STATUS_FAILED);
+				job.setMessage("Server shutting down");
+				job.setEndTime(new Date());
+			}
+			stats.queued.decrementAndGet();
+			stats.failed.incrementAndGet();
+			removeActive(job);
+			save(job);
+			updateTaskStatus(job, STATUS_FAILED + ": " + job.getMessage(), null, job.getEndTime());
+			return;
+		}
+		if (!activeJobs.containsKey(job.getId())) // Already done
+			futures.remove(job.getId());
+	}
+
+	private void removeActive(PluginJob job)
+	{
+		if (activeJobs.remove(job.getId()) == null)
+			return;
+		futures.remove(job.getId());
+		synchronized (activeAimCounts) {
+			for (String aimID : getAimIDs(job)) {
+				Integer count = activeAimCounts.get(aimID);
+				if (count == null || count <= 1)
+					activeAimCounts.remove(aimID);
+				else
+					activeAimCounts.put(aimID, count - 1);
+			}
+		}
+	}
+
+	private static String[] getAimIDs(PluginJob job)
+	{
+		return job.getAimIDs() == null || job.getAimIDs().length() == 0 ? new String[0] : job.getAimIDs().split(",");
+	}
+
+	private PluginJob createJob(String jsessionID, String pluginName, String projectID, String aimIDs, int frameNumber,
+			String batchID)
+	{
+		String username = EPADSessionOperations.getSessionUser(jsessionID);
+		PluginJob job = new PluginJob();
+		job.setPluginName(pluginName);
+		job.setUsername(username);
+		job.setSessionID(jsessionID);
+		job.setProjectID(projectID);
+		job.setAimIDs(aimIDs);
+		job.setFrameNumber(frameNumber);
+		job.setBatchID(batchID);
+		job.setStatus(STATUS_QUEUED);
+		job.setCreator(username);
+		return job;
+	}
+
+	private ThreadPoolExecutor getExecutor(String pluginName)
+	{
+		final String name = normalize(pluginName);
+		ThreadPoolExecutor executor = executors.get(name);
+		if (executor == null) {
+			int parallelism = ConfigParams.getPositiveIntParam(name + "PluginParallelism", defaultParallelism);
+			executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r)
+						{
+							Thread thread = new Thread(r, "Plugin-" + name + "-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			ThreadPoolExecutor existing = executors.putIfAbsent(name, executor);
+			if (existing != null) {
+				executor.shutdown();
+				executor = existing;
+			} else
+				log.info("Plugin " + name + " runs " + parallelism + " jobs at a time");
+		}
+		return executor;
+	}
+
+	private PluginStatistics getPluginStatistics(String pluginName)
+	{
+		String name = normalize(pluginName);
+		PluginStatistics stats = statistics.get(name);
+		if (stats == null) {
+			statistics.putIfAbsent(name, new PluginStatistics());
+			stats = statistics.get(name);
+		}
+		return stats;
+	}
+
+	private void updateTaskStatus(PluginJob job, String status, Date startTime, Date completeTime)
+	{
+		String target = job.getPluginName().toLowerCase() + ":"
+				+ (job.getAimIDs() != null && job.getAimIDs().indexOf(',') == -1 ? job.getAimIDs() : "job" + job.getId());
+		DefaultEpadProjectOperations.getInstance().updateUserTaskStatus(job.getUsername(), TaskStatus.TASK_PLUGIN,
+				job.getProjectID(), target, status, startTime, completeTime);
+	}
+
+	private static void save(PluginJob job)
+	{
+		try {
+			job.save();
+		} catch (Exception e) {
+			log.warning("Error saving plugin job " + job.getId(), e);
+		}
+	}
+
+	private static String normalize(String pluginName)
+	{
+		return PluginHandlerMap.normalizeName(pluginName);
+	}
+
+	private static String truncate(String message)
+	{
+		if (message == null || message.length() <= MAX_MESSAGE_LENGTH)
+			return message;
+		return message.substring(0, MAX_MESSAGE_LENGTH);
+	}
+}
@@ -0,0 +1,456 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.processing.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+
+/**
+ * In-memory delivery of the rows in <code>epaddb.events</code>, keyed like the table by session ID or username.
+ * <p>
+ * insertEpadEvent still writes every event to the table and then publishes it here, so polling clients and waiting
+ * (long-poll) clients are served from memory. The table is only read when a key is first polled and then every
+ * EventReplayInterval seconds, to pick up events written by another process. Delivered events are deleted from the
+ * table in the background every EventDeleteInterval seconds.
+ * <p>
+ * At most MAX_PENDING_EVENTS are held per key. Beyond that the newest events are only in the table, and the key is
+ * reloaded from the table once the held events have been taken.
+ * 
+ */
+public class EventBus
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final long EVENT_RETENTION = 60 * 60 * 1000;
+	private static final int MAX_PENDING_EVENTS = 500;
+
+	private static final EventBus ourInstance = new EventBus();
+
+	/**
+	 * Called once, without the bus lock held, when an event arrives for one of the keys the listener waits on.
+	 */
+	public interface EventListener
+	{
+		void eventsAvailable(String key);
+	}
+
+	private final long replayInterval;
+	private final ScheduledExecutorService cleaner;
+
+	// Guarded by this
+	private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+	private long published = 0;
+	private long delivered = 0;
+	private long replayed = 0;
+	private long overflows = 0;
+	private long databaseReads = 0;
+	private long listenersNotified = 0;
+	private int maxFanOut = 0;
+	private long deliveryLatencyTotal = 0;
+	private long deliveryLatencyCount = 0;
+	private long maxDeliveryLatency = 0;
+
+	private static class Event
+	{
+		final Map<String, String> row;
+		final long receivedTime = System.currentTimeMillis();
+		final boolean replayed;
+
+		Event(Map<String, String> row, boolean replayed)
+		{
+			this.row = row;
+			this.replayed = replayed;
+		}
+	}
+
+	private static class Mailbox
+	{
+		final TreeMap<Long, Event> pending = new TreeMap<Long, Event>();
+		final Set<EventListener> listeners = new HashSet<EventListener>();
+		long lastDeliveredPk = 0;
+		boolean overflowed = false; // Events after the pending ones are only in the table
+		long deletePk = 0;
+		long lastLoaded = 0;
+		long lastUsed = System.currentTimeMillis();
+	}
+
+	public static EventBus getInstance()
+	{
+		return ourInstance;
+	}
+
+	private EventBus()
+	{
+		replayInterval = ConfigParams.getPositiveIntParam("EventReplayInterval", 60) * 1000L;
+		long deleteInterval = ConfigParams.getPositiveIntParam("EventDeleteInterval", 10);
+		cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "EventBus");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		cleaner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					deleteDeliveredEvents();
+				} catch (Throwable t) {
+					log.warning("Error deleting delivered events", t);
+				}
+			}
+		}, deleteInterval, deleteInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Publishes an event that has been written to the events table.
+	 * 
+	 * @param key the username column of the row (session ID or username)
+	 * @param pk the generated key of the row
+	 * @param row the row, with the same column names as the table
+	 */
+	public void publish(String key, long pk, Map<String, String> row)
+	{
+		if (key == null)
+			return;
+		List<EventListener> listeners;
+		synchronized (this) {
+			Mailbox mailbox = getMailbox(key);
+			if (pk <= mailbox.lastDeliveredPk || mailbox.pending.containsKey(pk))
+				return;
+			mailbox.pending.put(pk, new Event(row, false));
+			trimPending(mailbox);
+			published++;
+			listeners = takeListeners(mailbox);
+		}
+		notifyListeners(key, listeners);
+	}
+
+	/**
+	 * Returns and consumes the pending events for a key, oldest first.
+	 */
+	public List<Map<String, String>> take(String key)
+	{
+		if (key == null)
+			return new ArrayList<Map<String, String>>();
+		boolean reload = false;
+		synchronized (this) {
+			Mailbox mailbox = getMailbox(key);
+			long now = System.currentTimeMillis();
+			if (now - mailbox.lastLoaded >= replayInterval) {
+				mailbox.lastLoaded = now;
+				reload = true;
+			}
+		}
+		if (reload)
+			replay(key);
+
+		List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+		synchronized (this) {
+			Mailbox mailbox = getMailbox(key);
+			if (mailbox.pending.isEmpty())
+				return rows;
+			long now = System.currentTimeMillis();
+			for (Map.Entry<Long, Event> entry: mailbox.pending.entrySet())
+			{
+				Event event = entry.getValue();
+				rows.add(event.row);
+				if (!event.replayed) {
+					long latency = now - event.receivedTime;
+					deliveryLatencyTotal += latency;
+					deliveryLatencyCount++;
+					if (latency > maxDeliveryLatency)
+						maxDeliveryLatency = latency;
+				}
+			}
+			mailbox.lastDeliveredPk = mailbox.pending.lastKey();
+			mailbox.deletePk = mailbox.lastDeliveredPk;
+			mailbox.pending.clear();
+			if (mailbox.overflowed) {
+				// Read the rest from the table on the next take
+				mailbox.overflowed = false;
+				mailbox.lastLoaded = 0;
+			}
+			delivered += rows.size();
+		}
+		return rows;
+	}
+
+	/**
+	 * Registers a one-shot listener on the keys.
+	 * 
+	 * @return false if events are already pending for one of the keys, in which case the listener is not registered
+	 */
+	public synchronized boolean addListener(Set<String> keys, EventListener listener)
+	{
+		for (String key: keys)
+		{
+			if (!getMailbox(key).pending.isEmpty())
+				return false;
+		}
+		for (String key: keys)
+			getMailbox(key).listeners.add(listener);
+		return true;
+	}
+
+	public synchronized void removeListener(Set<String> keys, EventListener listener)
+	{
+		for (String key: keys)
+		{
+			Mailbox mailbox = mailboxes.get(key);
+			if (mailbox != null)
+				mailbox.listeners.remove(listener);
+		}
+	}
+
+	public synchronized String getStatistics()
+	{
+		Set<EventListener> waiting = new HashSet<EventListener>();
+		int pending = 0;
+		for (Mailbox mailbox: mailboxes.values())
+		{
+			waiting.addAll(mailbox.listeners);
+			pending += mailbox.pending.size();
+		}
+		long averageLatency = deliveryLatencyCount == 0 ? 0 : deliveryLatencyTotal / deliveryLatencyCount;
+		return "keys:" + mailboxes.size() + " pending:" + pending + " waiting:" + waiting.size() + " published:" + published
+				+ " delivered:" + delivered + " replayed:" + replayed + " overflows:" + overflows + " dbReads:" + databaseReads + " notified:"
+				+ listenersNotified + " maxFanOut:" + maxFanOut + " avgLatencyMs:" + averageLatency + " maxLatencyMs:"
+				+ maxDeliveryLatency;
+	}
+
+	private void replay(String key)
+	{
+		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		List<Map<String, String>> rows = epadDatabaseOperations.getEpadEventsForSessionID(key, false);
+		synchronized (this) {
+			databaseReads++;
+			Mailbox mailbox = getMailbox(key);
+			for (Map<String, String> row: rows)
+			{
+				long pk = getPk(row);
+				if (pk <= mailbox.lastDeliveredPk || mailbox.pending.containsKey(pk))
+					continue;
+				mailbox.pending.put(pk, new Event(row, true));
+				replayed++;
+			}
+			trimPending(mailbox);
+		}
+	}
+
+	/**
+	 * Drop the newest events over the limit; they stay in the table, after the oldest ones that are kept, so nothing
+	 * is skipped when the kept events are delivered.
+	 */
+	private void trimPending(Mailbox mailbox)
+	{
+		if (mailbox.pending.size() <= MAX_PENDING_EVENTS)
+			return;
+		while (mailbox.pending.size() > MAX_PENDING_EVENTS)
+			mailbox.pending.pollLastEntry();
+		if (!mailbox.overflowed) {
+			mailbox.overflowed = true;
+			overflows++;
+		}
+	}
+
+	private void deleteDeliveredEvents()
+	{
+		Map<String, Long> deletes = new HashMap<String, Long>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Mailbox>> iterator = mailboxes.entrySet().iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<String, Mailbox> entry = iterator.next();
+				Mailbox mailbox = entry.getValue();
+				if (mailbox.deletePk > 0) {
+					deletes.put(entry.getKey(), mailbox.deletePk);
+					mailbox.deletePk = 0;
+				}
+				Iterator<Event> events = mailbox.pending.values().iterator();
+				while (events.hasNext())
+				{
+					if (now - events.next().receivedTime > EVENT_RETENTION)
+						events.remove();
+				}
+				if (mailbox.pending.isEmpty() && mailbox.listeners.isEmpty() && now - mailbox.lastUsed > EVENT_RETENTION
+						&& !deletes.containsKey(entry.getKey()))
+					iterator.remove();
+			}
+		}
+		if (deletes.isEmpty())
+			return;
+		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		for (Map.Entry<String, Long> delete: deletes.entrySet())
+			epadDatabaseOperations.deleteEpadEvents(delete.getKey(), delete.getValue());
+	}
+
+	private Mailbox getMailbox(String key)
+	{
+		Mailbox mailbox = mailboxes.get(key);
+		if (mailbox == null) {
+			mailbox = new Mailbox();
+			mailboxes.put(key, mailbox);
+		}
+		mailbox.lastUsed = System.currentTimeMillis();
+		return mailbox;
+	}
+
+	private List<EventListener> takeListeners(Mailbox mailbox)
+	{
+		if (mailbox.listeners.isEmpty())
+			return Collections.emptyList();
+		List<EventListener> listeners = new ArrayList<EventListener>(mailbox.listeners);
+		mailbox.listeners.clear();
+		// A listener waiting on several keys is only notified once
+		for (Mailbox other: mailboxes.values())
+			other.listeners.removeAll(listeners);
+		listenersNotified += listeners.size();
+		if (listeners.size() > maxFanOut)
+			maxFanOut = listeners.size();
+		return listeners;
+	}
+
+	private void notifyListeners(String key, List<EventListener> listeners)
+	{
+		for (EventListener listener: listeners)
+		{
+			try {
+				listener.eventsAvailable(key);
+			} catch (Exception e) {
+				log.warning("Error notifying event listener", e);
+			}
+		}
+	}
+
+	private static long getPk(Map<String, String> row)
+	{
+		try {
+			return Long.parseLong(row.get("pk"));
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+}
@@ -105,18 +105,33 @@
 package edu.stanford.epad.epadws.processing.pipeline.process;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.config.ConfigParams;
 import edu.stanford.epad.epadws.processing.pipeline.task.DicomHeadersTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.GeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 
 /**
- * Create one or multiple of these processes to listen for PngGeneratorTask on the queue and run them when ready.
+ * Schedules PNG generation tasks on a fixed set of worker threads. The DICOM tag file for each task is written by the
+ * same worker once the task is done.
+ * <p>
+ * Tasks are queued by priority (see {@link Priority}) and, within a priority, served round-robin by series, with at most
+ * PngSeriesConcurrency tasks of one series running at a time. The number of queued tasks is bounded by PngQueueCapacity;
+ * callers use {@link #hasCapacity} to hold back new series, and lower priority submissions wait for room. Tasks put on
+ * the task queue passed to the constructor are scheduled at background priority.
+ * <p>
+ * The number of workers (PngGeneratorThreads) defaults to the number of processors, limited by available memory.
  * 
  * NOTE: This has been extended to include DICOM Segmentation Object tasks too.
  * 
@@ -124,34 +139,209 @@ import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
  */
 public class PngGeneratorProcess implements Runnable
 {
+	public enum Priority
+	{
+		/** A user is waiting on this series, e.g. it was just uploaded */
+		INTERACTIVE,
+		/** New series found in DCM4CHEE */
+		BACKGROUND,
+		/** Re-processing, e.g. the nightly image check */
+		MAINTENANCE
+	}
+
+	private static final long MEMORY_PER_WORKER = 256 * 1024 * 1024;
+
 	private final BlockingQueue<GeneratorTask> pngTaskQueue;
-	private final ExecutorService pngExecs;
-	private final ExecutorService tagExec;
 	private final EPADLogger logger = EPADLogger.getInstance();
 	private final ShutdownSignal shutdownSignal = ShutdownSignal.getInstance();
 
+	private final int workerCount;
+	private final int capacity;
+	private final int maxTasksPerSeries;
+	private final Thread[] workers;
+	// Per priority, queued tasks by series in round-robin order
+	private final Map<String, Deque<GeneratorTask>>[] queues;
+	private final Map<String, Integer> runningPerSeries = new HashMap<String, Integer>();
+	private int queued = 0;
+	private int active = 0;
+	private long completed = 0;
+	private long failed = 0;
+
+	@SuppressWarnings("unchecked")
 	public PngGeneratorProcess(BlockingQueue<GeneratorTask> taskQueue)
 	{
 		this.pngTaskQueue = taskQueue;
-		pngExecs = Executors.newFixedThreadPool(20);
-		tagExec = Executors.newFixedThreadPool(20);
-		logger.info("Starting the PNG generator process");
+		this.workerCount = ConfigParams.getPositiveIntParam("PngGeneratorThreads", getDefaultWorkerCount());
+		this.capacity = ConfigParams.getPositiveIntParam("PngQueueCapacity", 4000);
+		this.maxTasksPerSeries = ConfigParams.getPositiveIntParam("PngSeriesConcurrency", Math.max(1, (workerCount + 1) / 2));
+		this.queues = new Map[Priority.values().length];
+		for (int i = 0; i < queues.length; i++)
+			queues[i] = new LinkedHashMap<String, Deque<GeneratorTask>>();
+		this.workers = new Thread[workerCount];
+		logger.info("Starting the PNG generator process, workers:" + workerCount + " capacity:" + capacity
+				+ " per series:" + maxTasksPerSeries);
 	}
 
 	@Override
 	public void run()
 	{
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Worker(), "PngGenerator-" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].setPriority(Thread.MIN_PRIORITY); // Let interactive thread run sooner
+			workers[i].start();
+		}
 		while (!shutdownSignal.hasShutdown()) {
 			try {
 				GeneratorTask task = pngTaskQueue.poll(500, TimeUnit.MILLISECONDS);
 				if (task == null)
 					continue;
-				pngExecs.execute(task);
-				readDicomHeadersTask(task);
+				submit(task, Priority.BACKGROUND);
 			} catch (Exception e) {
 				logger.warning("PngGeneratorProcess error", e);
 			}
 		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	public void submit(GeneratorTask task, Priority priority) throws InterruptedException
+	{
+		submit(Collections.singletonList(task), priority);
+	}
+
+	/**
+	 * Queues the tasks together. Interactive tasks are always accepted; others wait until there is room for them (or
+	 * the queue is empty).
+	 */
+	public synchronized void submit(Collection<? extends GeneratorTask> tasks, Priority priority)
+			throws InterruptedException
+	{
+		if (tasks.isEmpty())
+			return;
+		if (priority != Priority.INTERACTIVE) {
+			while (!hasCapacity(tasks.size()) && !shutdownSignal.hasShutdown())
+				wait(1000);
+		}
+		Map<String, Deque<GeneratorTask>> queue = queues[priority.ordinal()];
+		for (GeneratorTask task : tasks) {
+			String seriesUID = task.getSeriesUID() == null ? "" : task.getSeriesUID();
+			Deque<GeneratorTask> seriesQueue = queue.get(seriesUID);
+			if (seriesQueue == null) {
+				seriesQueue = new ArrayDeque<GeneratorTask>();
+				queue.put(seriesUID, seriesQueue);
+			}
+			seriesQueue.addLast(task);
+			queued++;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return true if this many more tasks can be queued without going over the capacity
+	 */
+	public synchronized boolean hasCapacity(int tasks)
+	{
+		return queued == 0 || queued + tasks <= capacity;
+	}
+
+	public synchronized boolean isSaturated()
+	{
+		return queued >= capacity;
+	}
+
+	public synchronized int getQueueDepth()
+	{
+		return queued;
+	}
+
+	public synchronized String getStatistics()
+	{
+		StringBuilder sb = new StringBuilder("queued:" + queued);
+		for (Priority priority : Priority.values()) {
+			int count = 0;
+			for (Deque<GeneratorTask> seriesQueue : queues[priority.ordinal()].values())
+				count += seriesQueue.size();
+			sb.append(" " + priority.name().toLowerCase() + ":" + count);
+		}
+		sb.append(" active:" + active + " series:" + runningPerSeries.size() + " workers:" + workerCount + " completed:"
+				+ completed + " failed:" + failed);
+		return sb.toString();
+	}
+
+	/**
+	 * Takes the next task of the highest priority whose series is below its concurrency limit.
+	 */
+	private synchronized GeneratorTask take() throws InterruptedException
+	{
+		while (!shutdownSignal.hasShutdown()) {
+			for (Map<String, Deque<GeneratorTask>> queue : queues) {
+				Iterator<String> seriesUIDs = queue.keySet().iterator();
+				while (seriesUIDs.hasNext()) {
+					String seriesUID = seriesUIDs.next();
+					Integer running = runningPerSeries.get(seriesUID);
+					if (running != null && running >= maxTasksPerSeries)
+						continue;
+					Deque<GeneratorTask> seriesQueue = queue.remove(seriesUID);
+					GeneratorTask task = seriesQueue.removeFirst();
+					if (!seriesQueue.isEmpty())
+						queue.put(seriesUID, seriesQueue); // Move to the back
+					runningPerSeries.put(seriesUID, running == null ? 1 : running + 1);
+					queued--;
+					active++;
+					notifyAll(); // Room for waiting submitters
+					return task;
+				}
+			}
+			wait(1000);
+		}
+		return null;
+	}
+
+	private synchronized void done(GeneratorTask task, boolean ok)
+	{
+		String seriesUID = task.getSeriesUID() == null ? "" : task.getSeriesUID();
+		Integer running = runningPerSeries.get(seriesUID);
+		if (running == null || running <= 1)
+			runningPerSeries.remove(seriesUID);
+		else
+			runningPerSeries.put(seriesUID, running - 1);
+		active--;
+		if (ok)
+			completed++;
+		else
+			failed++;
+		notifyAll();
+	}
+
+	private class Worker implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			while (true) {
+				GeneratorTask task;
+				try {
+					task = take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (task == null)
+					return;
+				boolean ok = false;
+				try {
+					task.run();
+					ok = true;
+				} catch (Throwable t) {
+					logger.warning("PngGeneratorProcess task error, taskType:" + task.getTaskType() + " seriesUID:"
+							+ task.getSeriesUID(), t);
+				} finally {
+					readDicomHeadersTask(task);
+					done(task, ok);
+				}
+			}
+		}
 	}
 
 	/**
@@ -166,9 +356,17 @@ public class PngGeneratorProcess implements Runnable
 			String seriesUID = task.getSeriesUID();
 			logger.info("readDicomHeadersTask, taskType:" + taskType + " seriesUID:" + seriesUID + " tagPath:" + tagPath);
 			DicomHeadersTask dicomHeadersTask = new DicomHeadersTask(seriesUID, task.getDICOMFile(), new File(tagPath));
-			tagExec.execute(dicomHeadersTask);
+			dicomHeadersTask.run();
 		} catch (Exception e) {
 			logger.warning("Dicom tags file not created. taskType=" + taskType, e);
 		}
 	}
+
+	private static int getDefaultWorkerCount()
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+		long maxMemory = Runtime.getRuntime().maxMemory();
+		int byMemory = maxMemory == Long.MAX_VALUE ? processors : (int)(maxMemory / MEMORY_PER_WORKER);
+		return Math.max(1, Math.min(processors, byMemory));
+	}
 }
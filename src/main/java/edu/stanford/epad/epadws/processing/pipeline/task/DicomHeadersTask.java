@@ -104,19 +104,18 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.processing.pipeline.task;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 
-import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.DicomObject;
 
-import edu.stanford.epad.common.util.EPADConfig;
-import edu.stanford.epad.common.util.EPADFileUtils;
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.dcm4chee.DicomHeaderReader;
+import edu.stanford.epad.epadws.dcm4chee.SeriesImageIndex;
 
 /**
+ * Writes the DICOM headers of an image to a tag file and records its place in the series with
+ * {@link SeriesImageIndex}. Headers are read in-process by {@link DicomHeaderReader}.
+ * 
  * @author amsnyder
  */
 public class DicomHeadersTask implements Runnable
@@ -137,60 +136,14 @@ public class DicomHeadersTask implements Runnable
 	public void run()
 	{
 		Thread.currentThread().setPriority(Thread.MIN_PRIORITY); // Let interactive thread run sooner
-		FileWriter tagFileWriter = null;
-		InputStream is = null;
-		InputStreamReader isr = null;
-		BufferedReader br = null;
-		Process process = null;
-
 		try {
-			String[] command = { "./dcm2txt", "-w", "250", "-l", "250", dicomInputFile.getAbsolutePath() };
-			ProcessBuilder processBuilder = new ProcessBuilder(command);
-			String dicomBinDir = EPADConfig.getEPADWebServerDICOMScriptsDir() + "bin/";
-			File script = new File(dicomBinDir, "dcm2txt");
-			if (!script.exists())
-				dicomBinDir = EPADConfig.getEPADWebServerDICOMBinDir();
-			script = new File(dicomBinDir, "dcm2txt");
-			// Java 6 - Runtime.getRuntime().exec("chmod u+x "+script.getAbsolutePath());
-			script.setExecutable(true);
-
-			processBuilder.directory(new File(dicomBinDir));
-			process = processBuilder.start();
-			process.getOutputStream();
-
-			is = process.getInputStream();
-			isr = new InputStreamReader(is);
-			br = new BufferedReader(isr);
-
-			String line;
-			StringBuilder sb = new StringBuilder();
-			StringBuilder log = new StringBuilder();
-			while ((line = br.readLine()) != null) {
-				sb.append(line).append("\n");
-				log.append("./dcm2txt: " + line).append("\n");
-			}
-
-			try {
-				process.waitFor();
-			} catch (InterruptedException e) {
-				logger.info(log.toString());
-				logger.warning("Couldn't get tags for series " + seriesUID + "; dicom=" + dicomInputFile.getAbsolutePath() + " tagFile:"  + outputFile.getAbsolutePath(), e);
-			}
-
-			EPADFileUtils.createDirsAndFile(outputFile);
-			File tagFile = outputFile;
-			tagFileWriter = new FileWriter(tagFile);
-			tagFileWriter.write(sb.toString());
+			DicomObject header = DicomHeaderReader.readHeader(dicomInputFile);
+			DicomHeaderReader.writeTagFile(header, outputFile);
+			SeriesImageIndex.getInstance().imageIngested(seriesUID, header);
 		} catch (Exception e) {
 			logger.warning("DicomHeadersTask failed to create DICOM tags for series " + seriesUID + " dicom FIle:" + dicomInputFile.getAbsolutePath() + " : " + outputFile.getAbsolutePath(), e);
 		} catch (OutOfMemoryError oome) {
 			logger.warning("DicomHeadersTask for series " + seriesUID + " out of memory: ", oome);
-		} finally {
-			IOUtils.closeQuietly(tagFileWriter);
-			IOUtils.closeQuietly(br);
-
-			if (process != null)
-				process.destroy();
 		}
 	}
 }
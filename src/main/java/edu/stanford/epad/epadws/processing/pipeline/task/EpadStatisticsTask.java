@@ -125,16 +125,9 @@ import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.epadws.EPadWebServerVersion;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
-import edu.stanford.epad.epadws.models.EpadFile;
+import edu.stanford.epad.epadws.epaddb.EpadStatisticsCollector;
 import edu.stanford.epad.epadws.models.EpadStatistics;
-import edu.stanford.epad.epadws.models.FileType;
-import edu.stanford.epad.epadws.models.Plugin;
-import edu.stanford.epad.epadws.models.Project;
-import edu.stanford.epad.epadws.models.RemotePACQuery;
-import edu.stanford.epad.epadws.models.Study;
-import edu.stanford.epad.epadws.models.Subject;
 import edu.stanford.epad.epadws.models.User;
-import edu.stanford.epad.epadws.models.WorkList;
 import edu.stanford.epad.epadws.service.RemotePACService;
 
 /**
@@ -157,23 +150,19 @@ public class EpadStatisticsTask implements Runnable
 	{
 		try {
 			log.info("Getting epad statistics");
-			EpadStatistics es = new EpadStatistics();
-			int users = new User().getCount("");
-			int projects = new Project().getCount("");
-			int patients = new Subject().getCount("");
-			int studies = new Study().getCount("");
-			int files = new EpadFile().getCount("");
-			int templates = new EpadFile().getCount("filetype = '" + FileType.TEMPLATE.getName() + "'");
-			int plugins = new Plugin().getCount("");
-			int series = epadDatabaseOperations.getNumberOfSeries();
-			int npacs = RemotePACService.getInstance().getRemotePACs().size();
-			int aims = epadDatabaseOperations.getNumberOfAIMs("1 = 1");
-			int dsos = epadDatabaseOperations.getNumberOfAIMs("DSOSeriesUID is not null or DSOSeriesUID != ''");
-			int pacQueries = new RemotePACQuery().getCount("");
-			int wls = 0;
-			try {
-				wls = new WorkList().getCount("");
-			} catch (Exception x) {}
+			EpadStatistics es = EpadStatisticsCollector.getInstance().getEpadStatistics();
+			int users = es.getNumOfUsers();
+			int projects = es.getNumOfProjects();
+			int patients = es.getNumOfPatients();
+			int studies = es.getNumOfStudies();
+			int files = es.getNumOfFiles();
+			int templates = es.getNumOfTemplates();
+			int plugins = es.getNumOfPlugins();
+			int series = es.getNumOfSeries();
+			int npacs = RemotePACService.getInstance().getNumberOfRemotePACs();
+			int aims = es.getNumOfAims();
+			int dsos = es.getNumOfDSOs();
+			int wls = es.getNumOfWorkLists();
 			String host = EPADConfig.xnatServer;
 			if (host == null || host.equalsIgnoreCase("localhost") || host.equalsIgnoreCase("127.0.0.1") || host.equalsIgnoreCase("epad-vm"))
 				host = System.getenv("DOCKER_HOST");;
@@ -184,19 +173,7 @@ public class EpadStatisticsTask implements Runnable
 			if (host == null || host.equalsIgnoreCase("localhost") || host.equalsIgnoreCase("127.0.0.1") || host.equalsIgnoreCase("epad-vm"))
 				host = getIPAddress();
 			es.setHost(host);
-			es.setNumOfUsers(users);
-			es.setNumOfProjects(projects);
-			es.setNumOfPatients(patients);
-			es.setNumOfStudies(studies);
-			es.setNumOfSeries(series);
-			es.setNumOfAims(aims);
-			es.setNumOfDSOs(dsos);
-			es.setNumOfWorkLists(wls);
 			es.setNumOfPacs(npacs);
-			es.setNumOfAutoQueries(pacQueries);
-			es.setNumOfFiles(files);
-			es.setNumOfPlugins(plugins);
-			es.setNumOfTemplates(templates);
 			es.setCreator("admin");
 			es.save();
 			Calendar now = Calendar.getInstance();
@@ -212,7 +189,7 @@ public class EpadStatisticsTask implements Runnable
 						Thread.sleep(1000*delay); // So that all don't do this at the same time
 					String epadUrl = EPADConfig.getParamValue("EpadStatisticsURL", "https://epad-public.stanford.edu/epad/statistics/");
 					epadUrl = epadUrl + "?numOfUsers=" + users;
-					epadUrl = epadUrl + "&numOfProjects=" + users;
+					epadUrl = epadUrl + "&numOfProjects=" + projects;
 					epadUrl = epadUrl + "&numOfPatients=" + patients;
 					epadUrl = epadUrl + "&numOfStudies=" + studies;
 					epadUrl = epadUrl + "&numOfSeries=" + series;
@@ -105,7 +105,6 @@
 package edu.stanford.epad.epadws.processing.pipeline.task;
 
 import edu.stanford.epad.common.util.EPADLogger;
-import edu.stanford.epad.epadws.handlers.admin.ImageCheckHandler;
 
 /**
  * Check and fix all pngs.
@@ -121,7 +120,7 @@ public class ImageCheckTask implements Runnable
 	public void run()
 	{
 		try {
-			String results = ImageCheckHandler.verifyImageGeneration(true);
+			String results = ImageConsistencyChecker.getInstance().run(true).getReport();
 			log.info("\n" + results);
 		} catch (Exception e) {
 			log.warning("Error is image check and fix task", e);
@@ -0,0 +1,566 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.processing.pipeline.task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.epad.common.dicom.DICOMFileDescription;
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.PNGFileProcessingStatus;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
+import edu.stanford.epad.epadws.handlers.dicom.DSOUtil;
+import edu.stanford.epad.epadws.processing.pipeline.watcher.QueueAndWatcherManager;
+
+/**
+ * Checks that every image in dcm4chee has its PNGs in ePAD, as a background job with progress.
+ * <p>
+ * Images without an epad_files entry are found with one anti-join query per batch of instances instead of two queries
+ * per series, and the PNG files and DSO masks of processed images are checked on a small thread pool. Each pass saves
+ * its position in epaddb after every batch, so a check interrupted by a restart picks up where it stopped. Report lines
+ * are kept as they are produced, so callers can follow a running check; only the first ImageCheckMaxReportLines
+ * detail lines are kept but the totals always cover everything.
+ */
+public class ImageConsistencyChecker
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final String CHECKPOINT = "imagecheck.cursor";
+	private static final String PHASE_UNPROCESSED = "unprocessed";
+	private static final String PHASE_PNG_FILES = "pngfiles";
+	private static final String PHASE_DSO_MASKS = "dsomasks";
+	private static final int BATCH_SIZE = 1000;
+
+	private static final ImageConsistencyChecker ourInstance = new ImageConsistencyChecker();
+
+	private final int threads;
+	private final int maxReportLines;
+
+	// Guarded by this
+	private Run currentRun = null;
+	private long runs = 0;
+
+	public static ImageConsistencyChecker getInstance()
+	{
+		return ourInstance;
+	}
+
+	private ImageConsistencyChecker()
+	{
+		threads = ConfigParams.getPositiveIntParam("ImageCheckThreads", 4);
+		maxReportLines = ConfigParams.getPositiveIntParam("ImageCheckMaxReportLines", 10000);
+	}
+
+	/**
+	 * Start a check in the background. If one is already running it is returned instead; a fix request does not turn a
+	 * running check into a fixing one.
+	 */
+	public synchronized Run start(boolean fix)
+	{
+		if (currentRun != null && !currentRun.isDone())
+			return currentRun;
+		final Run run = new Run(fix, maxReportLines);
+		currentRun = run;
+		runs++;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				execute(run);
+			}
+		}, "ImageConsistencyChecker");
+		thread.setDaemon(true);
+		thread.start();
+		return run;
+	}
+
+	/**
+	 * Run a check and wait for it to finish.
+	 */
+	public Run run(boolean fix) throws InterruptedException
+	{
+		Run run = start(fix);
+		run.awaitCompletion();
+		return run;
+	}
+
+	/**
+	 * @return the running check or the last one to finish; null if no check has run since startup
+	 */
+	public synchronized Run getCurrentRun()
+	{
+		return currentRun;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "runs:" + runs + (currentRun == null ? "" : " " + currentRun.getProgress());
+	}
+
+	private void execute(Run run)
+	{
+		log.info("Starting ImageCheck, fix=" + run.fix);
+		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations = Dcm4CheeDatabase.getInstance()
+				.getDcm4CheeDatabaseOperations();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "ImageCheck-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			String phase = PHASE_UNPROCESSED;
+			long startPk = 0;
+			String checkpoint = epadDatabaseOperations.getCheckpoint(CHECKPOINT);
+			if (checkpoint != null && checkpoint.indexOf(':') > 0) {
+				try {
+					startPk = Long.parseLong(checkpoint.substring(checkpoint.indexOf(':') + 1).trim());
+					phase = checkpoint.substring(0, checkpoint.indexOf(':'));
+					run.addLine("Resuming interrupted image check at " + checkpoint
+							+ "; counts only cover images checked from there on");
+				} catch (NumberFormatException e) {
+					log.warning("Invalid image check checkpoint " + checkpoint + "; checking all images");
+				}
+			}
+
+			if (PHASE_UNPROCESSED.equals(phase)) {
+				if (startPk == 0)
+					epadDatabaseOperations.deleteObsoleteEpadFileEntries();
+				EpadFilesBatchWriter.getInstance().flush();
+				checkUnprocessedImages(run, startPk, epadDatabaseOperations, dcm4CheeDatabaseOperations);
+				phase = PHASE_PNG_FILES;
+				startPk = 0;
+			}
+			if (PHASE_PNG_FILES.equals(phase)) {
+				checkPNGFiles(run, startPk, executor, epadDatabaseOperations, dcm4CheeDatabaseOperations);
+				phase = PHASE_DSO_MASKS;
+				startPk = 0;
+			}
+			if (PHASE_DSO_MASKS.equals(phase))
+				checkDSOMasks(run, executor, dcm4CheeDatabaseOperations);
+
+			run.setPhase("errors");
+			for (String pngFileName : epadDatabaseOperations.getAllEPadFilePathsWithErrors()) {
+				run.addLine("PNG file " + pngFileName + " generation failed");
+				run.invalidPNGFiles.incrementAndGet();
+			}
+			epadDatabaseOperations.saveCheckpoint(CHECKPOINT, "");
+
+			run.addSummaryLine("Number of dcm4chee series  = " + dcm4CheeDatabaseOperations.getAllReadyDcm4CheeSeriesUIDs().size());
+			if (run.seriesWithMissingEntries.get() != 0)
+				run.addSummaryLine("Number of series in dcm4chee with missing pngs = " + run.seriesWithMissingEntries.get());
+			run.addSummaryLine("Total number of dcm4chee images that do not have PNGs in ePAD = "
+					+ run.unprocessedImages.get());
+			run.addSummaryLine("Total number of missing PNG files = " + run.missingPNGFiles.get());
+			run.addSummaryLine("Total number of invalid PNG files = " + run.invalidPNGFiles.get());
+			if (run.fix) {
+				if (run.unprocessedImages.get() + run.missingPNGFiles.get() != 0)
+					run.addSummaryLine("Adding " + (run.unprocessedImages.get() + run.missingPNGFiles.get())
+							+ " unprocessed image(s) to PNG pipeline...All unprocessed files added to PNG queue");
+			} else if (run.unprocessedImages.get() + run.missingPNGFiles.get() != 0)
+				run.addSummaryLine("Use fix=true to attempt to regenerate any broken PNGs");
+			if (DSOMaskPNGGeneratorTask.seriesBeingProcessed.size() > 0)
+				log.info("DSO Series being processed:" + DSOMaskPNGGeneratorTask.seriesBeingProcessed);
+			if (SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed.size() > 0)
+				log.info("DICOM Series being processed:" + SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed);
+		} catch (Exception e) {
+			log.warning("Error in image check", e);
+			run.addSummaryLine("Image check failed: " + e.getMessage());
+		} finally {
+			executor.shutdownNow();
+			run.finish();
+			log.info("ImageCheck done, took " + (run.endTime - run.startTime) / 1000.0 + " secs");
+		}
+	}
+
+	/**
+	 * Find images of ready series that have no epad_files entry, i.e. that the PNG pipeline has never seen.
+	 */
+	private void checkUnprocessedImages(Run run, long startPk, EpadDatabaseOperations epadDatabaseOperations,
+			Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations)
+	{
+		run.setPhase(PHASE_UNPROCESSED);
+		// Instances of a series need not have consecutive keys, so series are only reported once the pass is over
+		Map<String, Integer> unprocessedImagesInSeries = new LinkedHashMap<String, Integer>();
+		Set<String> dsoSeriesUIDs = new HashSet<String>();
+		long lastPk = startPk;
+		while (true) {
+			Map<Long, DICOMFileDescription> unprocessed = dcm4CheeDatabaseOperations
+					.getUnprocessedDICOMFilesAfterPrimaryKey(lastPk, BATCH_SIZE);
+			if (unprocessed.isEmpty())
+				break;
+			for (Map.Entry<Long, DICOMFileDescription> entry : unprocessed.entrySet()) {
+				DICOMFileDescription dicomFileDescription = entry.getValue();
+				Integer count = unprocessedImagesInSeries.get(dicomFileDescription.seriesUID);
+				unprocessedImagesInSeries.put(dicomFileDescription.seriesUID, count == null ? 1 : count + 1);
+				if ("SEG".equals(dicomFileDescription.modality))
+					dsoSeriesUIDs.add(dicomFileDescription.seriesUID);
+				lastPk = entry.getKey();
+			}
+			run.unprocessedImages.addAndGet(unprocessed.size());
+			run.filesChecked.addAndGet(unprocessed.size());
+			if (run.fix)
+				reprocess(unprocessed.values());
+			epadDatabaseOperations.saveCheckpoint(CHECKPOINT, PHASE_UNPROCESSED + ":" + lastPk);
+			if (unprocessed.size() < BATCH_SIZE)
+				break;
+		}
+		for (Map.Entry<String, Integer> entry : unprocessedImagesInSeries.entrySet()) {
+			if (dsoSeriesUIDs.contains(entry.getKey())) {
+				run.addLine("Missing mask images for DSO series " + entry.getKey());
+				log.info("Missing mask images for DSO series " + entry.getKey());
+			} else
+				run.addLine("Number of instances in series " + entry.getKey()
+						+ " for which there is no ePAD database entry for a PNG file = " + entry.getValue());
+		}
+		run.seriesWithMissingEntries.addAndGet(unprocessedImagesInSeries.size());
+	}
+
+	/**
+	 * Check that the PNG files of completed epad_files entries are still on disk.
+	 */
+	private void checkPNGFiles(Run run, long startPk, ExecutorService executor,
+			EpadDatabaseOperations epadDatabaseOperations, Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations)
+			throws Exception
+	{
+		run.setPhase(PHASE_PNG_FILES);
+		long lastPk = startPk;
+		while (true) {
+			List<Map<String, String>> rows = epadDatabaseOperations.getEpadFilesAfterPrimaryKey(lastPk,
+					PNGFileProcessingStatus.DONE, BATCH_SIZE);
+			if (rows.isEmpty())
+				break;
+			List<Future<List<Map<String, String>>>> futures = new ArrayList<Future<List<Map<String, String>>>>();
+			int chunkSize = (rows.size() + threads - 1) / threads;
+			for (int i = 0; i < rows.size(); i += chunkSize) {
+				final List<Map<String, String>> chunk = rows.subList(i, Math.min(rows.size(), i + chunkSize));
+				futures.add(executor.submit(new Callable<List<Map<String, String>>>() {
+					@Override
+					public List<Map<String, String>> call()
+					{
+						List<Map<String, String>> missing = new ArrayList<Map<String, String>>();
+						for (Map<String, String> row : chunk) {
+							String filePath = row.get("file_path");
+							if (filePath != null && !new File(filePath).exists())
+								missing.add(row);
+						}
+						return missing;
+					}
+				}));
+			}
+			Set<Long> instancePks = new HashSet<Long>();
+			for (Future<List<Map<String, String>>> future : futures) {
+				for (Map<String, String> row : future.get()) {
+					run.addLine("PNG file " + row.get("file_path") + " is missing");
+					try {
+						instancePks.add(Long.parseLong(row.get("instance_fk")));
+					} catch (NumberFormatException e) {
+						log.warning("Invalid instance key for PNG file " + row.get("file_path"));
+					}
+				}
+			}
+			run.missingPNGFiles.addAndGet(instancePks.size());
+			run.filesChecked.addAndGet(rows.size());
+			if (run.fix && !instancePks.isEmpty())
+				reprocess(dcm4CheeDatabaseOperations.getDICOMFilesForInstancePrimaryKeys(instancePks).values());
+			lastPk = Long.parseLong(rows.get(rows.size() - 1).get("pk"));
+			epadDatabaseOperations.saveCheckpoint(CHECKPOINT, PHASE_PNG_FILES + ":" + lastPk);
+			if (rows.size() < BATCH_SIZE)
+				break;
+		}
+	}
+
+	/**
+	 * Check the mask PNGs of DSOs that have been processed; archive files that are not local are fetched over WADO.
+	 */
+	private void checkDSOMasks(final Run run, ExecutorService executor,
+			Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations) throws Exception
+	{
+		run.setPhase(PHASE_DSO_MASKS);
+		final Set<String> reportedSeriesUIDs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		List<Future<DICOMFileDescription>> futures = new ArrayList<Future<DICOMFileDescription>>();
+		for (final DICOMFileDescription dicomFileDescription : dcm4CheeDatabaseOperations
+				.getProcessedDICOMFilesForModality("SEG").values()) {
+			futures.add(executor.submit(new Callable<DICOMFileDescription>() {
+				@Override
+				public DICOMFileDescription call()
+				{
+					return hasDSOMaskPNGs(dicomFileDescription) ? null : dicomFileDescription;
+				}
+			}));
+		}
+		Set<DICOMFileDescription> unprocessed = new HashSet<DICOMFileDescription>();
+		for (Future<DICOMFileDescription> future : futures) {
+			DICOMFileDescription dicomFileDescription = future.get();
+			run.filesChecked.incrementAndGet();
+			if (dicomFileDescription == null)
+				continue;
+			unprocessed.add(dicomFileDescription);
+			if (reportedSeriesUIDs.add(dicomFileDescription.seriesUID)) {
+				run.addLine("Missing mask images for DSO series " + dicomFileDescription.seriesUID);
+				log.info("Missing mask images for DSO series " + dicomFileDescription.seriesUID);
+			}
+		}
+		run.unprocessedImages.addAndGet(unprocessed.size());
+		run.seriesWithMissingEntries.addAndGet(reportedSeriesUIDs.size());
+		if (run.fix && !unprocessed.isEmpty())
+			reprocess(unprocessed);
+	}
+
+	/**
+	 * Queue the files for the PNG pipeline one series at a time, as the pipeline expects the files of one series per call.
+	 */
+	private void reprocess(Collection<DICOMFileDescription> dicomFileDescriptions)
+	{
+		Map<String, Set<DICOMFileDescription>> filesBySeries = new LinkedHashMap<String, Set<DICOMFileDescription>>();
+		for (DICOMFileDescription dicomFileDescription : dicomFileDescriptions) {
+			Set<DICOMFileDescription> seriesFiles = filesBySeries.get(dicomFileDescription.seriesUID);
+			if (seriesFiles == null) {
+				seriesFiles = new HashSet<DICOMFileDescription>();
+				filesBySeries.put(dicomFileDescription.seriesUID, seriesFiles);
+			}
+			seriesFiles.add(dicomFileDescription);
+		}
+		for (Set<DICOMFileDescription> seriesFiles : filesBySeries.values())
+			QueueAndWatcherManager.getInstance().addDICOMFileToPNGGeneratorPipeline("REPROCESS", seriesFiles);
+	}
+
+	private boolean hasDSOMaskPNGs(DICOMFileDescription dicomFileDescription)
+	{
+		return DSOUtil.checkDSOMaskPNGs(dicomFileDescription);
+	}
+
+	/**
+	 * One image check. Report lines are appended as the check goes; readers poll with {@link #getLines(int)}.
+	 */
+	public static class Run
+	{
+		public final boolean fix;
+		public final long startTime = System.currentTimeMillis();
+		private volatile long endTime = 0;
+		private volatile String phase = "starting";
+
+		final AtomicLong seriesWithMissingEntries = new AtomicLong();
+		final AtomicLong unprocessedImages = new AtomicLong();
+		final AtomicLong missingPNGFiles = new AtomicLong();
+		final AtomicLong invalidPNGFiles = new AtomicLong();
+		final AtomicLong filesChecked = new AtomicLong();
+
+		private final int maxLines;
+		// Guarded by this
+		private final List<String> lines = new ArrayList<String>();
+		private int omittedLines = 0;
+
+		Run(boolean fix, int maxLines)
+		{
+			this.fix = fix;
+			this.maxLines = maxLines;
+		}
+
+		public boolean isDone()
+		{
+			return endTime != 0;
+		}
+
+		public synchronized List<String> getLines(int from)
+		{
+			if (from >= lines.size())
+				return Collections.emptyList();
+			return new ArrayList<String>(lines.subList(from, lines.size()));
+		}
+
+		/**
+		 * Wait until there are more than <code>from</code> lines or the check is done.
+		 */
+		public synchronized void awaitLines(int from, long timeoutMillis) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (lines.size() <= from && !isDone() && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+
+		public synchronized void awaitCompletion() throws InterruptedException
+		{
+			while (!isDone())
+				wait();
+		}
+
+		public synchronized String getReport()
+		{
+			StringBuilder report = new StringBuilder();
+			for (String line : lines)
+				report.append(line).append('\n');
+			return report.toString();
+		}
+
+		public String getProgress()
+		{
+			long end = isDone() ? endTime : System.currentTimeMillis();
+			return "phase:" + phase + " fix:" + fix + " filesChecked:" + filesChecked.get() + " seriesWithMissingPNGs:"
+					+ seriesWithMissingEntries.get() + " imagesWithoutPNGs:" + unprocessedImages.get() + " missingPNGFiles:"
+					+ missingPNGFiles.get() + " invalidPNGFiles:" + invalidPNGFiles.get() + " secs:" + (end - startTime)
+					/ 1000;
+		}
+
+		void setPhase(String phase)
+		{
+			this.phase = phase;
+		}
+
+		synchronized void addLine(String line)
+		{
+			if (lines.size() < maxLines)
+				addSummaryLine(line);
+			else
+				omittedLines++;
+		}
+
+		synchronized void addSummaryLine(String line)
+		{
+			if (omittedLines > 0) {
+				lines.add(omittedLines + " further lines omitted");
+				omittedLines = 0;
+			}
+			lines.add(line);
+			notifyAll();
+		}
+
+		synchronized void finish()
+		{
+			phase = "done";
+			endTime = System.currentTimeMillis();
+			notifyAll();
+		}
+	}
+}
@@ -104,25 +104,29 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.processing.pipeline.task;
 
-import java.io.IOException;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.httpclient.methods.GetMethod;
+import javax.servlet.http.HttpServletResponse;
 
-import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
-import edu.stanford.epad.dtos.TaskStatus;
+import edu.stanford.epad.epadws.handlers.plugin.EPadPluginHandler;
 import edu.stanford.epad.epadws.models.Plugin;
-import edu.stanford.epad.epadws.security.EPADSessionOperations;
+import edu.stanford.epad.epadws.models.PluginJob;
+import edu.stanford.epad.epadws.plugins.PluginJobEngine;
+import edu.stanford.epad.epadws.plugins.PluginJobRequest;
+import edu.stanford.epad.epadws.plugins.PluginJobResponse;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.PluginOperations;
+import edu.stanford.epad.epadws.service.SessionService;
 
 /**
  * Start Plugin and pass it aim id / frame num.
+ * <p>
+ * Runs a job from PluginJobEngine through EPadPluginHandler in this process, with the request the plugin route would
+ * have received (aimFile or aims, frameNumber, projectID and the JSESSIONID cookie), so the handler checks the session
+ * as it does for the route. The job is also refused if the session now belongs to another user.
  * 
  * @author dev
  * 
@@ -131,86 +135,58 @@ public class PluginStartTask implements Runnable
 {
 	private static EPADLogger log = EPADLogger.getInstance();
 
-	private final String jsessionID;
-	private final String pluginName;
-	private final String annotationID;
-	private final int frameNumber;
-	private final String projectID;
-	private final String[] annotationIDs;
+	private final PluginJob job;
 
-	public PluginStartTask(String jsessionID, String pluginName, String annotationID, int frameNumber, String projectID)
+	public PluginStartTask(PluginJob job)
 	{
-		this.jsessionID = jsessionID;
-		this.pluginName = pluginName;
-		this.annotationID = annotationID;
-		this.frameNumber = frameNumber;
-		this.projectID = projectID;
-		this.annotationIDs = null;
-	}
-	
-	public PluginStartTask(String jsessionID, String pluginName, String[] annotationIDs, int frameNumber, String projectID)
-	{
-		this.jsessionID = jsessionID;
-		this.pluginName = pluginName;
-		this.annotationID = null;
-		this.frameNumber = frameNumber;
-		this.projectID = projectID;
-		this.annotationIDs = annotationIDs;
+		this.job = job;
 	}
 
-	String getAnnotationIDs() {
-		StringBuilder annotationIDsBuilder= new StringBuilder();
-		for (String str: annotationIDs) {
-			annotationIDsBuilder.append(str);
-			annotationIDsBuilder.append(",");
-		}
-		return annotationIDsBuilder.toString().substring(0, annotationIDsBuilder.length()-1);
-	}
 	@Override
 	public void run()
 	{
-		String username = EPADSessionOperations.getSessionUser(jsessionID);
+		PluginJobEngine engine = PluginJobEngine.getInstance();
+		if (!engine.jobStarted(job))
+			return; // Cancelled while queued
+		String pluginName = job.getPluginName();
+		String[] annotationIDs = job.getAimIDs() == null ? new String[0] : job.getAimIDs().split(",");
+		String annotationID = annotationIDs.length == 1 ? annotationIDs[0] : null;
 		EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-		projectOperations.createEventLog(username, projectID, null, null, null, null, annotationID, "Start PlugIn", pluginName);
-        HttpClient client = new HttpClient(); // TODO Get rid of localhost
-        String url = EPADConfig.getParamValue("serverProxy", "http://localhost:8080") 
-        		+ EPADConfig.getParamValue("webserviceBase", "/epad") + "/plugin/" + pluginName + "/?" //aimFile=" + annotationID 
-        		+ "&frameNumber=" + frameNumber + "&projectID=" + projectID;
-        if (annotationID!=null) 
-        	url+="&aimFile=" + annotationID;
-//        else
-//        	url+="&aimFile=" + getAnnotationIDs();
-        log.info("Triggering ePAD plugin at " + url + " is annotation null "+(annotationID!=null));
-		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_PLUGIN, pluginName.toLowerCase() + ":" + annotationID, "Started Plugin", new Date(), null);
-        GetMethod method = new GetMethod(url);
-        log.info("pluginurl " + url);
-        
-        if (annotationID==null && annotationIDs.length>0)  {
-            NameValuePair[] params = new NameValuePair[annotationIDs.length+2];
-	        int i=0;
-	        for(String aimId: annotationIDs) {
-	        	params[i++]= new NameValuePair("aims", aimId) ;
-	        }
-	        params[i++]= new NameValuePair("frameNumber", String.valueOf(frameNumber)) ;
-	        params[i]= new NameValuePair("projectID", projectID) ;
-	        method.setQueryString(params); 
-        }
-        method.setRequestHeader("Cookie", "JSESSIONID=" + jsessionID);
-        try {
-            int statusCode = client.executeMethod(method);
-            log.info("Status code returned from plugin " + statusCode);
-        } catch (Exception e) {
-            log.warning("Error calling plugin " + pluginName, e);
-    		try {
-        		PluginOperations pluginOperations = PluginOperations.getInstance();
-				Plugin plugin = pluginOperations.getPluginByName(pluginName);
-				plugin.setStatus("Error calling plugin :" + e.getMessage());
-				plugin.save();
-			} catch (Exception e1) { }
-    		
-      } finally {
-            method.releaseConnection();
-        }
-
+		projectOperations.createEventLog(job.getUsername(), job.getProjectID(), null, null, null, null, annotationID, "Start PlugIn", pluginName);
+		String error = null;
+		try {
+			String sessionUser = job.getSessionID() == null ? null : SessionService.getUsernameForSession(job.getSessionID());
+			if (sessionUser != null && !sessionUser.equals(job.getUsername())) {
+				error = "Session of job " + job.getId() + " belongs to " + sessionUser + ", not " + job.getUsername();
+				log.warning(error);
+				return;
+			}
+			Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+			parameters.put("frameNumber", new String[] { String.valueOf(job.getFrameNumber()) });
+			parameters.put("projectID", new String[] { job.getProjectID() });
+			if (annotationID != null)
+				parameters.put("aimFile", new String[] { annotationID });
+			else
+				parameters.put("aims", annotationIDs);
+			log.info("Starting ePAD plugin " + pluginName + " job " + job.getId() + " on " + annotationIDs.length + " AIM(s)");
+			PluginJobResponse response = new PluginJobResponse();
+			new EPadPluginHandler().handle("", null, new PluginJobRequest(pluginName, job.getSessionID(), parameters), response);
+			log.info("Status code returned from plugin " + response.getStatus());
+			if (response.getStatus() >= HttpServletResponse.SC_BAD_REQUEST)
+				error = "Plugin returned status " + response.getStatus() + " " + response.getContent().trim();
+		} catch (Throwable t) {
+			log.warning("Error calling plugin " + pluginName, t);
+			error = "Error calling plugin :" + t.getMessage();
+			if (!engine.isShuttingDown()) {
+				try {
+					PluginOperations pluginOperations = PluginOperations.getInstance();
+					Plugin plugin = pluginOperations.getPluginByName(pluginName);
+					plugin.setStatus(error);
+					plugin.save();
+				} catch (Exception e1) { }
+			}
+		} finally {
+			engine.jobFinished(job, error);
+		}
 	}
 }
@@ -112,7 +112,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import DicomRT.ConvertDicoms;
@@ -143,12 +142,12 @@ import edu.stanford.epad.dtos.internal.DICOMElementList;
 import edu.stanford.epad.epadws.aim.AIMUtil;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
-import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
 import edu.stanford.epad.epadws.models.Project;
 import edu.stanford.epad.epadws.models.Study;
-import edu.stanford.epad.epadws.queries.Dcm4CheeQueries;
+import edu.stanford.epad.epadws.queries.DICOMMetadataCache;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.UserProjectService;
@@ -205,7 +204,7 @@ public class RTDICOMProcessingTask implements GeneratorTask
 					username = username.substring(0, username.indexOf(":"));
 			}
 			projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_RT_PROCESS, seriesUID, "RT Dicom Processing Started", new Date(), null);
-			DICOMElementList dicomElementList = Dcm4CheeQueries.getDICOMElementsFromWADO(studyUID, seriesUID, imageUID);
+			DICOMElementList dicomElementList = DICOMMetadataCache.getInstance().getDICOMElements(studyUID, seriesUID, imageUID);
 			String inputDirPath = EPADConfig.getEPADWebServerResourcesDir() + "download/" + "temp" + Long.toString(System.currentTimeMillis()) + "/";
 			File inputDir = new File(inputDirPath);
 			inputDir.mkdirs();
@@ -404,8 +403,7 @@ public class RTDICOMProcessingTask implements GeneratorTask
 				log.warning("Error reading results", x);
 			}
 			log.info("Creating entry in epad_files:" + outFilePath + " imageUID:" + imageUID);
-			Map<String, String>  epadFilesRow = Dcm4CheeDatabaseUtils.createEPadFilesRowData(outFilePath, 0, imageUID);			
-			epadDatabaseOperations.updateEpadFileRow(epadFilesRow.get("file_path"), PNGFileProcessingStatus.DONE, 0, "");
+			EpadFilesBatchWriter.getInstance().updateEpadFile(outFilePath, PNGFileProcessingStatus.DONE, 0, "");
 			
 			EPADFileUtils.deleteDirectoryAndContents(inputDir);
 			EPADFileUtils.deleteDirectoryAndContents(outputDir);
@@ -110,9 +110,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import javax.imageio.ImageIO;
@@ -128,9 +126,9 @@ import edu.stanford.epad.common.util.EventMessageCodes;
 import edu.stanford.epad.dtos.PNGFileProcessingStatus;
 import edu.stanford.epad.dtos.SeriesProcessingStatus;
 import edu.stanford.epad.dtos.TaskStatus;
-import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.UserProjectService;
@@ -185,7 +183,7 @@ public class SingleFrameDICOMPngGeneratorTask implements GeneratorTask
 		EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 		File inputDICOMFile = dicomFile;
 		File outputPNGFile = pngFile;
-		Map<String, String> epadFilesRow = new HashMap<String, String>();
+		EpadFilesBatchWriter epadFilesWriter = EpadFilesBatchWriter.getInstance();
 		OutputStream outputPNGStream = null;
 
 		try {
@@ -228,31 +226,30 @@ public class SingleFrameDICOMPngGeneratorTask implements GeneratorTask
 				outputPNGFile.delete();
 				instance.dcmconvpng3(0, outputPNGFile);
 			}
-			epadFilesRow = Dcm4CheeDatabaseUtils.createEPadFilesRowData(outputPNGFile.getAbsolutePath(),
-					outputPNGFile.length(), imageUID);
-			log.info("PNG of size " + getFileSize(epadFilesRow) + " generated for instance " + instanceNumber + " in series "
+			long pngFileSize = outputPNGFile.length();
+			log.info("PNG of size " + pngFileSize + " generated for instance " + instanceNumber + " in series "
 					+ seriesUID + ", study " + studyUID + " for patient " + patientName);
 
-			epadDatabaseOperations.updateEpadFileRow(epadFilesRow.get("file_path"), PNGFileProcessingStatus.DONE,
-					getFileSize(epadFilesRow), "");
+			epadFilesWriter.updateEpadFile(outputPNGFile.getAbsolutePath(), PNGFileProcessingStatus.DONE,
+					pngFileSize, "");
 		} catch (FileNotFoundException e) {
 			log.warning("Failed to create PNG for instance " + instanceNumber + " in series " + seriesUID + " for patient "
 					+ patientName, e);
-			epadDatabaseOperations.updateEpadFileRow(epadFilesRow.get("file_path"), PNGFileProcessingStatus.ERROR, 0,
+			epadFilesWriter.updateEpadFile(outputPNGFile.getAbsolutePath(), PNGFileProcessingStatus.ERROR, 0,
 					"DICOM file not found.");
-			epadDatabaseOperations.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.ERROR);
+			epadFilesWriter.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.ERROR);
 		} catch (IOException e) {
 			log.warning("Failed to create PNG for instance " + instanceNumber + " in series " + seriesUID + " for patient "
 					+ patientName, e);
-			epadDatabaseOperations.updateEpadFileRow(epadFilesRow.get("file_path"), PNGFileProcessingStatus.ERROR, 0,
+			epadFilesWriter.updateEpadFile(outputPNGFile.getAbsolutePath(), PNGFileProcessingStatus.ERROR, 0,
 					"IO Error: " + e.getMessage());
-			epadDatabaseOperations.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.ERROR);
+			epadFilesWriter.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.ERROR);
 		} catch (Throwable t) {
 			log.warning("Failed to create PNG for instance " + instanceNumber + " in series " + seriesUID + " for patient "
 					+ patientName, t);
-			epadDatabaseOperations.updateEpadFileRow(epadFilesRow.get("file_path"), PNGFileProcessingStatus.ERROR, 0,
+			epadFilesWriter.updateEpadFile(outputPNGFile.getAbsolutePath(), PNGFileProcessingStatus.ERROR, 0,
 					"General Exception: " + t.getMessage());
-			epadDatabaseOperations.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.ERROR);
+			epadFilesWriter.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.ERROR);
 		} finally {
 			imagesBeingProcessed.remove(imageUID);
 			IOUtils.closeQuietly(outputPNGStream);
@@ -289,15 +286,4 @@ public class SingleFrameDICOMPngGeneratorTask implements GeneratorTask
 	{
 		return "Png";
 	}
-
-	private int getFileSize(Map<String, String> epadFilesTable)
-	{
-		try {
-			String fileSize = epadFilesTable.get("file_size");
-			return Integer.parseInt(fileSize);
-		} catch (Exception e) {
-			log.warning("Warning: failed to get file", e);
-			return 0;
-		}
-	}
 }
@@ -107,6 +107,7 @@ package edu.stanford.epad.epadws.processing.pipeline.watcher;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -126,6 +127,7 @@ import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
 import edu.stanford.epad.epadws.processing.model.DicomSeriesProcessingState;
 import edu.stanford.epad.epadws.processing.model.DicomSeriesProcessingStatusTracker;
 import edu.stanford.epad.epadws.processing.model.SeriesPipelineState;
@@ -217,15 +219,27 @@ public class DICOMSeriesWatcher implements Runnable
 				}
 				// Loop through all series being processed and find images that have no corresponding PNG file recorded in ePAD
 				// database. Update their status to reflect this so that we can monitor percent completion for each series.
-				for (SeriesPipelineState activeSeriesPipelineState : dicomSeriesTracker.getSeriesPipelineStates()) {
+				Set<SeriesPipelineState> activeSeriesPipelineStates = dicomSeriesTracker.getSeriesPipelineStates();
+				List<String> activeSeriesUIDs = new ArrayList<String>(activeSeriesPipelineStates.size());
+				for (SeriesPipelineState activeSeriesPipelineState : activeSeriesPipelineStates)
+					activeSeriesUIDs.add(activeSeriesPipelineState.getSeriesProcessingDescription().getSeriesUID());
+				Map<String, Set<DICOMFileDescription>> unprocessedDICOMFilesBySeries = epadOperations
+						.getUnprocessedDICOMFilesInSeries(activeSeriesUIDs);
+				for (SeriesPipelineState activeSeriesPipelineState : activeSeriesPipelineStates) {
 					SeriesProcessingDescription activeSeriesProcessingDescription = activeSeriesPipelineState
 							.getSeriesProcessingDescription();
 					String seriesUID = activeSeriesProcessingDescription.getSeriesUID();
 					String studyUID = activeSeriesProcessingDescription.getStudyUID();
 					String patientName = activeSeriesProcessingDescription.getPatientName();
-					Set<DICOMFileDescription> unprocessedDICOMFiles = epadOperations.getUnprocessedDICOMFilesInSeries(seriesUID);
+					Set<DICOMFileDescription> unprocessedDICOMFiles = unprocessedDICOMFilesBySeries.get(seriesUID);
+					if (unprocessedDICOMFiles == null)
+						unprocessedDICOMFiles = Collections.emptySet();
 
-					if (unprocessedDICOMFiles.size() > 0) {
+					if (unprocessedDICOMFiles.size() > 0 && !UserProjectService.pendingPNGs.containsKey(seriesUID)
+							&& !queueAndWatcherManager.hasPNGGeneratorCapacity(unprocessedDICOMFiles.size())) {
+						// PNG generator is full; keep the series waiting (and from timing out) until there is room
+						activeSeriesPipelineState.registerActivity();
+					} else if (unprocessedDICOMFiles.size() > 0) {
 						log.info("Series " + activeSeriesProcessingDescription.getSeriesUID() + " has "
 								+ unprocessedDICOMFiles.size() + " unprocessed DICOM image(s) remaining.");
 						activeSeriesProcessingDescription.updateWithDICOMFileDescriptions(unprocessedDICOMFiles);
@@ -266,7 +280,8 @@ public class DICOMSeriesWatcher implements Runnable
 						String patientID = seriesPipelineState.getSeriesProcessingDescription().getSubjectID();
 						String patientName = seriesPipelineState.getSeriesProcessingDescription().getPatientName();
 						dicomSeriesTracker.removeSeriesPipelineState(seriesPipelineState);
-						epadDatabaseOperations.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.DONE);
+						EpadFilesBatchWriter.getInstance().updateOrInsertSeries(seriesUID, SeriesProcessingStatus.DONE);
+						EpadFilesBatchWriter.getInstance().forgetSeries(seriesUID);
 						log.info("Series " + seriesUID + " processing completed");
 						if (UserProjectService.pendingUploads.containsKey(studyUID))
 						{
@@ -104,6 +104,7 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.processing.pipeline.watcher;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
@@ -115,14 +116,14 @@ import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadStatisticsCollector;
 import edu.stanford.epad.epadws.handlers.core.SeriesReference;
 import edu.stanford.epad.epadws.processing.model.SeriesProcessingDescription;
-import edu.stanford.epad.epadws.processing.pipeline.task.DSOMaskPNGGeneratorTask;
-import edu.stanford.epad.epadws.processing.pipeline.task.SingleFrameDICOMPngGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
-import edu.stanford.epad.epadws.service.RemotePACService;
+import edu.stanford.epad.epadws.queries.SubjectSummaryIndex;
+import edu.stanford.epad.epadws.service.RemotePACTransferTracker;
 import edu.stanford.epad.epadws.xnat.XNATSessionOperations;
 
 /**
@@ -156,14 +157,22 @@ public class Dcm4CheeDatabaseWatcher implements Runnable
 		Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations = Dcm4CheeDatabase.getInstance()
 				.getDcm4CheeDatabaseOperations();
 		EpadOperations epadQueries = DefaultEpadOperations.getInstance();
-		int run = 0;
+		QueueAndWatcherManager queueAndWatcherManager = QueueAndWatcherManager.getInstance();
+		EpadStatisticsCollector statisticsCollector = EpadStatisticsCollector.getInstance();
 		while (!signal.hasShutdown()) {
 			try {
-				List<DCM4CHEESeries> dcm4CheeSeriesList = epadQueries.getNewDcm4CheeSeries();
+				// Leave new series in DCM4CHEE until the series watcher and PNG generator can take them
+				List<DCM4CHEESeries> dcm4CheeSeriesList;
+				if (dcm4CheeSeriesWatcherQueue.remainingCapacity() == 0 || queueAndWatcherManager.isPNGGeneratorSaturated())
+					dcm4CheeSeriesList = Collections.emptyList();
+				else
+					dcm4CheeSeriesList = epadQueries.getNewDcm4CheeSeries();
 
 				for (DCM4CHEESeries dcm4CheeSeries : dcm4CheeSeriesList) {
 					String seriesUID = dcm4CheeSeries.seriesUID;
-					String studyUID = dcm4CheeDatabaseOperations.getStudyUIDForSeries(seriesUID);
+					String studyUID = dcm4CheeSeries.studyUID;
+					if (studyUID == null)
+						studyUID = dcm4CheeDatabaseOperations.getStudyUIDForSeries(seriesUID);
 					String patientName = dcm4CheeSeries.patientName;
 					String patientID = dcm4CheeSeries.patientID;
 					String seriesDesc = dcm4CheeSeries.seriesDescription;
@@ -171,43 +180,33 @@ public class Dcm4CheeDatabaseWatcher implements Runnable
 					SeriesProcessingDescription dicomSeriesDescription = new SeriesProcessingDescription(numInstances,
 							seriesUID, studyUID, patientName, patientID);
 					epadDatabaseOperations.updateOrInsertSeries(seriesUID, SeriesProcessingStatus.IN_PIPELINE);
+					if (patientID != null)
+						SubjectSummaryIndex.getInstance().subjectChanged(null, patientID); // Study count and exam types
 					submitSeriesForPngGeneration(dicomSeriesDescription); // Submit this series to generate all the PNG files.
 					submitSeriesForXNATGeneration(dicomSeriesDescription); // Submit this series to generate XNAT information.
+					statisticsCollector.increment(EpadStatisticsCollector.DICOM_SERIES_RECEIVED, 1);
+					statisticsCollector.increment(EpadStatisticsCollector.DICOM_IMAGES_RECEIVED, numInstances);
 
 					logger.info("New DICOM series " + seriesUID + " (" + patientName + ", " + seriesDesc
 							+ ") found in DCM4CHEE with " + numInstances + " image(s)");
 				}
-				if (run%1 == 0) // every 5 secs
-					RemotePACService.checkTransfers();
-				// Every tenth time check deleted dcm4che series
-				if (run >= 10)
+				RemotePACTransferTracker.getInstance().update(); // every 5 secs
+				// Each pass checks the next batch of epad series against dcm4che
+				Set<String> deletedSeriesUIDs = epadQueries.getDeletedDcm4CheeSeries();
+				for (String seriesUID: deletedSeriesUIDs)
 				{
-					run = 0;
-					Set<String> deletedSeriesUIDs = epadQueries.getDeletedDcm4CheeSeries();
-					for (String seriesUID: deletedSeriesUIDs)
+					try
 					{
-						try
-						{
-							logger.info("Series + " + seriesUID + " no longer in DCM4CHE, deleting from epad database");
-							 epadDatabaseOperations.deleteSeries(seriesUID);
-							// TODO: Delete generated PNGs also???
-						} catch (Exception x) {
-							logger.warning("Error deleting series from database");
-						}
+						logger.info("Series + " + seriesUID + " no longer in DCM4CHE, deleting from epad database");
+						 epadDatabaseOperations.deleteSeries(seriesUID);
+						// TODO: Delete generated PNGs also???
+					} catch (Exception x) {
+						logger.warning("Error deleting series from database");
 					}
 				}
-				else
-				{
-					run++;
-				}
-				
-				int singleInProcess = SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed.size();
-				int dsoInProcess = DSOMaskPNGGeneratorTask.seriesBeingProcessed.size();
-				if ((singleInProcess+dsoInProcess) > 0)
-				{
-					// Let the current processing finish for heaven's sake
-					Thread.sleep(60000*dsoInProcess + 2000*singleInProcess);
-				}
+				// The patient of a series deleted in dcm4chee is no longer known, so drop every subject summary
+				if (!deletedSeriesUIDs.isEmpty())
+					SubjectSummaryIndex.getInstance().clear();
 				
 				Thread.sleep(SleepTimeInMilliseconds);
 			} catch (Exception e) {
@@ -218,8 +217,9 @@ public class Dcm4CheeDatabaseWatcher implements Runnable
 	}
 
 	private void submitSeriesForPngGeneration(SeriesProcessingDescription dicomSeriesDescription)
+			throws InterruptedException
 	{
-		dcm4CheeSeriesWatcherQueue.offer(dicomSeriesDescription);
+		dcm4CheeSeriesWatcherQueue.put(dicomSeriesDescription); // Wait for the series watcher rather than drop it
 	}
 
 	private void submitSeriesForXNATGeneration(SeriesProcessingDescription dicomSeriesDescription)
@@ -121,7 +121,7 @@ import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
-import edu.stanford.epad.epadws.service.RemotePACService;
+import edu.stanford.epad.epadws.service.RemotePACTransferTracker;
 import edu.stanford.epad.epadws.service.UserProjectService;
 
 /**
@@ -207,7 +207,7 @@ public class EPADSessionWatcher implements Runnable
 				// Once a day
 				if (prevTime == null || (now.get(Calendar.HOUR_OF_DAY) == 0 && prevTime != null && prevTime.get(Calendar.HOUR_OF_DAY) != 0))
 				{
-					if (projectOperations.getCacheSize() > 1000 && UserProjectService.pendingPNGs.isEmpty() && RemotePACService.pendingTransfers.isEmpty())
+					if (projectOperations.getCacheSize() > 1000 && UserProjectService.pendingPNGs.isEmpty() && !RemotePACTransferTracker.getInstance().hasActiveTransfers())
 						projectOperations.clearCache();
 					epadDatabaseOperations.deleteOldEvents();
 					try {
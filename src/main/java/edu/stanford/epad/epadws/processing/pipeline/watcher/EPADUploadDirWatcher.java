@@ -108,55 +108,92 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
 
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADFileUtils;
 import edu.stanford.epad.common.util.EPADLogger;
-import edu.stanford.epad.common.util.FileKey;
 import edu.stanford.epad.dtos.TaskStatus;
+import edu.stanford.epad.epadws.config.ConfigParams;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeOperations;
+import edu.stanford.epad.epadws.dcm4chee.DicomHeaderReader;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
-import edu.stanford.epad.epadws.processing.model.DicomUploadFile;
+import edu.stanford.epad.epadws.processing.pipeline.threads.FairTaskExecutor;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.UserProjectService;
 
 /**
- * Watches for a new directory containing ZIP or DICOM files in the ePAD upload directory. When a new directory is found
- * it puts a "dir.found" file into it. If the upload is a ZIP file it waits for the ZIP upload to complete and then
- * unzips it.
+ * Watches for a new directory containing ZIP or DICOM files in the ePAD upload directory. New directories are picked
+ * up through a {@link WatchService} on the upload root (with a periodic rescan in case events are lost) and checked
+ * every couple of seconds until the upload stops changing.
  * <p>
- * It then generates DICOM tag files for each DICOM file, creates XNAT entities for the DICOM files, and sends the DICOM
- * files to DCM4CHEE.
+ * A completed upload is then pushed through a pipeline of stages, each with its own bounded pool of threads: unzip,
+ * DICOM header parsing, creation of the project entities, and sending the files to DCM4CHEE. Each ZIP file in an upload
+ * moves through the stages separately. Stage queues are served round-robin per user so a large upload does not block
+ * smaller ones from other users.
  * 
  * @author amsnyder
  */
 public class EPADUploadDirWatcher implements Runnable
 {
-	private static final int CHECK_INTERVAL = 5000; // Check every 5 seconds
+	private static final int CHECK_INTERVAL = 5000; // Rescan every 5 seconds if nothing changes
+	private static final int ARRIVAL_CHECK_INTERVAL = 2000;
+	private static final int PARSE_CHUNK_SIZE = 100;
 	private static final String FOUND_DIR_FILE = "dir.found";
 	private static final long MAX_WAIT_TIME = 3600000; // 1 hour (was 20 minutes before)
 	private static final long MIN_WAIT_TIME = 1200000; // maybe a good idea to reduce to 10 mins, because client seems to be making several empty directories
 	private static final EPADLogger log = EPADLogger.getInstance();
 	private final EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 
+	private final Set<String> activeUploads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ScheduledExecutorService arrivalChecker = Executors.newSingleThreadScheduledExecutor();
+	private final FairTaskExecutor unzipExecutor = new FairTaskExecutor("UploadUnzip", ConfigParams.getIntParam("UploadUnzipThreads", 2));
+	private final FairTaskExecutor parseExecutor = new FairTaskExecutor("UploadParse", ConfigParams.getIntParam("UploadParseThreads", 4));
+	// Entities for one user are created one upload at a time so two ZIPs of the same patient don't race on inserts
+	private final FairTaskExecutor entityExecutor = new FairTaskExecutor("UploadEntities", ConfigParams.getIntParam(
+			"UploadEntityThreads", 2), true);
+	private final FairTaskExecutor sendExecutor = new FairTaskExecutor("UploadSend", ConfigParams.getIntParam("UploadSendThreads", 2));
+
 	@Override
 	public void run()
 	{
+		WatchService watchService = null;
 		try {
 			Thread.currentThread().setPriority(Thread.MIN_PRIORITY); // Let interactive thread run sooner
 			ShutdownSignal shutdownSignal = ShutdownSignal.getInstance();
 			File rootUploadDirectory = new File(EPADConfig.getEPADWebServerUploadDir());
 			log.info("Starting the ePAD upload directory watcher; directory =" + EPADConfig.getEPADWebServerUploadDir());
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+				rootUploadDirectory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+			} catch (Exception e) {
+				log.warning("Could not watch upload directory, polling it instead", e);
+				watchService = closeWatchService(watchService);
+			}
 			long count = 0;
 			while (true) {
 				if (shutdownSignal.hasShutdown())
@@ -167,17 +204,13 @@ public class EPADUploadDirWatcher implements Runnable
 
 				try {
 					if (count%720 == 0)
-						log.info("EPADUploadDirWatcher: Checking new uploads, count:" + count);
+						log.info("EPADUploadDirWatcher: Checking new uploads, count:" + count + " " + getStatistics());
 					count++;
 					List<File> newUploadDirectories = findNewUploadDirectory(rootUploadDirectory);
-					if (newUploadDirectories != null) {
-						if (newUploadDirectories.size() > 0)
-							log.info("Found " + newUploadDirectories.size() + " upload directories");
-						for (File newUploadDirectory : newUploadDirectories) {
-							processUploadDirectory(newUploadDirectory);
-						}
-						if (newUploadDirectories.size() > 0)
-							log.info("EPADUploadDirWatcher: Done processing directories");
+					if (newUploadDirectories.size() > 0)
+						log.info("Found " + newUploadDirectories.size() + " upload directories");
+					for (File newUploadDirectory : newUploadDirectories) {
+						startUpload(newUploadDirectory);
 					}
 				} catch (Exception e) {
 					log.warning("EPADUploadDirWatcher thread error ", e);
@@ -187,25 +220,66 @@ public class EPADUploadDirWatcher implements Runnable
 					log.info("Warning: EPADUploadDirWatcher shutdown signal received.");
 					return;
 				}
-				TimeUnit.MILLISECONDS.sleep(CHECK_INTERVAL);
+				if (watchService != null) {
+					// Any event (including OVERFLOW) or a timeout just triggers a rescan of the root directory
+					WatchKey key = watchService.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						key.pollEvents();
+						if (!key.reset()) {
+							log.warning("Upload directory is no longer watched, polling it instead");
+							watchService = closeWatchService(watchService);
+						}
+					}
+				} else
+					TimeUnit.MILLISECONDS.sleep(CHECK_INTERVAL);
 			}
 		} catch (Error e) {
 			log.severe("Warning: EPADUploadDirWatcher thread error", e);
 		} catch (Throwable e) {
 			log.severe("Warning: EPADUploadDirWatcher thread error", e);
 		} finally {
+			closeWatchService(watchService);
+			arrivalChecker.shutdownNow();
+			unzipExecutor.shutdown();
+			parseExecutor.shutdown();
+			entityExecutor.shutdown();
+			sendExecutor.shutdown();
 			log.info("Warning: EPADUploadDirWatcher thread done.");
 		}
 		log.info("Warning: EPADUploadDirWatcher shutting down.");
 	}
 
+	/**
+	 * @return uploads in progress and queue depths of each stage
+	 */
+	public String getStatistics()
+	{
+		return "uploads:" + activeUploads.size() + " unzip[" + unzipExecutor.getStatistics() + "] parse["
+				+ parseExecutor.getStatistics() + "] entities[" + entityExecutor.getStatistics() + "] send["
+				+ sendExecutor.getStatistics() + "]";
+	}
+
+	private static WatchService closeWatchService(WatchService watchService)
+	{
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {}
+		}
+		return null;
+	}
+
 	private List<File> findNewUploadDirectory(File dir)
-	{ // Looks for new directories without the dir.found file.
+	{ // Looks for new directories without the dir.found file that are not already being processed.
 		List<File> retVal = new ArrayList<File>();
 
 		File[] allFiles = dir.listFiles();
+		if (allFiles == null)
+			return retVal;
 		for (File currFile : allFiles) {
-			if (currFile.isDirectory()) {
+			if (currFile.getName().startsWith(".")) // Staging directories, e.g. TCIA series still downloading
+				continue;
+			if (currFile.isDirectory() && !activeUploads.contains(currFile.getAbsolutePath())) {
 				if (!hasFoundDirFile(currFile)) {
 					retVal.add(currFile);
 				}
@@ -217,6 +291,8 @@ public class EPADUploadDirWatcher implements Runnable
 	private boolean hasFoundDirFile(File dir)
 	{
 		String[] allFilePaths = dir.list();
+		if (allFilePaths == null)
+			return true; // Already gone
 		for (String currPath : allFilePaths) {
 			if (currPath.indexOf(FOUND_DIR_FILE) > 0) {
 				return true;
@@ -235,8 +311,6 @@ public class EPADUploadDirWatcher implements Runnable
 				Properties xnatUploadProperties = new Properties();
 				propertiesFileStream = new FileInputStream(xnatprops);
 				xnatUploadProperties.load(propertiesFileStream);
-				String xnatProjectLabel = xnatUploadProperties.getProperty("XNATProjectName");
-				String xnatSessionID = xnatUploadProperties.getProperty("XNATSessionID");
 				username = xnatUploadProperties.getProperty("XNATUserName");
 			} catch (Exception x) {
 				
@@ -250,114 +324,416 @@ public class EPADUploadDirWatcher implements Runnable
 		}
 		return username;
 	}
-	private void processUploadDirectory(File directory) throws InterruptedException
+
+	/**
+	 * An upload directory on its way through the pipeline.
+	 */
+	private class UploadJob
 	{
-		File zipFile = null;
-		File zipDirectory = null;
-		String username = null;
-		boolean processed = false;
+		final File directory;
+		final File xnatprops;
+		final long startTime = System.currentTimeMillis();
+		volatile String username;
+		long lastSize = -1;
+		int lastNumberOfFiles = -1;
+		int checks = 0;
+		final AtomicInteger pendingBatches = new AtomicInteger();
+		volatile boolean processed = false;
+		volatile Exception error;
+		volatile File errorZipFile;
+
+		UploadJob(File directory)
+		{
+			this.directory = directory;
+			this.xnatprops = new File(directory, UserProjectService.XNAT_UPLOAD_PROPERTIES_FILE_NAME);
+			this.username = getUserNameFromProperties(xnatprops);
+		}
+
+		String getKey()
+		{
+			return username != null ? username : directory.getName();
+		}
+	}
+
+	/**
+	 * One unit of DICOM files handled together - an unzipped ZIP file, or whatever else was uploaded to the directory.
+	 */
+	private class UploadBatch
+	{
+		final UploadJob job;
+		final File zipFile;
+		final File directory;
+		final Map<File, DicomObject> headers = new ConcurrentHashMap<File, DicomObject>();
+		final Set<String> seriesUIDs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger pendingChunks = new AtomicInteger();
+
+		UploadBatch(UploadJob job, File zipFile, File directory)
+		{
+			this.job = job;
+			this.zipFile = zipFile;
+			this.directory = directory;
+		}
+
+		boolean isZip()
+		{
+			return zipFile != null;
+		}
+	}
+
+	private void startUpload(File directory)
+	{
+		if (!activeUploads.add(directory.getAbsolutePath()))
+			return;
+		log.info("Found new upload - waiting for it to complete in directory " + directory.getAbsolutePath());
+		final UploadJob job = new UploadJob(directory);
+		if (job.username != null)
+			projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UPLOAD, directory.getName(), "Started upload", new Date(), null);
+		scheduleArrivalCheck(job);
+	}
+
+	/**
+	 * Hands over a directory whose files are all there already (a TCIA series, say), so it goes straight to parsing
+	 * without waiting for the upload to settle. The directory is moved into the upload directory first, so if the
+	 * server stops before it is processed it is found again as an ordinary upload.
+	 */
+	public void submitUpload(File directory) throws IOException
+	{
+		File uploadDirectory = new File(EPADConfig.getEPADWebServerUploadDir(), directory.getName());
+		if (!activeUploads.add(uploadDirectory.getAbsolutePath()))
+			throw new IOException("Upload directory " + uploadDirectory.getAbsolutePath() + " is already being processed");
+		if (!directory.renameTo(uploadDirectory)) {
+			activeUploads.remove(uploadDirectory.getAbsolutePath());
+			throw new IOException("Could not move " + directory.getAbsolutePath() + " to " + uploadDirectory.getAbsolutePath());
+		}
+		final UploadJob job = new UploadJob(uploadDirectory);
+		if (job.username != null)
+			projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UPLOAD, uploadDirectory.getName(), "Started upload", new Date(), null);
+		arrivalChecker.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					uploadArrived(job);
+				} catch (Exception e) {
+					failJob(job, e);
+				}
+			}
+		});
+	}
+
+	private void scheduleArrivalCheck(final UploadJob job)
+	{
+		arrivalChecker.schedule(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					checkArrival(job);
+				} catch (Exception e) {
+					failJob(job, e);
+				}
+			}
+		}, ARRIVAL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Upload is taken as complete once the number and size of the files stop changing between two checks (if this
+	 * directory has only one file it is given at least MIN_WAIT_TIME for the rest to show up).
+	 */
+	private void checkArrival(UploadJob job)
+	{
+		File[] files = job.directory.listFiles();
+		if (files == null) {
+			log.info("Upload directory " + job.directory.getAbsolutePath() + " disappeared");
+			activeUploads.remove(job.directory.getAbsolutePath());
+			return;
+		}
+		job.checks++;
+		if (files.length > 0) {
+			long newSize = 0;
+			for (File file : files)
+				newSize += file.length();
+			int newNumberOfFiles = files.length;
+			if (job.lastNumberOfFiles != newNumberOfFiles || job.lastSize != newSize
+					|| (newNumberOfFiles == 1 && (System.currentTimeMillis() - job.startTime) < MIN_WAIT_TIME)) {
+				if (job.checks%200 == 0)
+					log.info("Waiting on directory " + job.directory.getName() + ", number of files:" + newNumberOfFiles + ", directory size:" + newSize);
+				job.lastNumberOfFiles = newNumberOfFiles;
+				job.lastSize = newSize;
+			} else {
+				log.info("Files uploaded(should be at least two files): " + Arrays.toString(job.directory.list()));
+				uploadArrived(job);
+				return;
+			}
+		}
+		if ((System.currentTimeMillis() - job.startTime) > MAX_WAIT_TIME)
+			throw new IllegalStateException("Exceeded maximum wait time to upload a ZIP file");
+		scheduleArrivalCheck(job);
+	}
+
+	private void uploadArrived(final UploadJob job)
+	{
+		if (job.username == null)
+			job.username = getUserNameFromProperties(job.xnatprops);
+		File[] zipFiles = job.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.toLowerCase().endsWith(".zip") || name.toLowerCase().endsWith(".gz") || name.toLowerCase().endsWith(".tar") || name.toLowerCase().endsWith(".tgz");
+			}
+		});
+		if (zipFiles == null || zipFiles.length == 0) {
+			processRemainingFiles(job);
+			return;
+		}
+		job.processed = true;
+		job.pendingBatches.set(zipFiles.length);
+		for (File zipFile : zipFiles) {
+			if (zipFile.getName().contains(" "))
+				zipFile = EPADFileUtils.renameFile(zipFile, zipFile.getName().replace(' ', '_'));
+			final File uploadedZipFile = zipFile;
+			unzipExecutor.execute(job.getKey(), new Runnable() {
+				@Override
+				public void run()
+				{
+					unzip(job, uploadedZipFile);
+				}
+			});
+		}
+	}
+
+	private void unzip(UploadJob job, File zipFile)
+	{
+		UploadBatch batch = new UploadBatch(job, zipFile, null);
 		try {
-			File xnatprops = new File(directory, UserProjectService.XNAT_UPLOAD_PROPERTIES_FILE_NAME);
-			username = getUserNameFromProperties(xnatprops);
-			if (username != null)
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UPLOAD, directory.getName(), "Started upload", new Date(), null);
-			boolean hasZipFile = waitOnEmptyUploadDirectory(directory);
-			if (username == null)
-				username = getUserNameFromProperties(xnatprops);
-			if (hasZipFile) {
-				for (;;)
+			projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UNZIP, zipFile.getName(), "Started unzip", new Date(), null);
+			unzipFiles(zipFile);
+			projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UNZIP, zipFile.getName(), "Completed unzip", null, new Date());
+			int removeLen = 4;
+			if (zipFile.getName().toLowerCase().endsWith(".tar.gz"))
+				removeLen = 7;
+			else if (zipFile.getName().toLowerCase().endsWith(".gz"))
+				removeLen = 0;
+			File zipDirectory = new File(job.directory, zipFile.getName().substring(0, zipFile.getName().length()-removeLen));
+			if (job.xnatprops.exists())
+				EPADFileUtils.copyFile(job.xnatprops, new File(zipDirectory, UserProjectService.XNAT_UPLOAD_PROPERTIES_FILE_NAME));
+			batch = new UploadBatch(job, zipFile, zipDirectory);
+			parse(batch);
+		} catch (Exception e) {
+			batchFailed(batch, e);
+		}
+	}
+
+	/**
+	 * Reads the headers of the batch's DICOM files in chunks on the parse threads; the last chunk to finish hands the
+	 * batch on to entity creation.
+	 */
+	private void parse(final UploadBatch batch)
+	{
+		List<File> dicomFiles = new ArrayList<File>();
+		for (File file : UserProjectService.listDICOMFiles(batch.directory)) {
+			if (UserProjectService.isDicomFile(file))
+				dicomFiles.add(file);
+		}
+		if (dicomFiles.isEmpty()) {
+			createEntities(batch);
+			return;
+		}
+		int chunks = (dicomFiles.size() + PARSE_CHUNK_SIZE - 1) / PARSE_CHUNK_SIZE;
+		batch.pendingChunks.set(chunks);
+		for (int i = 0; i < chunks; i++) {
+			final List<File> chunk = dicomFiles.subList(i * PARSE_CHUNK_SIZE, Math.min(dicomFiles.size(), (i + 1) * PARSE_CHUNK_SIZE));
+			parseExecutor.execute(batch.job.getKey(), new Runnable() {
+				@Override
+				public void run()
 				{
-					zipFile = waitForZipUploadToComplete(directory, username);
-					if (zipFile == null) break;
-					if (zipFile.getName().contains(" "))
-						zipFile = EPADFileUtils.renameFile(zipFile, zipFile.getName().replace(' ', '_'));
-					projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UNZIP, zipFile.getName(), "Started unzip", new Date(), null);
-					unzipFiles(zipFile);
-					projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UNZIP, zipFile.getName(), "Completed unzip", null, new Date());
-					int removeLen = 4;
-					if (zipFile.getName().toLowerCase().endsWith(".tar.gz"))
-						removeLen = 7;
-					else if (zipFile.getName().toLowerCase().endsWith(".gz"))
-						removeLen = 0;
-					zipDirectory = new File(directory, zipFile.getName().substring(0, zipFile.getName().length()-removeLen));
-					if (xnatprops.exists())
-						EPADFileUtils.copyFile(xnatprops, new File(zipDirectory, UserProjectService.XNAT_UPLOAD_PROPERTIES_FILE_NAME));
-					projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_ADD_TO_PROJECT, zipDirectory.getName(), "Started processing", new Date(), null);
-					String userName = UserProjectService.createProjectEntitiesFromDICOMFilesInUploadDirectory(zipDirectory, true);
-					String fileCount = "";
-					if (userName != null && userName.contains(":"))
-						fileCount = userName.substring(userName.indexOf(":") +1);
-					if (fileCount.equals("0") || fileCount.equals(""))
-						fileCount = "Zero DICOM files Uploaded. Please check error log.";
-					else if (fileCount.length() > 0)
-						fileCount = fileCount + " files found.";
-					projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_ADD_TO_PROJECT, zipDirectory.getName(), "Completed processing " + fileCount, null, new Date());
-					cleanUploadDirectory(zipDirectory);
-					if (userName != null)
-					{
-						sendFilesToDcm4Chee(userName, zipDirectory);
+					try {
+						for (File file : chunk)
+							readUploadHeader(batch, file);
+					} finally {
+						if (batch.pendingChunks.decrementAndGet() == 0)
+							createEntities(batch);
 					}
-					deleteUploadDirectory(zipDirectory);
-					zipFile.delete();
 				}
-				processed = true;
+			});
+		}
+	}
+
+	private void readUploadHeader(UploadBatch batch, File dicomFile)
+	{
+		try {
+			DicomObject dicomObject = DicomHeaderReader.readHeader(dicomFile);
+			DicomObject header = new BasicDicomObject();
+			for (int tag : UserProjectService.UPLOAD_HEADER_TAGS) {
+				DicomElement element = dicomObject.get(tag);
+				if (element != null)
+					header.add(element);
 			}
-			String[] files = directory.list();
-			if (files.length > 1 || (files.length == 1 && !files[0].contains("properties")))
+			batch.headers.put(dicomFile, header);
+			String seriesUID = dicomObject.getString(Tag.SeriesInstanceUID);
+			if (seriesUID != null)
+				batch.seriesUIDs.add(seriesUID);
+		} catch (Exception e) { // Entity creation will read it again and report it
+			log.warning("Error reading header of uploaded file " + dicomFile.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	private void createEntities(final UploadBatch batch)
+	{
+		entityExecutor.execute(batch.job.getKey(), new Runnable() {
+			@Override
+			public void run()
 			{
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_ADD_TO_PROJECT, directory.getName(), "Started processing", new Date(), null);
-				String userName = UserProjectService.createProjectEntitiesFromDICOMFilesInUploadDirectory(directory, false);
-				String fileCount = "";
-				if (userName != null && userName.contains(":"))
-					fileCount = userName.substring(userName.indexOf(":") +1);
-				if (fileCount.equals("0") || fileCount.equals(""))
-					fileCount = "Zero DICOM files Uploaded. Please check error log.";
-				else if (fileCount.length() > 0)
-					fileCount = fileCount + " files found.";
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_ADD_TO_PROJECT, directory.getName(), "Completed processing " + fileCount, null, new Date());
-				log.info("Cleaning upload directory");
-				cleanUploadDirectory(directory);
-				files = directory.list();
-				if (userName != null && files.length > 0)
-				{
-					sendFilesToDcm4Chee(userName, directory);
+				try {
+					final String userName = addToProject(batch);
+					if (userName == null) {
+						batchDone(batch);
+						return;
+					}
+					sendExecutor.execute(batch.job.getKey(), new Runnable() {
+						@Override
+						public void run()
+						{
+							try {
+								sendFilesToDcm4Chee(userName, batch.directory, batch.seriesUIDs);
+								if (batch.isZip()) {
+									deleteUploadDirectory(batch.directory);
+									batch.zipFile.delete();
+								}
+								batchDone(batch);
+							} catch (Exception e) {
+								batchFailed(batch, e);
+							}
+						}
+					});
+				} catch (Exception e) {
+					batchFailed(batch, e);
 				}
-				processed = true;
 			}
-			if (processed)
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UPLOAD, directory.getName(), "Completed upload", null, new Date());
-			else
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UPLOAD, directory.getName(), "Completed upload - No files found", null, new Date());
-		} catch (Exception e) {
-			log.warning("Exception uploading " + directory.getAbsolutePath(), e);
-			if (zipFile != null)
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UNZIP, zipFile.getName(), null, null, new Date());
-			if (zipDirectory != null)
-				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_ADD_TO_PROJECT, zipDirectory.getName(), null, null, new Date());
-			if (username == null)
-				username = UserProjectService.getUserNameFromPropertiesFile(directory);
-			if (username != null) {
-				if (username.indexOf(":") != -1)
-					username = username.substring(0, username.indexOf(":"));
-				String zipName = "DicomFile";
-				if (zipFile != null) zipName = zipFile.getName();
-				EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-				projectOperations.createEventLog(username, null, null, null, null, null, null, zipName, "Error processing uploaded file",  e.getMessage(), true);
-				epadDatabaseOperations.insertEpadEvent(
-						username, 
-						"Error processing uploaded file:" + zipName, 
-						"", "", "", "", "", "", "Upload Error:" + e.getMessage());
+		});
+	}
+
+	/**
+	 * @return user:count if the files should be sent on to DCM4CHEE
+	 */
+	private String addToProject(UploadBatch batch)
+	{
+		UploadJob job = batch.job;
+		File directory = batch.directory;
+		projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_ADD_TO_PROJECT, directory.getName(), "Started processing", new Date(), null);
+		String userName = UserProjectService.createProjectEntitiesFromDICOMFilesInUploadDirectory(directory, batch.isZip(), batch.headers);
+		batch.headers.clear();
+		String fileCount = "";
+		if (userName != null && userName.contains(":"))
+			fileCount = userName.substring(userName.indexOf(":") +1);
+		if (fileCount.equals("0") || fileCount.equals(""))
+			fileCount = "Zero DICOM files Uploaded. Please check error log.";
+		else if (fileCount.length() > 0)
+			fileCount = fileCount + " files found.";
+		projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_ADD_TO_PROJECT, directory.getName(), "Completed processing " + fileCount, null, new Date());
+		log.info("Cleaning upload directory");
+		cleanUploadDirectory(directory);
+		if (!batch.isZip()) {
+			String[] files = directory.list();
+			if (files == null || files.length == 0)
+				return null;
+		}
+		return userName;
+	}
+
+	private void batchDone(UploadBatch batch)
+	{
+		UploadJob job = batch.job;
+		if (!batch.isZip())
+			completeJob(job);
+		else if (job.pendingBatches.decrementAndGet() == 0)
+			processRemainingFiles(job);
+	}
+
+	private void batchFailed(UploadBatch batch, Exception e)
+	{
+		UploadJob job = batch.job;
+		log.warning("Exception uploading " + (batch.isZip() ? batch.zipFile.getAbsolutePath() : job.directory.getAbsolutePath()), e);
+		if (batch.isZip())
+			projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UNZIP, batch.zipFile.getName(), null, null, new Date());
+		if (batch.directory != null)
+			projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_ADD_TO_PROJECT, batch.directory.getName(), null, null, new Date());
+		if (job.error == null) {
+			job.error = e;
+			job.errorZipFile = batch.zipFile;
+		}
+		if (batch.isZip() && batch.directory != null)
+			deleteUploadDirectory(batch.directory);
+		batchDone(batch);
+	}
+
+	/**
+	 * Once all ZIP files are done, processes anything else that was uploaded to the directory itself.
+	 */
+	private void processRemainingFiles(UploadJob job)
+	{
+		String[] files = job.directory.list();
+		if (job.error == null && files != null && (files.length > 1 || (files.length == 1 && !files[0].contains("properties"))))
+		{
+			job.processed = true;
+			UploadBatch batch = new UploadBatch(job, null, job.directory);
+			try {
+				parse(batch);
+			} catch (Exception e) {
+				batchFailed(batch, e);
 			}
-			writeExceptionLog(directory, e);
-			projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UPLOAD, directory.getName(), "Failed upload:" + e.getMessage(), null, new Date());
+		} else
+			completeJob(job);
+	}
+
+	private void completeJob(UploadJob job)
+	{
+		File directory = job.directory;
+		try {
+			if (job.error != null)
+				reportFailure(job);
+			else if (job.processed)
+				projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UPLOAD, directory.getName(), "Completed upload", null, new Date());
+			else
+				projectOperations.updateUserTaskStatus(job.username, TaskStatus.TASK_UPLOAD, directory.getName(), "Completed upload - No files found", null, new Date());
 		} finally {
 			log.info("Upload of directory " + directory.getAbsolutePath() + " finished");
 			try {
 				deleteUploadDirectory(directory);
 			} catch (Exception x) {}
+			activeUploads.remove(directory.getAbsolutePath());
 		}
 	}
 
+	private void failJob(UploadJob job, Exception e)
+	{
+		log.warning("Exception uploading " + job.directory.getAbsolutePath(), e);
+		job.error = e;
+		completeJob(job);
+	}
+
+	private void reportFailure(UploadJob job)
+	{
+		Exception e = job.error;
+		String username = job.username;
+		if (username == null)
+			username = UserProjectService.getUserNameFromPropertiesFile(job.directory);
+		if (username != null) {
+			if (username.indexOf(":") != -1)
+				username = username.substring(0, username.indexOf(":"));
+			String zipName = "DicomFile";
+			if (job.errorZipFile != null) zipName = job.errorZipFile.getName();
+			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+			projectOperations.createEventLog(username, null, null, null, null, null, null, zipName, "Error processing uploaded file",  e.getMessage(), true);
+			epadDatabaseOperations.insertEpadEvent(
+					username, 
+					"Error processing uploaded file:" + zipName, 
+					"", "", "", "", "", "", "Upload Error:" + e.getMessage());
+		}
+		writeExceptionLog(job.directory, e);
+		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_UPLOAD, job.directory.getName(), "Failed upload:" + e.getMessage(), null, new Date());
+	}
+
 	private void cleanUploadDirectory(File dir)
 	{ // TODO Should be deleteFilesInDirectoryWithoutExtension("dcm");
 		if (dir.exists())
@@ -372,91 +748,6 @@ public class EPADUploadDirWatcher implements Runnable
 		}
 	}
 
-	private boolean waitOnEmptyUploadDirectory(File dir) throws InterruptedException
-	{
-		log.info("Found new upload - waiting for it to complete in directory " + dir.getAbsolutePath());
-		// If this file has only one ZIP file, wait for it to complete upload.
-		long emptyDirStartWaitTime = System.currentTimeMillis();
-		boolean hasZipFile = false;
-
-		long oldSize = -1;
-		int oldNumberOfFiles = -1;
-		int count = 0;
-		while (true) {
-			String[] filePaths = dir.list();
-			count++;
-			if (filePaths != null) {
-				if (filePaths.length > 0) {
-					long newSize = dir.getTotalSpace();
-					int newNumberOfFiles = filePaths.length;
-
-					if (oldNumberOfFiles != newNumberOfFiles || oldSize != newSize 
-							|| (newNumberOfFiles == 1  && (System.currentTimeMillis() - emptyDirStartWaitTime) < MIN_WAIT_TIME)) {
-						if (count%200 == 0)
-							log.info("Waiting on directory " + dir.getName() + ", number of files:" + newNumberOfFiles + ", directory size:" + newSize);
-						oldNumberOfFiles = newNumberOfFiles;
-						oldSize = newSize;
-					} else {
-						log.info("Files uploaded(should be at least two files): " + Arrays.toString(filePaths));
-						for (String currPath : filePaths) {
-							currPath = currPath.toLowerCase();
-							if (currPath.endsWith(".zip") || currPath.endsWith(".gz") || currPath.endsWith(".tar") || currPath.endsWith(".tgz")) {
-								hasZipFile = true;
-							}
-						}
-						return hasZipFile;
-					}
-				}
-			}
-			if ((System.currentTimeMillis() - emptyDirStartWaitTime) > MAX_WAIT_TIME)
-				throw new IllegalStateException("Exceeded maximum wait time to upload a ZIP file");
-			Thread.sleep(2000);
-		}
-	}
-
-	private File waitForZipUploadToComplete(File dir, String username) throws InterruptedException
-	{
-		log.info("Waiting for completion of unzip in upload directory " + dir.getAbsolutePath());
-		long zipFileStartWaitTime = System.currentTimeMillis();
-		long prevZipFileSize = -1;
-		long prevZipFileLastUpdated = 0;
-
-		while (true) {
-			File[] zipFiles = dir.listFiles(new FilenameFilter() {
-				@Override
-				public boolean accept(File dir, String name)
-				{
-					return name.toLowerCase().endsWith(".zip") || name.toLowerCase().endsWith(".gz") || name.toLowerCase().endsWith(".tar") || name.toLowerCase().endsWith(".tgz");
-				}
-			});
-
-			if (zipFiles == null || zipFiles.length == 0) {
-				return null;
-//				throw new IllegalStateException("No ZIP file in upload directory " + dir.getAbsolutePath());
-//			} else if (zipFiles.length > 1) {
-//				int numZipFiles = zipFiles.length;
-//				throw new IllegalStateException("Too many ZIP files (" + numZipFiles + ") in upload directory:"
-//						+ dir.getAbsolutePath());
-			}
-			FileKey zipFileKey = new FileKey(zipFiles[0]);
-			DicomUploadFile zipFile = new DicomUploadFile(zipFileKey.getFile());
-
-			long currZipFileSize = zipFile.getSize();
-			long currZipFileLastUpdated = zipFile.getLastUpdated();
-
-			if (prevZipFileSize == currZipFileSize && prevZipFileLastUpdated == currZipFileLastUpdated) {
-				return zipFileKey.getFile(); // Uploading complete
-			} else {
-				prevZipFileSize = currZipFileSize;
-				prevZipFileLastUpdated = currZipFileLastUpdated;
-			}
-			if ((System.currentTimeMillis() - zipFileStartWaitTime) > MAX_WAIT_TIME) {
-				throw new IllegalStateException("ZIP file upload time exceeded");
-			}
-			Thread.sleep(2000);
-		}
-	}
-
 	private void unzipFiles(File zipFile) throws IOException
 	{
 		log.info("Unzipping " + zipFile.getAbsolutePath());
@@ -517,7 +808,7 @@ public class EPADUploadDirWatcher implements Runnable
 		}
 	}
 
-	private void sendFilesToDcm4Chee(String username, File directory) throws Exception
+	private void sendFilesToDcm4Chee(String username, File directory, Set<String> seriesUIDs) throws Exception
 	{
 		try {
 			int count = 0;
@@ -598,15 +889,14 @@ public class EPADUploadDirWatcher implements Runnable
 					"", "", "", "", "", "", "Error Processing Upload");					
 			projectOperations.createEventLog(username, null, null, null, null, null, null, directory.getName(), "DCM4CHEE SEND", "Error sending DICOM files to DCM4CHEE", true);
 		}
-		try {
-			EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();	
-			Set<String> seriesUIDs = UserProjectService.pendingPNGs.keySet();
-			for (String seriesUID: seriesUIDs) {
+		// Only this upload's series: other users' uploads may still be in flight
+		EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		for (String seriesUID: seriesUIDs) {
+			try {
 				databaseOperations.deleteSeriesOnly(seriesUID); // Delete uploaded series status
+			} catch (Exception x) {
+				log.warning("Error resetting status of uploaded series " + seriesUID, x);
 			}
-			
-		} catch (Exception x) {
-			
 		}
 	}
 	
@@ -106,8 +106,9 @@ package edu.stanford.epad.epadws.processing.pipeline.watcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -119,17 +120,17 @@ import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.pixelmed.PixelMedUtils;
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
-import edu.stanford.epad.dtos.SeriesProcessingStatus;
-import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
-import edu.stanford.epad.epadws.epaddb.EpadDatabase;
-import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.dtos.PNGFileProcessingStatus;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
 import edu.stanford.epad.epadws.processing.model.SeriesProcessingDescription;
 import edu.stanford.epad.epadws.processing.pipeline.process.PngGeneratorProcess;
+import edu.stanford.epad.epadws.processing.pipeline.process.PngGeneratorProcess.Priority;
 import edu.stanford.epad.epadws.processing.pipeline.task.DSOMaskPNGGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.GeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.MultiFramePNGGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.RTDICOMProcessingTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.SingleFrameDICOMPngGeneratorTask;
+import edu.stanford.epad.epadws.service.UserProjectService;
 
 public class QueueAndWatcherManager
 {
@@ -200,8 +201,24 @@ public class QueueAndWatcherManager
 		epadUploadDirWatcherExec.shutdown();
 	}
 
+	/**
+	 * Series uploaded by a user who is waiting on them are generated first and re-processing ("REPROCESS") last.
+	 */
 	public void addDICOMFileToPNGGeneratorPipeline(String patientName, Set<DICOMFileDescription> dicomFileDescriptions)
 	{
+		Priority priority = Priority.BACKGROUND;
+		if ("REPROCESS".equals(patientName))
+			priority = Priority.MAINTENANCE;
+		else if (!dicomFileDescriptions.isEmpty()
+				&& UserProjectService.pendingPNGs.containsKey(dicomFileDescriptions.iterator().next().seriesUID))
+			priority = Priority.INTERACTIVE;
+		addDICOMFileToPNGGeneratorPipeline(patientName, dicomFileDescriptions, priority);
+	}
+
+	public void addDICOMFileToPNGGeneratorPipeline(String patientName, Set<DICOMFileDescription> dicomFileDescriptions,
+			Priority priority)
+	{
+		List<GeneratorTask> tasks = new ArrayList<GeneratorTask>();
 		boolean sameSeries = true; // This should always be the case, but who knows
 		String prevSeriesUID = null;
 		Set<DICOMFileDescription> dicomFilesCopy = new HashSet<DICOMFileDescription>();
@@ -229,9 +246,9 @@ public class QueueAndWatcherManager
 			log.info("Dicom file, modality:" +  dicomFileDescription.modality);
 			if ("RTSTRUCT".equals(modality))
 			{
-				extractRTDicomInfo(dicomFileDescription, inputDICOMFile);
+				extractRTDicomInfo(dicomFileDescription, inputDICOMFile, tasks);
 			}
-			if ("RTSTRUCT".equals(modality) || "RTPLAN".equals(modality) || "PR".equals(modality) || "SR".equals(modality)) return; // images to generate
+			if ("RTSTRUCT".equals(modality) || "RTPLAN".equals(modality) || "PR".equals(modality) || "SR".equals(modality)) break; // images to generate
 			if (PixelMedUtils.isDicomSegmentationObject(dicomFilePath)) {
 				if (sameSeries)
 				{
@@ -255,14 +272,38 @@ public class QueueAndWatcherManager
 					}
 				}
 				// Generate mask PNGs, also AIMFile if this is the first time (only one image)
-				generateMaskPNGsForDicomSegmentationObject(dicomFileDescription, inputDICOMFile, dicomFilesCopy.size() == 1);
+				generateMaskPNGsForDicomSegmentationObject(dicomFileDescription, inputDICOMFile, dicomFilesCopy.size() == 1, tasks);
 				if (sameSeries) break;
 			} else if (PixelMedUtils.isMultiframedDicom(dicomFilePath)) {
-				generatePNGsForMultiFrameDicom(dicomFileDescription, inputDICOMFile);
+				generatePNGsForMultiFrameDicom(dicomFileDescription, inputDICOMFile, tasks);
 			} else { // Assume it is non multi-frame DICOM
-				generatePNGFileForSingleFrameDICOMImage(patientName, dicomFileDescription, inputDICOMFile);
+				generatePNGFileForSingleFrameDICOMImage(patientName, dicomFileDescription, inputDICOMFile, tasks);
 			}
 		}
+		try {
+			pngGeneratorProcess.submit(tasks, priority);
+		} catch (InterruptedException e) {
+			log.warning("Interrupted submitting " + tasks.size() + " PNG generation task(s)");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true if the PNG generator has room for a series of this many images
+	 */
+	public boolean hasPNGGeneratorCapacity(int numberOfImages)
+	{
+		return pngGeneratorProcess.hasCapacity(numberOfImages);
+	}
+
+	public boolean isPNGGeneratorSaturated()
+	{
+		return pngGeneratorProcess.isSaturated();
+	}
+
+	public String getPNGGeneratorStatistics()
+	{
+		return pngGeneratorProcess.getStatistics();
 	}
 
 	private File downloadRemoteDICOM(DICOMFileDescription dicomFileDescription)
@@ -301,7 +342,21 @@ public class QueueAndWatcherManager
 			return dcm4cheeRootDir + "/";
 	}
 
-	private void generateMaskPNGsForDicomSegmentationObject(DICOMFileDescription dicomFileDescription, File dsoFile , boolean generateAIM)
+	public String getUploadStatistics()
+	{
+		return epadUploadDirWatcher.getStatistics();
+	}
+
+	/**
+	 * Send a directory of files that have all arrived straight to the upload pipeline.
+	 */
+	public void submitUploadDirectory(File directory) throws IOException
+	{
+		epadUploadDirWatcher.submitUpload(directory);
+	}
+
+	private void generateMaskPNGsForDicomSegmentationObject(DICOMFileDescription dicomFileDescription, File dsoFile , boolean generateAIM,
+			List<GeneratorTask> tasks)
 	{
 		log.info("DICOM segmentation object found for series " + dicomFileDescription.seriesUID + " dso:" + dsoFile.getAbsolutePath());
 		if (DSOMaskPNGGeneratorTask.seriesBeingProcessed.contains(dicomFileDescription.seriesUID))
@@ -314,10 +369,11 @@ public class QueueAndWatcherManager
 				dicomFileDescription.seriesUID,
 				dsoFile, generateAIM, tagFilePath);
 
-		pngGeneratorTaskQueue.offer(dsoMaskPNGGeneratorTask);
+		tasks.add(dsoMaskPNGGeneratorTask);
 	}
 
-	private void generatePNGsForMultiFrameDicom(DICOMFileDescription dicomFileDescription, File multiFrameDicomFile)
+	private void generatePNGsForMultiFrameDicom(DICOMFileDescription dicomFileDescription, File multiFrameDicomFile,
+			List<GeneratorTask> tasks)
 	{
 		log.info("Multi-frame DICOM object found for series " + dicomFileDescription.seriesUID);
 
@@ -327,11 +383,11 @@ public class QueueAndWatcherManager
 				dicomFileDescription.imageUID,
 				multiFrameDicomFile, tagFilePath);
 
-		pngGeneratorTaskQueue.offer(dsoPNGGeneratorTask);
+		tasks.add(dsoPNGGeneratorTask);
 	}
 
 	private void generatePNGFileForSingleFrameDICOMImage(String patientName, DICOMFileDescription dicomFileDescription,
-			File dicomFile)
+			File dicomFile, List<GeneratorTask> tasks)
 	{
 		if (SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed.contains(dicomFileDescription.imageUID))
 		{
@@ -340,32 +396,27 @@ public class QueueAndWatcherManager
 		}
 		String outputPNGFilePath = createOutputPNGFilePathForSingleFrameDICOMImage(dicomFileDescription);
 		File outputPNGFile = new File(outputPNGFilePath);
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-		insertEpadFile(epadDatabaseOperations, outputPNGFilePath, outputPNGFile.length(), dicomFileDescription.imageUID);
+		insertEpadFile(dicomFileDescription, outputPNGFilePath, outputPNGFile.length());
 		SingleFrameDICOMPngGeneratorTask pngGeneratorTask = new SingleFrameDICOMPngGeneratorTask(patientName,
 				dicomFileDescription, dicomFile, outputPNGFile);
-		pngGeneratorTaskQueue.offer(pngGeneratorTask);
+		tasks.add(pngGeneratorTask);
 	}
 
-	private void extractRTDicomInfo(DICOMFileDescription dicomFileDescription, File dicomFile)
+	private void extractRTDicomInfo(DICOMFileDescription dicomFileDescription, File dicomFile, List<GeneratorTask> tasks)
 	{
 		log.info("DICOM RT found for series " + dicomFileDescription.seriesUID + " dicomFile:" + dicomFile.getAbsolutePath());
 		String rtFilePath = createOutputPNGFilePathForSingleFrameDICOMImage(dicomFileDescription).replace(".png", ".mat");
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-		insertEpadFile(epadDatabaseOperations, rtFilePath, 0, dicomFileDescription.imageUID);
+		insertEpadFile(dicomFileDescription, rtFilePath, 0);
 		RTDICOMProcessingTask rtTask = new RTDICOMProcessingTask(dicomFileDescription.studyUID, dicomFileDescription.seriesUID, dicomFileDescription.imageUID,
 				dicomFile, rtFilePath);
 
-		pngGeneratorTaskQueue.offer(rtTask);
+		tasks.add(rtTask);
 	}
 
-	private void insertEpadFile(EpadDatabaseOperations epadDatabaseOperations, String outputPNGFilePath, long fileSize,
-			String imageUID)
+	private void insertEpadFile(DICOMFileDescription dicomFileDescription, String outputFilePath, long fileSize)
 	{
-		Map<String, String> epadFilesRow = Dcm4CheeDatabaseUtils.createEPadFilesRowData(outputPNGFilePath, fileSize,
-				imageUID);
-		epadFilesRow.put("file_status", "" + SeriesProcessingStatus.IN_PIPELINE.getCode());
-		epadDatabaseOperations.insertEpadFileRow(epadFilesRow);
+		EpadFilesBatchWriter.getInstance().insertEpadFile(dicomFileDescription.seriesUID, dicomFileDescription.imageUID,
+				outputFilePath, fileSize, PNGFileProcessingStatus.IN_PIPELINE);
 	}
 
 	private String createOutputPNGFilePathForSingleFrameDICOMImage(DICOMFileDescription dicomFileDescription)
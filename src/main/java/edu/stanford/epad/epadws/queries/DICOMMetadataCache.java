@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.queries;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che2.data.DicomObject;
+
+import edu.stanford.epad.common.util.EPADFileUtils;
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.internal.DICOMElement;
+import edu.stanford.epad.dtos.internal.DICOMElementList;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.dcm4chee.DicomHeaderReader;
+
+/**
+ * Two-tier cache of parsed DICOM headers keyed by image UID.
+ * <p>
+ * The first tier is an in-heap LRU of {@link DICOMElementList}s. The second tier is the .tag files that the PNG
+ * pipeline writes at ingest time under {@link EPADConfig#getEPADWebServerDicomTagDir()}. Only when both miss is the
+ * image fetched from dcm4chee over WADO; its header is then written as a tag file so the next lookup stays local.
+ * <p>
+ * A memory entry remembers the modification time of the tag file it was loaded from and is reloaded if the pipeline
+ * rewrites that file. Entries for a series are dropped when the series is deleted or its default tags change.
+ */
+public class DICOMMetadataCache
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final DICOMMetadataCache instance = new DICOMMetadataCache();
+
+	private final int maxEntries;
+	private final Map<String, CachedHeader> headers; // Guarded by itself
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public static DICOMMetadataCache getInstance()
+	{
+		return instance;
+	}
+
+	private DICOMMetadataCache()
+	{
+		this.maxEntries = ConfigParams.getIntParam("DICOMMetadataCacheSize", 20000);
+		this.headers = new LinkedHashMap<String, CachedHeader>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedHeader> eldest)
+			{
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Return the header of an image, or an empty list if it could not be found in the cache, on disk or in dcm4chee.
+	 */
+	public DICOMElementList getDICOMElements(String studyUID, String seriesUID, String imageUID)
+	{
+		File tagFile = getTagFile(studyUID, seriesUID, imageUID);
+		long tagFileModified = tagFile.lastModified(); // 0 if the file does not exist
+		CachedHeader cachedHeader;
+
+		synchronized (headers) {
+			cachedHeader = headers.get(imageUID);
+		}
+		if (cachedHeader != null && cachedHeader.tagFileModified == tagFileModified) {
+			memoryHits.incrementAndGet();
+			return copyOf(cachedHeader.dicomElements);
+		}
+
+		DICOMElementList dicomElements = null;
+		if (tagFileModified != 0) {
+			try {
+				dicomElements = Dcm4CheeQueries.getDICOMElementsFromTagFile(tagFile);
+				if (dicomElements.ResultSet.totalRecords != 0)
+					diskHits.incrementAndGet();
+				else
+					dicomElements = null;
+			} catch (IOException e) {
+				log.warning("Error reading tag file " + tagFile.getAbsolutePath(), e);
+			}
+		}
+		if (dicomElements == null) {
+			misses.incrementAndGet();
+			DicomObject dicomHeader = Dcm4CheeQueries.getDICOMHeaderFromWADO(studyUID, seriesUID, imageUID);
+			if (dicomHeader == null) {
+				failures.incrementAndGet();
+				return new DICOMElementList();
+			}
+			dicomElements = DicomHeaderReader.getDICOMElements(dicomHeader);
+			try {
+				DicomHeaderReader.writeTagFile(dicomHeader, tagFile);
+				tagFileModified = tagFile.lastModified();
+			} catch (IOException e) {
+				log.warning("Error writing tag file " + tagFile.getAbsolutePath(), e);
+				tagFileModified = 0;
+			}
+		}
+
+		synchronized (headers) {
+			headers.put(imageUID, new CachedHeader(seriesUID, tagFileModified, dicomElements));
+		}
+		return copyOf(dicomElements);
+	}
+
+	public void invalidateImage(String imageUID)
+	{
+		synchronized (headers) {
+			if (headers.remove(imageUID) != null)
+				invalidations.incrementAndGet();
+		}
+	}
+
+	public void invalidateSeries(String seriesUID)
+	{
+		int count = 0;
+		synchronized (headers) {
+			for (Iterator<CachedHeader> it = headers.values().iterator(); it.hasNext();) {
+				if (it.next().seriesUID.equals(seriesUID)) {
+					it.remove();
+					count++;
+				}
+			}
+		}
+		if (count != 0) {
+			invalidations.addAndGet(count);
+			log.info("Dropped " + count + " cached DICOM headers for series " + seriesUID);
+		}
+	}
+
+	/**
+	 * The series is deleted: drop its headers and its tag files, which would otherwise be served for a later series
+	 * with the same UID.
+	 */
+	public void deleteSeries(String studyUID, String seriesUID)
+	{
+		invalidateSeries(seriesUID);
+		File seriesTagDirectory = new File(EPADConfig.getEPADWebServerDicomTagDir() + "studies/" + studyUID + "/series/"
+				+ seriesUID);
+		if (seriesTagDirectory.exists() && !EPADFileUtils.deleteDirectoryAndContents(seriesTagDirectory))
+			log.warning("Could not delete tag files in " + seriesTagDirectory.getAbsolutePath());
+	}
+
+	public void clear()
+	{
+		synchronized (headers) {
+			headers.clear();
+		}
+	}
+
+	public int size()
+	{
+		synchronized (headers) {
+			return headers.size();
+		}
+	}
+
+	public long getMemoryHitCount()
+	{
+		return memoryHits.get();
+	}
+
+	public long getDiskHitCount()
+	{
+		return diskHits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getFailureCount()
+	{
+		return failures.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	public long getInvalidationCount()
+	{
+		return invalidations.get();
+	}
+
+	public String getStatistics()
+	{
+		return "entries:" + size() + " max:" + maxEntries + " memoryHits:" + getMemoryHitCount() + " diskHits:"
+				+ getDiskHitCount() + " wadoFetches:" + getMissCount() + " failures:" + getFailureCount() + " evicted:"
+				+ getEvictionCount() + " invalidated:" + getInvalidationCount();
+	}
+
+	/**
+	 * Same layout as the tag files written by the PNG pipeline.
+	 */
+	public static File getTagFile(String studyUID, String seriesUID, String imageUID)
+	{
+		return new File(EPADConfig.getEPADWebServerDicomTagDir() + "studies/" + studyUID + "/series/" + seriesUID
+				+ "/images/" + imageUID + ".tag");
+	}
+
+	// Callers get their own list so they cannot change what is cached
+	private static DICOMElementList copyOf(DICOMElementList dicomElements)
+	{
+		return new DICOMElementList(new ArrayList<DICOMElement>(dicomElements.ResultSet.Result));
+	}
+
+	private static class CachedHeader
+	{
+		final String seriesUID;
+		final long tagFileModified;
+		final DICOMElementList dicomElements;
+
+		CachedHeader(String seriesUID, long tagFileModified, DICOMElementList dicomElements)
+		{
+			this.seriesUID = seriesUID;
+			this.tagFileModified = tagFileModified;
+			this.dicomElements = dicomElements;
+		}
+	}
+}
@@ -111,13 +111,11 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.DicomObject;
 
 import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
 import edu.stanford.epad.common.util.EPADLogger;
@@ -130,7 +128,7 @@ import edu.stanford.epad.dtos.internal.DICOMElement;
 import edu.stanford.epad.dtos.internal.DICOMElementList;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
-import edu.stanford.epad.epadws.processing.pipeline.task.DicomHeadersTask;
+import edu.stanford.epad.epadws.dcm4chee.DicomHeaderReader;
 
 /**
  * @author martin
@@ -246,72 +244,71 @@ public class Dcm4CheeQueries
 
 	public static DICOMElementList getDICOMElementsFromWADO(String studyUID, String seriesUID, String imageUID)
 	{
-		DICOMElementList dicomElementList = new DICOMElementList();
-		DICOMElementList dicomElementListNoSkip = new DICOMElementList();
-		boolean skipThumbnail=false;
+		DicomObject dicomHeader = getDICOMHeaderFromWADO(studyUID, seriesUID, imageUID);
+		if (dicomHeader == null)
+			return new DICOMElementList();
+		else
+			return DicomHeaderReader.getDICOMElements(dicomHeader);
+	}
+
+	/**
+	 * Download an image from dcm4chee and read its header; returns null if it could not be retrieved.
+	 */
+	public static DicomObject getDICOMHeaderFromWADO(String studyUID, String seriesUID, String imageUID)
+	{
+		File temporaryDICOMFile = null;
 		try {
-			File temporaryDICOMFile = File.createTempFile(imageUID, ".tmp");
+			temporaryDICOMFile = File.createTempFile(imageUID, ".tmp");
 			int wadoStatusCode = DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDICOMFile);
 			if (wadoStatusCode == HttpServletResponse.SC_OK) {
-				File tempTag = File.createTempFile(imageUID, "_tag.tmp");
-				ExecutorService taskExecutor = Executors.newFixedThreadPool(4);
-				taskExecutor.execute(new DicomHeadersTask(seriesUID, temporaryDICOMFile, tempTag));
-				taskExecutor.shutdown();
-				try {
-					taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-					BufferedReader tagReader = null;
-					try {
-						String dicomElementString;
-						FileReader tagFileReader = new FileReader(tempTag.getAbsolutePath());
-						tagReader = new BufferedReader(tagFileReader);
-						skipThumbnail = false;
-						String currentSequence = "";
-						while ((dicomElementString = tagReader.readLine()) != null) {
-							if (dicomElementString.contains("(0009,1110)"))  // hard code for now TODO:???
-								skipThumbnail = true;
-							if (dicomElementString.contains("(FFFE,E0DD)"))
-								skipThumbnail = false;
-							int sequence = dicomElementString.indexOf("SQ #-1");
-							if (sequence != -1)
-								currentSequence = dicomElementString.substring(sequence + 7);
-							if (dicomElementString.contains("Sequence Delimitation Item"))
-								currentSequence = "";
-							DICOMElement dicomElement = decodeDICOMElementString(dicomElementString);
-							DICOMElement dicomElementNoSkip = decodeDICOMElementString(dicomElementString);
-							if (dicomElement != null) {
-								if (!skipThumbnail) {
-									dicomElement.parentSequenceName = currentSequence;
-									dicomElementList.addDICOMElement(dicomElement);
-								} 
-							//make a list with all the skip items
-							//at the end if the skip is not closed then use this list
-								else{
-									log.warning("Warning: skip sequence. skipping " + dicomElementString);
-									dicomElementNoSkip.parentSequenceName = currentSequence;
-									dicomElementListNoSkip.addDICOMElement(dicomElementNoSkip);
-								}
-							} else {
-								//too much log
-//								 log.warning("Warning: could not decode DICOM element " + dicomElementString + "");
-							}
-						}
-					} finally {
-						IOUtils.closeQuietly(tagReader);
-						try {
-							temporaryDICOMFile.delete();
-							tempTag.delete();
-						} catch (Exception x) {};
-					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					log.warning("DICOM headers task for series " + seriesUID + " interrupted!");
-				}
+				return DicomHeaderReader.readHeader(temporaryDICOMFile);
 			} else {
 				log.warning("Error invoking dcm4chee to get DICOM headers for series " + seriesUID + "; status code="
 						+ wadoStatusCode);
 			}
 		} catch (IOException e) {
 			log.warning("IOException retrieving DICOM headers for image " + imageUID + " in series " + seriesUID, e);
+		} finally {
+			if (temporaryDICOMFile != null)
+				temporaryDICOMFile.delete();
+		}
+		return null;
+	}
+
+	/**
+	 * Parse a tag file written by {@link DicomHeaderReader} or dcm2txt.
+	 */
+	public static DICOMElementList getDICOMElementsFromTagFile(File tagFile) throws IOException
+	{
+		DICOMElementList dicomElementList = new DICOMElementList();
+		DICOMElementList dicomElementListNoSkip = new DICOMElementList();
+		boolean skipThumbnail = false;
+		BufferedReader tagReader = null;
+		try {
+			String dicomElementString;
+			tagReader = new BufferedReader(new FileReader(tagFile));
+			String currentSequence = "";
+			while ((dicomElementString = tagReader.readLine()) != null) {
+				if (dicomElementString.contains("(0009,1110)"))  // hard code for now TODO:???
+					skipThumbnail = true;
+				if (dicomElementString.contains("(FFFE,E0DD)"))
+					skipThumbnail = false;
+				int sequence = dicomElementString.indexOf("SQ #-1");
+				if (sequence != -1)
+					currentSequence = dicomElementString.substring(sequence + 7);
+				if (dicomElementString.contains("Sequence Delimitation Item"))
+					currentSequence = "";
+				DICOMElement dicomElement = decodeDICOMElementString(dicomElementString);
+				if (dicomElement != null) {
+					dicomElement.parentSequenceName = currentSequence;
+					if (!skipThumbnail)
+						dicomElementList.addDICOMElement(dicomElement);
+					else // at the end if the skip is not closed then use this list
+						dicomElementListNoSkip.addDICOMElement(dicomElement);
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(tagReader);
 		}
 		if (skipThumbnail) {
 			log.warning("End of skip not found returning noskip data. ");
@@ -347,7 +344,7 @@ public class Dcm4CheeQueries
 		return dcm4CheeStudy;
 	}
 
-	private static DCM4CHEESeries extractDCM4CHEESeriesFromSeriesData(Map<String, String> dcm4CheeSeriesData)
+	static DCM4CHEESeries extractDCM4CHEESeriesFromSeriesData(Map<String, String> dcm4CheeSeriesData)
 	{
 		String studyUID = getStringValueFromRow(dcm4CheeSeriesData, "study_iuid");
 		String seriesUID = getStringValueFromRow(dcm4CheeSeriesData, "series_iuid");
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.queries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.internal.DCM4CHEESeries;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.processing.pipeline.watcher.Dcm4CheeDatabaseWatcher;
+
+/**
+ * Incrementally tracks series added to and deleted from DCM4CHEE for {@link Dcm4CheeDatabaseWatcher}.
+ * <p>
+ * New series are found by scanning dcm4chee's series table forward from a high-water mark on its primary key, which is
+ * saved in epaddb so a restart resumes from where it left off. Series that are not yet ready when first seen are kept
+ * in a pending set and rechecked by primary key on each pass. Deleted series are found by paging through ePAD's series
+ * a batch at a time and checking each batch against dcm4chee, so each pass costs two small indexed queries instead of
+ * two full table scans.
+ * <p>
+ * A series whose ePAD status is deleted while it is still in dcm4chee (to reprocess it) is below the high-water mark,
+ * so it has to be handed back with {@link #rescanSeries(String)}, or {@link #rescanAllSeries()} when all statuses go.
+ * 
+ * @see DefaultEpadOperations#getNewDcm4CheeSeries()
+ * @see DefaultEpadOperations#getDeletedDcm4CheeSeries()
+ */
+public class Dcm4CheeSeriesTracker
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final String LAST_SERIES_PK_CHECKPOINT = "dcm4chee.lastSeriesPk";
+	private static final String DELETED_SERIES_CURSOR_CHECKPOINT = "dcm4chee.deletedSeriesCursor";
+
+	private final Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations;
+	private final EpadDatabaseOperations epadDatabaseOperations;
+
+	private final int newSeriesBatchSize;
+	private final int deletedSeriesBatchSize;
+
+	private long lastSeriesPk = -1;
+	private long savedSeriesPk = -1;
+	private final Set<Long> pendingSeriesPks = new HashSet<Long>();
+	private String deletedSeriesCursor = null;
+
+	private static final Set<String> rescanSeriesUIDs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static volatile boolean rescanAll = false;
+
+	public Dcm4CheeSeriesTracker(Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations,
+			EpadDatabaseOperations epadDatabaseOperations)
+	{
+		this.dcm4CheeDatabaseOperations = dcm4CheeDatabaseOperations;
+		this.epadDatabaseOperations = epadDatabaseOperations;
+		this.newSeriesBatchSize = ConfigParams.getIntParam("NewSeriesBatchSize", 1000);
+		this.deletedSeriesBatchSize = ConfigParams.getIntParam("DeletedSeriesBatchSize", 1000);
+	}
+
+	/**
+	 * Return ready dcm4chee series that ePAD does not know about yet.
+	 * <p>
+	 * The high-water mark is only saved at the start of the following pass, after the watcher has recorded the series
+	 * returned by this one, so a crash in between rescans them rather than losing them.
+	 */
+	public synchronized List<DCM4CHEESeries> getNewSeries()
+	{
+		List<DCM4CHEESeries> newSeries = new ArrayList<DCM4CHEESeries>();
+
+		if (lastSeriesPk < 0)
+			restoreHighWaterMark();
+		else if (lastSeriesPk != savedSeriesPk) {
+			epadDatabaseOperations.saveCheckpoint(LAST_SERIES_PK_CHECKPOINT, String.valueOf(lastSeriesPk));
+			savedSeriesPk = lastSeriesPk;
+		}
+
+		if (rescanAll) {
+			rescanAll = false;
+			lastSeriesPk = 0;
+			epadDatabaseOperations.saveCheckpoint(LAST_SERIES_PK_CHECKPOINT, "0");
+			savedSeriesPk = 0;
+			log.info("Rescanning all dcm4chee series");
+		}
+
+		Map<String, Map<String, String>> readySeries = new HashMap<String, Map<String, String>>();
+		if (!pendingSeriesPks.isEmpty()) {
+			List<Map<String, String>> pendingSeries = dcm4CheeDatabaseOperations.getSeriesForPrimaryKeys(pendingSeriesPks);
+			if (pendingSeries == null)
+				log.warning("Could not check " + pendingSeriesPks.size() + " pending dcm4chee series; will retry");
+			else {
+				Set<Long> stillPending = new HashSet<Long>();
+				for (Map<String, String> series : pendingSeries) {
+					if (isReady(series))
+						readySeries.put(series.get("series_iuid"), series);
+					else
+						stillPending.add(getPk(series));
+				}
+				pendingSeriesPks.clear();
+				pendingSeriesPks.addAll(stillPending);
+			}
+		}
+		for (String seriesUID : new ArrayList<String>(rescanSeriesUIDs)) {
+			Map<String, String> series = dcm4CheeDatabaseOperations.getSeriesData(seriesUID);
+			if (series.isEmpty())
+				log.info("Series " + seriesUID + " to rescan is not in dcm4chee");
+			else if (isReady(series))
+				readySeries.put(seriesUID, series);
+			else
+				continue; // Check again next time
+			rescanSeriesUIDs.remove(seriesUID);
+		}
+
+		long scanPk = lastSeriesPk;
+		List<Map<String, String>> batch;
+		do {
+			batch = dcm4CheeDatabaseOperations.getSeriesAfterPrimaryKey(scanPk, newSeriesBatchSize);
+			for (Map<String, String> series : batch) {
+				scanPk = Math.max(scanPk, getPk(series));
+				if (isReady(series))
+					readySeries.put(series.get("series_iuid"), series);
+				else
+					pendingSeriesPks.add(getPk(series));
+			}
+		} while (batch.size() == newSeriesBatchSize && readySeries.size() < newSeriesBatchSize);
+
+		if (readySeries.isEmpty()) {
+			lastSeriesPk = scanPk;
+			return newSeries;
+		}
+
+		Set<String> knownSeriesUIDs = epadDatabaseOperations.getSeriesUIDsInEPadDatabase(readySeries.keySet());
+		if (knownSeriesUIDs == null) {
+			log.warning("Could not check new dcm4chee series against ePAD database; will retry");
+			for (Map<String, String> series : readySeries.values()) {
+				if (series.containsKey("pk"))
+					pendingSeriesPks.add(getPk(series));
+				else
+					rescanSeriesUIDs.add(series.get("series_iuid"));
+			}
+			return newSeries;
+		}
+		for (Map<String, String> series : readySeries.values()) {
+			if (!knownSeriesUIDs.contains(series.get("series_iuid")))
+				newSeries.add(Dcm4CheeQueries.extractDCM4CHEESeriesFromSeriesData(series));
+		}
+		lastSeriesPk = scanPk;
+		return newSeries;
+	}
+
+	/**
+	 * Return series in the next batch of ePAD's series that are no longer in dcm4chee. Successive calls walk through all
+	 * of ePAD's series and then start again from the beginning.
+	 */
+	public synchronized Set<String> getDeletedSeries()
+	{
+		Set<String> deletedSeriesUIDs = new HashSet<String>();
+
+		if (deletedSeriesCursor == null) {
+			deletedSeriesCursor = epadDatabaseOperations.getCheckpoint(DELETED_SERIES_CURSOR_CHECKPOINT);
+			if (deletedSeriesCursor == null)
+				deletedSeriesCursor = "";
+		}
+		List<String> seriesUIDs = epadDatabaseOperations.getSeriesUIDsFromEPadDatabase(deletedSeriesCursor,
+				deletedSeriesBatchSize);
+		if (seriesUIDs.isEmpty()) {
+			deletedSeriesCursor = "";
+			return deletedSeriesUIDs;
+		}
+		Set<String> existingSeriesUIDs = dcm4CheeDatabaseOperations.getExistingDcm4CheeSeriesUIDs(seriesUIDs);
+		if (existingSeriesUIDs == null) {
+			log.warning("Could not check ePAD series against dcm4chee database; will retry");
+			return deletedSeriesUIDs;
+		}
+		for (String seriesUID : seriesUIDs) {
+			if (!existingSeriesUIDs.contains(seriesUID))
+				deletedSeriesUIDs.add(seriesUID);
+		}
+		if (seriesUIDs.size() < deletedSeriesBatchSize)
+			deletedSeriesCursor = "";
+		else
+			deletedSeriesCursor = seriesUIDs.get(seriesUIDs.size() - 1);
+		epadDatabaseOperations.saveCheckpoint(DELETED_SERIES_CURSOR_CHECKPOINT, deletedSeriesCursor);
+		return deletedSeriesUIDs;
+	}
+
+	/**
+	 * Have the next pass return the series as new if it is in dcm4chee and ePAD has no status for it.
+	 */
+	public static void rescanSeries(String seriesUID)
+	{
+		rescanSeriesUIDs.add(seriesUID);
+	}
+
+	/**
+	 * Have the following passes go through all of dcm4chee's series again, from the first one.
+	 */
+	public static void rescanAllSeries()
+	{
+		rescanAll = true;
+	}
+
+	/**
+	 * Load the saved high-water mark. Series at or below it that were not ready when the server stopped go back into
+	 * the pending set. With no saved mark the whole table is scanned once, which reproduces the old full comparison.
+	 */
+	private void restoreHighWaterMark()
+	{
+		String checkpoint = epadDatabaseOperations.getCheckpoint(LAST_SERIES_PK_CHECKPOINT);
+		lastSeriesPk = 0;
+		if (checkpoint != null) {
+			try {
+				lastSeriesPk = Long.parseLong(checkpoint.trim());
+			} catch (NumberFormatException e) {
+				log.warning("Invalid dcm4chee series checkpoint " + checkpoint + "; rescanning all series");
+			}
+		}
+		savedSeriesPk = lastSeriesPk;
+		if (lastSeriesPk > 0)
+			pendingSeriesPks.addAll(dcm4CheeDatabaseOperations.getNotReadySeriesPrimaryKeys(lastSeriesPk));
+		log.info("Scanning for new dcm4chee series after pk " + lastSeriesPk + ", " + pendingSeriesPks.size()
+				+ " series pending");
+	}
+
+	private static boolean isReady(Map<String, String> series)
+	{
+		// A status of zero signals that DCM4CHEE processing has completed and the series is ready
+		return "0".equals(series.get("series_status"));
+	}
+
+	private static long getPk(Map<String, String> series)
+	{
+		return Long.parseLong(series.get("pk"));
+	}
+}
@@ -192,13 +192,16 @@ import edu.stanford.epad.dtos.internal.XNATProject;
 import edu.stanford.epad.dtos.internal.XNATSubject;
 import edu.stanford.epad.dtos.internal.XNATUserList;
 import edu.stanford.epad.epadws.aim.AIMQueries;
+import edu.stanford.epad.epadws.aim.AIMSchemas;
 import edu.stanford.epad.epadws.aim.AIMSearchType;
 import edu.stanford.epad.epadws.aim.AIMUtil;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeOperations;
+import edu.stanford.epad.epadws.dcm4chee.SeriesImageIndex;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatchWriter;
 import edu.stanford.epad.epadws.epaddb.PNGFilesOperations;
 import edu.stanford.epad.epadws.handlers.core.EPADSearchFilter;
 import edu.stanford.epad.epadws.handlers.core.FrameReference;
@@ -240,7 +243,6 @@ import edu.stanford.epad.epadws.xnat.XNATDeletionOperations;
 import edu.stanford.epad.epadws.xnat.XNATUtil;
 import edu.stanford.hakan.aim4api.base.AimException;
 import edu.stanford.hakan.aim4api.compability.aimv3.ImageAnnotation;
-import edu.stanford.hakan.aim4api.usage.AnnotationValidator;
 
 // TODO Too long - separate in to multiple classes
 
@@ -255,6 +257,8 @@ public class DefaultEpadOperations implements EpadOperations
 			.getDcm4CheeDatabaseOperations();
 	private final EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 	private final EpadWorkListOperations workListOperations = DefaultWorkListOperations.getInstance();
+	private final Dcm4CheeSeriesTracker dcm4CheeSeriesTracker = new Dcm4CheeSeriesTracker(dcm4CheeDatabaseOperations,
+			epadDatabaseOperations);
 
 	private DefaultEpadOperations()
 	{
@@ -327,23 +331,39 @@ public class DefaultEpadOperations implements EpadOperations
 			EPADSearchFilter searchFilter, int start, int count, String sortField, boolean annotationCount, boolean includeAnnotationStatus) throws Exception
 	{
 		EPADSubjectList epadSubjectList = new EPADSubjectList();
-		List<Subject> subjects = projectOperations.getSubjectsForProject(projectID);
-		if (count > 0 && !searchFilter.hasSomeMatchCriteria() && subjects.size() > (start+count))
+		String sortBy = getSubjectSortColumn(sortField);
+		// Plain text name, ID, modality and accession number matches are done by the database, the filter below
+		// still checks what comes back
+		String subjectCriteria = searchFilter.getSubjectSQLCriteria("subjectUID", "name");
+		String studyCriteria = searchFilter.getStudySQLCriteria("st.studyUID");
+		List<Subject> subjects = null;
+		if (count > 0 && searchFilter.hasOnlySubjectSQLCriteria())
 		{
-			subjects = subjects.subList(start, start+count);
-		}
+			// Ask for one more to know if the page is full, a short last page still gets the whole list
+			subjects = projectOperations.getSubjectsForProject(projectID, sortBy, subjectCriteria, studyCriteria, start, count + 1);
+			if (subjects.size() > count)
+				subjects = subjects.subList(0, count);
+			else if (start > 0)
+				subjects = null;
+		}
+		if (subjects == null)
+			subjects = projectOperations.getSubjectsForProject(projectID, sortBy, subjectCriteria, studyCriteria, 0, 0);
 		if (EPADConfig.xnatUploadProjectID.equals(projectID))
 		{
 			annotationCount = false;
 		}
-		if (subjects.size() > 300 && !searchFilter.hasAnnotationMatch())
-			annotationCount = false;
+		List<String> subjectUIDs = new ArrayList<String>();
+		for (Subject subject : subjects)
+			subjectUIDs.add(subject.getSubjectUID());
+		Map<String, SubjectSummaryIndex.SubjectSummary> summaries = SubjectSummaryIndex.getInstance().getSubjectSummaries(projectID, subjectUIDs);
+		boolean countOwnAnnotations = canCountOwnAnnotations(username, projectID);
 		for (Subject subject : subjects) {
-			EPADSubject epadSubject = subject2EPADSubject(sessionID, username, subject, projectID, searchFilter, annotationCount, includeAnnotationStatus);
+			EPADSubject epadSubject = subject2EPADSubject(sessionID, username, subject, projectID, searchFilter, annotationCount, includeAnnotationStatus,
+					summaries.get(subject.getSubjectUID()), countOwnAnnotations);
 			if (epadSubject != null)
 			{
 				boolean matchAccessionNumber = true;
-				if (searchFilter.hasAccessionNumberMatch())
+				if (searchFilter.hasAccessionNumberMatch() && studyCriteria == null)
 				{
 					matchAccessionNumber = false;
 					Set<String> studyUIDsInXNAT = UserProjectService.getStudyUIDsForSubject(projectID,
@@ -818,7 +838,7 @@ public class DefaultEpadOperations implements EpadOperations
 		int numImages = imageDescriptions.size();
 		if (numImages == 0)
 			throw new RuntimeException("This series " + seriesReference.seriesUID + " has no images");
-		if (numImages == 1)
+		if (numImages == 1 && !imageDescriptions.get(0).multiFrameImage) // Known from its header if indexed
 		{
 			List<String> pngs = epadDatabaseOperations.getAllPNGLocations(imageDescriptions.get(0).imageUID);
 			if (pngs.size() > 1)
@@ -1278,6 +1298,8 @@ public class DefaultEpadOperations implements EpadOperations
 			SeriesReference seriesReference, String defaultTags,
 			String sessionID) throws Exception {
 		epadDatabaseOperations.updateSeriesDefaultTags(seriesReference.seriesUID, defaultTags);
+		DICOMMetadataCache.getInstance().invalidateSeries(seriesReference.seriesUID);
+		SeriesImageIndex.getInstance().invalidateSeries(seriesReference.seriesUID);
 	}
 	
 
@@ -1350,6 +1372,7 @@ public class DefaultEpadOperations implements EpadOperations
 				throw new RuntimeException("Error deleting series:" + e.getMessage());
 			}
 			epadDatabaseOperations.deleteSeries(seriesReference.seriesUID);
+			DICOMMetadataCache.getInstance().deleteSeries(seriesReference.studyUID, seriesReference.seriesUID);
 			if (deleteAims)
 				deleteAllSeriesAims(seriesReference.seriesUID, false);
 			if (nds == null)
@@ -1360,6 +1383,7 @@ public class DefaultEpadOperations implements EpadOperations
 		{
 			epadDatabaseOperations.deleteSeries(seriesReference.seriesUID);
 			deleteSeriesPNGs(seriesReference);
+			DICOMMetadataCache.getInstance().deleteSeries(seriesReference.studyUID, seriesReference.seriesUID);
 			if (deleteAims)
 				deleteAllSeriesAims(seriesReference.seriesUID, false);
 			return "";
@@ -1466,53 +1490,49 @@ public class DefaultEpadOperations implements EpadOperations
 	 * Called by {@link Dcm4CheeDatabaseWatcher} to see if new series have been uploaded to DCM4CHEE that ePAD does not
 	 * know about.
 	 * <p>
-	 * We might want to consider getting series from dcm4chee where their upload time (DCM4CHEESeries.createdTime) is
-	 * after ePAD's processing time (EPADSeries.createdTime), indicating a repeat upload.
+	 * Only series added to dcm4chee since the last call are examined; see {@link Dcm4CheeSeriesTracker}.
 	 */
 	@Override
 	public List<DCM4CHEESeries> getNewDcm4CheeSeries()
 	{
-		List<DCM4CHEESeries> newDcm4CheeSeries = new ArrayList<DCM4CHEESeries>();
-
-		Set<String> allReadyDcm4CheeSeriesUIDs = dcm4CheeDatabaseOperations.getAllReadyDcm4CheeSeriesUIDs();
-		Set<String> allEPADSeriesUIDs = epadDatabaseOperations.getAllSeriesUIDsFromEPadDatabase();
-		//log.info("Series in dcm4chee:" + allReadyDcm4CheeSeriesUIDs.size()+ " Series in epad:" + allEPADSeriesUIDs.size());
-		allReadyDcm4CheeSeriesUIDs.removeAll(allEPADSeriesUIDs);
-
-		List<String> newSeriesUIDs = new ArrayList<String>(allReadyDcm4CheeSeriesUIDs);
-		//if (newSeriesUIDs.size() > 0) log.info("newSeriesUIDs:" + newSeriesUIDs.size());
-
-		for (String seriesUID : newSeriesUIDs) {
-			DCM4CHEESeries dcm4CheeSeries = Dcm4CheeQueries.getSeries(seriesUID);
-			if (dcm4CheeSeries != null) {
-				newDcm4CheeSeries.add(dcm4CheeSeries);
-			} else
-				log.warning("Could not find new series " + seriesUID + " in dcm4chee");
-		}
-		return newDcm4CheeSeries;
+		return dcm4CheeSeriesTracker.getNewSeries();
 	}
 
+	/**
+	 * Checks the next batch of ePAD's series against DCM4CHEE; see {@link Dcm4CheeSeriesTracker}.
+	 */
 	@Override
 	public Set<String> getDeletedDcm4CheeSeries() {
-		Set<String> allReadyDcm4CheeSeriesUIDs = dcm4CheeDatabaseOperations.getAllDcm4CheeSeriesUIDs();
-		Set<String> allEPADSeriesUIDs = epadDatabaseOperations.getAllSeriesUIDsFromEPadDatabase();
-		//log.info("Series in dcm4chee:" + allReadyDcm4CheeSeriesUIDs.size()+ " Series in epad:" + allEPADSeriesUIDs.size());
-		allEPADSeriesUIDs.removeAll(allReadyDcm4CheeSeriesUIDs);
-
-		return allEPADSeriesUIDs;
+		return dcm4CheeSeriesTracker.getDeletedSeries();
 	}
 
 	@Override
 	public Set<DICOMFileDescription> getUnprocessedDICOMFilesInSeries(String seriesUID)
+	{
+		// Get list of DICOM file descriptions from DCM4CHEE.
+		return getUnprocessedDICOMFiles(seriesUID, dcm4CheeDatabaseOperations.getDICOMFilesForSeries(seriesUID));
+	}
+
+	@Override
+	public Map<String, Set<DICOMFileDescription>> getUnprocessedDICOMFilesInSeries(Collection<String> seriesUIDs)
+	{
+		Map<String, Set<DICOMFileDescription>> unprocessedDICOMFiles = new HashMap<String, Set<DICOMFileDescription>>();
+		Map<String, Set<DICOMFileDescription>> dicomFileDescriptions = dcm4CheeDatabaseOperations.getDICOMFilesForSeries(seriesUIDs);
+		for (Map.Entry<String, Set<DICOMFileDescription>> entry : dicomFileDescriptions.entrySet()) {
+			Set<DICOMFileDescription> dicomFilesWithoutPNGs = getUnprocessedDICOMFiles(entry.getKey(), entry.getValue());
+			if (!dicomFilesWithoutPNGs.isEmpty())
+				unprocessedDICOMFiles.put(entry.getKey(), dicomFilesWithoutPNGs);
+		}
+		return unprocessedDICOMFiles;
+	}
+
+	private Set<DICOMFileDescription> getUnprocessedDICOMFiles(String seriesUID, Set<DICOMFileDescription> dicomFileDescriptions)
 	{
 		Set<DICOMFileDescription> dicomFilesWithoutPNGs = new HashSet<DICOMFileDescription>();
 
 		try {
-			// Get list of DICOM file descriptions from DCM4CHEE.
-			Set<DICOMFileDescription> dicomFileDescriptions = dcm4CheeDatabaseOperations.getDICOMFilesForSeries(seriesUID);
-
 			// Get list of image UIDs in series for images recorded in ePAD database table epaddb.epad_files.
-			Set<String> imageUIDs = epadDatabaseOperations.getImageUIDsInSeries(seriesUID);
+			Set<String> imageUIDs = EpadFilesBatchWriter.getInstance().getImageUIDsInSeries(seriesUID);
 
 			// Make a list of image UIDs that have no entry in ePAD files_table.
 			for (DICOMFileDescription dicomFileDescription : dicomFileDescriptions) {
@@ -1525,20 +1545,7 @@ public class DefaultEpadOperations implements EpadOperations
 				}
 				else if ("SEG".equalsIgnoreCase(dicomFileDescription.modality))
 				{
-					File dsoFile = new File(EPADConfig.dcm4cheeDirRoot + "/" + dicomFileDescription.filePath);
-					if (!dsoFile.exists())
-					{
-						try {
-							log.info("Downloading remote DICOM file with image " + dicomFileDescription.imageUID + " for series UID " + seriesUID);
-							dsoFile = File.createTempFile(dicomFileDescription.imageUID, ".tmp");
-							DCM4CHEEUtil.downloadDICOMFileFromWADO(dicomFileDescription, dsoFile);
-						} catch (Exception e) {
-							log.warning("Exception when downloading DICOM file with series UID " + seriesUID + " and image UID "
-									+ dicomFileDescription.imageUID, e);
-						}
-
-					}
-					if (!DSOUtil.checkDSOMaskPNGs(dsoFile))
+					if (!DSOUtil.checkDSOMaskPNGs(dicomFileDescription))
 						dicomFilesWithoutPNGs.add(dicomFileDescription);						
 				}
 			}
@@ -1781,14 +1788,14 @@ public class DefaultEpadOperations implements EpadOperations
 			{
 				if (EPADFileUtils.isValidXml(uploadedFile, EPADConfig.templateXSDPath)) {
 					type = FileType.TEMPLATE;
-				} else if (AnnotationValidator.ValidateXML(uploadedFile.getAbsolutePath(), EPADConfig.xsdFilePathV4)) {
+				} else if (AIMSchemas.isValid(uploadedFile, EPADConfig.xsdFilePathV4)) {
 					type = FileType.ANNOTATION;
 					if (!AIMUtil.saveAIMAnnotation(uploadedFile, projectID, sessionID, username)) {
 						return;
 					}
 					else
 						log.warning("Error saving AIM file to Exist DB:" + uploadedFile.getName());									
-				} else if (AnnotationValidator.ValidateXML(uploadedFile.getAbsolutePath(), EPADConfig.xsdFilePath)) {
+				} else if (AIMSchemas.isValid(uploadedFile, EPADConfig.xsdFilePath)) {
 					type = FileType.ANNOTATION;
 					if (!AIMUtil.saveAIMAnnotation(uploadedFile, projectID, sessionID, username)) {
 						return;
@@ -2690,6 +2697,7 @@ public class DefaultEpadOperations implements EpadOperations
 		for (String seriesUID : seriesUIDs) {
 			log.info("Deleting series " + seriesUID + " from ePAD database");
 			epadDatabaseOperations.deleteSeries(seriesUID);
+			DICOMMetadataCache.getInstance().deleteSeries(studyUID, seriesUID);
 		}
 		log.info("Deleting study " + studyUID + " from ePAD database");
 		epadDatabaseOperations.deleteStudy(studyUID);
@@ -4376,6 +4384,83 @@ public class DefaultEpadOperations implements EpadOperations
 			return null;
 	}
 
+	/**
+	 * Same values as subject2EPADSubject, taken from the subject's summary instead of queried study by study.
+	 */
+	private EPADSubject subject2EPADSubject(String sessionID, String username, Subject subject, String projectID,
+			EPADSearchFilter searchFilter, boolean annotationCount, boolean includeAnnotationStatus,
+			SubjectSummaryIndex.SubjectSummary summary, boolean countOwnAnnotations) throws Exception
+	{
+		if (summary == null)
+			return subject2EPADSubject(sessionID, username, subject, projectID, searchFilter, annotationCount, includeAnnotationStatus);
+
+		String patientID = subject.getSubjectUID();
+		String patientName = subject.getName();
+		if (searchFilter.shouldFilterSubject(patientID, patientName))
+			return null;
+
+		int numberOfStudies = 0;
+		int numberOfAnnotations = 0;
+		if (annotationCount && !"true".equalsIgnoreCase(EPADConfig.getParamValue("SkipPatientAnnotationCount", "false"))) {
+			numberOfStudies = summary.getNumberOfProjectStudies();
+			numberOfAnnotations = summary.getNumberOfAnnotations(username, countOwnAnnotations);
+		}
+		if (searchFilter.shouldFilterSubject(patientID, patientName, numberOfAnnotations))
+			return null;
+		Set<String> examTypes = summary.getExamTypes();
+		if (searchFilter.shouldFilterSubject(patientID, patientName, examTypes, numberOfAnnotations))
+			return null;
+		if (numberOfStudies == 0)
+			numberOfStudies = summary.getNumberOfStudies();
+
+		AnnotationStatus annotationStatus = null;
+		Map<String, AnnotationStatus> userStatusList = null;
+		if (includeAnnotationStatus) {
+			// The status depends on which studies pass the filter, so only the unfiltered one is kept
+			SubjectSummaryIndex.UserAnnotationStatus cachedStatus = searchFilter.hasSomeMatchCriteria() ? null : summary.getAnnotationStatus(username);
+			if (cachedStatus != null) {
+				annotationStatus = cachedStatus.getStatus();
+				userStatusList = cachedStatus.getUserStatusList();
+			} else {
+				userStatusList = new HashMap<>();
+				annotationStatus = getAnnotationStatusSubject(projectID, patientID, username, userStatusList, sessionID, searchFilter);
+				if (!searchFilter.hasSomeMatchCriteria())
+					summary.setAnnotationStatus(username, annotationStatus, userStatusList);
+			}
+			//set userStatusList to null so it doesn't display
+			if (userStatusList.size()==0)
+				userStatusList = null;
+		}
+		return new EPADSubject(projectID, patientID, patientName, subject.getCreator(), "", dateFormat.format(subject.getCreatedTime()), "",
+				numberOfStudies, numberOfAnnotations, examTypes, annotationStatus, userStatusList);
+	}
+
+	/**
+	 * getAIMCount only counts a user's own and 'shared' annotations if the user is in the project and not a collaborator
+	 */
+	private boolean canCountOwnAnnotations(String username, String projectID)
+	{
+		try {
+			UserRole role = projectOperations.getUserProjectRole(username, projectID);
+			return role != null && role != UserRole.COLLABORATOR;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Only known columns are passed on, the sort field ends up in the SQL
+	 */
+	private static String getSubjectSortColumn(String sortField)
+	{
+		if ("subjectID".equalsIgnoreCase(sortField) || "subjectUID".equalsIgnoreCase(sortField))
+			return "subjectUID";
+		else if ("insertDate".equalsIgnoreCase(sortField) || "createdTime".equalsIgnoreCase(sortField))
+			return "createdtime";
+		else
+			return "name";
+	}
+
 	private String getPNGPath(String studyUID, String seriesUID, String imageUID)
 	{ // TODO Look at this. Not very robust.
 		String pngLocation = epadDatabaseOperations.getPNGLocation(studyUID, seriesUID, imageUID);
@@ -4514,7 +4599,7 @@ public class DefaultEpadOperations implements EpadOperations
 
 	private DICOMElementList getDICOMElements(String studyUID, String seriesUID, String imageUID)
 	{
-		DICOMElementList dicomElementList = Dcm4CheeQueries.getDICOMElementsFromWADO(studyUID, seriesUID, imageUID);
+		DICOMElementList dicomElementList = DICOMMetadataCache.getInstance().getDICOMElements(studyUID, seriesUID, imageUID);
 
 		if (dicomElementList == null)
 			log.warning("Could not get DICOM header for image " + imageUID + " in series " + seriesUID);
@@ -108,6 +108,7 @@ import java.io.File;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import edu.stanford.epad.common.dicom.DICOMFileDescription;
@@ -1339,7 +1340,8 @@ public interface EpadOperations
 	 */
 	List<DCM4CHEESeries> getNewDcm4CheeSeries();
 	/**
-	 * See if any series have been deleted from DCM4CHEE that are still in ePAD.
+	 * See if any series have been deleted from DCM4CHEE that are still in ePAD. Each call checks the next batch of
+	 * ePAD's series, so repeated calls cover all of them.
 	 */
 	Set<String> getDeletedDcm4CheeSeries();
 
@@ -1353,6 +1355,12 @@ public interface EpadOperations
 	 */
 	Set<DICOMFileDescription> getUnprocessedDICOMFilesInSeries(String seriesUID);
 
+	/**
+	 * {@link #getUnprocessedDICOMFilesInSeries(String)} for several series, with one DCM4CHEE query for all of them.
+	 * Series with no unprocessed files are left out.
+	 */
+	Map<String, Set<DICOMFileDescription>> getUnprocessedDICOMFilesInSeries(Collection<String> seriesUIDs);
+
 	/**
 	 * @param seriesUID
 	 * @param imagUID
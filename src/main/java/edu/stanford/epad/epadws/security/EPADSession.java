@@ -117,6 +117,7 @@ public class EPADSession {
 	Date lastActivity;
 	String lastRequest;
 	boolean valid;
+	transient volatile boolean activityChanged;
 	
 	EPADSession(String sessionId, String username, int lifespan)
 	{
@@ -128,6 +129,18 @@ public class EPADSession {
 		this.valid = true;
 	}
 
+	/**
+	 * For session stores loading a session.
+	 */
+	public EPADSession(String sessionId, String username, int lifespan, Date createdTime, Date lastActivity)
+	{
+		this(sessionId, username, lifespan);
+		if (createdTime != null)
+			this.createdTime = createdTime;
+		if (lastActivity != null)
+			this.lastActivity = lastActivity;
+	}
+
 	public String getSessionId() {
 		return sessionId;
 	}
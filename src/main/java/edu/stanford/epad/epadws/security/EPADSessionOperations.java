@@ -106,10 +106,14 @@ package edu.stanford.epad.epadws.security;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -134,11 +138,21 @@ public class EPADSessionOperations
 {
 	private static final EPADLogger log = EPADLogger.getInstance();
 	private static final String LOGIN_EXCEPTION_MESSAGE = "Internal login error";
-	private static Map<String, EPADSession> currentSessions = new HashMap<String, EPADSession>();
+	private static final ConcurrentMap<String, EPADSession> currentSessions = new ConcurrentHashMap<String, EPADSession>();
 	private static EPADSession adminSession = null;
 	private static final EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 	private static final IdGenerator idGenerator = new IdGenerator();
 	private static final int SESSION_LIFESPAN = 60;  // 1 hour in mins 
+	private static final long SESSION_LIFESPAN_MS = SESSION_LIFESPAN * 60 * 1000L;
+	private static final long ACTIVITY_RESOLUTION = 1000;
+	private static final long UNKNOWN_SESSION_TTL = 60 * 1000L;
+	private static final int MAX_UNKNOWN_SESSIONS = 10000;
+
+	private static final SessionExpiryWheel expiryWheel = new SessionExpiryWheel(SESSION_LIFESPAN);
+	private static final SessionStore sessionStore = createSessionStore();
+	private static final Set<String> changedSessions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Session IDs recently not found in the shared store, so bad cookies do not cost a query per request
+	private static final Map<String, Long> unknownSessions = new ConcurrentHashMap<String, Long>();
 	
 	public static class EPADSessionResponse
 	{
@@ -231,6 +245,10 @@ public class EPADSessionOperations
 		EPADSession session = currentSessions.remove(jsessionID);
 		if (session != null)
 			session.setValid(false);
+		if (sessionStore != null) {
+			sessionStore.remove(jsessionID);
+			unknownSessions.put(jsessionID, System.currentTimeMillis());
+		}
 	}
 
 	public static boolean hasValidSessionID(HttpServletRequest httpRequest)
@@ -250,17 +268,22 @@ public class EPADSessionOperations
 
 	public static boolean hasValidSessionID(String jsessionID, HttpServletRequest httpRequest)
 	{
-		EPADSession session = currentSessions.get(jsessionID);
+		EPADSession session = getSession(jsessionID);
 		if (session != null)
 		{
-			session.setLastActivity(new Date());
+			long now = System.currentTimeMillis();
+			if (now - session.getLastActivity().getTime() >= ACTIVITY_RESOLUTION)
+				session.setLastActivity(new Date(now));
 			if (httpRequest != null)
 			{
 				String url = httpRequest.getRequestURL().toString();
 				if (url.indexOf("eventresource") == -1)	
 					session.setLastRequest(url);
 			}
-			session.setLifespan(EPADSessionOperations.SESSION_LIFESPAN);
+			if (sessionStore != null && !session.activityChanged) {
+				session.activityChanged = true;
+				changedSessions.add(jsessionID);
+			}
 			return true;
 		}
 		//log.warning("SessionId:" + jsessionID + " not found in active sessions");
@@ -307,24 +330,132 @@ public class EPADSessionOperations
 			return "";
 	}
 
+	/**
+	 * Called every minute. Writes session activity to the shared store and expires the sessions whose time slot has
+	 * come up and that have not been used for SESSION_LIFESPAN minutes.
+	 */
 	public static void checkSessionTimeout()
 	{
-		List<String> expiredSessions = new ArrayList<String>();
-		for (String sessionID: currentSessions.keySet())
+		long now = System.currentTimeMillis();
+		if (sessionStore != null)
+			storeSessionActivity();
+		for (String sessionID: expiryWheel.advance(now))
 		{
 			EPADSession session = currentSessions.get(sessionID);
-			int lifespan = session.getLifespan();
-			lifespan--;
-			session.setLifespan(lifespan);
-			if (lifespan == 0)
-			{
+			if (session == null)
+				continue;
+			long expiryTime = session.getLastActivity().getTime() + SESSION_LIFESPAN_MS;
+			if (expiryTime <= now && sessionStore != null) {
+				// May have been used on another node
+				EPADSession storedSession = sessionStore.load(sessionID);
+				if (storedSession != null && storedSession.getLastActivity().after(session.getLastActivity())) {
+					session.setLastActivity(storedSession.getLastActivity());
+					expiryTime = session.getLastActivity().getTime() + SESSION_LIFESPAN_MS;
+				}
+			}
+			if (expiryTime > now) {
+				session.setLifespan((int) ((expiryTime - now + 59999) / 60000));
+				expiryWheel.schedule(sessionID, expiryTime);
+			} else {
+				session.setLifespan(0);
 				session.setValid(false);
-				expiredSessions.add(sessionID);
+				currentSessions.remove(sessionID);
 			}
 		}
-		for (String sessionID: expiredSessions)
+		if (sessionStore != null) {
+			sessionStore.removeExpired(new Date(now - SESSION_LIFESPAN_MS));
+			Iterator<Long> times = unknownSessions.values().iterator();
+			while (times.hasNext())
+			{
+				if (now - times.next() > UNKNOWN_SESSION_TTL)
+					times.remove();
+			}
+		}
+	}
+
+	private static void storeSessionActivity()
+	{
+		List<EPADSession> sessions = new ArrayList<EPADSession>();
+		Iterator<String> sessionIDs = changedSessions.iterator();
+		while (sessionIDs.hasNext())
 		{
-			currentSessions.remove(sessionID);
+			EPADSession session = currentSessions.get(sessionIDs.next());
+			sessionIDs.remove();
+			if (session != null) {
+				session.activityChanged = false;
+				sessions.add(session);
+			}
+		}
+		if (sessions.isEmpty())
+			return;
+		try {
+			for (String sessionID: sessionStore.updateActivity(sessions))
+			{
+				// Logged out or expired on another node
+				EPADSession session = currentSessions.remove(sessionID);
+				if (session != null)
+					session.setValid(false);
+			}
+		} catch (Exception e) {
+			log.warning("Error storing session activity", e);
+		}
+	}
+
+	private static EPADSession getSession(String sessionID)
+	{
+		EPADSession session = currentSessions.get(sessionID);
+		if (session != null || sessionStore == null || sessionID == null)
+			return session;
+		Long notFound = unknownSessions.get(sessionID);
+		if (notFound != null && System.currentTimeMillis() - notFound < UNKNOWN_SESSION_TTL)
+			return null;
+		try {
+			session = sessionStore.load(sessionID);
+		} catch (Exception e) {
+			log.warning("Error loading session " + sessionID, e);
+			return null;
+		}
+		long expiryTime = session == null ? 0 : session.getLastActivity().getTime() + SESSION_LIFESPAN_MS;
+		if (expiryTime <= System.currentTimeMillis()) {
+			if (unknownSessions.size() >= MAX_UNKNOWN_SESSIONS)
+				unknownSessions.clear();
+			unknownSessions.put(sessionID, System.currentTimeMillis());
+			return null;
+		}
+		session.setLifespan((int) ((expiryTime - System.currentTimeMillis() + 59999) / 60000));
+		EPADSession existing = currentSessions.putIfAbsent(sessionID, session);
+		if (existing != null)
+			return existing;
+		expiryWheel.schedule(sessionID, expiryTime);
+		return session;
+	}
+
+	private static EPADSession addSession(EPADSession session)
+	{
+		currentSessions.put(session.getSessionId(), session);
+		expiryWheel.schedule(session.getSessionId(), session.getLastActivity().getTime() + SESSION_LIFESPAN_MS);
+		if (sessionStore != null) {
+			try {
+				sessionStore.create(session);
+			} catch (Exception e) {
+				log.warning("Error storing session for " + session.getUsername(), e);
+			}
+		}
+		return session;
+	}
+
+	private static SessionStore createSessionStore()
+	{
+		String store = EPADConfig.getParamValue("SessionStore", "memory").trim();
+		if ("memory".equalsIgnoreCase(store))
+			return null;
+		if ("jdbc".equalsIgnoreCase(store))
+			return new JdbcSessionStore();
+		try {
+			return (SessionStore) Class.forName(store).newInstance();
+		} catch (Exception e) {
+			log.warning("Error creating session store " + store + ", sessions are kept in memory", e);
+			return null;
 		}
 	}
 	
@@ -335,12 +466,16 @@ public class EPADSessionOperations
 		{
 			session.setRemoteHost(hostName);
 			session.setRemoteAddr(hostAddr);
+			if (sessionStore != null && !session.activityChanged) {
+				session.activityChanged = true;
+				changedSessions.add(sessionID);
+			}
 		}
 	}
 	
 	public static String getSessionHost(String sessionID)
 	{
-		EPADSession session = currentSessions.get(sessionID);
+		EPADSession session = getSession(sessionID);
 		if (session != null)
 		{
 			if (session.getRemoteHost() == null)
@@ -368,16 +503,14 @@ public class EPADSessionOperations
 		{
 			String sessionId = idGenerator.generateId(16);
 			EPADSession session = new EPADSession(sessionId, username, SESSION_LIFESPAN);
-			currentSessions.put(sessionId, session);
-			return session;
+			return addSession(session);
 		}
 		else if (webAuthPassword != null && webAuthPassword.length() > 0 
 				&& user.getPassword().length() >= 60 && BCrypt.checkpw(password, webAuthPassword))
 		{
 			String sessionId = idGenerator.generateId(16);
 			EPADSession session = new EPADSession(sessionId, username, SESSION_LIFESPAN);
-			currentSessions.put(sessionId, session);
-			return session;
+			return addSession(session);
 		}
 		else
 		{
@@ -393,8 +526,7 @@ public class EPADSessionOperations
 					}
 					String sessionId = idGenerator.generateId(16);
 					EPADSession session = new EPADSession(sessionId, username, SESSION_LIFESPAN);
-					currentSessions.put(sessionId, session);
-					return session;
+					return addSession(session);
 				}
 			}
 			throw new Exception("Error creating new session, invalid password");
@@ -417,8 +549,7 @@ public class EPADSessionOperations
 		{
 			String sessionId = idGenerator.generateId(16);
 			EPADSession session = new EPADSession(sessionId, username, SESSION_LIFESPAN);
-			currentSessions.put(sessionId, session);
-			return session;
+			return addSession(session);
 		}
 		else
 		{
@@ -433,8 +564,7 @@ public class EPADSessionOperations
 					}
 					String sessionId = idGenerator.generateId(16);
 					EPADSession session = new EPADSession(sessionId, username, SESSION_LIFESPAN);
-					currentSessions.put(sessionId, session);
-					return session;
+					return addSession(session);
 				}
 			}
 			throw new Exception("Error creating new session, invalid admin password");
@@ -448,8 +578,7 @@ public class EPADSessionOperations
 			throw new Exception("User " + username + " not found");
 		String sessionId = idGenerator.generateId(16);
 		EPADSession session = new EPADSession(sessionId, username, SESSION_LIFESPAN);
-		currentSessions.put(sessionId, session);
-		return session;
+		return addSession(session);
 	}
 
 	private static String extractPasswordFromAuthorizationHeader(HttpServletRequest request)
@@ -484,13 +613,16 @@ public class EPADSessionOperations
 		return credentials;
 	}
 
+	/**
+	 * @return the sessions used on this server
+	 */
 	public static Map<String, EPADSession> getCurrentSessions() {
 		return currentSessions;
 	}
 	
 	public static String getSessionUser(String sessionID)
 	{
-		EPADSession session = currentSessions.get(sessionID);
+		EPADSession session = getSession(sessionID);
 		if (session != null)
 			return session.getUsername();
 		else
@@ -163,6 +163,7 @@ import edu.stanford.epad.epadws.models.WorkListToStudy;
 import edu.stanford.epad.epadws.models.WorkListToSubject;
 import edu.stanford.epad.epadws.models.dao.AbstractDAO;
 import edu.stanford.epad.epadws.queries.Dcm4CheeQueries;
+import edu.stanford.epad.epadws.queries.SubjectSummaryIndex;
 
 /**
  * All Epad User/Project/Subject/Study related operations
@@ -433,6 +434,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 				psssuStatus.setAnnotationStatus(AnnotationStatus.ERROR.getCode());
 		}
 		psssuStatus.save();
+		SubjectSummaryIndex.getInstance().annotationStatusChanged(seriesReference.projectID, seriesReference.subjectID);
 	}
 	
 	
@@ -864,6 +866,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		if (defaultTemplate != null && defaultTemplate.length() > 0)
 			ptou.setDefaultTemplate(defaultTemplate);
 		ptou.save();
+		SubjectSummaryIndex.getInstance().annotationStatusChanged(projectId, null);
 	}
 
 	/* (non-Javadoc)
@@ -878,6 +881,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		ProjectToUser ptou = (ProjectToUser) new ProjectToUser().getObject("project_id = " + project.getId() + " and user_id=" + user.getId());
 		if (ptou != null)
 			ptou.delete();
+		SubjectSummaryIndex.getInstance().annotationStatusChanged(projectId, null);
 	}
 
 	/* (non-Javadoc)
@@ -1024,6 +1028,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		{
 			addStudyToProject(loggedInUser, study.getStudyUID(), subjectUID, projectId);
 		}
+		SubjectSummaryIndex.getInstance().subjectChanged(projectId, subjectUID);
 	}
 
 	/* (non-Javadoc)
@@ -1079,6 +1084,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			pss.setStudyId(study.getId());
 			pss.setCreator(loggedInUser);
 			pss.save();
+			SubjectSummaryIndex.getInstance().subjectChanged(projectId, subject.getSubjectUID());
 		}
 	}
 
@@ -1097,6 +1103,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		pss.deleteObjects("proj_subj_id = " + ptos.getId());
 		ptos.delete();
 		new WorkListToSubject().deleteObjects("project_id = " + project.getId() + " and subject_id =" + subject.getId());
+		SubjectSummaryIndex.getInstance().subjectChanged(projectId, subjectUID);
 	}
 
 	/* (non-Javadoc)
@@ -1116,6 +1123,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		ProjectToSubjectToStudy pss = new ProjectToSubjectToStudy();
 		pss.deleteObjects("proj_subj_id = " + ptos.getId() + " and study_id =" + study.getId());
 		new WorkListToStudy().deleteObjects("project_id = " + project.getId() + " and study_id =" + study.getId());
+		SubjectSummaryIndex.getInstance().subjectChanged(projectId, subject.getSubjectUID());
 	}
 
 	/* (non-Javadoc)
@@ -1465,6 +1473,30 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		return getSubjectsByProjectId(project.getId(), sortBy);
 	}
 
+	/* (non-Javadoc)
+	 * @see edu.stanford.epad.epadws.service.EpadProjectOperations#getSubjectsForProject(java.lang.String, java.lang.String, int, int)
+	 */
+	@Override
+	public List<Subject> getSubjectsForProject(String projectId, String sortBy, int start, int count)
+			throws Exception {
+		Project project = getProject(projectId);
+		if (project == null) return new ArrayList<Subject>();
+		
+		return getSubjectsByProjectId(project.getId(), sortBy, null, null, start, count);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.stanford.epad.epadws.service.EpadProjectOperations#getSubjectsForProject(java.lang.String, java.lang.String, java.lang.String, java.lang.String, int, int)
+	 */
+	@Override
+	public List<Subject> getSubjectsForProject(String projectId, String sortBy, String criteria, String studyCriteria,
+			int start, int count) throws Exception {
+		Project project = getProject(projectId);
+		if (project == null) return new ArrayList<Subject>();
+		
+		return getSubjectsByProjectId(project.getId(), sortBy, criteria, studyCriteria, start, count);
+	}
+
 	@Override
 	public List<Subject> getUnassignSubjects() throws Exception {
 		Project project = this.getProject(EPADConfig.xnatUploadProjectID);
@@ -1520,14 +1552,30 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	 */
 	private List<Subject> getSubjectsByProjectId(long id, String sortBy)
 			throws Exception {
+		return getSubjectsByProjectId(id, sortBy, null, null, 0, 0);
+	}
+
+	private List<Subject> getSubjectsByProjectId(long id, String sortBy, String subjectCriteria, String studyCriteria,
+			int start, int count) throws Exception {
 		if (sortBy == null || sortBy.trim().length() == 0)
 			sortBy = "name";
 		else if (sortBy.equalsIgnoreCase("SubjectId"))
 			sortBy = "subjectUID";
 			
-		List objects = new Subject().getObjects("id in (select subject_id from " 
-													+ ProjectToSubject.DBTABLE 
-													+ " where project_id =" + id + ") order by " + sortBy);
+		String criteria = "id in (select subject_id from " 
+							+ ProjectToSubject.DBTABLE 
+							+ " where project_id =" + id + ")";
+		if (subjectCriteria != null)
+			criteria = criteria + " and " + subjectCriteria;
+		// a is the subject table in the select getObjects builds
+		if (studyCriteria != null)
+			criteria = criteria + " and exists (select 1 from " + ProjectToSubject.DBTABLE + " ps, "
+					+ ProjectToSubjectToStudy.DBTABLE + " pss, " + Study.DBTABLE + " st where ps.project_id = " + id
+					+ " and ps.subject_id = a.id and pss.proj_subj_id = ps.id and st.id = pss.study_id and "
+					+ studyCriteria + ")";
+		criteria = criteria + " order by " + sortBy;
+		// getObjects counts records from 1
+		List objects = count > 0 ? new Subject().getObjects(criteria, start + 1, count) : new Subject().getObjects(criteria);
 		List<Subject> subjects = new ArrayList<Subject>();
 		subjects.addAll(objects);
 		
@@ -2294,6 +2342,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		new WorkListToStudy().deleteObjects("project_id=" + project.getId());
 		new WorkListToSubject().deleteObjects("project_id=" + project.getId());
 		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(" project_id =" + project.getId());
+		SubjectSummaryIndex.getInstance().projectChanged(projectID);
 		try {
 			project.delete();
 			projectCache.remove(project.getProjectId());
@@ -2332,6 +2381,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		}
 		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(" project_id =" + project.getId() + " and subject_id=" + subject.getId());
 		new WorkListToSubject().deleteObjects("subject_id =" + subject.getId() + " and project_id =" + project.getId());			
+		SubjectSummaryIndex.getInstance().subjectChanged(projectID, subjectUID);
 		List projSubjs = new ProjectToSubject().getObjects("subject_id=" + subject.getId());
 		// TODO: delete subject if not used any more
 		if (projSubjs.size() == 0)
@@ -2368,6 +2418,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		}
 		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects("study_id =" + study.getId() + " and project_id =" + project.getId() + " and subject_id=" + subject.getId());
 		new WorkListToStudy().deleteObjects("study_id =" + study.getId() + " and project_id =" + project.getId());			
+		SubjectSummaryIndex.getInstance().subjectChanged(projectID, subjectUID);
 		List<ProjectToSubjectToStudy> projSubjStudys = new ProjectToSubjectToStudy().getObjects("study_id=" + study.getId());
 		if (projSubjStudys.size() == 0)
 		{
@@ -2407,6 +2458,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		new EpadFile().deleteObjects("subject_id=" + subject.getId());
 		new WorkListToSubject().deleteObjects("subject_id =" + subject.getId());			
 		subject.delete();
+		SubjectSummaryIndex.getInstance().subjectChanged(null, subjectUID);
 	}
 
 	/* (non-Javadoc)
@@ -2420,6 +2472,11 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		new ProjectToSubjectToStudy().deleteObjects("study_id=" + study.getId());
 		new EpadFile().deleteObjects("study_id=" + study.getId());
 		study.delete();
+		Subject subject = new Subject();
+		subject.setId(study.getSubjectId());
+		subject = (Subject) subject.retrieve();
+		if (subject != null)
+			SubjectSummaryIndex.getInstance().subjectChanged(null, subject.getSubjectUID());
 	}
 
 	@Override
@@ -475,6 +475,30 @@ public interface EpadProjectOperations {
 	 */
 	List<Subject> getSubjectsForProject(String projectId) throws Exception;
 	List<Subject> getSubjectsForProject(String projectId, String sortBy) throws Exception;
+
+	/**
+	 * Get one page of the Subjects for a project
+	 * @param projectId
+	 * @param sortBy
+	 * @param start zero based offset of the first subject
+	 * @param count maximum number of subjects
+	 * @return
+	 * @throws Exception
+	 */
+	List<Subject> getSubjectsForProject(String projectId, String sortBy, int start, int count) throws Exception;
+
+	/**
+	 * Get one page of the Subjects for a project that also meet an SQL condition on the subject table
+	 * @param projectId
+	 * @param sortBy
+	 * @param criteria condition on the subject columns, or null
+	 * @param studyCriteria condition on the study table, aliased st, that one of the subject's studies in the project has to meet, or null
+	 * @param start zero based offset of the first subject
+	 * @param count maximum number of subjects, 0 for all of them
+	 * @return
+	 * @throws Exception
+	 */
+	List<Subject> getSubjectsForProject(String projectId, String sortBy, String criteria, String studyCriteria, int start, int count) throws Exception;
 	List<Subject> getUnassignSubjects() throws Exception;
 	/**
 	 * Get Subject for project
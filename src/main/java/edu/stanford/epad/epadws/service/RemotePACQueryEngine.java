@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+
+import edu.stanford.epad.dtos.RemotePACEntity;
+
+/**
+ * Runs C-FIND queries against remote PACs for {@link RemotePACService}.
+ * <p>
+ * Queries to different PACs run independently; each PAC gets at most maxAssociationsPerPAC open associations at a
+ * time, shared with retrieves. A query whose key matches one already running waits for that query instead of opening
+ * another association. Finished results are kept in a least-recently-used cache bounded by entry count and age. Every
+ * caller gets its own copy of the entities, as callers mark them.
+ * <p>
+ * The engine does not talk DICOM itself: the network work is done by the {@link RemoteQuery} it is given, so a stand-in
+ * can replace the remote PAC in tests.
+ */
+public class RemotePACQueryEngine
+{
+	/**
+	 * Performs one query, returning the entities in the order received.
+	 */
+	public interface RemoteQuery
+	{
+		List<RemotePACEntity> run() throws Exception;
+	}
+
+	private static final Gson gson = new Gson();
+
+	private final int maxAssociationsPerPAC;
+	private final long associationWait;
+	private final int maxCachedQueries;
+	private final long cacheTTL;
+
+	private final ConcurrentMap<String, Semaphore> associations = new ConcurrentHashMap<String, Semaphore>();
+	private final ConcurrentMap<String, InFlightQuery> inFlightQueries = new ConcurrentHashMap<String, InFlightQuery>();
+	// Guarded by itself
+	private final Map<String, CachedResult> cache;
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param associationWait maximum wait in milliseconds for a free association before a request fails
+	 * @param cacheTTL maximum age in milliseconds of a cached result
+	 */
+	public RemotePACQueryEngine(int maxAssociationsPerPAC, long associationWait, final int maxCachedQueries, long cacheTTL)
+	{
+		this.maxAssociationsPerPAC = maxAssociationsPerPAC;
+		this.associationWait = associationWait;
+		this.maxCachedQueries = maxCachedQueries;
+		this.cacheTTL = cacheTTL;
+		this.cache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest)
+			{
+				return size() > maxCachedQueries;
+			}
+		};
+	}
+
+	/**
+	 * Run a query, or share the result of an identical one that is running or cached.
+	 * 
+	 * @param queryKey identifies the query within the PAC; equal keys must mean equal results
+	 * @return the entities, in the order received; the list and the entities are the caller's own
+	 */
+	public List<RemotePACEntity> query(String pacID, String queryKey, final RemoteQuery query) throws Exception
+	{
+		String key = pacID + ":" + queryKey;
+		List<RemotePACEntity> cached = getCachedResult(key);
+		if (cached != null) {
+			cacheHits.incrementAndGet();
+			return copy(cached);
+		}
+
+		InFlightQuery inFlightQuery = new InFlightQuery();
+		InFlightQuery running = inFlightQueries.putIfAbsent(key, inFlightQuery);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			queryJoined(key);
+			return copy(running.await());
+		}
+		queries.incrementAndGet();
+		try {
+			List<RemotePACEntity> result = callWithAssociation(pacID, new Callable<List<RemotePACEntity>>() {
+				@Override
+				public List<RemotePACEntity> call() throws Exception
+				{
+					return query.run();
+				}
+			});
+			result = copy(result); // Kept apart from the entities returned to this caller
+			putCachedResult(key, pacID, result);
+			inFlightQuery.complete(result, null);
+			return copy(result);
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			inFlightQuery.complete(null, e);
+			throw e;
+		} finally {
+			inFlightQueries.remove(key, inFlightQuery);
+		}
+	}
+
+	/**
+	 * Run a task that needs an association to a PAC, waiting while all of that PAC's associations are in use.
+	 */
+	public <T> T callWithAssociation(String pacID, Callable<T> task) throws Exception
+	{
+		Semaphore semaphore = associations.get(pacID);
+		if (semaphore == null) {
+			Semaphore newSemaphore = new Semaphore(maxAssociationsPerPAC, true);
+			semaphore = associations.putIfAbsent(pacID, newSemaphore);
+			if (semaphore == null)
+				semaphore = newSemaphore;
+		}
+		if (!semaphore.tryAcquire(associationWait, TimeUnit.MILLISECONDS))
+			throw new Exception("Too many requests in progress to PAC " + pacID + ", please try again later");
+		try {
+			return task.call();
+		} finally {
+			semaphore.release();
+		}
+	}
+
+	/**
+	 * Drop the cached results of a PAC, or of all PACs if pacID is null.
+	 */
+	public void invalidate(String pacID)
+	{
+		synchronized (cache) {
+			if (pacID == null) {
+				cache.clear();
+				return;
+			}
+			Iterator<CachedResult> iterator = cache.values().iterator();
+			while (iterator.hasNext()) {
+				if (pacID.equals(iterator.next().pacID))
+					iterator.remove();
+			}
+		}
+	}
+
+	public String getStatistics()
+	{
+		int cachedQueries;
+		synchronized (cache) {
+			cachedQueries = cache.size();
+		}
+		int associationsInUse = 0;
+		for (Semaphore semaphore : associations.values())
+			associationsInUse += maxAssociationsPerPAC - semaphore.availablePermits();
+		return "queries:" + queries.get() + " cacheHits:" + cacheHits.get() + " coalesced:" + coalesced.get()
+				+ " failures:" + failures.get() + " running:" + inFlightQueries.size() + " associations:" + associationsInUse
+				+ " cached:" + cachedQueries + "/" + maxCachedQueries;
+	}
+
+	/**
+	 * Called when a query waits for an identical one that is running; lets tests know the query has joined.
+	 */
+	void queryJoined(String key)
+	{
+	}
+
+	private static List<RemotePACEntity> copy(List<RemotePACEntity> entities)
+	{
+		List<RemotePACEntity> copies = new ArrayList<RemotePACEntity>(entities.size());
+		for (RemotePACEntity entity : entities)
+			copies.add(gson.fromJson(gson.toJson(entity), RemotePACEntity.class));
+		return copies;
+	}
+
+	private List<RemotePACEntity> getCachedResult(String key)
+	{
+		synchronized (cache) {
+			CachedResult cachedResult = cache.get(key);
+			if (cachedResult == null)
+				return null;
+			if (System.currentTimeMillis() - cachedResult.time > cacheTTL) {
+				cache.remove(key);
+				return null;
+			}
+			return cachedResult.entities;
+		}
+	}
+
+	private void putCachedResult(String key, String pacID, List<RemotePACEntity> entities)
+	{
+		synchronized (cache) {
+			cache.put(key, new CachedResult(pacID, entities));
+		}
+	}
+
+	private static class CachedResult
+	{
+		final String pacID;
+		final List<RemotePACEntity> entities;
+		final long time = System.currentTimeMillis();
+
+		CachedResult(String pacID, List<RemotePACEntity> entities)
+		{
+			this.pacID = pacID;
+			this.entities = entities;
+		}
+	}
+
+	/**
+	 * A running query, awaited by identical queries.
+	 */
+	private static class InFlightQuery
+	{
+		private boolean done = false;
+		private List<RemotePACEntity> result;
+		private Exception error;
+
+		synchronized void complete(List<RemotePACEntity> result, Exception error)
+		{
+			this.result = result;
+			this.error = error;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized List<RemotePACEntity> await() throws Exception
+		{
+			while (!done)
+				wait();
+			if (error != null)
+				throw error;
+			return result;
+		}
+	}
+}
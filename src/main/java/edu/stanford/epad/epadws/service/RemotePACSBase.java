@@ -242,7 +242,18 @@ public class RemotePACSBase {
 
 	protected void setCurrentRemoteQueryInformationModel(String remoteAEForQuery) throws Exception {
 		currentRemoteQueryInformationModel=null;
-		String stringForTitle="";
+		currentRemoteQueryInformationModel=createQueryInformationModel(remoteAEForQuery);
+	}
+
+	/**
+	 * <p>Create a query information model for a remote AE. Each model opens its own associations, so callers that
+	 * keep the model to themselves can query different AEs concurrently.</p>
+	 *
+	 * @param	remoteAEForQuery	the local name of the remote AE
+	 * @return	the model, or null if the AE is not given or the network properties are not loaded
+	 */
+	protected QueryInformationModel createQueryInformationModel(String remoteAEForQuery) throws Exception {
+		QueryInformationModel queryInformationModel=null;
 		if (remoteAEForQuery != null && remoteAEForQuery.length() > 0 && networkApplicationProperties != null && networkApplicationInformation != null) {
 			try {
 				String              queryCallingAETitle = networkApplicationProperties.getCallingAETitle();
@@ -262,8 +273,7 @@ public class RemotePACSBase {
 				int                     queryDebugLevel = networkApplicationProperties.getQueryDebugLevel();
 
 				if (NetworkApplicationProperties.isStudyRootQueryModel(queryModel) || queryModel == null) {
-					currentRemoteQueryInformationModel=new StudyRootQueryInformationModel(queryHost,queryPort,queryCalledAETitle,queryCallingAETitle,queryDebugLevel);
-					stringForTitle=":"+remoteAEForQuery;
+					queryInformationModel=new StudyRootQueryInformationModel(queryHost,queryPort,queryCalledAETitle,queryCallingAETitle,queryDebugLevel);
 				}
 				else {
 					throw new Exception("For remote query AE <"+remoteAEForQuery+">, query model "+queryModel+" not supported");
@@ -275,6 +285,7 @@ public class RemotePACSBase {
 				throw e;
 			}
 		}
+		return queryInformationModel;
 	}
 
 	// should be extracted to a utility class ... also used in DoseUtility and DoseReporterWithLegacyOCRAndAutoSendToRegistry :(
@@ -363,13 +374,37 @@ public class RemotePACSBase {
 		}
 	}
 
+	/**
+	 * <p>Retrieve the entity of a query tree record using the given model, without touching the current selection.</p>
+	 *
+	 * <p>Returns when the move association has finished.</p>
+	 *
+	 * @param	queryInformationModel	the model of the AE that returned the record
+	 * @param	node			the record to retrieve
+	 * @exception	Exception	if the move could not be performed or was refused
+	 */
+	protected void performRetrieve(QueryInformationModel queryInformationModel,QueryTreeRecord node) throws Exception {
+		AttributeList identifier = node.getAllAttributesReturnedInIdentifier();
+		String retrieveAE = null;
+		if (identifier != null) {
+			Attribute aRetrieveAETitle=identifier.get(TagFromName.RetrieveAETitle);
+			if (aRetrieveAETitle != null) retrieveAE=aRetrieveAETitle.getSingleStringValueOrNull();
+		}
+		if (retrieveAE == null) {
+			// default to whoever it was we queried in the first place, as in setCurrentRemoteQuerySelection()
+			retrieveAE=queryInformationModel.getCalledAETitle();
+		}
+		String level = getQueryRetrieveLevel(identifier,node.getUniqueKey());
+		log.info("Request retrieval of "+level+" "+node.getUniqueKey().getSingleStringValueOrEmptyString()+" ("+retrieveAE+")");
+		if (node.getUniqueKeys() == null)
+			throw new Exception("UniqueKeys for retrieval are null");
+		performMove(queryInformationModel,node.getUniqueKeys(),level,retrieveAE);
+	}
+
 	protected void performRetrieve(AttributeList uniqueKeys,String selectionLevel,String retrieveAE) {
 		try {
-			AttributeList identifier = new AttributeList();
 			if (uniqueKeys != null) {
-				identifier.putAll(uniqueKeys);
-				{ AttributeTag t = TagFromName.QueryRetrieveLevel; Attribute a = new CodeStringAttribute(t); a.addValue(selectionLevel); identifier.put(t,a); }
-				currentRemoteQueryInformationModel.performHierarchicalMoveFrom(identifier,retrieveAE);
+				performMove(currentRemoteQueryInformationModel,uniqueKeys,selectionLevel,retrieveAE);
 			} else {			
 			// else do nothing, since no unique key to specify what to retrieve
 				log.warning("UniqueKeys for retrieval are null");
@@ -379,6 +414,13 @@ public class RemotePACSBase {
 		}
 	}
 
+	private void performMove(QueryInformationModel queryInformationModel,AttributeList uniqueKeys,String selectionLevel,String retrieveAE) throws Exception {
+		AttributeList identifier = new AttributeList();
+		identifier.putAll(uniqueKeys);
+		{ AttributeTag t = TagFromName.QueryRetrieveLevel; Attribute a = new CodeStringAttribute(t); a.addValue(selectionLevel); identifier.put(t,a); }
+		queryInformationModel.performHierarchicalMoveFrom(identifier,retrieveAE);
+	}
+
 	public RemotePACSBase() throws DicomException, IOException {
 		loadProperties();
 		
@@ -111,16 +111,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -145,6 +147,7 @@ import com.pixelmed.dicom.TimeAttribute;
 import com.pixelmed.dicom.UniqueIdentifierAttribute;
 import com.pixelmed.network.ApplicationEntity;
 import com.pixelmed.network.ApplicationEntityMap;
+import com.pixelmed.query.QueryInformationModel;
 import com.pixelmed.query.QueryTreeModel;
 import com.pixelmed.query.QueryTreeRecord;
 
@@ -157,6 +160,7 @@ import edu.stanford.epad.dtos.RemotePACEntity;
 import edu.stanford.epad.dtos.RemotePACQueryConfig;
 import edu.stanford.epad.dtos.internal.DCM4CHEEStudy;
 import edu.stanford.epad.dtos.internal.DCM4CHEEStudyList;
+import edu.stanford.epad.epadws.config.ConfigParams;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.models.Project;
@@ -179,19 +183,21 @@ public class RemotePACService extends RemotePACSBase {
 	public static final int MAX_CACHE_ENTRIES = 25000;
 	public static final int MAX_SERIES_QUERY = 500;
 	public static final int MAX_INSTANCE_QUERY = 7000;
-	static Map<String, QueryTreeRecord> remoteQueryCache = new HashMap<String, QueryTreeRecord>();
-	static Map<String, List<RemotePACEntity>> patientCache = new HashMap<String, List<RemotePACEntity>>();
+	// Unique key to query tree record, for retrieving entities returned by earlier queries
+	static Map<String, QueryTreeRecord> remoteQueryCache = createQueryTreeCache();
 	
-	// SerieUID to userName:projectID
-	public static Map<String, String> pendingTransfers = new HashMap<String, String>();
+	static final RemotePACQueryEngine queryEngine = new RemotePACQueryEngine(
+			ConfigParams.getPositiveIntParam("RemotePACMaxAssociations", 2),
+			ConfigParams.getPositiveIntParam("RemotePACAssociationWait", 120) * 1000L,
+			ConfigParams.getPositiveIntParam("RemotePACQueryCacheSize", 200),
+			ConfigParams.getPositiveIntParam("RemotePACQueryCacheTTL", 300) * 1000L);
 	
-	// AETitle to userName
-	public static Map<String, String> monitorTransfers = new HashMap<String, String>();
-	public static Map<String, Long> monitorStart = new HashMap<String, Long>();
+	// SerieUID to userName:projectID
+	public static Map<String, String> pendingTransfers = new ConcurrentHashMap<String, String>();
 	
 	public static DicomTagList dicomTags = null;
 	
-	public static RemotePACService getInstance() throws Exception {
+	public static synchronized RemotePACService getInstance() throws Exception {
 		if (rpsinstance == null)
 		{
 			rpsinstance = new RemotePACService();
@@ -321,6 +327,13 @@ public class RemotePACService extends RemotePACSBase {
 		return rps;
 	}
 
+	/**
+	 * Number of configured PACs, without the TCIA collections that getRemotePACs adds
+	 */
+	public int getNumberOfRemotePACs() {
+		return networkApplicationInformation.getApplicationEntityMap().size();
+	}
+
 	/**
 	 * Get remote PAC by PAC ID
 	 * @param pacID
@@ -632,7 +645,6 @@ public class RemotePACService extends RemotePACSBase {
 		return rqc;
 	}
 	
-	public static Map<String, AttributeList> currentPACQueries = new HashMap<String, AttributeList>();
 	/**
 	 * Query a Remote PAC given patient/studydate filters
 	 * @param pac
@@ -642,7 +654,7 @@ public class RemotePACService extends RemotePACSBase {
 	 * @return
 	 * @throws Exception
 	 */
-	public synchronized List<RemotePACEntity> queryRemoteData(RemotePAC pac, String patientNameFilter, String patientIDFilter, String studyIDFilter, String studyDateFilter, String modality, boolean patientsOnly, boolean studiesOnly) throws Exception {
+	public List<RemotePACEntity> queryRemoteData(RemotePAC pac, String patientNameFilter, String patientIDFilter, String studyIDFilter, String studyDateFilter, String modality, boolean patientsOnly, boolean studiesOnly) throws Exception {
 		return queryRemoteData(pac, patientNameFilter, patientIDFilter, studyIDFilter, studyDateFilter, modality, null, null, null, null,
 				patientsOnly, studiesOnly);
 	}	
@@ -662,7 +674,7 @@ public class RemotePACService extends RemotePACSBase {
 	 * @return
 	 * @throws Exception
 	 */
-	public synchronized List<RemotePACEntity> queryRemoteData(RemotePAC pac, String patientNameFilter, String patientIDFilter, String studyIDFilter, String studyDateFilter, String modality, String[] tagGroups, String[] tagElements, String[] tagValues, String[] tagTypes, boolean patientsOnly, boolean studiesOnly) throws Exception {
+	public List<RemotePACEntity> queryRemoteData(final RemotePAC pac, String patientNameFilter, String patientIDFilter, String studyIDFilter, String studyDateFilter, String modality, String[] tagGroups, String[] tagElements, String[] tagValues, String[] tagTypes, final boolean patientsOnly, final boolean studiesOnly) throws Exception {
 		
 		try {
 			String qlevel = null;
@@ -671,24 +683,12 @@ public class RemotePACService extends RemotePACSBase {
 			if (patientsOnly)
 				qlevel = "PATIENT";
 			log.info("Remote PAC Query, pacID:" + pac.pacID + " patientName:" + patientNameFilter + " patientID:" + patientIDFilter + " studyDate:" + studyDateFilter + " studyIDFilter:" + studyIDFilter + " patientsOnly:" + patientsOnly + " studiesOnly:" + studiesOnly + " tagValues:" + tagValues);
-			if ((patientNameFilter == null || patientNameFilter.length() == 0) 
-					&& (patientIDFilter == null || patientIDFilter.length() == 0 || patientIDFilter.equals("1*"))
-					&& (tagGroups == null || tagGroups.length == 0)
-					&& patientsOnly)
-			{
-				if (patientCache.containsKey(pac.pacID))
-					return patientCache.get(pac.pacID);
-			}
-			if (currentPACQueries.containsKey(pac.pacID))
-				throw new Exception("Last query to this PAC still in progress");
 			if (patientNameFilter != null && patientNameFilter.equals("*"))
 				patientNameFilter = "";
 			if (patientIDFilter != null && patientIDFilter.equals("*"))
 				patientIDFilter = "";
-			this.setCurrentRemoteQueryInformationModel(pac.pacID);
 			SpecificCharacterSet specificCharacterSet = new SpecificCharacterSet((String[])null);
-			AttributeList filter = new AttributeList();
-			currentPACQueries.put(pac.pacID, filter);
+			final AttributeList filter = new AttributeList();
 			{
 				AttributeTag t = TagFromName.PatientName; Attribute a = new PersonNameAttribute(t,specificCharacterSet);
 				if (patientNameFilter != null && patientNameFilter.length() > 0) {
@@ -804,19 +804,25 @@ public class RemotePACService extends RemotePACSBase {
 			{ AttributeTag t = TagFromName.SeriesInstanceUID; Attribute a = new UniqueIdentifierAttribute(t); if (!filter.containsKey(t)) filter.put(t,a); }
 			{ AttributeTag t = TagFromName.SOPInstanceUID; Attribute a = new UniqueIdentifierAttribute(t); if (!filter.containsKey(t)) filter.put(t,a); }
 			{ AttributeTag t = TagFromName.SOPClassUID; Attribute a = new UniqueIdentifierAttribute(t); if (!filter.containsKey(t)) filter.put(t,a); }
+			// Returned so transfers can report their progress
+			{ AttributeTag t = TagFromName.NumberOfStudyRelatedInstances; Attribute a = new IntegerStringAttribute(t); if (!filter.containsKey(t)) filter.put(t,a); }
+			{ AttributeTag t = TagFromName.NumberOfSeriesRelatedInstances; Attribute a = new IntegerStringAttribute(t); if (!filter.containsKey(t)) filter.put(t,a); }
 			{ AttributeTag t = TagFromName.SpecificCharacterSet; Attribute a = new CodeStringAttribute(t); filter.put(t,a); a.addValue("ISO_IR 100"); }
 			
-			if (remoteQueryCache.keySet().size() > MAX_CACHE_ENTRIES)
-				clearQueryCache();
-			List<RemotePACEntity> remoteEntities = new ArrayList<RemotePACEntity>();
-			String key = pac.pacID;
+			// The filter lists every attribute, so its text identifies the query
+			String queryKey = patientsOnly + ":" + studiesOnly + ":" + filter.toString();
+			final String key = pac.pacID;
+			final boolean markEntities = patientIDFilter != null && patientIDFilter.trim().length() > 0;
 			long startTime = System.currentTimeMillis();
-			patientIds = new HashSet<String>();
-			QueryTreeModel treeModel = currentRemoteQueryInformationModel.performHierarchicalQuery(filter);
-			long endTime = System.currentTimeMillis();
-			//log.info("Remote PAC Query took " + (endTime-startTime) + " msecs");
-			QueryTreeRecord root = (QueryTreeRecord) treeModel.getRoot();
-			remoteEntities = traverseTree(root, 0, remoteEntities, key, patientsOnly, studiesOnly);
+			List<RemotePACEntity> remoteEntities = queryEngine.query(pac.pacID, queryKey, new RemotePACQueryEngine.RemoteQuery() {
+				@Override
+				public List<RemotePACEntity> run() throws Exception {
+					QueryInformationModel queryInformationModel = createQueryInformationModel(pac.pacID);
+					QueryTreeModel treeModel = queryInformationModel.performHierarchicalQuery(filter);
+					QueryTreeRecord root = (QueryTreeRecord) treeModel.getRoot();
+					return traverseTree(root, 0, new ArrayList<RemotePACEntity>(), key, patientsOnly, studiesOnly, new HashSet<String>());
+				}
+			});
 			long traverseTime = System.currentTimeMillis();
 			log.info("Remote PAC tree records took "+ (traverseTime-startTime) + " msecs. Number of entities returned:" + remoteEntities.size());
 			if (patientsOnly && remoteEntities.size() > 0) 
@@ -828,25 +834,11 @@ public class RemotePACService extends RemotePACSBase {
 				remoteEntities.remove(0); // Remove AE record
 				remoteEntities.remove(0); // Remove Study Record
 			}
-			if (patientIDFilter != null && patientIDFilter.trim().length() > 0)
+			if (markEntities)
 			{
-				EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-				EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-				for (RemotePACEntity rpe: remoteEntities) {
-					if (rpe.entityType.equalsIgnoreCase("Study")) {
-						if (databaseOperations.hasStudyInDCM4CHE(rpe.entityID.substring(rpe.entityID.indexOf(":")+1)))
-							rpe.inEpad = true;
-					} else if (rpe.entityType.equalsIgnoreCase("Series")) {
-						if (databaseOperations.hasSeriesInEPadDatabase(rpe.entityID.substring(rpe.entityID.indexOf(":")+1)))
-							rpe.inEpad = true;
-					}
-				}
-			}
-			if ((patientNameFilter == null || patientNameFilter.length() == 0) 
-					&& (patientIDFilter == null || patientIDFilter.length() == 0 || patientIDFilter.equals("1*"))
-					&& patientsOnly)
-			{
-				patientCache.put(pac.pacID, remoteEntities); 
+				// Results may come from the cache, so this is checked on every request
+				for (RemotePACEntity rpe: remoteEntities)
+					markInEpad(rpe);
 			}
 			log.info("Returning " + remoteEntities.size() + " records");
 			return remoteEntities;
@@ -854,8 +846,16 @@ public class RemotePACService extends RemotePACSBase {
 		catch (Exception e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			currentPACQueries.remove(pac.pacID);
+		}
+	}
+	
+	private void markInEpad(RemotePACEntity rpe)
+	{
+		EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		if (rpe.entityType.equalsIgnoreCase("Study")) {
+			rpe.inEpad = databaseOperations.hasStudyInDCM4CHE(rpe.entityID.substring(rpe.entityID.indexOf(":")+1));
+		} else if (rpe.entityType.equalsIgnoreCase("Series")) {
+			rpe.inEpad = databaseOperations.hasSeriesInEPadDatabase(rpe.entityID.substring(rpe.entityID.indexOf(":")+1));
 		}
 	}
 	
@@ -864,13 +864,29 @@ public class RemotePACService extends RemotePACSBase {
 	 */
 	public void clearQueryCache()
 	{
-		remoteQueryCache = new HashMap<String, QueryTreeRecord>();
+		remoteQueryCache = createQueryTreeCache();
+		queryEngine.invalidate(null);
 		dicomTags = null;
 	}
 	
-	DecimalFormat decformat = new DecimalFormat("00000");
-	Set<String> patientIds = new HashSet<String>();
-	private List<RemotePACEntity> traverseTree(QueryTreeRecord node, int level, List<RemotePACEntity> entities, String key, boolean patientsOnly, boolean studiesOnly) {
+	public static String getQueryStatistics()
+	{
+		return queryEngine.getStatistics() + " treeRecords:" + remoteQueryCache.size();
+	}
+	
+	private static Map<String, QueryTreeRecord> createQueryTreeCache()
+	{
+		return Collections.synchronizedMap(new LinkedHashMap<String, QueryTreeRecord>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, QueryTreeRecord> eldest) {
+				return size() > MAX_CACHE_ENTRIES;
+			}
+		});
+	}
+		
+	private List<RemotePACEntity> traverseTree(QueryTreeRecord node, int level, List<RemotePACEntity> entities, String key, boolean patientsOnly, boolean studiesOnly, Set<String> patientIds) {
 		AttributeList al = node.getAllAttributesReturnedInIdentifier();
 		String type = "";
 		if (node.getInformationEntity() != null) 
@@ -904,7 +920,9 @@ public class RemotePACService extends RemotePACSBase {
 		patientIds.add(entity.subjectID);
 		remoteQueryCache.put(ukey, node);
 		if (!studiesOnly || !type.equals("Series"))
+		{
 			entities.add(entity);
+		}
 		
 		int num = entities.size();
 		if (num%100 == 0)
@@ -921,7 +939,7 @@ public class RemotePACService extends RemotePACSBase {
 			if ((!studiesOnly || !type.equals("Study")) && !type.equals("Series"))
 			{
 				//log.info("Remote Query, getting children:" + type);
-				traverseTree((QueryTreeRecord)((QueryTreeRecord)node).getChildAt(i), level+1, entities, key + ":" + decformat.format(i), patientsOnly, studiesOnly);
+				traverseTree((QueryTreeRecord)((QueryTreeRecord)node).getChildAt(i), level+1, entities, key + ":" + String.format("%05d", i), patientsOnly, studiesOnly, patientIds);
 			}
 		}
 		return entities;
@@ -937,7 +955,7 @@ public class RemotePACService extends RemotePACSBase {
 	 * @return
 	 * @throws Exception
 	 */
-	public synchronized String retrieveRemoteData(RemotePAC pac, String entityID, String projectID, String userName, String sessionID) throws Exception {
+	public String retrieveRemoteData(final RemotePAC pac, String entityID, String projectID, String userName, String sessionID) throws Exception {
 		if (pac.hostname.equalsIgnoreCase(EPADConfig.xnatServer) && pac.port == 11112)
 		{
 			throw new Exception("This is the local PAC, image data can not transferred from it");
@@ -956,6 +974,7 @@ public class RemotePACService extends RemotePACSBase {
 		// If no cached pointers, query entire PAC again (or should we give an error???)
 		if (node == null)
 		{
+			queryEngine.invalidate(pac.pacID);
 			queryRemoteData(pac, "", "", "", "", "", false, false);
 			node = remoteQueryCache.get(uniqueKey);
 			if (node == null)
@@ -1013,20 +1032,25 @@ public class RemotePACService extends RemotePACSBase {
 		}
 		if (seriesUID != null)
 			pendingTransfers.put(seriesUID, userName + ":" + projectID);
-		this.setCurrentRemoteQueryInformationModel(pac.pacID);
 		if (node != null) {
-			setCurrentRemoteQuerySelection(node.getUniqueKeys(), node.getUniqueKey(), node.getAllAttributesReturnedInIdentifier());
-			log.info("Request retrieval of "+currentRemoteQuerySelectionLevel+" "+currentRemoteQuerySelectionUniqueKey.getSingleStringValueOrEmptyString()+" from "+pac.pacID+" ("+currentRemoteQuerySelectionRetrieveAE+")");
-	   		File xfrstart = new File(EPADConfig.dcm4cheeHome + "/" + pac.aeTitle + "_XfrStarted.log");
-	   		File xfrend = new File(EPADConfig.dcm4cheeHome + "/" + pac.aeTitle + "_XfrEnded.log");
+			final QueryTreeRecord selection = node;
+			RemotePACTransferTracker tracker = RemotePACTransferTracker.getInstance();
+			RemotePACTransferTracker.Transfer transfer = tracker.start(userName, projectID, pac.pacID, pac.aeTitle, patientID,
+					studyUID, seriesUID, getExpectedInstances(node));
 			try {
-				if (xfrstart.exists()) xfrstart.delete();
-				if (xfrend.exists()) xfrend.delete();
-			} catch (Exception x) {}
-			performRetrieve(currentRemoteQuerySelectionUniqueKeys,currentRemoteQuerySelectionLevel,currentRemoteQuerySelectionRetrieveAE);			
+				queryEngine.callWithAssociation(pac.pacID, new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						performRetrieve(createQueryInformationModel(pac.pacID), selection);
+						return null;
+					}
+				});
+				tracker.moveCompleted(transfer);
+			} catch (Exception e) {
+				tracker.moveFailed(transfer, e);
+				throw e;
+			}
 		}
-		monitorTransfers.put(pac.aeTitle, userName + ":" + pac.pacID);
-		monitorStart.put(pac.aeTitle, System.currentTimeMillis());
 		if (studyUID != null)
 			return studyUID + ":" + studyDate;
 		else
@@ -1047,67 +1071,17 @@ public class RemotePACService extends RemotePACSBase {
 		return transfers;
 	}
 	
-	public static void checkTransfers()
+	/**
+	 * Number of instances the PAC reported for a study or series record, or -1 if it did not say
+	 */
+	private static int getExpectedInstances(QueryTreeRecord node)
 	{
-		if (monitorTransfers.isEmpty()) return;
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-		Set<String> removeAet = new HashSet<String>();
-		for (String aet: monitorTransfers.keySet()) 
-		{
-			//log.info("Checking data transfer from " + aet);
-       		File xfrstart = new File(EPADConfig.dcm4cheeHome + "/" + aet + "_XfrStarted.log");
-       		File xfrend = new File(EPADConfig.dcm4cheeHome + "/" + aet + "_XfrEnded.log");
-       		try
-       		{
-	       		if (xfrstart.exists())
-	       		{
-	       			String logStart = EPADFileUtils.readFileAsString(xfrstart);
-					epadDatabaseOperations.insertEpadEvent(
-							monitorTransfers.get(aet).substring(0, monitorTransfers.get(aet).indexOf(":")), 
-							logStart.replace('\n', ' '), 
-							aet, aet,
-							aet, 
-							aet,
-							"",
-							"",
-							"Remote PAC Transfer");
-					log.info("Added PAC Transfer Started Event for " + monitorTransfers.get(aet));
-					xfrstart.delete();
-	       		}
-	       		if (xfrend.exists())
-	       		{
-	       			monitorStart.put(aet, 0L);
-	       			String logEnd = EPADFileUtils.readFileAsString(xfrend);
-					epadDatabaseOperations.insertEpadEvent(
-							monitorTransfers.get(aet).substring(0, monitorTransfers.get(aet).indexOf(":")), 
-							logEnd.replace('\n', ' '), 
-							aet, aet,
-							aet, 
-							aet, 
-							"", 
-							"",
-							"Remote PAC Transfer");
-					log.info("Added PAC Transfer Ended Event for " + monitorTransfers.get(aet));
-					xfrend.delete();
-	       		}
-       		} catch (Exception x)
-       		{
-       			removeAet.add(aet);
-       			log.warning("Error in checking", x);
-       		}
-		}
-		for (String aet: monitorStart.keySet())
-		{
-			if ((System.currentTimeMillis() - monitorStart.get(aet)) > 3600000)
-			{
-       			removeAet.add(aet);
-			}
-		}
-		for (String aet: removeAet)
-		{
-			monitorTransfers.remove(aet);
-			monitorStart.remove(aet);
-		}
+		boolean series = node.getInformationEntity() != null && node.getInformationEntity().toString().equalsIgnoreCase("Series");
+		AttributeTag tag = series ? TagFromName.NumberOfSeriesRelatedInstances : TagFromName.NumberOfStudyRelatedInstances;
+		int expected = Attribute.getSingleIntegerValueOrDefault(node.getAllAttributesReturnedInIdentifier(), tag, -1);
+		if (expected <= 0 && series && node.getChildCount() > 0)
+			expected = node.getChildCount();
+		return expected;
 	}
 	
 	SimpleDateFormat dateformat = new SimpleDateFormat("yyyyMMdd");
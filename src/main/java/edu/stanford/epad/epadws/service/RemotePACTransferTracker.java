@@ -0,0 +1,472 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+
+/**
+ * Follows C-MOVE retrievals from remote PACs started by {@link RemotePACService}.
+ * <p>
+ * The move itself reports when its association ends and whether it failed. While it runs, and for a short while after,
+ * {@link #update()} counts the instances that have arrived in dcm4chee for every active transfer with one grouped
+ * query, from which the rates and the time remaining are worked out. Start, completion and failure are published as
+ * ePAD events to the user who asked for the transfer. Finished transfers are kept for an hour so their status can
+ * still be looked up.
+ */
+public class RemotePACTransferTracker
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final String EVENT_NAME = "Remote PAC Transfer";
+
+	private static final long FINISHED_RETENTION = 3600000;
+
+	public static final String STATUS_MOVING = "Moving";
+	public static final String STATUS_RECEIVING = "Receiving";
+	public static final String STATUS_COMPLETE = "Complete";
+	public static final String STATUS_FAILED = "Failed";
+
+	private static final RemotePACTransferTracker ourInstance = new RemotePACTransferTracker();
+
+	private final long settleTime;
+	private final long timeout;
+	private final ConcurrentMap<Long, Transfer> transfers = new ConcurrentHashMap<Long, Transfer>();
+	private final AtomicLong nextID = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong instancesReceived = new AtomicLong();
+
+	public static RemotePACTransferTracker getInstance()
+	{
+		return ourInstance;
+	}
+
+	private RemotePACTransferTracker()
+	{
+		settleTime = ConfigParams.getPositiveIntParam("RemotePACTransferSettleTime", 30) * 1000L;
+		timeout = ConfigParams.getPositiveIntParam("RemotePACTransferTimeout", 3600) * 1000L;
+	}
+
+	/**
+	 * Record a transfer about to be requested; instances already in dcm4chee are not counted as received.
+	 * 
+	 * @param seriesUID null when a whole study is moved
+	 * @param expectedInstances number of instances the PAC reported for the study or series, or -1 if unknown
+	 */
+	public Transfer start(String username, String projectID, String pacID, String aeTitle, String patientID,
+			String studyUID, String seriesUID, int expectedInstances)
+	{
+		Transfer transfer = new Transfer(nextID.incrementAndGet(), username, projectID, pacID, aeTitle, patientID, studyUID,
+				seriesUID, expectedInstances);
+		if (studyUID != null) {
+			Set<String> studyUIDs = new HashSet<String>();
+			studyUIDs.add(studyUID);
+			long[] counts = getCounts(transfer, getDcm4CheeDatabaseOperations().getInstanceCountsForStudies(studyUIDs));
+			transfer.baselineInstances = counts[0];
+			transfer.baselineBytes = counts[1];
+		}
+		transfers.put(transfer.id, transfer);
+		publish(transfer, "Started transfer of " + transfer.getTarget() + " from " + pacID
+				+ (expectedInstances > 0 ? ", " + expectedInstances + " instances" : ""));
+		return transfer;
+	}
+
+	/**
+	 * The C-MOVE association ended normally; the last instances may still be being stored.
+	 */
+	public void moveCompleted(Transfer transfer)
+	{
+		synchronized (transfer) {
+			transfer.moveEndTime = System.currentTimeMillis();
+			transfer.lastProgressTime = transfer.moveEndTime;
+			if (STATUS_MOVING.equals(transfer.status))
+				transfer.status = STATUS_RECEIVING;
+		}
+	}
+
+	public void moveFailed(Transfer transfer, Exception e)
+	{
+		synchronized (transfer) {
+			transfer.moveEndTime = System.currentTimeMillis();
+			transfer.failures++;
+		}
+		finish(transfer, STATUS_FAILED, "Transfer of " + transfer.getTarget() + " from " + transfer.pacID + " failed: "
+				+ e.getMessage());
+	}
+
+	/**
+	 * Count received instances for all active transfers and finish those that are done or stalled.
+	 */
+	public void update()
+	{
+		List<Transfer> active = new ArrayList<Transfer>();
+		Set<String> studyUIDs = new HashSet<String>();
+		long now = System.currentTimeMillis();
+		Iterator<Transfer> iterator = transfers.values().iterator();
+		while (iterator.hasNext()) {
+			Transfer transfer = iterator.next();
+			if (transfer.isFinished()) {
+				if (now - transfer.endTime > FINISHED_RETENTION)
+					iterator.remove();
+			} else {
+				active.add(transfer);
+				if (transfer.studyUID != null)
+					studyUIDs.add(transfer.studyUID);
+			}
+		}
+		if (active.isEmpty())
+			return;
+
+		List<Map<String, String>> rows = getDcm4CheeDatabaseOperations().getInstanceCountsForStudies(studyUIDs);
+		for (Transfer transfer : active) {
+			String message = null;
+			String status = null;
+			synchronized (transfer) {
+				if (transfer.isFinished())
+					continue;
+				if (transfer.studyUID != null) {
+					long[] counts = getCounts(transfer, rows);
+					long received = Math.max(0, counts[0] - transfer.baselineInstances);
+					if (received > transfer.receivedInstances) {
+						instancesReceived.addAndGet(received - transfer.receivedInstances);
+						transfer.receivedInstances = received;
+						transfer.receivedBytes = Math.max(0, counts[1] - transfer.baselineBytes);
+						transfer.lastProgressTime = now;
+					}
+				}
+				boolean allReceived = transfer.expectedInstances > 0
+						&& transfer.receivedInstances >= transfer.expectedInstances;
+				if (transfer.moveEndTime != 0 && (allReceived || now - transfer.lastProgressTime > settleTime)) {
+					status = STATUS_COMPLETE;
+					message = "Completed transfer of " + transfer.getTarget() + " from " + transfer.pacID + ", "
+							+ transfer.receivedInstances + (transfer.expectedInstances > 0 ? " of " + transfer.expectedInstances : "")
+							+ " instances in " + (now - transfer.startTime) / 1000 + " secs";
+				} else if (now - transfer.lastProgressTime > timeout) {
+					transfer.failures++;
+					status = STATUS_FAILED;
+					message = "Transfer of " + transfer.getTarget() + " from " + transfer.pacID + " timed out after "
+							+ transfer.receivedInstances + " instances";
+				}
+			}
+			if (status != null)
+				finish(transfer, status, message);
+		}
+	}
+
+	/**
+	 * @param username null for all users' transfers
+	 */
+	public List<TransferStatus> getTransfers(String username)
+	{
+		List<TransferStatus> statuses = new ArrayList<TransferStatus>();
+		for (Transfer transfer : transfers.values()) {
+			if (username == null || username.equals(transfer.username))
+				statuses.add(transfer.getStatus());
+		}
+		return statuses;
+	}
+
+	public boolean hasActiveTransfers()
+	{
+		for (Transfer transfer : transfers.values()) {
+			if (!transfer.isFinished())
+				return true;
+		}
+		return false;
+	}
+
+	public String getStatistics()
+	{
+		int active = 0;
+		for (Transfer transfer : transfers.values()) {
+			if (!transfer.isFinished())
+				active++;
+		}
+		return "active:" + active + " completed:" + completed.get() + " failed:" + failed.get() + " instancesReceived:"
+				+ instancesReceived.get();
+	}
+
+	private void finish(Transfer transfer, String status, String message)
+	{
+		synchronized (transfer) {
+			if (transfer.isFinished())
+				return;
+			transfer.status = status;
+			transfer.message = message;
+			transfer.endTime = System.currentTimeMillis();
+		}
+		if (STATUS_FAILED.equals(status))
+			failed.incrementAndGet();
+		else
+			completed.incrementAndGet();
+		if (transfer.seriesUID != null)
+			RemotePACService.pendingTransfers.remove(transfer.seriesUID);
+		log.info(message);
+		publish(transfer, message);
+	}
+
+	private void publish(Transfer transfer, String message)
+	{
+		try {
+			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+			epadDatabaseOperations.insertEpadEvent(transfer.username, message, transfer.aeTitle, transfer.aeTitle,
+					transfer.patientID == null ? transfer.aeTitle : transfer.patientID,
+					transfer.patientID == null ? transfer.aeTitle : transfer.patientID, "", "", EVENT_NAME);
+		} catch (Exception e) {
+			log.warning("Error publishing transfer event for " + transfer.username, e);
+		}
+	}
+
+	/**
+	 * @return instances and bytes in dcm4chee for the transfer's series, or its whole study when no series is given
+	 */
+	private static long[] getCounts(Transfer transfer, List<Map<String, String>> rows)
+	{
+		long[] counts = new long[2];
+		for (Map<String, String> row : rows) {
+			if (!transfer.studyUID.equals(row.get("study_iuid")))
+				continue;
+			if (transfer.seriesUID != null && !transfer.seriesUID.equals(row.get("series_iuid")))
+				continue;
+			counts[0] += parseLong(row.get("num_instances"));
+			counts[1] += parseLong(row.get("num_bytes"));
+		}
+		return counts;
+	}
+
+	private static long parseLong(String value)
+	{
+		try {
+			return value == null ? 0 : Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static Dcm4CheeDatabaseOperations getDcm4CheeDatabaseOperations()
+	{
+		return Dcm4CheeDatabase.getInstance().getDcm4CheeDatabaseOperations();
+	}
+
+	/**
+	 * One C-MOVE request; mutable fields are guarded by the transfer itself.
+	 */
+	public static class Transfer
+	{
+		final long id;
+		final String username;
+		final String projectID;
+		final String pacID;
+		final String aeTitle;
+		final String patientID;
+		final String studyUID;
+		final String seriesUID;
+		final int expectedInstances;
+		final long startTime = System.currentTimeMillis();
+
+		long baselineInstances;
+		long baselineBytes;
+		long receivedInstances;
+		long receivedBytes;
+		long lastProgressTime = startTime;
+		long moveEndTime;
+		long endTime;
+		int failures;
+		String status = STATUS_MOVING;
+		String message;
+
+		Transfer(long id, String username, String projectID, String pacID, String aeTitle, String patientID,
+				String studyUID, String seriesUID, int expectedInstances)
+		{
+			this.id = id;
+			this.username = username;
+			this.projectID = projectID;
+			this.pacID = pacID;
+			this.aeTitle = aeTitle;
+			this.patientID = patientID;
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
+			this.expectedInstances = expectedInstances;
+		}
+
+		synchronized boolean isFinished()
+		{
+			return endTime != 0;
+		}
+
+		String getTarget()
+		{
+			return seriesUID != null ? "series " + seriesUID : "study " + studyUID;
+		}
+
+		synchronized TransferStatus getStatus()
+		{
+			TransferStatus transferStatus = new TransferStatus();
+			long end = endTime != 0 ? endTime : System.currentTimeMillis();
+			double secs = Math.max(1, end - startTime) / 1000.0;
+			transferStatus.id = id;
+			transferStatus.username = username;
+			transferStatus.projectID = projectID;
+			transferStatus.pacID = pacID;
+			transferStatus.patientID = patientID;
+			transferStatus.studyUID = studyUID;
+			transferStatus.seriesUID = seriesUID;
+			transferStatus.status = status;
+			transferStatus.message = message;
+			transferStatus.expectedInstances = expectedInstances;
+			transferStatus.receivedInstances = receivedInstances;
+			transferStatus.receivedBytes = receivedBytes;
+			transferStatus.instancesPerSecond = receivedInstances / secs;
+			transferStatus.megabytesPerSecond = receivedBytes / secs / 1000000.0;
+			transferStatus.etaSeconds = -1;
+			if (endTime == 0 && expectedInstances > receivedInstances && receivedInstances > 0)
+				transferStatus.etaSeconds = (long)((expectedInstances - receivedInstances) / transferStatus.instancesPerSecond);
+			transferStatus.failures = failures;
+			transferStatus.startTime = startTime;
+			transferStatus.endTime = endTime;
+			return transferStatus;
+		}
+	}
+
+	/**
+	 * Snapshot of a transfer, returned by the transfer status route.
+	 */
+	public static class TransferStatus
+	{
+		public long id;
+		public String username;
+		public String projectID;
+		public String pacID;
+		public String patientID;
+		public String studyUID;
+		public String seriesUID;
+		public String status;
+		public String message;
+		public int expectedInstances;
+		public long receivedInstances;
+		public long receivedBytes;
+		public double instancesPerSecond;
+		public double megabytesPerSecond;
+		public long etaSeconds;
+		public int failures;
+		public long startTime;
+		public long endTime;
+	}
+}
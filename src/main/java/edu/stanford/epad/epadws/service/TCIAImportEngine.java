@@ -0,0 +1,497 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.io.IOUtils;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADFileUtils;
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.TaskStatus;
+import edu.stanford.epad.epadws.config.ConfigParams;
+import edu.stanford.epad.epadws.models.TCIASeriesImport;
+import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.epad.epadws.processing.pipeline.watcher.QueueAndWatcherManager;
+
+/**
+ * Imports series from TCIA into projects, TCIAImportThreads at a time.
+ * <p>
+ * Each series is streamed from getImage and unzipped as it arrives into a staging directory under the upload
+ * directory, then handed to the upload pipeline once all of it is there. Every series of an import is written to
+ * <code>epaddb.tcia_import</code> when it is queued and again when it starts and ends, so start() carries on with
+ * whatever a restart interrupted instead of the whole patient or collection starting over. TCIAImportMaxBytesPerSecond
+ * caps the download rate of all series together; a failed download is retried up to TCIAImportAttempts times.
+ * Downloads interrupted by shutdown() are left Downloading in the table, so they too are imported again by start().
+ */
+public class TCIAImportEngine
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	public static final String STATUS_QUEUED = "Queued";
+	public static final String STATUS_DOWNLOADING = "Downloading";
+	public static final String STATUS_COMPLETED = "Completed";
+	public static final String STATUS_FAILED = "Failed";
+
+	private static final String STAGING_DIRECTORY = ".tcia";
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+	private static final int RESUME_PAGE_SIZE = 1000;
+	private static final int SOCKET_TIMEOUT = 300000; // A stalled download fails and is retried
+	private static final long RETRY_DELAY = 30000;
+
+	private static final TCIAImportEngine ourInstance = new TCIAImportEngine();
+
+	private final ThreadPoolExecutor executor;
+	private final TCIASeriesDownloader downloader;
+	private final ConcurrentMap<String, TCIASeriesImport> activeImports = new ConcurrentHashMap<String, TCIASeriesImport>();
+	private final int attempts;
+	private final int keepDays;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private volatile boolean shuttingDown;
+
+	public static TCIAImportEngine getInstance()
+	{
+		return ourInstance;
+	}
+
+	private TCIAImportEngine()
+	{
+		int threads = ConfigParams.getPositiveIntParam("TCIAImportThreads", 4);
+		attempts = ConfigParams.getPositiveIntParam("TCIAImportAttempts", 3);
+		keepDays = ConfigParams.getPositiveIntParam("TCIAImportKeepDays", 30);
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "TCIAImport-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(threads);
+		params.setMaxTotalConnections(threads);
+		params.setConnectionTimeout(60000);
+		params.setSoTimeout(SOCKET_TIMEOUT);
+		long maxBytesPerSecond = 0;
+		try {
+			maxBytesPerSecond = Long.parseLong(EPADConfig.getParamValue("TCIAImportMaxBytesPerSecond", "0").trim());
+		} catch (NumberFormatException e) {}
+		downloader = new TCIASeriesDownloader(new HttpClient(connectionManager), maxBytesPerSecond);
+	}
+
+	/**
+	 * Requeue series left queued or downloading by the last shutdown, and delete old finished ones.
+	 */
+	public void start()
+	{
+		try {
+			File stagingRoot = getStagingRoot();
+			if (stagingRoot.exists())
+				EPADFileUtils.deleteDirectoryAndContents(stagingRoot); // Partial downloads are started again
+			new TCIASeriesImport().deleteObjects("status in ('" + STATUS_COMPLETED + "','" + STATUS_FAILED
+					+ "') and updatetime < DATE_SUB(NOW(), INTERVAL " + keepDays + " DAY)");
+			int resumed = 0;
+			long lastID = 0;
+			while (true) {
+				List<TCIASeriesImport> imports = new TCIASeriesImport().getObjects("id > " + lastID + " and status in ('"
+						+ STATUS_QUEUED + "','" + STATUS_DOWNLOADING + "') order by id", 0, RESUME_PAGE_SIZE);
+				for (TCIASeriesImport seriesImport : imports) {
+					lastID = seriesImport.getId();
+					seriesImport.setStatus(STATUS_QUEUED);
+					enqueue(seriesImport);
+					resumed++;
+				}
+				if (imports.size() < RESUME_PAGE_SIZE)
+					break;
+			}
+			if (resumed > 0)
+				log.info("Resumed " + resumed + " TCIA series imports");
+		} catch (Exception e) {
+			log.warning("Error resuming TCIA imports", e);
+		}
+	}
+
+	/**
+	 * Stop the downloads. Interrupted and still queued series are not saved as finished, so start() picks them up.
+	 */
+	public void shutdown()
+	{
+		shuttingDown = true;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Queue series of a TCIA collection for import into a project. Series already queued or downloading for the
+	 * project are left alone; anything imported or failed before is imported again. If another submit (on this or
+	 * another server) saves one of the series first, the series is saved on its own over the existing row rather than
+	 * failing the whole batch on the project/series key.
+	 * 
+	 * @return number of series queued
+	 */
+	public int submit(String username, String projectID, String collection, String patientID, String studyUID,
+			List<String> seriesUIDs) throws Exception
+	{
+		Map<String, TCIASeriesImport> previousImports = new HashMap<String, TCIASeriesImport>();
+		StringBuilder uids = new StringBuilder();
+		for (String seriesUID : seriesUIDs) {
+			if (uids.length() > 0)
+				uids.append(",");
+			uids.append(AbstractDAO.toSQL(seriesUID));
+		}
+		if (uids.length() > 0) {
+			List<TCIASeriesImport> previous = new TCIASeriesImport().getObjects("projectid = "
+					+ AbstractDAO.toSQL(projectID) + " and seriesuid in (" + uids + ")");
+			for (TCIASeriesImport seriesImport : previous)
+				previousImports.put(seriesImport.getSeriesUID(), seriesImport);
+		}
+		List<TCIASeriesImport> imports = new ArrayList<TCIASeriesImport>();
+		for (String seriesUID : seriesUIDs) {
+			if (activeImports.containsKey(getKey(projectID, seriesUID)))
+				continue;
+			TCIASeriesImport seriesImport = previousImports.remove(seriesUID);
+			if (seriesImport == null) {
+				seriesImport = new TCIASeriesImport();
+				seriesImport.setProjectID(projectID);
+				seriesImport.setSeriesUID(seriesUID);
+				seriesImport.setCreator(username);
+			}
+			seriesImport.setUsername(username);
+			seriesImport.setCollection(collection);
+			seriesImport.setPatientID(patientID);
+			seriesImport.setStudyUID(studyUID);
+			seriesImport.setStatus(STATUS_QUEUED);
+			seriesImport.setMessage(null);
+			seriesImport.setNumberOfFiles(0);
+			seriesImport.setBytes(0);
+			seriesImport.setAttempts(0);
+			seriesImport.setStartTime(null);
+			seriesImport.setEndTime(null);
+			// Claimed before it is saved so a concurrent submit of the same series skips it
+			if (activeImports.putIfAbsent(getKey(projectID, seriesUID), seriesImport) == null)
+				imports.add(seriesImport);
+		}
+		try {
+			AbstractDAO.saveAll(imports);
+		} catch (Exception e) {
+			log.info("Saving " + imports.size() + " TCIA imports one at a time after " + e.getMessage());
+			imports = saveEach(imports);
+		}
+		for (TCIASeriesImport seriesImport : imports)
+			enqueue(seriesImport);
+		return imports.size();
+	}
+
+	public String getStatistics()
+	{
+		return "queued:" + queued.get() + " downloading:" + running.get() + " completed:" + completed.get() + " failed:"
+				+ failed.get() + " retried:" + retried.get() + " files:" + downloader.getTotalFiles() + " MB:"
+				+ downloader.getTotalBytes() / (1024 * 1024) + " threads:" + executor.getPoolSize();
+	}
+
+	/**
+	 * Insert or update each import by itself, taking over the row another submit inserted for the same series.
+	 * 
+	 * @return the imports saved; the others are released
+	 */
+	private List<TCIASeriesImport> saveEach(List<TCIASeriesImport> imports)
+	{
+		List<TCIASeriesImport> saved = new ArrayList<TCIASeriesImport>();
+		for (TCIASeriesImport seriesImport : imports) {
+			try {
+				if (seriesImport.getId() <= 0) {
+					TCIASeriesImport existing = (TCIASeriesImport)new TCIASeriesImport().getObject("projectid = "
+							+ AbstractDAO.toSQL(seriesImport.getProjectID()) + " and seriesuid = "
+							+ AbstractDAO.toSQL(seriesImport.getSeriesUID()));
+					if (existing != null)
+						seriesImport.setId(existing.getId());
+				}
+				seriesImport.save();
+				saved.add(seriesImport);
+			} catch (Exception e) {
+				log.warning("Error queueing TCIA series " + seriesImport.getSeriesUID(), e);
+				activeImports.remove(getKey(seriesImport.getProjectID(), seriesImport.getSeriesUID()), seriesImport);
+			}
+		}
+		return saved;
+	}
+
+	private void enqueue(final TCIASeriesImport seriesImport)
+	{
+		TCIASeriesImport active = activeImports.putIfAbsent(getKey(seriesImport.getProjectID(), seriesImport.getSeriesUID()),
+				seriesImport);
+		if (active != null && active != seriesImport) // Claimed by submit or already queued
+			return;
+		queued.incrementAndGet();
+		updateTaskStatus(seriesImport, "Queued, " + (executor.getQueue().size() + executor.getActiveCount())
+				+ " series ahead", null, null);
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				importSeries(seriesImport);
+			}
+		});
+	}
+
+	private void importSeries(TCIASeriesImport seriesImport)
+	{
+		queued.decrementAndGet();
+		if (shuttingDown)
+			return; // Still Queued in the table
+		running.incrementAndGet();
+		File stagingDirectory = new File(getStagingRoot(), "tcia" + seriesImport.getId() + "_" + System.currentTimeMillis());
+		boolean leftForRestart = false;
+		try {
+			seriesImport.setStatus(STATUS_DOWNLOADING);
+			seriesImport.setStartTime(new Date());
+			save(seriesImport);
+			updateTaskStatus(seriesImport, "Started download", seriesImport.getStartTime(), null);
+			TCIASeriesDownloader.SeriesDownload download = download(seriesImport, stagingDirectory);
+			if (download.numberOfFiles == 0)
+				throw new IOException("TCIA returned no images for the series");
+			writePropertiesFile(stagingDirectory, seriesImport.getProjectID(), "", seriesImport.getUsername());
+			QueueAndWatcherManager.getInstance().submitUploadDirectory(stagingDirectory);
+			seriesImport.setNumberOfFiles(download.numberOfFiles);
+			seriesImport.setBytes(download.bytes);
+			seriesImport.setStatus(STATUS_COMPLETED);
+			completed.incrementAndGet();
+		} catch (Exception e) {
+			deleteStagingDirectory(stagingDirectory);
+			if (shuttingDown) {
+				// Interrupted by shutdown; the row stays Downloading so start() imports it again
+				log.info("TCIA series " + seriesImport.getSeriesUID() + " left for the next start");
+				leftForRestart = true;
+			} else {
+				log.warning("Error importing TCIA series " + seriesImport.getSeriesUID(), e);
+				seriesImport.setStatus(STATUS_FAILED);
+				seriesImport.setMessage(truncate(e.getMessage()));
+				failed.incrementAndGet();
+			}
+		} finally {
+			running.decrementAndGet();
+			if (!leftForRestart) {
+				seriesImport.setEndTime(new Date());
+				save(seriesImport);
+			}
+			activeImports.remove(getKey(seriesImport.getProjectID(), seriesImport.getSeriesUID()));
+		}
+		if (leftForRestart)
+			return;
+		long secs = (seriesImport.getEndTime().getTime() - seriesImport.getStartTime().getTime()) / 1000;
+		if (STATUS_COMPLETED.equals(seriesImport.getStatus()))
+			updateTaskStatus(seriesImport, "Completed download, " + seriesImport.getNumberOfFiles() + " images in " + secs
+					+ " secs", null, seriesImport.getEndTime());
+		else
+			updateTaskStatus(seriesImport, "Failed download:" + seriesImport.getMessage(), null, seriesImport.getEndTime());
+	}
+
+	private TCIASeriesDownloader.SeriesDownload download(TCIASeriesImport seriesImport, File stagingDirectory)
+			throws Exception
+	{
+		String url = getSeriesURL(seriesImport.getSeriesUID());
+		while (true) {
+			seriesImport.setAttempts(seriesImport.getAttempts() + 1);
+			deleteStagingDirectory(stagingDirectory);
+			stagingDirectory.mkdirs();
+			try {
+				return downloader.download(url, stagingDirectory);
+			} catch (IOException e) {
+				if (seriesImport.getAttempts() >= attempts || Thread.currentThread().isInterrupted())
+					throw e;
+				log.info("Retrying TCIA series " + seriesImport.getSeriesUID() + " after " + e.getMessage());
+				retried.incrementAndGet();
+				Thread.sleep(RETRY_DELAY * seriesImport.getAttempts());
+			}
+		}
+	}
+
+	private static String getSeriesURL(String seriesUID)
+	{
+		String tciaURL = EPADConfig.getParamValue(TCIAService.TCIA_URL,
+				"https://services.cancerimagingarchive.net/services/v3/TCIA/query/getImage");
+		return tciaURL + "?SeriesInstanceUID=" + seriesUID + "&api_key=" + TCIAService.apiKey;
+	}
+
+	private static File getStagingRoot()
+	{
+		return new File(EPADConfig.getEPADWebServerUploadDir(), STAGING_DIRECTORY);
+	}
+
+	private static void deleteStagingDirectory(File stagingDirectory)
+	{
+		if (stagingDirectory.exists())
+			EPADFileUtils.deleteDirectoryAndContents(stagingDirectory);
+	}
+
+	// add the properties file xnat_upload.properties.
+	private static void writePropertiesFile(File storeDir, String project, String session, String user)
+			throws IOException
+	{
+		FileOutputStream fop = new FileOutputStream(new File(storeDir, UserProjectService.XNAT_UPLOAD_PROPERTIES_FILE_NAME), false);
+		try {
+			fop.write(("XNATProjectName=" + project + "\n").getBytes());
+			fop.write(("XNATSessionID=" + session + "\n").getBytes());
+			fop.write(("XNATUserName=" + user + "\n").getBytes());
+		} finally {
+			IOUtils.closeQuietly(fop);
+		}
+	}
+
+	private static void updateTaskStatus(TCIASeriesImport seriesImport, String status, Date startTime, Date completeTime)
+	{
+		DefaultEpadProjectOperations.getInstance().updateUserTaskStatus(seriesImport.getUsername(),
+				TaskStatus.TASK_TCIA_DOWNLOAD, "Series:" + seriesImport.getSeriesUID(), status, startTime, completeTime);
+	}
+
+	private static void save(TCIASeriesImport seriesImport)
+	{
+		try {
+			seriesImport.save();
+		} catch (Exception e) {
+			log.warning("Error saving TCIA import of series " + seriesImport.getSeriesUID(), e);
+		}
+	}
+
+	private static String getKey(String projectID, String seriesUID)
+	{
+		return projectID + ":" + seriesUID;
+	}
+
+	private static String truncate(String message)
+	{
+		if (message == null || message.length() <= MAX_MESSAGE_LENGTH)
+			return message;
+		return message.substring(0, MAX_MESSAGE_LENGTH);
+	}
+}
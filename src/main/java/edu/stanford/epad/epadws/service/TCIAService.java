@@ -105,12 +105,9 @@
 package edu.stanford.epad.epadws.service;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -122,7 +119,6 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.io.IOUtils;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -366,6 +362,9 @@ public class TCIAService  {
 			return elem.getAsString();
 	}
 	
+	/**
+	 * Queues every series of the patient with TCIAImportEngine.
+	 */
 	public int downloadPatientFromTCIA(String username, String collection, String patientID, String projectID)
 			throws Exception
 	{
@@ -374,73 +373,58 @@ public class TCIAService  {
 		EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_TCIA_DOWNLOAD, patientID, "Started download", new Date(), null);
 		List<RemotePACEntity> entities = getStudiesForPatient(collection, patientID);
+		int queued = 0;
 		for (RemotePACEntity entity: entities)
 		{
-			String studyUID = entity.entityID;
-			if (studyUID.indexOf(":") != -1)
-				studyUID = studyUID.substring(studyUID.lastIndexOf(":")+1);
-			downloadStudyFromTCIA(username, collection, patientID, studyUID, projectID);
+			String studyUID = getUID(entity);
+			queued = queued + TCIAImportEngine.getInstance().submit(username, projectID, collection, patientID, studyUID,
+					getUIDs(getSeriesForStudy(collection, patientID, studyUID)));
 		}
-		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_TCIA_DOWNLOAD, patientID, "Completed download", null, new Date());
+		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_TCIA_DOWNLOAD, patientID, "Queued " + queued + " series", null, new Date());
 		return HttpServletResponse.SC_OK;
 	}
 	
+	/**
+	 * Queues every series of the study with TCIAImportEngine.
+	 */
 	public int downloadStudyFromTCIA(String username, String collection, String patientID, String studyUID, String projectID)
 			throws Exception
 	{
 		if (sharedLists.contains(collection))
 			return downloadSeriesFromTCIA(username, patientID, projectID);
 		EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
-		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_TCIA_DOWNLOAD, "Patient:" + patientID + ", Study:" + studyUID, "Started download", null, null);
 		List<RemotePACEntity> entities = getSeriesForStudy(collection, patientID, studyUID);
-		for (RemotePACEntity entity: entities)
-		{
-			String seriesUID = entity.entityID;
-			if (seriesUID.indexOf(":") != -1)
-				seriesUID = seriesUID.substring(seriesUID.lastIndexOf(":")+1);
-			downloadSeriesFromTCIA(username, seriesUID, projectID);
-		}
-		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_TCIA_DOWNLOAD, "Patient:" + patientID + ", Study:" + studyUID, "Completed download", null, new Date());
+		int queued = TCIAImportEngine.getInstance().submit(username, projectID, collection, patientID, studyUID, getUIDs(entities));
+		projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_TCIA_DOWNLOAD, "Patient:" + patientID + ", Study:" + studyUID, "Queued " + queued + " series", null, new Date());
 		return HttpServletResponse.SC_OK;
 	}
 	
+	/**
+	 * Queues the series with TCIAImportEngine; the download itself is reported in the user's task status.
+	 */
 	public static int downloadSeriesFromTCIA(String username, String seriesUID, String projectID)
 			throws Exception
 	{
-		String tciaURL = EPADConfig.getParamValue(TCIA_URL, "https://services.cancerimagingarchive.net/services/v3/TCIA/query/getImage");
-		tciaURL = tciaURL + "?SeriesInstanceUID=" + seriesUID;
-		tciaURL = tciaURL + "&api_key=" + apiKey;
-		log.debug("TCIA Download URL:" + tciaURL);
-		HttpClient client = new HttpClient();
-		GetMethod method = new GetMethod(tciaURL);
-		int statusCode = client.executeMethod(method);
-		File uploadStoreDir = new File(EPADConfig.getEPADWebServerUploadDir()
-													+ "temp" + System.currentTimeMillis());
-		uploadStoreDir.mkdirs();
-		File zipfile = new File(uploadStoreDir, "tcia.zip");
-		long total = 0;
-		if (statusCode == HttpServletResponse.SC_OK) {
-			OutputStream outputStream = null;
-			try {
-				outputStream = new FileOutputStream(zipfile);
-				InputStream inputStream = method.getResponseBodyAsStream();
-				int read = 0;
-				byte[] bytes = new byte[4096];
-				while ((read = inputStream.read(bytes)) != -1) {
-					outputStream.write(bytes, 0, read);
-					total = total + read;
-				}
-			} finally {
-				IOUtils.closeQuietly(outputStream);
-				method.releaseConnection();
-			}
-			log.debug("TCIA download:" + total + " bytes");
-			writePropertiesFile(uploadStoreDir, projectID, "", username);
-		}
-		else {
-			log.warning("TCIA URL:" + tciaURL + " Status:" + statusCode);
-		}
-		return statusCode;
+		List<String> seriesUIDs = new ArrayList<String>();
+		seriesUIDs.add(seriesUID);
+		TCIAImportEngine.getInstance().submit(username, projectID, null, null, null, seriesUIDs);
+		return HttpServletResponse.SC_OK;
+	}
+
+	private static String getUID(RemotePACEntity entity)
+	{
+		String uid = entity.entityID;
+		if (uid.indexOf(":") != -1)
+			uid = uid.substring(uid.lastIndexOf(":")+1);
+		return uid;
+	}
+
+	private static List<String> getUIDs(List<RemotePACEntity> entities)
+	{
+		List<String> uids = new ArrayList<String>();
+		for (RemotePACEntity entity: entities)
+			uids.add(getUID(entity));
+		return uids;
 	}
 
 	private JsonArray getResponseFromTCIA(String query) throws Exception
@@ -500,37 +484,6 @@ public class TCIAService  {
 		}
 		
 	}
-	// add the properties file xnat_upload.properties.
-	private static void writePropertiesFile(File storeDir, String project,
-			String session, String user) {
-
-		String projectName = "XNATProjectName=" + project;
-		String sessionName = "XNATSessionID=" + session;
-		String userName = "XNATUserName=" + user;
-
-		try {
-			File properties = new File(storeDir, "xnat_upload.properties");
-			if (!properties.exists()) {
-				properties.createNewFile();
-			}
-			FileOutputStream fop = new FileOutputStream(properties, false);
-
-			fop.write(projectName.getBytes());
-			fop.write("\n".getBytes());
-			fop.write(sessionName.getBytes());
-			fop.write("\n".getBytes());
-			fop.write(userName.getBytes());
-			fop.write("\n".getBytes());
-
-			fop.flush();
-			fop.close();
-
-		} catch (IOException e) {
-			log.info("Error writing properties file");
-			e.printStackTrace();
-		}
-	}
-	
 	SimpleDateFormat dateformat = new SimpleDateFormat("yyyyMMdd");
 	private Date getDate(String dateStr)
 	{
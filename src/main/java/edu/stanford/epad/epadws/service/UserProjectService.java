@@ -116,6 +116,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.IOUtils;
 import org.dcm4che2.data.DicomObject;
@@ -155,7 +156,11 @@ import edu.stanford.hakan.aim4api.compability.aimv3.ImageAnnotation;
 public class UserProjectService {
 	private static final EPADLogger log = EPADLogger.getInstance();
 
-	public static Map<String, String> pendingPNGs = new HashMap<String, String>();
+	/** The header fields needed to add an uploaded DICOM file to a project */
+	public static final int[] UPLOAD_HEADER_TAGS = { Tag.SpecificCharacterSet, Tag.SOPInstanceUID, Tag.StudyDate,
+			Tag.Modality, Tag.PatientName, Tag.PatientID, Tag.StudyInstanceUID, Tag.SeriesInstanceUID };
+
+	public static Map<String, String> pendingPNGs = new ConcurrentHashMap<String, String>();
 	public static Map<String, String> pendingUploads = new HashMap<String, String>();
 
 	private static final EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();	
@@ -289,14 +294,26 @@ public class UserProjectService {
 	 * @return
 	 */
 	public static String createProjectEntitiesFromDICOMFilesInUploadDirectory(File dicomUploadDirectory, boolean zip)
+	{
+		try {
+			Thread.sleep(5000); // Give it a couple of seconds for the property file to appear
+		} catch (InterruptedException e1) {}
+		return createProjectEntitiesFromDICOMFilesInUploadDirectory(dicomUploadDirectory, zip, null);
+	}
+
+	/**
+	 * Same as above, for an upload directory that is known to be complete.
+	 * 
+	 * @param dicomHeaders headers already read from the DICOM files in the directory, keyed by file; files that are
+	 *          missing are read here. May be null.
+	 */
+	public static String createProjectEntitiesFromDICOMFilesInUploadDirectory(File dicomUploadDirectory, boolean zip,
+			Map<File, DicomObject> dicomHeaders)
 	{
 		int numberOfDICOMFiles = 0;
 		String propertiesFilePath = dicomUploadDirectory.getAbsolutePath() + File.separator
 				+ XNAT_UPLOAD_PROPERTIES_FILE_NAME;
 		File xnatUploadPropertiesFile = new File(propertiesFilePath);
-		try {
-			Thread.sleep(5000); // Give it a couple of seconds for the property file to appear
-		} catch (InterruptedException e1) {}
 		String xnatUserName = null;
 		if (!xnatUploadPropertiesFile.exists())
 			log.warning("Could not find XNAT upload properties file " + propertiesFilePath);
@@ -326,7 +343,7 @@ public class UserProjectService {
 					if (xnatUserName == null)
 						xnatUserName = EPADConfig.xnatUploadProjectUser;
 					//ml sessionid param set to null for not triggering the plugin (it was xnatSessionID) 
-					numberOfDICOMFiles = createProjectEntitiesFromDICOMFilesInUploadDirectory(dicomUploadDirectory, xnatProjectLabel, null, xnatUserName, patientID, studyUID, seriesUID, !zip);
+					numberOfDICOMFiles = createProjectEntitiesFromDICOMFilesInUploadDirectory(dicomUploadDirectory, xnatProjectLabel, null, xnatUserName, patientID, studyUID, seriesUID, !zip, dicomHeaders);
 					if (numberOfDICOMFiles != 0)
 					{
 						projectOperations.createEventLog(xnatUserName, xnatProjectLabel, null, null, null, null, null, dicomUploadDirectory.getName(), "UPLOAD DICOMS", "Number of Dicoms: " +numberOfDICOMFiles, false);
@@ -389,7 +406,7 @@ public class UserProjectService {
 	 * @return
 	 * @throws Exception
 	 */
-	private static int createProjectEntitiesFromDICOMFilesInUploadDirectory(File dicomUploadDirectory, String projectID, String sessionID, String username, String subjectID, String studyUID, String seriesUID, boolean allFiles) throws Exception
+	private static int createProjectEntitiesFromDICOMFilesInUploadDirectory(File dicomUploadDirectory, String projectID, String sessionID, String username, String subjectID, String studyUID, String seriesUID, boolean allFiles, Map<File, DicomObject> dicomHeaders) throws Exception
 	{
 		int numberOfDICOMFiles = 0;
 		Collection<File> files = listDICOMFiles(dicomUploadDirectory);
@@ -434,7 +451,13 @@ public class UserProjectService {
 				}
 				projectOperations.updateUserTaskStatus(username, TaskStatus.TASK_ADD_TO_PROJECT, projectID, dicomUploadDirectory.getName(), "Files processed: " + i, null, null);
 				log.debug("Adding to project:" + dicomFile.getName());
-				if (createProjectEntitiesFromDICOMFile(dicomFile, projectID, sessionID, username))
+				DicomObject dicomHeader = dicomHeaders == null ? null : dicomHeaders.get(dicomFile);
+				boolean added;
+				if (dicomHeader != null)
+					added = createProjectEntitiesFromDICOMFile(dicomFile, dicomHeader, projectID, sessionID, username);
+				else
+					added = createProjectEntitiesFromDICOMFile(dicomFile, projectID, sessionID, username);
+				if (added)
 					numberOfDICOMFiles++;
 			} catch (Throwable x) {
 				log.warning("Error processing dicom:" + dicomFile.getName(), x);
@@ -475,6 +498,14 @@ public class UserProjectService {
 			log.warning("Dicom object couldn't be retrieved!");
 			return false;
 		}
+		return createProjectEntitiesFromDICOMFile(dicomFile, dicomObject, projectID, sessionID, username);
+	}
+
+	/**
+	 * @param dicomObject header of dicomFile; only the tags in {@link #UPLOAD_HEADER_TAGS} are used
+	 */
+	public static boolean createProjectEntitiesFromDICOMFile(File dicomFile, DicomObject dicomObject, String projectID, String sessionID, String username) throws Exception
+	{
 		String dicomPatientName = dicomObject.getString(Tag.PatientName);
 		String dicomPatientID = dicomObject.getString(Tag.PatientID);
 		String studyUID = dicomObject.getString(Tag.StudyInstanceUID);
@@ -628,7 +659,7 @@ public class UserProjectService {
 		}
 	}
 
-	private static Collection<File> listDICOMFiles(File dir)
+	public static Collection<File> listDICOMFiles(File dir)
 	{
 		log.info("Checking upload directory:" + dir.getAbsolutePath());
 		Set<File> files = new HashSet<File>();
@@ -0,0 +1,7 @@
+CREATE TABLE IF NOT EXISTS epad_checkpoint (name varchar(128) NOT NULL,
+value varchar(2000),
+updatetime timestamp,
+PRIMARY KEY (name)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+UPDATE dbversion SET version = '2.21';
+commit;
@@ -0,0 +1,12 @@
+CREATE TABLE IF NOT EXISTS epad_session (sessionid varchar(64) NOT NULL,
+username varchar(128) NOT NULL,
+createdtime timestamp NULL,
+lastactivity timestamp NULL,
+remotehost varchar(256),
+remoteaddr varchar(64),
+lastrequest varchar(1024),
+PRIMARY KEY (sessionid),
+KEY epad_session_lastactivity_ind (lastactivity)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+UPDATE dbversion SET version = '2.22';
+commit;
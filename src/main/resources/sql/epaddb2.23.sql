@@ -0,0 +1,21 @@
+CREATE TABLE IF NOT EXISTS plugin_job (id integer unsigned NOT NULL AUTO_INCREMENT,
+plugin_name varchar(128) NOT NULL,
+username varchar(128),
+sessionid varchar(64),
+projectid varchar(128),
+aimids text,
+frame_number integer,
+batchid varchar(64),
+status varchar(32),
+message varchar(1024),
+starttime timestamp NULL,
+endtime timestamp NULL,
+creator varchar(128),
+createdtime timestamp NULL,
+updatetime timestamp NULL,
+PRIMARY KEY (id),
+KEY plugin_job_status_ind (status),
+KEY plugin_job_username_ind (username)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+UPDATE dbversion SET version = '2.23';
+commit;
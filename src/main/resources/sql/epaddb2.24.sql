@@ -0,0 +1,23 @@
+CREATE TABLE IF NOT EXISTS tcia_import (id integer unsigned NOT NULL AUTO_INCREMENT,
+username varchar(128),
+projectid varchar(128) NOT NULL,
+collection varchar(128),
+patientid varchar(128),
+studyuid varchar(128),
+seriesuid varchar(128) NOT NULL,
+status varchar(32),
+message varchar(1024),
+number_of_files integer,
+bytes bigint,
+attempts integer,
+starttime timestamp NULL,
+endtime timestamp NULL,
+creator varchar(128),
+createdtime timestamp NULL,
+updatetime timestamp NULL,
+PRIMARY KEY (id),
+UNIQUE KEY tcia_import_series_ind (projectid,seriesuid),
+KEY tcia_import_status_ind (status)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+UPDATE dbversion SET version = '2.24';
+commit;
@@ -0,0 +1,14 @@
+CREATE TABLE IF NOT EXISTS image_index (id integer unsigned NOT NULL AUTO_INCREMENT,
+series_uid varchar(128) NOT NULL,
+image_uid varchar(128) NOT NULL,
+instance_number integer,
+slice_position double NULL,
+number_of_frames integer,
+createdtime timestamp NULL,
+updatetime timestamp NULL,
+PRIMARY KEY (id),
+KEY image_index_series_ind (series_uid),
+KEY image_index_image_ind (image_uid)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+UPDATE dbversion SET version = '2.25';
+commit;
@@ -0,0 +1,19 @@
+CREATE TABLE IF NOT EXISTS aim_replication (id integer unsigned NOT NULL AUTO_INCREMENT,
+aimid varchar(128) NOT NULL,
+projectid varchar(128),
+version integer,
+exist_replicated bit DEFAULT 0,
+mongo_replicated bit DEFAULT 0,
+status varchar(32),
+message varchar(1024),
+attempts integer,
+next_attempt timestamp NULL,
+savedtime timestamp NULL,
+createdtime timestamp NULL,
+updatetime timestamp NULL,
+PRIMARY KEY (id),
+UNIQUE KEY aim_replication_aim_ind (aimid),
+KEY aim_replication_next_ind (status,next_attempt)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+UPDATE dbversion SET version = '2.26';
+commit;
@@ -104,6 +104,8 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.service;
 
+import java.util.List;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -112,8 +114,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.handlers.core.EPADSearchFilter;
 import edu.stanford.epad.epadws.models.Project;
 import edu.stanford.epad.epadws.models.ProjectType;
+import edu.stanford.epad.epadws.models.Subject;
 
 public class EpadProjectOperationsTest {
 
@@ -153,6 +157,45 @@ public class EpadProjectOperationsTest {
 		}
     }
 
+    @Test
+    public void getSubjectsForProjectWithSearchCriteriaTest() {
+    	EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
+    	String projectID = "Test" + System.currentTimeMillis();
+    	String[] subjectUIDs = { projectID + "_LIDC_01", projectID + "_LIDC_02", projectID + "_OTHER" };
+    	String[] names = { "Smith^John", "O'Brien^Pat", "Smith^Jane" };
+		try {
+			projectOperations.createProject("admin", projectID, projectID, "Test", "TestTemplate", ProjectType.PRIVATE);
+			for (int i = 0; i < subjectUIDs.length; i++) {
+				projectOperations.createSubject("admin", subjectUIDs[i], names[i], null, "M");
+				projectOperations.addSubjectToProject("admin", subjectUIDs[i], projectID);
+			}
+
+			EPADSearchFilter searchFilter = new EPADSearchFilter();
+			searchFilter.setPatientNameMatch("smith j");
+			List<Subject> subjects = projectOperations.getSubjectsForProject(projectID, "name",
+					searchFilter.getSubjectSQLCriteria("subjectUID", "name"), null, 0, 0);
+			Assert.assertEquals(2, subjects.size());
+			Assert.assertEquals(subjectUIDs[2], subjects.get(0).getSubjectUID());
+			Assert.assertEquals(subjectUIDs[0], subjects.get(1).getSubjectUID());
+
+			searchFilter = new EPADSearchFilter();
+			searchFilter.setPatientIDMatch("lidc_0");
+			searchFilter.setPatientNameMatch("o'brien");
+			subjects = projectOperations.getSubjectsForProject(projectID, "name",
+					searchFilter.getSubjectSQLCriteria("subjectUID", "name"), null, 0, 1);
+			Assert.assertEquals(1, subjects.size());
+			Assert.assertEquals(subjectUIDs[1], subjects.get(0).getSubjectUID());
+		} catch (Exception e) {
+			Assert.fail(e.getMessage());
+		} finally {
+			try {
+				for (String subjectUID: subjectUIDs)
+					projectOperations.deleteSubject("admin", subjectUID);
+				projectOperations.deleteProject("admin", projectID);
+			} catch (Exception e) {}
+		}
+    }
+
 //  Need to create Tests for these
 //	Project updateProject(String loggedInUser, String projectId, String projectName, String description, ProjectType type) throws Exception;
 //	User createUser(String loggedInUser, String username, String firstName, String lastName, String email, String password) throws Exception;
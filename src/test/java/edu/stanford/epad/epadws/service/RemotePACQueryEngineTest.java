@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.epad.dtos.RemotePACEntity;
+
+/**
+ * Runs the query engine against a stand-in for a remote PAC, so no DICOM network is needed.
+ */
+public class RemotePACQueryEngineTest {
+
+	private ExecutorService executor;
+
+	/**
+	 * Stands in for a remote PAC: returns a fixed number of entities, optionally holding the association open until
+	 * released.
+	 */
+	static class StandInPAC implements RemotePACQueryEngine.RemoteQuery {
+		final AtomicInteger queries = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release;
+		final int numberOfEntities;
+
+		StandInPAC(int numberOfEntities, boolean hold) {
+			this.numberOfEntities = numberOfEntities;
+			this.release = new CountDownLatch(hold ? 1 : 0);
+		}
+
+		@Override
+		public List<RemotePACEntity> run() throws Exception {
+			queries.incrementAndGet();
+			List<RemotePACEntity> entities = new ArrayList<RemotePACEntity>();
+			for (int i = 0; i < numberOfEntities; i++)
+				entities.add(new RemotePACEntity("Study", "Study " + i, 1, "pac:" + i));
+			started.countDown();
+			release.await(10, TimeUnit.SECONDS);
+			return entities;
+		}
+	}
+
+	/**
+	 * Lets a test wait until a query has joined an identical running one.
+	 */
+	static class JoinAwareEngine extends RemotePACQueryEngine {
+		final CountDownLatch joined = new CountDownLatch(1);
+
+		JoinAwareEngine() {
+			super(2, 1000, 10, 60000);
+		}
+
+		@Override
+		void queryJoined(String key) {
+			joined.countDown();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void identicalQueriesAreCoalesced() throws Exception {
+		final JoinAwareEngine engine = new JoinAwareEngine();
+		final StandInPAC pac = new StandInPAC(3, true);
+		Future<List<RemotePACEntity>> first = executor.submit(new QueryCall(engine, "pac", "key", pac));
+		Assert.assertTrue(pac.started.await(5, TimeUnit.SECONDS));
+		Future<List<RemotePACEntity>> second = executor.submit(new QueryCall(engine, "pac", "key", pac));
+		Assert.assertTrue(engine.joined.await(5, TimeUnit.SECONDS));
+		pac.release.countDown();
+		List<RemotePACEntity> firstResult = first.get(5, TimeUnit.SECONDS);
+		List<RemotePACEntity> secondResult = second.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(3, firstResult.size());
+		Assert.assertEquals(3, secondResult.size());
+		Assert.assertNotSame(firstResult.get(0), secondResult.get(0));
+		Assert.assertEquals(1, pac.queries.get());
+	}
+
+	@Test
+	public void resultsAreCachedUntilInvalidated() throws Exception {
+		RemotePACQueryEngine engine = new RemotePACQueryEngine(2, 1000, 10, 60000);
+		StandInPAC pac = new StandInPAC(2, false);
+		List<RemotePACEntity> first = engine.query("pac", "key", pac);
+		first.get(0).inEpad = true;
+		List<RemotePACEntity> cached = engine.query("pac", "key", pac);
+		Assert.assertEquals(2, cached.size());
+		Assert.assertFalse("Callers' changes must not reach the cache", cached.get(0).inEpad);
+		Assert.assertEquals(1, pac.queries.get());
+		engine.invalidate("pac");
+		engine.query("pac", "key", pac);
+		Assert.assertEquals(2, pac.queries.get());
+	}
+
+	@Test
+	public void cacheIsBoundedBySize() throws Exception {
+		RemotePACQueryEngine engine = new RemotePACQueryEngine(2, 1000, 1, 60000);
+		StandInPAC pac = new StandInPAC(1, false);
+		engine.query("pac", "a", pac);
+		engine.query("pac", "b", pac);
+		engine.query("pac", "a", pac);
+		Assert.assertEquals(3, pac.queries.get());
+	}
+
+	@Test
+	public void associationsAreLimitedPerPAC() throws Exception {
+		RemotePACQueryEngine engine = new RemotePACQueryEngine(1, 200, 10, 60000);
+		StandInPAC slowPAC = new StandInPAC(1, true);
+		Future<List<RemotePACEntity>> slow = executor.submit(new QueryCall(engine, "slow", "a", slowPAC));
+		Assert.assertTrue(slowPAC.started.await(5, TimeUnit.SECONDS));
+		// Another PAC is not held up by the slow one
+		Assert.assertEquals(1, engine.query("fast", "a", new StandInPAC(1, false)).size());
+		try {
+			engine.query("slow", "b", new StandInPAC(1, false));
+			Assert.fail("Expected the second association to the slow PAC to be refused");
+		} catch (Exception e) {
+			// expected
+		}
+		slowPAC.release.countDown();
+		Assert.assertEquals(1, slow.get(5, TimeUnit.SECONDS).size());
+	}
+
+	static class QueryCall implements Callable<List<RemotePACEntity>> {
+		final RemotePACQueryEngine engine;
+		final String pacID;
+		final String key;
+		final RemotePACQueryEngine.RemoteQuery query;
+
+		QueryCall(RemotePACQueryEngine engine, String pacID, String key, RemotePACQueryEngine.RemoteQuery query) {
+			this.engine = engine;
+			this.pacID = pacID;
+			this.key = key;
+			this.query = query;
+		}
+
+		@Override
+		public List<RemotePACEntity> call() throws Exception {
+			return engine.query(pacID, key, query);
+		}
+	}
+}